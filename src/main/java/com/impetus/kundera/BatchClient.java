@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera;
+
+import java.util.List;
+
+import com.impetus.kundera.metadata.EntityMetadata;
+import com.impetus.kundera.proxy.EnhancedEntity;
+
+/**
+ * A {@link Client} that can write many entities in one datastore call. Writes
+ * of concurrent callers are grouped into such calls by
+ * {@link com.impetus.kundera.db.GroupCommitter}.
+ *
+ * @author animesh.kumar
+ */
+public interface BatchClient extends Client
+{
+
+    /**
+     * Writes entities in one datastore call. Entities and metadata are matched
+     * by position. If this throws, some of the entities may be written
+     * already; each of them is then written again on its own, so writing an
+     * entity already stored must overwrite it rather than fail.
+     *
+     * @param entities
+     *            the entities
+     * @param metadata
+     *            metadata of each entity
+     * @throws Exception
+     *             the exception
+     */
+    void writeData(List<EnhancedEntity> entities, List<EntityMetadata> metadata) throws Exception;
+}
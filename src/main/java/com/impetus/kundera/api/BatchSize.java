@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.api;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Number of related entities to load with one multiget.
+ *
+ * On a lazy collection it sets how many members are read per multiget when
+ * the collection is first touched. On a lazy single valued relation it lets
+ * up to that many sibling proxies of the same EntityManager load together
+ * when any one of them is initialized.
+ *
+ * @author animesh.kumar
+ */
+@Target( { ElementType.FIELD })
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface BatchSize
+{
+
+    /**
+     * Value.
+     *
+     * @return the batch size
+     */
+    int value();
+}
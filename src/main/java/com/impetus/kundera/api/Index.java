@@ -24,6 +24,9 @@ import java.lang.annotation.Target;
 /**
  * Indicates and validates a class for use as Cassandra Entity.
  *
+ * On a field, tells how the property is indexed: as a single keyword, or
+ * analyzed by a named analyzer, with or without norms, stored or not.
+ *
  * @author animesh.kumar
  * @since 0.1
  */
@@ -53,4 +56,35 @@ public @interface Index
      * @return
      */
     String[] columns() default {};
+
+    /**
+     * Whether the property is indexed as a single, untokenized term, matched
+     * exactly; for e-mails, states and ids. Applies to fields.
+     *
+     * @return boolean
+     */
+    boolean keyword() default false;
+
+    /**
+     * Class name of the analyzer of the property, if not the default one.
+     * Applies to fields, not indexed as keywords.
+     *
+     * @return the analyzer class name
+     */
+    String analyzer() default "";
+
+    /**
+     * Whether norms are kept, so that matches in shorter values and boosts
+     * weigh more. Applies to fields.
+     *
+     * @return boolean
+     */
+    boolean norms() default true;
+
+    /**
+     * Whether the value is stored in the index. Applies to fields.
+     *
+     * @return boolean
+     */
+    boolean store() default false;
 }
@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.api;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares this entity's part of a named fetch plan. Several entities may
+ * declare parts of the same plan; they are merged.
+ *
+ * @author animesh.kumar
+ * @see com.impetus.kundera.metadata.FetchPlan
+ */
+@Target( { ElementType.TYPE })
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface NamedFetchPlan
+{
+
+    /**
+     * Name of the plan.
+     *
+     * @return the string
+     */
+    String name();
+
+    /**
+     * Relations loaded eagerly.
+     *
+     * @return the property names
+     */
+    String[] eager() default {};
+
+    /**
+     * Relations loaded lazily.
+     *
+     * @return the property names
+     */
+    String[] lazy() default {};
+
+    /**
+     * Columns, embedded objects and relations not loaded.
+     *
+     * @return the property names
+     */
+    String[] exclude() default {};
+}
@@ -0,0 +1,333 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Remembers primary keys found absent in the datastore, so that repeated
+ * lookups of missing entities do not each cost a datastore read. Keys expire
+ * after a time to live and at most a fixed number of them are kept, oldest
+ * dropped first. Persisting or merging an entity forgets its key.
+ *
+ * A lookup takes the generation of its key with
+ * {@link #getGeneration(Class, Object)} before reading the datastore and hands
+ * it to {@link #markAbsent(Class, Object, long)}; a key written in between is
+ * then not recorded absent. Generations are striped over the keys, so a write
+ * may also drop the mark of an unrelated key, never keep a stale one.
+ *
+ * Disabled unless <code>kundera.cache.negative.ttl</code> (milliseconds) is
+ * set; <code>kundera.cache.negative.max_entries</code> bounds the number of
+ * keys, default 10000.
+ *
+ * @author animesh.kumar
+ */
+public class NegativeLookupCache
+{
+
+    /** The Constant TTL. */
+    public static final String TTL = "kundera.cache.negative.ttl";
+
+    /** The Constant MAX_ENTRIES. */
+    public static final String MAX_ENTRIES = "kundera.cache.negative.max_entries";
+
+    /** The Constant DEFAULT_MAX_ENTRIES. */
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    /** Stripes of key generations, a power of two. */
+    private static final int GENERATION_STRIPES = 256;
+
+    /** Time to live of a key, in milliseconds. */
+    private final long ttl;
+
+    /** The max entries. */
+    private final int maxEntries;
+
+    /** Key to expiry time, in insertion order. */
+    private final LinkedHashMap<String, Long> absentKeys = new LinkedHashMap<String, Long>();
+
+    /** Generations of keys, bumped on every write of a key of the stripe. */
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+    /** Lookups answered without going to the datastore. */
+    private final AtomicLong savedReads = new AtomicLong();
+
+    /** Keys recorded absent. */
+    private final AtomicLong recordedMisses = new AtomicLong();
+
+    /** Keys forgotten because the entity was written. */
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Instantiates a new negative lookup cache.
+     *
+     * @param ttl
+     *            time to live of a key, in milliseconds; 0 disables the cache
+     * @param maxEntries
+     *            the max entries
+     */
+    public NegativeLookupCache(long ttl, int maxEntries)
+    {
+        this.ttl = ttl;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Creates the cache from persistence unit properties.
+     *
+     * @param props
+     *            the props, may be null
+     * @return the negative lookup cache
+     */
+    public static NegativeLookupCache fromProperties(Map<?, ?> props)
+    {
+        long ttl = 0;
+        int maxEntries = DEFAULT_MAX_ENTRIES;
+        if (props != null)
+        {
+            if (props.get(TTL) != null)
+            {
+                ttl = Long.parseLong(props.get(TTL).toString().trim());
+            }
+            if (props.get(MAX_ENTRIES) != null)
+            {
+                maxEntries = Integer.parseInt(props.get(MAX_ENTRIES).toString().trim());
+            }
+        }
+        return new NegativeLookupCache(ttl, maxEntries);
+    }
+
+    /**
+     * Checks if is enabled.
+     *
+     * @return true, if is enabled
+     */
+    public boolean isEnabled()
+    {
+        return ttl > 0 && maxEntries > 0;
+    }
+
+    /**
+     * Checks whether an entity is known to be absent. Each positive answer
+     * counts as a saved datastore read.
+     *
+     * @param entityClass
+     *            the entity class
+     * @param id
+     *            the id
+     * @return true, if known absent
+     */
+    public boolean isKnownAbsent(Class<?> entityClass, Object id)
+    {
+        if (!isEnabled())
+        {
+            return false;
+        }
+        String key = key(entityClass, id);
+        synchronized (absentKeys)
+        {
+            Long expiry = absentKeys.get(key);
+            if (expiry == null)
+            {
+                return false;
+            }
+            if (expiry < System.currentTimeMillis())
+            {
+                absentKeys.remove(key);
+                return false;
+            }
+        }
+        savedReads.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Current generation of an entity's key; it changes whenever the entity is
+     * written. Take it before reading the datastore.
+     *
+     * @param entityClass
+     *            the entity class
+     * @param id
+     *            the id
+     * @return the generation
+     */
+    public long getGeneration(Class<?> entityClass, Object id)
+    {
+        return generations.get(stripe(key(entityClass, id)));
+    }
+
+    /**
+     * Records that an entity was not found in the datastore, unless it was
+     * written since the read began.
+     *
+     * @param entityClass
+     *            the entity class
+     * @param id
+     *            the id
+     * @param generation
+     *            generation of the key taken before the read
+     */
+    public void markAbsent(Class<?> entityClass, Object id, long generation)
+    {
+        if (!isEnabled())
+        {
+            return;
+        }
+        String key = key(entityClass, id);
+        long now = System.currentTimeMillis();
+        synchronized (absentKeys)
+        {
+            if (generations.get(stripe(key)) != generation)
+            {
+                return;
+            }
+
+            // re-insert, so that the key moves to the young end
+            absentKeys.remove(key);
+            absentKeys.put(key, now + ttl);
+
+            // all keys share one ttl, so the eldest expires first
+            Iterator<Map.Entry<String, Long>> it = absentKeys.entrySet().iterator();
+            while (it.hasNext())
+            {
+                Map.Entry<String, Long> eldest = it.next();
+                if (absentKeys.size() <= maxEntries && eldest.getValue() >= now)
+                {
+                    break;
+                }
+                it.remove();
+            }
+        }
+        recordedMisses.incrementAndGet();
+    }
+
+    /**
+     * Forgets an entity, as it has been written.
+     *
+     * @param entityClass
+     *            the entity class
+     * @param id
+     *            the id
+     */
+    public void invalidate(Class<?> entityClass, Object id)
+    {
+        if (!isEnabled())
+        {
+            return;
+        }
+        String key = key(entityClass, id);
+        boolean removed;
+        synchronized (absentKeys)
+        {
+            // also when not marked yet, so that a racing read does not mark it
+            generations.incrementAndGet(stripe(key));
+            removed = absentKeys.remove(key) != null;
+        }
+        if (removed)
+        {
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * Forgets all keys.
+     */
+    public void clear()
+    {
+        synchronized (absentKeys)
+        {
+            for (int i = 0; i < GENERATION_STRIPES; i++)
+            {
+                generations.incrementAndGet(i);
+            }
+            absentKeys.clear();
+        }
+    }
+
+    /**
+     * Number of keys currently remembered.
+     *
+     * @return the int
+     */
+    public int size()
+    {
+        synchronized (absentKeys)
+        {
+            return absentKeys.size();
+        }
+    }
+
+    /**
+     * Datastore reads saved so far.
+     *
+     * @return the saved reads
+     */
+    public long getSavedReads()
+    {
+        return savedReads.get();
+    }
+
+    /**
+     * Keys recorded absent so far.
+     *
+     * @return the recorded misses
+     */
+    public long getRecordedMisses()
+    {
+        return recordedMisses.get();
+    }
+
+    /**
+     * Keys forgotten on writes so far.
+     *
+     * @return the invalidations
+     */
+    public long getInvalidations()
+    {
+        return invalidations.get();
+    }
+
+    /**
+     * Key of an entity.
+     *
+     * @param entityClass
+     *            the entity class
+     * @param id
+     *            the id
+     * @return the key
+     */
+    private static String key(Class<?> entityClass, Object id)
+    {
+        return entityClass.getName() + "_" + id;
+    }
+
+    /**
+     * Stripe of the generation of a key.
+     *
+     * @param key
+     *            the key
+     * @return the stripe
+     */
+    private static int stripe(String key)
+    {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (GENERATION_STRIPES - 1);
+    }
+}
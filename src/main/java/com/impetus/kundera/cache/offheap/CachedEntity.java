@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.cache.offheap;
+
+import java.util.Map;
+import java.util.Set;
+
+import com.impetus.kundera.proxy.SimpleEnhancedEntity;
+
+/**
+ * Entity read back from the off-heap cache, along with the ids of the
+ * entities it relates to. The session unwraps it and wires the relations.
+ *
+ * @author animesh.kumar
+ */
+public class CachedEntity extends SimpleEnhancedEntity
+{
+
+    /**
+     * Instantiates a new cached entity.
+     *
+     * @param entity
+     *            the entity
+     * @param id
+     *            the id
+     * @param foreignKeysMap
+     *            the foreign keys map
+     */
+    public CachedEntity(Object entity, String id, Map<String, Set<String>> foreignKeysMap)
+    {
+        super(entity, id, foreignKeysMap);
+    }
+}
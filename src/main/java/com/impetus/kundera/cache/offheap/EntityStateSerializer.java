@@ -0,0 +1,431 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.cache.offheap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.Embedded;
+
+import com.impetus.kundera.metadata.EntityMetadata;
+import com.impetus.kundera.metadata.EntityMetadata.Column;
+import com.impetus.kundera.metadata.EntityMetadata.Relation;
+import com.impetus.kundera.metadata.EntityMetadata.SuperColumn;
+import com.impetus.kundera.metadata.MetadataManager;
+import com.impetus.kundera.property.PropertyAccessException;
+import com.impetus.kundera.property.PropertyAccessor;
+import com.impetus.kundera.property.PropertyAccessorFactory;
+import com.impetus.kundera.property.PropertyAccessorHelper;
+import com.impetus.kundera.proxy.PersistentCollection;
+
+/**
+ * Writes the persistent state of one entity class to bytes and back, using the
+ * same property accessors that encode columns for the datastores. Relations
+ * are not followed; only the ids of related entities are kept, the way they
+ * are kept in the datastores, and the session wires them back on read.
+ *
+ * Every read builds a new entity instance, so nothing handed out from the
+ * cache is ever shared between callers.
+ *
+ * @author animesh.kumar
+ */
+public class EntityStateSerializer
+{
+
+    /** No embedded value. */
+    private static final byte EMBEDDED_NULL = 0;
+
+    /** A single embedded object. */
+    private static final byte EMBEDDED_SINGLE = 1;
+
+    /** A list of embedded objects. */
+    private static final byte EMBEDDED_LIST = 2;
+
+    /** A set of embedded objects. */
+    private static final byte EMBEDDED_SET = 3;
+
+    /** The metadata. */
+    private final EntityMetadata metadata;
+
+    /** The metadata manager, to look up relation targets. */
+    private final MetadataManager metadataManager;
+
+    /** Simple fields of the entity, by field name. */
+    private final Map<String, Field> fields = new HashMap<String, Field>();
+
+    /** Embedded super columns of the entity, by field name. */
+    private final Map<String, SuperColumn> embedded = new HashMap<String, SuperColumn>();
+
+    /**
+     * Instantiates a new entity state serializer.
+     *
+     * @param metadata
+     *            the metadata
+     * @param metadataManager
+     *            the metadata manager
+     */
+    public EntityStateSerializer(EntityMetadata metadata, MetadataManager metadataManager)
+    {
+        this.metadata = metadata;
+        this.metadataManager = metadataManager;
+        for (Column column : metadata.getColumnsAsList())
+        {
+            fields.put(column.getField().getName(), column.getField());
+        }
+        for (SuperColumn superColumn : metadata.getSuperColumnsAsList())
+        {
+            Field field = superColumn.getField();
+            if (field.isAnnotationPresent(Embedded.class))
+            {
+                embedded.put(field.getName(), superColumn);
+            }
+            else
+            {
+                // plain column of a super column family
+                fields.put(field.getName(), field);
+            }
+        }
+    }
+
+    /**
+     * Serializes an entity.
+     *
+     * @param entity
+     *            the entity
+     * @return the byte[]
+     * @throws PropertyAccessException
+     *             the property access exception
+     */
+    public byte[] serialize(Object entity) throws PropertyAccessException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try
+        {
+            out.writeUTF(PropertyAccessorHelper.getId(entity, metadata));
+
+            out.writeInt(fields.size());
+            for (Field field : fields.values())
+            {
+                out.writeUTF(field.getName());
+                writeValue(out, field, PropertyAccessorHelper.getObject(entity, field));
+            }
+
+            out.writeInt(embedded.size());
+            for (SuperColumn superColumn : embedded.values())
+            {
+                out.writeUTF(superColumn.getField().getName());
+                Object value = PropertyAccessorHelper.getObject(entity, superColumn.getField());
+                if (value == null)
+                {
+                    out.writeByte(EMBEDDED_NULL);
+                }
+                else if (value instanceof Collection)
+                {
+                    Collection<?> collection = (Collection<?>) value;
+                    out.writeByte(value instanceof Set ? EMBEDDED_SET : EMBEDDED_LIST);
+                    out.writeInt(collection.size());
+                    for (Object element : collection)
+                    {
+                        writeEmbedded(out, superColumn, element);
+                    }
+                }
+                else
+                {
+                    out.writeByte(EMBEDDED_SINGLE);
+                    writeEmbedded(out, superColumn, value);
+                }
+            }
+
+            List<Relation> relations = metadata.getRelations();
+            out.writeInt(relations.size());
+            for (Relation relation : relations)
+            {
+                out.writeUTF(relation.getProperty().getName());
+                Set<String> foreignKeys = foreignKeys(entity, relation);
+                out.writeInt(foreignKeys.size());
+                for (String foreignKey : foreignKeys)
+                {
+                    out.writeUTF(foreignKey);
+                }
+            }
+            out.flush();
+        }
+        catch (IOException e)
+        {
+            throw new PropertyAccessException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Builds a new entity from serialized state.
+     *
+     * @param data
+     *            the data
+     * @return the entity along with ids of its related entities
+     * @throws PropertyAccessException
+     *             the property access exception
+     */
+    public CachedEntity deserialize(byte[] data) throws PropertyAccessException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try
+        {
+            Object entity = metadata.getEntityClazz().newInstance();
+
+            String id = in.readUTF();
+            PropertyAccessorHelper.set(entity, metadata.getIdProperty(), id);
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++)
+            {
+                Field field = fields.get(in.readUTF());
+                byte[] value = readBytes(in);
+                if (field != null && value != null)
+                {
+                    PropertyAccessorHelper.set(entity, field, value);
+                }
+            }
+
+            count = in.readInt();
+            for (int i = 0; i < count; i++)
+            {
+                SuperColumn superColumn = embedded.get(in.readUTF());
+                byte kind = in.readByte();
+                Object value = null;
+                if (kind == EMBEDDED_SINGLE)
+                {
+                    value = readEmbedded(in, superColumn, superColumn.getField().getType());
+                }
+                else if (kind == EMBEDDED_LIST || kind == EMBEDDED_SET)
+                {
+                    Class<?> elementClass = PropertyAccessorHelper.getGenericClass(superColumn.getField());
+                    Collection<Object> collection = kind == EMBEDDED_SET ? new HashSet<Object>()
+                            : new ArrayList<Object>();
+                    int size = in.readInt();
+                    for (int j = 0; j < size; j++)
+                    {
+                        collection.add(readEmbedded(in, superColumn, elementClass));
+                    }
+                    value = collection;
+                }
+                if (value != null)
+                {
+                    PropertyAccessorHelper.set(entity, superColumn.getField(), value);
+                }
+            }
+
+            Map<String, Set<String>> foreignKeysMap = new HashMap<String, Set<String>>();
+            count = in.readInt();
+            for (int i = 0; i < count; i++)
+            {
+                String property = in.readUTF();
+                int size = in.readInt();
+                Set<String> foreignKeys = new HashSet<String>();
+                for (int j = 0; j < size; j++)
+                {
+                    foreignKeys.add(in.readUTF());
+                }
+                if (!foreignKeys.isEmpty())
+                {
+                    foreignKeysMap.put(property, foreignKeys);
+                }
+            }
+            return new CachedEntity(entity, id, foreignKeysMap);
+        }
+        catch (IOException e)
+        {
+            throw new PropertyAccessException(e);
+        }
+        catch (InstantiationException e)
+        {
+            throw new PropertyAccessException(e);
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new PropertyAccessException(e);
+        }
+    }
+
+    /**
+     * Writes the columns of one embedded object.
+     *
+     * @param out
+     *            the out
+     * @param superColumn
+     *            the super column
+     * @param element
+     *            the embedded object
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     * @throws PropertyAccessException
+     *             the property access exception
+     */
+    private void writeEmbedded(DataOutputStream out, SuperColumn superColumn, Object element) throws IOException,
+            PropertyAccessException
+    {
+        List<Column> columns = superColumn.getColumns();
+        out.writeInt(columns.size());
+        for (Column column : columns)
+        {
+            out.writeUTF(column.getField().getName());
+            writeValue(out, column.getField(), PropertyAccessorHelper.getObject(element, column.getField()));
+        }
+    }
+
+    /**
+     * Reads one embedded object.
+     *
+     * @param in
+     *            the in
+     * @param superColumn
+     *            the super column
+     * @param embeddedClass
+     *            the embedded class
+     * @return the object
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     * @throws PropertyAccessException
+     *             the property access exception
+     * @throws InstantiationException
+     *             the instantiation exception
+     * @throws IllegalAccessException
+     *             the illegal access exception
+     */
+    private Object readEmbedded(DataInputStream in, SuperColumn superColumn, Class<?> embeddedClass)
+            throws IOException, PropertyAccessException, InstantiationException, IllegalAccessException
+    {
+        Map<String, Field> columnFields = new HashMap<String, Field>();
+        for (Column column : superColumn.getColumns())
+        {
+            columnFields.put(column.getField().getName(), column.getField());
+        }
+
+        Object element = embeddedClass.newInstance();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++)
+        {
+            Field field = columnFields.get(in.readUTF());
+            byte[] value = readBytes(in);
+            if (field != null && value != null)
+            {
+                PropertyAccessorHelper.set(element, field, value);
+            }
+        }
+        return element;
+    }
+
+    /**
+     * Ids of the entities related through relation.
+     *
+     * @param entity
+     *            the entity
+     * @param relation
+     *            the relation
+     * @return the foreign keys
+     * @throws PropertyAccessException
+     *             the property access exception
+     */
+    private Set<String> foreignKeys(Object entity, Relation relation) throws PropertyAccessException
+    {
+        Set<String> foreignKeys = new HashSet<String>();
+        Object value = PropertyAccessorHelper.getObject(entity, relation.getProperty());
+        if (value == null)
+        {
+            return foreignKeys;
+        }
+
+        EntityMetadata target = metadataManager.getEntityMetadata(relation.getTargetEntity());
+        if (relation.isUnary())
+        {
+            foreignKeys.add(PropertyAccessorHelper.getId(value, target));
+        }
+        else if (value instanceof PersistentCollection && !((PersistentCollection) value).isInitialized())
+        {
+            // caching must not load a lazy collection
+            foreignKeys.addAll(((PersistentCollection) value).getForeignKeys());
+        }
+        else if (relation.isCollection())
+        {
+            for (Object o : (Collection<?>) value)
+            {
+                foreignKeys.add(PropertyAccessorHelper.getId(o, target));
+            }
+        }
+        return foreignKeys;
+    }
+
+    /**
+     * Writes a value, length prefixed; nulls have length -1.
+     *
+     * @param out
+     *            the out
+     * @param field
+     *            the field
+     * @param value
+     *            the value
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     * @throws PropertyAccessException
+     *             the property access exception
+     */
+    private void writeValue(DataOutputStream out, Field field, Object value) throws IOException,
+            PropertyAccessException
+    {
+        if (value == null)
+        {
+            out.writeInt(-1);
+            return;
+        }
+        PropertyAccessor<?> accessor = PropertyAccessorFactory.getPropertyAccessor(field);
+        byte[] bytes = accessor.toBytes(value);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a length prefixed value.
+     *
+     * @param in
+     *            the in
+     * @return the byte[], null if the value was null
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private byte[] readBytes(DataInputStream in) throws IOException
+    {
+        int length = in.readInt();
+        if (length < 0)
+        {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.cache.offheap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.impetus.kundera.cache.Cache;
+import com.impetus.kundera.property.PropertyAccessException;
+import com.impetus.kundera.proxy.EnhancedEntity;
+
+/**
+ * Cache of one entity class, kept in an {@link OffHeapStore} shared by all
+ * caches of the provider.
+ *
+ * @author animesh.kumar
+ */
+public class OffHeapCache implements Cache
+{
+
+    /** The Constant log. */
+    private static final Log LOG = LogFactory.getLog(OffHeapCache.class);
+
+    /** Separates the cache name from the key in the store. */
+    private static final char SEPARATOR = '\u0000';
+
+    /** The store. */
+    private final OffHeapStore store;
+
+    /** Prefix of all keys of this cache. */
+    private final String prefix;
+
+    /** The serializer. */
+    private final EntityStateSerializer serializer;
+
+    /**
+     * Instantiates a new off heap cache.
+     *
+     * @param name
+     *            the name
+     * @param store
+     *            the store
+     * @param serializer
+     *            the serializer
+     */
+    public OffHeapCache(String name, OffHeapStore store, EntityStateSerializer serializer)
+    {
+        this.prefix = name + SEPARATOR;
+        this.store = store;
+        this.serializer = serializer;
+    }
+
+    /* @see com.impetus.kundera.cache.Cache#size() */
+    @Override
+    public int size()
+    {
+        return store.size(prefix);
+    }
+
+    /* @see com.impetus.kundera.cache.Cache#get(java.lang.Object) */
+    @Override
+    public Object get(Object key)
+    {
+        byte[] data = store.get(prefix + key);
+        if (data == null)
+        {
+            return null;
+        }
+        try
+        {
+            return serializer.deserialize(data);
+        }
+        catch (PropertyAccessException e)
+        {
+            LOG.warn("Dropping unreadable off-heap entry " + key + ": " + e.getMessage());
+            store.remove(prefix + key);
+            return null;
+        }
+    }
+
+    /*
+     * @see com.impetus.kundera.cache.Cache#put(java.lang.Object,
+     * java.lang.Object)
+     */
+    @Override
+    public void put(Object key, Object value)
+    {
+        Object entity = value instanceof EnhancedEntity ? ((EnhancedEntity) value).getEntity() : value;
+        try
+        {
+            store.put(prefix + key, serializer.serialize(entity));
+        }
+        catch (PropertyAccessException e)
+        {
+            LOG.warn("Could not cache " + key + " off-heap: " + e.getMessage());
+            store.remove(prefix + key);
+        }
+    }
+
+    /* @see com.impetus.kundera.cache.Cache#remove(java.lang.Object) */
+    @Override
+    public boolean remove(Object key)
+    {
+        return store.remove(prefix + key);
+    }
+
+    /* @see com.impetus.kundera.cache.Cache#clear() */
+    @Override
+    public void clear()
+    {
+        store.removeAll(prefix);
+    }
+}
@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.cache.offheap;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.impetus.kundera.cache.Cache;
+import com.impetus.kundera.cache.CacheException;
+import com.impetus.kundera.cache.CacheProvider;
+import com.impetus.kundera.metadata.MetadataManager;
+
+/**
+ * Cache provider keeping entities outside of the java heap, so that a large
+ * second level cache neither adds to GC pauses nor competes with the
+ * application for heap. Set
+ * <code>kundera.cache.provider_class</code> to this class and, optionally:
+ *
+ * <ul>
+ * <li><code>kundera.cache.offheap.capacity</code> - byte budget, default 64MB</li>
+ * <li><code>kundera.cache.offheap.slab_size</code> - slab size in bytes, which
+ * also caps the size of one entity; default 1MB</li>
+ * <li><code>kundera.cache.offheap.file</code> - memory-map this file instead
+ * of using direct memory; cached entities then survive restarts</li>
+ * </ul>
+ *
+ * Caches are named after entity classes, see
+ * {@link com.impetus.kundera.ejb.EntityManagerFactoryImpl#getCache(Class)}.
+ *
+ * @author animesh.kumar
+ */
+public class OffHeapCacheProvider implements CacheProvider
+{
+
+    /** The Constant log. */
+    private static final Log LOG = LogFactory.getLog(OffHeapCacheProvider.class);
+
+    /** The Constant CAPACITY. */
+    public static final String CAPACITY = "kundera.cache.offheap.capacity";
+
+    /** The Constant SLAB_SIZE. */
+    public static final String SLAB_SIZE = "kundera.cache.offheap.slab_size";
+
+    /** The Constant FILE. */
+    public static final String FILE = "kundera.cache.offheap.file";
+
+    /** The Constant DEFAULT_CAPACITY. */
+    private static final long DEFAULT_CAPACITY = 64L * 1024 * 1024;
+
+    /** The Constant DEFAULT_SLAB_SIZE. */
+    private static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+    /** The store. */
+    private OffHeapStore store;
+
+    /** The metadata manager. */
+    private MetadataManager metadataManager;
+
+    /** Caches by name. */
+    private Map<String, Cache> caches = new ConcurrentHashMap<String, Cache>();
+
+    /* @see com.impetus.kundera.cache.CacheProvider#init(java.util.Map) */
+    @Override
+    public synchronized void init(Map<?, ?> properties) throws CacheException
+    {
+        if (store != null)
+        {
+            LOG.warn("Attempt to restart an already started OffHeapCacheProvider. Using previously created store.");
+            return;
+        }
+
+        long capacity = DEFAULT_CAPACITY;
+        int slabSize = DEFAULT_SLAB_SIZE;
+        File file = null;
+        if (properties != null)
+        {
+            try
+            {
+                if (properties.get(CAPACITY) != null)
+                {
+                    capacity = Long.parseLong(properties.get(CAPACITY).toString().trim());
+                }
+                if (properties.get(SLAB_SIZE) != null)
+                {
+                    slabSize = Integer.parseInt(properties.get(SLAB_SIZE).toString().trim());
+                }
+            }
+            catch (NumberFormatException e)
+            {
+                throw new CacheException("Invalid off-heap cache size.", e);
+            }
+            if (properties.get(FILE) != null)
+            {
+                file = new File(properties.get(FILE).toString().trim());
+            }
+        }
+
+        LOG.info("Creating off-heap store of " + capacity + " bytes" + (file == null ? "" : " mapped to " + file));
+        store = new OffHeapStore(capacity, slabSize, file);
+    }
+
+    /* @see com.impetus.kundera.cache.CacheProvider#init(java.lang.String) */
+    @Override
+    public void init(String cacheResourceName) throws CacheException
+    {
+        init((Map<?, ?>) null);
+    }
+
+    /**
+     * Sets the metadata manager, used to serialize entities.
+     *
+     * @param metadataManager
+     *            the new metadata manager
+     */
+    public void setMetadataManager(MetadataManager metadataManager)
+    {
+        this.metadataManager = metadataManager;
+    }
+
+    /*
+     * @see
+     * com.impetus.kundera.cache.CacheProvider#createCache(java.lang.String)
+     */
+    @Override
+    public Cache createCache(String name) throws CacheException
+    {
+        if (store == null)
+        {
+            throw new CacheException("OffHeapCacheProvider was not initialized. Call init() before creating a cache.");
+        }
+        if (metadataManager == null)
+        {
+            throw new CacheException("OffHeapCacheProvider has no metadata manager to serialize entities with.");
+        }
+
+        Cache cache = caches.get(name);
+        if (cache == null)
+        {
+            Class<?> entityClass;
+            try
+            {
+                entityClass = Class.forName(name, true, Thread.currentThread().getContextClassLoader());
+            }
+            catch (ClassNotFoundException e)
+            {
+                throw new CacheException("Could not create cache: " + name, e);
+            }
+            cache = new OffHeapCache(name, store, new EntityStateSerializer(
+                    metadataManager.getEntityMetadata(entityClass), metadataManager));
+            caches.put(name, cache);
+        }
+        return cache;
+    }
+
+    /* @see com.impetus.kundera.cache.CacheProvider#shutdown() */
+    @Override
+    public synchronized void shutdown()
+    {
+        if (store != null)
+        {
+            store.close();
+            store = null;
+        }
+        caches.clear();
+    }
+
+    /**
+     * Gets the store.
+     *
+     * @return the store
+     */
+    public OffHeapStore getStore()
+    {
+        return store;
+    }
+}
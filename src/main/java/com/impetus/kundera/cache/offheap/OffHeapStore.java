@@ -0,0 +1,719 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.cache.offheap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.impetus.kundera.Constants;
+import com.impetus.kundera.cache.CacheException;
+
+/**
+ * Slab allocated byte store living outside of the java heap. Memory is carved
+ * into fixed size slabs (direct buffers, or regions of a memory-mapped file),
+ * every slab is assigned to one chunk size class on first use and records are
+ * kept in the smallest chunk that fits them. Only the key to address index is
+ * held on heap.
+ *
+ * When a size class runs out of chunks and no slab is left unassigned, an
+ * empty slab of another class is reassigned to it. Failing that, least
+ * recently used records of that class are evicted, and a class holding no
+ * slab at all takes one from the class holding the most, evicting the records
+ * in it. The total footprint never exceeds the configured byte budget, and
+ * every size class can store once others have taken all slabs.
+ *
+ * Memory-mapped stores rebuild their index from the file when opened, so
+ * cached records survive restarts.
+ *
+ * @author animesh.kumar
+ */
+public class OffHeapStore
+{
+
+    /** The Constant log. */
+    private static final Log LOG = LogFactory.getLog(OffHeapStore.class);
+
+    /** Marks a slab written by this store. */
+    private static final int SLAB_MAGIC = 0x4B4E4452;
+
+    /** Slab header: magic + chunk size. */
+    private static final int SLAB_HEADER = 8;
+
+    /** Chunk header: state + key length + value length. */
+    private static final int CHUNK_HEADER = 9;
+
+    /** The smallest chunk size. */
+    private static final int MIN_CHUNK_SIZE = 64;
+
+    /** Chunk state for an empty chunk. */
+    private static final byte FREE = 0;
+
+    /** Chunk state for a chunk holding a record. */
+    private static final byte USED = 1;
+
+    /** The slab size. */
+    private final int slabSize;
+
+    /** The slabs, direct slabs are allocated lazily. */
+    private final ByteBuffer[] slabs;
+
+    /** Chunk size per slab, 0 when not yet assigned. */
+    private final int[] slabChunkSizes;
+
+    /** Records held per slab. */
+    private final int[] slabRecords;
+
+    /** Chunk sizes of each size class. */
+    private final int[] chunkSizes;
+
+    /** Slabs not yet assigned to a size class. */
+    private final ArrayDeque<Integer> unassignedSlabs = new ArrayDeque<Integer>();
+
+    /** Free chunk addresses per size class. */
+    private final List<ArrayDeque<Long>> freeChunks = new ArrayList<ArrayDeque<Long>>();
+
+    /** Records per size class, in access order. */
+    private final List<LinkedHashMap<String, Long>> lru = new ArrayList<LinkedHashMap<String, Long>>();
+
+    /** key to chunk address. */
+    private final Map<String, Long> index = new HashMap<String, Long>();
+
+    /** Bytes held by records. */
+    private long usedBytes;
+
+    /** Number of records evicted so far. */
+    private long evictions;
+
+    /** The backing file, null for direct memory. */
+    private RandomAccessFile file;
+
+    /** The channel of the backing file. */
+    private FileChannel channel;
+
+    /**
+     * Instantiates a new off heap store.
+     *
+     * @param capacity
+     *            byte budget of the store
+     * @param slabSize
+     *            the slab size
+     * @param storeFile
+     *            file to memory-map, or null to use direct memory
+     * @throws CacheException
+     *             if the backing file could not be mapped
+     */
+    public OffHeapStore(long capacity, int slabSize, File storeFile) throws CacheException
+    {
+        if (slabSize < MIN_CHUNK_SIZE + SLAB_HEADER)
+        {
+            throw new CacheException("Slab size must be at least " + (MIN_CHUNK_SIZE + SLAB_HEADER) + " bytes.");
+        }
+        this.slabSize = slabSize;
+
+        int slabCount = (int) Math.max(1, capacity / slabSize);
+        slabs = new ByteBuffer[slabCount];
+        slabChunkSizes = new int[slabCount];
+        slabRecords = new int[slabCount];
+
+        List<Integer> sizes = new ArrayList<Integer>();
+        int maxChunkSize = slabSize - SLAB_HEADER;
+        for (int size = MIN_CHUNK_SIZE; size < maxChunkSize; size <<= 1)
+        {
+            sizes.add(size);
+        }
+        sizes.add(maxChunkSize);
+        chunkSizes = new int[sizes.size()];
+        for (int i = 0; i < chunkSizes.length; i++)
+        {
+            chunkSizes[i] = sizes.get(i);
+            freeChunks.add(new ArrayDeque<Long>());
+            lru.add(new LinkedHashMap<String, Long>(16, 0.75f, true));
+        }
+
+        if (storeFile == null)
+        {
+            for (int i = 0; i < slabCount; i++)
+            {
+                unassignedSlabs.add(i);
+            }
+        }
+        else
+        {
+            map(storeFile, (long) slabCount * slabSize);
+        }
+    }
+
+    /**
+     * Maps the backing file and rebuilds the index from it.
+     *
+     * @param storeFile
+     *            the store file
+     * @param length
+     *            the length
+     * @throws CacheException
+     *             the cache exception
+     */
+    private void map(File storeFile, long length) throws CacheException
+    {
+        try
+        {
+            file = new RandomAccessFile(storeFile, "rw");
+            if (file.length() != length)
+            {
+                file.setLength(length);
+            }
+            channel = file.getChannel();
+            for (int i = 0; i < slabs.length; i++)
+            {
+                slabs[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * slabSize, slabSize);
+                recover(i);
+            }
+            LOG.info("Recovered " + index.size() + " records from " + storeFile);
+        }
+        catch (IOException e)
+        {
+            throw new CacheException("Could not map off-heap store file " + storeFile, e);
+        }
+    }
+
+    /**
+     * Reads back a mapped slab, indexing the records found in it.
+     *
+     * @param slab
+     *            the slab
+     */
+    private void recover(int slab)
+    {
+        ByteBuffer buffer = slabs[slab];
+        int cls = buffer.getInt(0) == SLAB_MAGIC ? classOfChunkSize(buffer.getInt(4)) : -1;
+        if (cls < 0)
+        {
+            buffer.putInt(0, 0);
+            unassignedSlabs.add(slab);
+            return;
+        }
+
+        int chunkSize = chunkSizes[cls];
+        slabChunkSizes[slab] = chunkSize;
+        for (int offset = SLAB_HEADER; offset + chunkSize <= slabSize; offset += chunkSize)
+        {
+            long address = address(slab, offset);
+            if (buffer.get(offset) == USED)
+            {
+                int keyLength = buffer.getInt(offset + 1);
+                int valueLength = buffer.getInt(offset + 5);
+                if (keyLength > 0 && CHUNK_HEADER + keyLength + valueLength <= chunkSize)
+                {
+                    String key = decode(read(buffer, offset + CHUNK_HEADER, keyLength));
+                    index.put(key, address);
+                    lru.get(cls).put(key, address);
+                    usedBytes += chunkSize;
+                    slabRecords[slab]++;
+                    continue;
+                }
+                buffer.put(offset, FREE);
+            }
+            freeChunks.get(cls).push(address);
+        }
+    }
+
+    /**
+     * Gets a copy of the value stored against key.
+     *
+     * @param key
+     *            the key
+     * @return the value, or null if absent
+     */
+    public synchronized byte[] get(String key)
+    {
+        Long address = index.get(key);
+        if (address == null)
+        {
+            return null;
+        }
+        int slab = slabOf(address);
+        int offset = offsetOf(address);
+        // touch
+        lru.get(classOfChunkSize(slabChunkSizes[slab])).get(key);
+
+        ByteBuffer buffer = slabs[slab];
+        int keyLength = buffer.getInt(offset + 1);
+        int valueLength = buffer.getInt(offset + 5);
+        return read(buffer, offset + CHUNK_HEADER + keyLength, valueLength);
+    }
+
+    /**
+     * Stores value against key, replacing any previous value.
+     *
+     * @param key
+     *            the key
+     * @param value
+     *            the value
+     * @return true, if the value was stored; false if it can not fit in any
+     *         chunk
+     */
+    public synchronized boolean put(String key, byte[] value)
+    {
+        remove(key);
+
+        byte[] keyBytes = encode(key);
+        int cls = classOfRecordSize(CHUNK_HEADER + keyBytes.length + value.length);
+        if (cls < 0)
+        {
+            LOG.debug("Record too large for off-heap store >> " + key);
+            return false;
+        }
+
+        Long address = allocate(cls);
+        if (address == null)
+        {
+            LOG.debug("No room in off-heap store >> " + key);
+            return false;
+        }
+
+        int offset = offsetOf(address);
+        ByteBuffer buffer = slabs[slabOf(address)].duplicate();
+        buffer.position(offset + 1);
+        buffer.putInt(keyBytes.length);
+        buffer.putInt(value.length);
+        buffer.put(keyBytes);
+        buffer.put(value);
+        // flag the chunk last, a torn write is then never recovered.
+        buffer.put(offset, USED);
+
+        index.put(key, address);
+        lru.get(cls).put(key, address);
+        usedBytes += chunkSizes[cls];
+        slabRecords[slabOf(address)]++;
+        return true;
+    }
+
+    /**
+     * Removes the value stored against key.
+     *
+     * @param key
+     *            the key
+     * @return true, if a value was removed
+     */
+    public synchronized boolean remove(String key)
+    {
+        Long address = index.remove(key);
+        if (address == null)
+        {
+            return false;
+        }
+        release(key, address);
+        return true;
+    }
+
+    /**
+     * Removes all values whose key starts with prefix.
+     *
+     * @param prefix
+     *            the prefix
+     */
+    public synchronized void removeAll(String prefix)
+    {
+        Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+        while (it.hasNext())
+        {
+            Map.Entry<String, Long> entry = it.next();
+            if (entry.getKey().startsWith(prefix))
+            {
+                it.remove();
+                release(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Counts values whose key starts with prefix.
+     *
+     * @param prefix
+     *            the prefix
+     * @return the int
+     */
+    public synchronized int size(String prefix)
+    {
+        int count = 0;
+        for (String key : index.keySet())
+        {
+            if (key.startsWith(prefix))
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Number of records in the store.
+     *
+     * @return the int
+     */
+    public synchronized int size()
+    {
+        return index.size();
+    }
+
+    /**
+     * Bytes taken by the chunks holding records.
+     *
+     * @return the used bytes
+     */
+    public synchronized long getUsedBytes()
+    {
+        return usedBytes;
+    }
+
+    /**
+     * Byte budget of this store.
+     *
+     * @return the capacity
+     */
+    public long getCapacity()
+    {
+        return (long) slabs.length * slabSize;
+    }
+
+    /**
+     * Number of records evicted to make room for newer ones.
+     *
+     * @return the evictions
+     */
+    public synchronized long getEvictions()
+    {
+        return evictions;
+    }
+
+    /**
+     * Flushes a mapped store to disk and releases all buffers.
+     */
+    public synchronized void close()
+    {
+        if (channel != null)
+        {
+            for (ByteBuffer slab : slabs)
+            {
+                ((MappedByteBuffer) slab).force();
+            }
+            try
+            {
+                channel.close();
+                file.close();
+            }
+            catch (IOException e)
+            {
+                LOG.warn("Error while closing off-heap store file: " + e.getMessage());
+            }
+            channel = null;
+            file = null;
+        }
+        for (int i = 0; i < slabs.length; i++)
+        {
+            slabs[i] = null;
+        }
+        index.clear();
+    }
+
+    /**
+     * Finds a free chunk for a size class, assigning a new or empty slab, or
+     * evicting least recently used records when needed.
+     *
+     * @param cls
+     *            the size class
+     * @return the chunk address, or null if nothing could be freed
+     */
+    private Long allocate(int cls)
+    {
+        ArrayDeque<Long> free = freeChunks.get(cls);
+        if (free.isEmpty() && !unassignedSlabs.isEmpty())
+        {
+            assign(unassignedSlabs.poll(), cls);
+        }
+        if (free.isEmpty())
+        {
+            int slab = findEmptySlab(cls);
+            if (slab >= 0)
+            {
+                reassign(slab, cls);
+            }
+        }
+        if (free.isEmpty())
+        {
+            Iterator<Map.Entry<String, Long>> eldest = lru.get(cls).entrySet().iterator();
+            if (eldest.hasNext())
+            {
+                Map.Entry<String, Long> entry = eldest.next();
+                LOG.debug("Evicting from off-heap store >> " + entry.getKey());
+                remove(entry.getKey());
+                evictions++;
+            }
+            else
+            {
+                // no record of this class, so it holds no slab to evict from
+                int slab = findVictimSlab(cls);
+                if (slab >= 0)
+                {
+                    evictSlab(slab);
+                    reassign(slab, cls);
+                }
+            }
+        }
+        return free.poll();
+    }
+
+    /**
+     * Finds a slab of another size class holding no record.
+     *
+     * @param cls
+     *            the size class wanting it
+     * @return the slab, -1 if none
+     */
+    private int findEmptySlab(int cls)
+    {
+        for (int slab = 0; slab < slabs.length; slab++)
+        {
+            if (slabRecords[slab] == 0 && slabChunkSizes[slab] != 0 && slabChunkSizes[slab] != chunkSizes[cls])
+            {
+                return slab;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the slab to take from the size class holding the most slabs: the
+     * one of its least recently used record.
+     *
+     * @param cls
+     *            the size class wanting it
+     * @return the slab, -1 if no other class holds records
+     */
+    private int findVictimSlab(int cls)
+    {
+        int[] slabsPerClass = new int[chunkSizes.length];
+        for (int slab = 0; slab < slabs.length; slab++)
+        {
+            if (slabChunkSizes[slab] != 0)
+            {
+                slabsPerClass[classOfChunkSize(slabChunkSizes[slab])]++;
+            }
+        }
+        int victim = -1;
+        for (int i = 0; i < chunkSizes.length; i++)
+        {
+            if (i != cls && !lru.get(i).isEmpty() && (victim < 0 || slabsPerClass[i] > slabsPerClass[victim]))
+            {
+                victim = i;
+            }
+        }
+        return victim < 0 ? -1 : slabOf(lru.get(victim).values().iterator().next());
+    }
+
+    /**
+     * Evicts every record held in a slab.
+     *
+     * @param slab
+     *            the slab
+     */
+    private void evictSlab(int slab)
+    {
+        ByteBuffer buffer = slabs[slab];
+        int chunkSize = slabChunkSizes[slab];
+        for (int offset = SLAB_HEADER; offset + chunkSize <= slabSize; offset += chunkSize)
+        {
+            if (buffer.get(offset) == USED)
+            {
+                String key = decode(read(buffer, offset + CHUNK_HEADER, buffer.getInt(offset + 1)));
+                LOG.debug("Evicting from off-heap store >> " + key);
+                remove(key);
+                evictions++;
+            }
+        }
+    }
+
+    /**
+     * Moves a slab holding no record to another size class.
+     *
+     * @param slab
+     *            the slab
+     * @param cls
+     *            the size class
+     */
+    private void reassign(int slab, int cls)
+    {
+        Iterator<Long> chunks = freeChunks.get(classOfChunkSize(slabChunkSizes[slab])).iterator();
+        while (chunks.hasNext())
+        {
+            if (slabOf(chunks.next()) == slab)
+            {
+                chunks.remove();
+            }
+        }
+        LOG.debug("Reassigning off-heap slab " + slab + " from chunks of " + slabChunkSizes[slab] + " to "
+                + chunkSizes[cls] + " bytes");
+        assign(slab, cls);
+    }
+
+    /**
+     * Assigns a slab to a size class and carves it into chunks.
+     *
+     * @param slab
+     *            the slab
+     * @param cls
+     *            the size class
+     */
+    private void assign(int slab, int cls)
+    {
+        if (slabs[slab] == null)
+        {
+            slabs[slab] = ByteBuffer.allocateDirect(slabSize);
+        }
+        ByteBuffer buffer = slabs[slab];
+        int chunkSize = chunkSizes[cls];
+        buffer.putInt(0, SLAB_MAGIC);
+        buffer.putInt(4, chunkSize);
+        slabChunkSizes[slab] = chunkSize;
+
+        ArrayDeque<Long> free = freeChunks.get(cls);
+        for (int offset = SLAB_HEADER; offset + chunkSize <= slabSize; offset += chunkSize)
+        {
+            buffer.put(offset, FREE);
+            free.add(address(slab, offset));
+        }
+    }
+
+    /**
+     * Marks a chunk free again.
+     *
+     * @param key
+     *            the key
+     * @param address
+     *            the address
+     */
+    private void release(String key, long address)
+    {
+        int slab = slabOf(address);
+        int cls = classOfChunkSize(slabChunkSizes[slab]);
+        slabs[slab].put(offsetOf(address), FREE);
+        lru.get(cls).remove(key);
+        freeChunks.get(cls).push(address);
+        usedBytes -= chunkSizes[cls];
+        slabRecords[slab]--;
+    }
+
+    /**
+     * Smallest size class fitting a record.
+     *
+     * @param recordSize
+     *            the record size
+     * @return the size class, -1 if none
+     */
+    private int classOfRecordSize(int recordSize)
+    {
+        for (int i = 0; i < chunkSizes.length; i++)
+        {
+            if (chunkSizes[i] >= recordSize)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Size class of a chunk size.
+     *
+     * @param chunkSize
+     *            the chunk size
+     * @return the size class, -1 if unknown
+     */
+    private int classOfChunkSize(int chunkSize)
+    {
+        for (int i = 0; i < chunkSizes.length; i++)
+        {
+            if (chunkSizes[i] == chunkSize)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long address(int slab, int offset)
+    {
+        return ((long) slab << 32) | offset;
+    }
+
+    private static int slabOf(long address)
+    {
+        return (int) (address >>> 32);
+    }
+
+    private static int offsetOf(long address)
+    {
+        return (int) address;
+    }
+
+    private static byte[] read(ByteBuffer slab, int offset, int length)
+    {
+        ByteBuffer buffer = slab.duplicate();
+        buffer.position(offset);
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] encode(String key)
+    {
+        try
+        {
+            return key.getBytes(Constants.ENCODING);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(byte[] key)
+    {
+        try
+        {
+            return new String(key, Constants.ENCODING);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+}
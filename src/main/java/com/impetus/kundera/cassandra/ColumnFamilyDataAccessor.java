@@ -97,7 +97,7 @@ public final class ColumnFamilyDataAccessor extends BaseDataAccessor
 
         log.debug("Column Family >> Write >> " + entityName + "_" + id);
 
-        getEntityManager().getClient().writeData(getEntityManager(), e, m);
+        writeData(e, m);
     }    
 
 }
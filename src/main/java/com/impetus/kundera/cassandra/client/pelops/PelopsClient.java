@@ -18,11 +18,13 @@ package com.impetus.kundera.cassandra.client.pelops;
 
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -61,10 +63,13 @@ import org.scale7.cassandra.pelops.Pelops;
 import org.scale7.cassandra.pelops.RowDeletor;
 import org.scale7.cassandra.pelops.Selector;
 
+import com.impetus.kundera.BatchClient;
 import com.impetus.kundera.Constants;
 import com.impetus.kundera.cassandra.client.CassandraClient;
 import com.impetus.kundera.db.accessor.DataRow;
 import com.impetus.kundera.ejb.EntityManagerImpl;
+import com.impetus.kundera.index.ClaimingDocIdReserver;
+import com.impetus.kundera.index.DocIdReserver;
 import com.impetus.kundera.loader.DBType;
 import com.impetus.kundera.metadata.EmbeddedCollectionCacheHandler;
 import com.impetus.kundera.metadata.EntityMetadata;
@@ -80,12 +85,24 @@ import com.impetus.kundera.proxy.EnhancedEntity;
  * @author animesh.kumar
  * @since 0.1
  */
-public class PelopsClient implements CassandraClient
+public class PelopsClient implements CassandraClient, BatchClient, DocIdReserver
 {
 
     /** The Constant poolName. */
     private static final String POOL_NAME = "Main";
 
+    /** Pool of the Lucandra keyspace. */
+    private static final String INDEX_POOL_NAME = "Lucandra";
+
+    /** The Lucandra keyspace. */
+    private static final String INDEX_KEYSPACE = "L";
+
+    /** Lucandra super column family keeping index information. */
+    private static final String INDEX_INFO_COLUMN_FAMILY = "SI";
+
+    /** Suffix of the row of reserved document number blocks of an index. */
+    private static final String DOC_ID_ROW = "/docids";
+
     /** array of cassandra hosts. */
     private String[] contactNodes;
 
@@ -95,6 +112,12 @@ public class PelopsClient implements CassandraClient
     /** The closed. */
     private boolean closed = false;
 
+    /** Whether the pool of the Lucandra keyspace is configured. */
+    private volatile boolean indexPoolConfigured;
+
+    /** Claims of document number blocks. */
+    private final ClaimingDocIdReserver docIdClaims = new DocIdClaims();
+
     /** log for this class. */
     private static Log log = LogFactory.getLog(PelopsClient.class);
 
@@ -159,17 +182,76 @@ public class PelopsClient implements CassandraClient
     {
 
         String keyspace = m.getSchema();
-        String columnFamily = m.getTableName();
 
         if (!isOpen())
         {
             throw new PersistenceException("PelopsClient is closed.");
         }
 
-        PelopsClient.ThriftRow tf = dataHandler.toThriftRow(this, e, m, columnFamily);
         configurePool(keyspace);
 
         Mutator mutator = Pelops.createMutator(POOL_NAME);
+        addMutations(mutator, e, m);
+        mutator.execute(ConsistencyLevel.ONE);
+
+    }
+
+    /**
+     * Writes all entities of a keyspace with one batch_mutate.
+     *
+     * @see com.impetus.kundera.BatchClient#writeData(java.util.List,
+     *      java.util.List)
+     */
+    @Override
+    public void writeData(List<EnhancedEntity> entities, List<EntityMetadata> metadata) throws Exception
+    {
+        if (!isOpen())
+        {
+            throw new PersistenceException("PelopsClient is closed.");
+        }
+
+        // one mutator per keyspace, in the order keyspaces are first seen
+        Map<String, List<Integer>> byKeyspace = new LinkedHashMap<String, List<Integer>>();
+        for (int i = 0; i < entities.size(); i++)
+        {
+            String keyspace = metadata.get(i).getSchema();
+            List<Integer> positions = byKeyspace.get(keyspace);
+            if (positions == null)
+            {
+                positions = new ArrayList<Integer>();
+                byKeyspace.put(keyspace, positions);
+            }
+            positions.add(i);
+        }
+
+        for (Map.Entry<String, List<Integer>> entry : byKeyspace.entrySet())
+        {
+            configurePool(entry.getKey());
+            Mutator mutator = Pelops.createMutator(POOL_NAME);
+            for (int i : entry.getValue())
+            {
+                addMutations(mutator, entities.get(i), metadata.get(i));
+            }
+            mutator.execute(ConsistencyLevel.ONE);
+        }
+    }
+
+    /**
+     * Adds the columns and super columns of an entity to a mutator.
+     *
+     * @param mutator
+     *            the mutator
+     * @param e
+     *            the e
+     * @param m
+     *            the m
+     * @throws Exception
+     *             the exception
+     */
+    private void addMutations(Mutator mutator, EnhancedEntity e, EntityMetadata m) throws Exception
+    {
+        String columnFamily = m.getTableName();
+        PelopsClient.ThriftRow tf = dataHandler.toThriftRow(this, e, m, columnFamily);
 
         List<Column> thriftColumns = tf.getColumns();
         List<SuperColumn> thriftSuperColumns = tf.getSuperColumns();
@@ -189,8 +271,6 @@ public class PelopsClient implements CassandraClient
             }
 
         }
-        mutator.execute(ConsistencyLevel.ONE);
-
     }
 
     // TODO: This method is not being used anywhere currently. Delete it while
@@ -692,6 +772,37 @@ public class PelopsClient implements CassandraClient
 
     }
 
+    /**
+     * Configures the pool of the Lucandra keyspace, once.
+     */
+    private synchronized void configureIndexPool()
+    {
+        if (!indexPoolConfigured)
+        {
+            Cluster cluster = new Cluster(contactNodes, new IConnection.Config(defaultPort, true, -1), false);
+            Pelops.addPool(INDEX_POOL_NAME, cluster, INDEX_KEYSPACE);
+            indexPoolConfigured = true;
+        }
+    }
+
+    /**
+     * Reserves a block in the Lucandra keyspace, so writers in all nodes see
+     * it, see {@link DocIdClaims}.
+     *
+     * @see com.impetus.kundera.index.DocIdReserver#reserveDocIdBlock(java.lang.String,
+     *      int)
+     */
+    @Override
+    public long reserveDocIdBlock(String indexName, int blockSize) throws Exception
+    {
+        if (!isOpen())
+        {
+            throw new PersistenceException("PelopsClient is closed.");
+        }
+        configureIndexPool();
+        return docIdClaims.reserveDocIdBlock(indexName, blockSize);
+    }
+
     /**
      * Gets the ec cache handler.
      * 
@@ -702,6 +813,68 @@ public class PelopsClient implements CassandraClient
         return ecCacheHandler;
     }
 
+    /**
+     * Claims document number blocks in the Lucandra keyspace. A block is a
+     * super column named by its number, and each claim a sub column named by
+     * its token, written and read at quorum. Claims are read again after twice
+     * the rpc timeout of the embedded Cassandra node.
+     */
+    private static class DocIdClaims extends ClaimingDocIdReserver
+    {
+
+        /*
+         * @see com.impetus.kundera.index.ClaimingDocIdReserver#getLastBlock(java.lang.String)
+         */
+        @Override
+        protected long getLastBlock(String indexName) throws Exception
+        {
+            List<SuperColumn> last = Pelops.createSelector(INDEX_POOL_NAME).getSuperColumnsFromRow(
+                    INDEX_INFO_COLUMN_FAMILY, indexName + DOC_ID_ROW, Selector.newColumnsPredicateAll(true, 1),
+                    ConsistencyLevel.QUORUM);
+            return last.isEmpty() ? 0 : ByteBuffer.wrap(last.get(0).getName()).getLong();
+        }
+
+        /*
+         * @see com.impetus.kundera.index.ClaimingDocIdReserver#writeClaim(java.lang.String,
+         * long, java.lang.String)
+         */
+        @Override
+        protected void writeClaim(String indexName, long block, String token) throws Exception
+        {
+            Mutator mutator = Pelops.createMutator(INDEX_POOL_NAME);
+            mutator.writeSubColumn(INDEX_INFO_COLUMN_FAMILY, indexName + DOC_ID_ROW, Bytes.fromLong(block),
+                    mutator.newColumn(token, ""));
+            mutator.execute(ConsistencyLevel.QUORUM);
+        }
+
+        /*
+         * @see com.impetus.kundera.index.ClaimingDocIdReserver#readClaims(java.lang.String,
+         * long)
+         */
+        @Override
+        protected Map<String, Long> readClaims(String indexName, long block) throws Exception
+        {
+            List<Column> columns = Pelops.createSelector(INDEX_POOL_NAME).getSubColumnsFromRow(
+                    INDEX_INFO_COLUMN_FAMILY, indexName + DOC_ID_ROW, Bytes.fromLong(block),
+                    Selector.newColumnsPredicateAll(false, Integer.MAX_VALUE), ConsistencyLevel.QUORUM);
+            Map<String, Long> claims = new HashMap<String, Long>();
+            for (Column column : columns)
+            {
+                claims.put(Bytes.toUTF8(column.getName()), column.getTimestamp());
+            }
+            return claims;
+        }
+
+        /*
+         * @see com.impetus.kundera.index.ClaimingDocIdReserver#getClaimGrace()
+         */
+        @Override
+        protected long getClaimGrace()
+        {
+            return 2 * DatabaseDescriptor.getRpcTimeout();
+        }
+    }
+
     /**
      * The Class SolandraUtils.
      */
@@ -38,6 +38,7 @@ import com.impetus.kundera.Constants;
 import com.impetus.kundera.ejb.EntityManagerImpl;
 import com.impetus.kundera.metadata.EmbeddedCollectionCacheHandler;
 import com.impetus.kundera.metadata.EntityMetadata;
+import com.impetus.kundera.metadata.FetchPlan;
 import com.impetus.kundera.metadata.MetadataUtils;
 import com.impetus.kundera.property.PropertyAccessException;
 import com.impetus.kundera.property.PropertyAccessorFactory;
@@ -117,6 +118,8 @@ public class PelopsDataHandler
         // Set row-key. Note: @Id is always String.
         PropertyAccessorHelper.set(e, m.getIdProperty(), thriftRow.getId());
 
+        FetchPlan plan = em.getFetchPlan();
+
         // Iterate through each column
         for (Column c : thriftRow.getColumns())
         {
@@ -136,7 +139,7 @@ public class PelopsDataHandler
                 populateRelationshipEntities(em, thriftRow, e, m.getRelation(name), value);
 
             }
-            else
+            else if (plan == null || !plan.isExcluded(clazz, column.getField().getName()))
             {
                 try
                 {
@@ -171,6 +174,8 @@ public class PelopsDataHandler
         Map<String, Field> superColumnNameToFieldMap = new HashMap<String, Field>();
         MetadataUtils.populateColumnAndSuperColumnMaps(m, columnNameToFieldMap, superColumnNameToFieldMap);
 
+        FetchPlan plan = em.getFetchPlan();
+
         // Add all super columns to entity
         Collection embeddedCollection = null;
         Field embeddedCollectionField = null;
@@ -184,6 +189,11 @@ public class PelopsDataHandler
             {
                 scNamePrefix = MetadataUtils.getEmbeddedCollectionPrefix(scName);
                 embeddedCollectionField = superColumnNameToFieldMap.get(scNamePrefix);
+                if (plan != null && embeddedCollectionField != null
+                        && plan.isExcluded(clazz, embeddedCollectionField.getName()))
+                {
+                    continue;
+                }
 
                 if (embeddedCollection == null)
                 {
@@ -259,6 +269,10 @@ public class PelopsDataHandler
                     // For embedded super columns, create embedded entities and
                     // add them to parent entity
                     Field superColumnField = superColumnNameToFieldMap.get(scName);
+                    if (plan != null && plan.isExcluded(clazz, superColumnField.getName()))
+                    {
+                        continue;
+                    }
                     Class superColumnClass = superColumnField.getType();
                     Object superColumnObj = superColumnClass.newInstance();
 
@@ -0,0 +1,315 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.cassandra.client.pelops;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.PersistenceException;
+
+import org.apache.cassandra.db.marshal.BytesType;
+import org.apache.cassandra.io.sstable.SSTableSimpleUnsortedWriter;
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.SuperColumn;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.impetus.kundera.ejb.EntityManagerFactoryImpl;
+import com.impetus.kundera.metadata.EntityMetadata;
+import com.impetus.kundera.metadata.MetadataUtils;
+import com.impetus.kundera.property.PropertyAccessorFactory;
+import com.impetus.kundera.property.PropertyAccessorHelper;
+import com.impetus.kundera.proxy.EnhancedEntity;
+
+/**
+ * Writes entities straight into SSTables, for loading into Cassandra with its
+ * bulk loading tools (sstableloader) instead of through Thrift. Rows are laid
+ * out by {@link PelopsDataHandler#toThriftRow}, exactly as
+ * {@link PelopsClient} writes them: columns, one super column per embedded
+ * object or per element of an embedded collection, and the foreign key column
+ * or super column for relations. As in the bulk loader, related entities are
+ * not followed; only their ids are written.
+ *
+ * No cluster is contacted. Cassandra's configuration is still read, for the
+ * partitioner, so the <code>cassandra.yaml</code> of the target cluster must be
+ * on the classpath or named by <code>-Dcassandra.config</code>. SSTables are
+ * written under <code>directory/keyspace/</code>, one set per column family,
+ * and a new set is started every time the buffer fills up.
+ *
+ * <pre>
+ * SSTableExporter exporter = new SSTableExporter(new EntityManagerFactoryImpl(&quot;unit&quot;), dir,
+ *         SSTableExporter.DEFAULT_BUFFER_SIZE);
+ * try
+ * {
+ *     exporter.export(authors);
+ * }
+ * finally
+ * {
+ *     exporter.close();
+ * }
+ * </pre>
+ *
+ * Not thread-safe.
+ *
+ * @author animesh.kumar
+ */
+public class SSTableExporter
+{
+
+    /** The Constant log. */
+    private static final Log LOG = LogFactory.getLog(SSTableExporter.class);
+
+    /** The Constant DEFAULT_BUFFER_SIZE, in megabytes. */
+    public static final int DEFAULT_BUFFER_SIZE = 64;
+
+    /** The factory, for entity metadata. */
+    private final EntityManagerFactoryImpl factory;
+
+    /** The directory. */
+    private final File directory;
+
+    /** Rows buffered per column family before an SSTable is written, in MB. */
+    private final int bufferSize;
+
+    /** Builds rows the way the client writes them. */
+    private final PelopsDataHandler dataHandler = new PelopsDataHandler();
+
+    /**
+     * Never connected; holds the embedded collection cache toThriftRow reads,
+     * which stays empty, so collections are numbered from 0 as on first
+     * insert.
+     */
+    private final PelopsClient client = new PelopsClient();
+
+    /** Writers, by keyspace and column family. */
+    private final Map<String, SSTableSimpleUnsortedWriter> writers =
+            new HashMap<String, SSTableSimpleUnsortedWriter>();
+
+    /** Rows written. */
+    private long rows;
+
+    /**
+     * Instantiates a new SSTable exporter.
+     *
+     * @param factory
+     *            the factory; it needs no client
+     * @param directory
+     *            the directory
+     * @param bufferSize
+     *            megabytes of rows buffered per column family before an
+     *            SSTable is written
+     */
+    public SSTableExporter(EntityManagerFactoryImpl factory, File directory, int bufferSize)
+    {
+        this.factory = factory;
+        this.directory = directory;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Exports entities.
+     *
+     * @param entities
+     *            the entities
+     * @return rows written so far
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public long export(Iterable<?> entities) throws IOException
+    {
+        return export(entities.iterator());
+    }
+
+    /**
+     * Exports entities. May be called many times before close().
+     *
+     * @param entities
+     *            the entities
+     * @return rows written so far
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public long export(Iterator<?> entities) throws IOException
+    {
+        while (entities.hasNext())
+        {
+            export(entities.next());
+        }
+        return rows;
+    }
+
+    /**
+     * Exports one entity as one row.
+     *
+     * @param entity
+     *            the entity
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public void export(Object entity) throws IOException
+    {
+        factory.getMetadataManager().validate(entity.getClass());
+        EntityMetadata m = factory.getMetadataManager().getEntityMetadata(entity.getClass());
+
+        PelopsClient.ThriftRow tr;
+        try
+        {
+            String id = PropertyAccessorHelper.getId(entity, m);
+            if (null == id || id.trim().isEmpty())
+            {
+                throw new PersistenceException("Missing primary key >> " + m.getEntityClazz().getName() + "#"
+                        + m.getIdProperty().getName());
+            }
+            EnhancedEntity e = factory.getEnhancedEntity(entity, id, MetadataUtils.getForeignKeysMap(entity, m,
+                    factory.getMetadataManager()));
+            tr = dataHandler.toThriftRow(client, e, m, m.getTableName());
+        }
+        catch (PersistenceException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new PersistenceException(e);
+        }
+
+        boolean isSuper = m.getType().isSuperColumnFamilyMetadata();
+        if (isSuper && !tr.getColumns().isEmpty())
+        {
+            throw new PersistenceException(m.getEntityClazz().getName()
+                    + " maps to a super column family, but has plain columns.");
+        }
+
+        SSTableSimpleUnsortedWriter writer = getWriter(m.getSchema(), m.getTableName(), isSuper);
+        writer.newRow(ByteBuffer.wrap(PropertyAccessorFactory.STRING.toBytes(tr.getId())));
+        if (isSuper)
+        {
+            for (SuperColumn superColumn : tr.getSuperColumns())
+            {
+                writer.newSuperColumn(superColumn.bufferForName());
+                addColumns(writer, superColumn.getColumns());
+            }
+        }
+        else
+        {
+            addColumns(writer, tr.getColumns());
+        }
+        rows++;
+    }
+
+    /**
+     * Writes out what is buffered and closes all SSTables.
+     *
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public void close() throws IOException
+    {
+        IOException failure = null;
+        for (Map.Entry<String, SSTableSimpleUnsortedWriter> entry : writers.entrySet())
+        {
+            try
+            {
+                entry.getValue().close();
+            }
+            catch (IOException e)
+            {
+                LOG.error("Could not close SSTable writer for " + entry.getKey() + ": " + e.getMessage());
+                if (failure == null)
+                {
+                    failure = e;
+                }
+            }
+        }
+        writers.clear();
+        LOG.info("Exported " + rows + " rows to " + directory);
+        if (failure != null)
+        {
+            throw failure;
+        }
+    }
+
+    /**
+     * Rows written so far.
+     *
+     * @return the rows
+     */
+    public long getRows()
+    {
+        return rows;
+    }
+
+    /**
+     * Adds columns to the current row or super column. Null values are left
+     * out, as the datastore does not take them.
+     *
+     * @param writer
+     *            the writer
+     * @param columns
+     *            the columns
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private void addColumns(SSTableSimpleUnsortedWriter writer, List<Column> columns) throws IOException
+    {
+        for (Column column : columns)
+        {
+            if (column.getValue() != null)
+            {
+                writer.addColumn(column.bufferForName(), column.bufferForValue(), column.getTimestamp());
+            }
+        }
+    }
+
+    /**
+     * Gets the writer of a column family, creating it on first use. Names are
+     * compared as bytes, as in column families Kundera creates.
+     *
+     * @param keyspace
+     *            the keyspace
+     * @param columnFamily
+     *            the column family
+     * @param isSuper
+     *            whether it is a super column family
+     * @return the writer
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private SSTableSimpleUnsortedWriter getWriter(String keyspace, String columnFamily, boolean isSuper)
+            throws IOException
+    {
+        String key = keyspace + "." + columnFamily;
+        SSTableSimpleUnsortedWriter writer = writers.get(key);
+        if (writer == null)
+        {
+            File keyspaceDirectory = new File(directory, keyspace);
+            if (!keyspaceDirectory.isDirectory() && !keyspaceDirectory.mkdirs())
+            {
+                throw new IOException("Could not create " + keyspaceDirectory);
+            }
+            writer = new SSTableSimpleUnsortedWriter(keyspaceDirectory, keyspace, columnFamily, BytesType.instance,
+                    isSuper ? BytesType.instance : null, bufferSize);
+            writers.put(key, writer);
+            LOG.info("Writing SSTables for " + key + " to " + keyspaceDirectory);
+        }
+        return writer;
+    }
+}
@@ -42,6 +42,18 @@ public interface DataAccessor
      */
     void write(EnhancedEntity e, EntityMetadata m) throws Exception;
 
+    /**
+     * Write many entities, in as few datastore calls as the client allows.
+     *
+     * @param entities
+     *            EnhancedEntities
+     * @param metadata
+     *            Metadata of each entity
+     * @throws Exception
+     *             the exception
+     */
+    void write(List<EnhancedEntity> entities, List<EntityMetadata> metadata) throws Exception;
+
     /**
      * Read an entity of type clazz with primaryKey id from Cassandra DB.
      *
@@ -79,6 +79,24 @@ public class DataManager
         getDataAccessor(m).write(e, m);
     }
 
+    /**
+     * Persist many instances of EnhancedEntity, bypassing group commit.
+     *
+     * @param entities
+     *            EnhancedEntities
+     * @param metadata
+     *            Metadata of each entity
+     * @throws Exception
+     *             the exception
+     */
+    public final void persist(List<EnhancedEntity> entities, List<EntityMetadata> metadata) throws Exception
+    {
+        if (!entities.isEmpty())
+        {
+            getDataAccessor(metadata.get(0)).write(entities, metadata);
+        }
+    }
+
     /**
      * Merge an instance of EnhancedEntity.
      *
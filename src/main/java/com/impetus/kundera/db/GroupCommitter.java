@@ -0,0 +1,509 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.PersistenceException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.impetus.kundera.BatchClient;
+import com.impetus.kundera.Client;
+import com.impetus.kundera.ejb.EntityManagerImpl;
+import com.impetus.kundera.metadata.EntityMetadata;
+import com.impetus.kundera.proxy.EnhancedEntity;
+
+/**
+ * Groups writes of concurrent callers into one datastore call (group commit).
+ * Writes are collected until the window has passed since the first of them,
+ * or until the batch is full, and are then sent with
+ * {@link BatchClient#writeData(List, List)}. Every caller waits on its own
+ * future, which completes once its batch is written.
+ *
+ * If a batch fails, each of its writes is tried again on its own, so every
+ * caller gets the outcome of its own entity rather than that of the batch.
+ *
+ * Enabled with <code>kundera.groupcommit.enabled</code>, for clients that
+ * implement {@link BatchClient}. <code>kundera.groupcommit.window</code> is
+ * the window in microseconds, default 1000, and
+ * <code>kundera.groupcommit.max_batch</code> the largest batch, default 100.
+ *
+ * @author animesh.kumar
+ */
+public class GroupCommitter
+{
+
+    /** The Constant log. */
+    private static final Log LOG = LogFactory.getLog(GroupCommitter.class);
+
+    /** The Constant ENABLED. */
+    public static final String ENABLED = "kundera.groupcommit.enabled";
+
+    /** The Constant WINDOW. */
+    public static final String WINDOW = "kundera.groupcommit.window";
+
+    /** The Constant MAX_BATCH. */
+    public static final String MAX_BATCH = "kundera.groupcommit.max_batch";
+
+    /** The Constant DEFAULT_WINDOW, in microseconds. */
+    public static final long DEFAULT_WINDOW = 1000;
+
+    /** The Constant DEFAULT_MAX_BATCH. */
+    public static final int DEFAULT_MAX_BATCH = 100;
+
+    /** How long the flusher sleeps on an empty queue, in milliseconds. */
+    private static final long IDLE_POLL = 100;
+
+    /** Queued by close() to end the current window at once. */
+    private static final PendingWrite FLUSH = new PendingWrite(null, null, null);
+
+    /** The client, null when disabled. */
+    private final BatchClient client;
+
+    /** The window, in nanoseconds. */
+    private final long windowNanos;
+
+    /** The max batch. */
+    private final int maxBatch;
+
+    /** Writes waiting for the next batch. */
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<PendingWrite>();
+
+    /** The flusher thread, null when disabled. */
+    private final Thread flusher;
+
+    /** The closed. */
+    private volatile boolean closed;
+
+    /** Batches sent. */
+    private final AtomicLong batches = new AtomicLong();
+
+    /** Writes sent in batches. */
+    private final AtomicLong writes = new AtomicLong();
+
+    /** Batches that failed and were retried entity by entity. */
+    private final AtomicLong failedBatches = new AtomicLong();
+
+    /**
+     * Instantiates a new group committer.
+     *
+     * @param client
+     *            the client, null to disable group commit
+     * @param windowMicros
+     *            the window, in microseconds
+     * @param maxBatch
+     *            the max batch
+     */
+    public GroupCommitter(BatchClient client, long windowMicros, int maxBatch)
+    {
+        if (maxBatch < 1)
+        {
+            throw new IllegalArgumentException("Batch size must be positive: " + maxBatch);
+        }
+        this.client = client;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.maxBatch = maxBatch;
+
+        if (client != null)
+        {
+            flusher = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    flushLoop();
+                }
+            }, "kundera-group-commit");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+        else
+        {
+            flusher = null;
+        }
+    }
+
+    /**
+     * Creates the group committer from persistence unit properties.
+     *
+     * @param props
+     *            the props, may be null
+     * @param client
+     *            the client
+     * @return the group committer
+     */
+    public static GroupCommitter fromProperties(Map<?, ?> props, Client client)
+    {
+        boolean enabled = false;
+        long window = DEFAULT_WINDOW;
+        int maxBatch = DEFAULT_MAX_BATCH;
+        if (props != null)
+        {
+            if (props.get(ENABLED) != null)
+            {
+                enabled = Boolean.valueOf(props.get(ENABLED).toString().trim());
+            }
+            if (props.get(WINDOW) != null)
+            {
+                window = Long.parseLong(props.get(WINDOW).toString().trim());
+            }
+            if (props.get(MAX_BATCH) != null)
+            {
+                maxBatch = Integer.parseInt(props.get(MAX_BATCH).toString().trim());
+            }
+        }
+        if (enabled && !(client instanceof BatchClient))
+        {
+            LOG.warn("Group commit is not supported by " + client + ", writes will not be grouped.");
+            enabled = false;
+        }
+        return new GroupCommitter(enabled ? (BatchClient) client : null, window, maxBatch);
+    }
+
+    /**
+     * Checks if is enabled.
+     *
+     * @return true, if is enabled
+     */
+    public boolean isEnabled()
+    {
+        return client != null && !closed;
+    }
+
+    /**
+     * Queues a write for the next batch.
+     *
+     * @param em
+     *            the em
+     * @param e
+     *            the entity
+     * @param m
+     *            the metadata
+     * @return the future, completed when the entity is written
+     */
+    public Future<Void> submit(EntityManagerImpl em, EnhancedEntity e, EntityMetadata m)
+    {
+        if (!isEnabled())
+        {
+            throw new PersistenceException("Group commit is not enabled.");
+        }
+        PendingWrite write = new PendingWrite(em, e, m);
+        queue.add(write);
+        if (closed && queue.remove(write))
+        {
+            // lost the race with close(), nobody will flush it
+            write.fail(new PersistenceException("Group commit is closed."));
+        }
+        return write;
+    }
+
+    /**
+     * Writes an entity as part of the next batch, and waits until it is
+     * written.
+     *
+     * @param em
+     *            the em
+     * @param e
+     *            the entity
+     * @param m
+     *            the metadata
+     * @throws Exception
+     *             why this entity could not be written
+     */
+    public void write(EntityManagerImpl em, EnhancedEntity e, EntityMetadata m) throws Exception
+    {
+        try
+        {
+            submit(em, e, m).get();
+        }
+        catch (ExecutionException ee)
+        {
+            Throwable cause = ee.getCause();
+            if (cause instanceof Exception)
+            {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+            throw ee;
+        }
+    }
+
+    /**
+     * Writes out everything queued, then stops the flusher.
+     */
+    public void close()
+    {
+        if (flusher == null || closed)
+        {
+            return;
+        }
+        closed = true;
+        // wake the flusher if it is waiting out a window
+        queue.add(FLUSH);
+        try
+        {
+            flusher.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Number of batches sent.
+     *
+     * @return the batches
+     */
+    public long getBatches()
+    {
+        return batches.get();
+    }
+
+    /**
+     * Number of writes sent in batches.
+     *
+     * @return the writes
+     */
+    public long getWrites()
+    {
+        return writes.get();
+    }
+
+    /**
+     * Number of batches that failed and were retried entity by entity.
+     *
+     * @return the failed batches
+     */
+    public long getFailedBatches()
+    {
+        return failedBatches.get();
+    }
+
+    /**
+     * Collects batches and writes them until closed and drained.
+     */
+    private void flushLoop()
+    {
+        List<PendingWrite> batch = new ArrayList<PendingWrite>(maxBatch);
+        while (true)
+        {
+            try
+            {
+                PendingWrite first = queue.poll(IDLE_POLL, TimeUnit.MILLISECONDS);
+                if (first == null || first == FLUSH)
+                {
+                    if (closed && queue.isEmpty())
+                    {
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(first);
+
+                long deadline = System.nanoTime() + windowNanos;
+                boolean flushNow = drain(batch);
+                while (!flushNow && !closed && batch.size() < maxBatch)
+                {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0)
+                    {
+                        break;
+                    }
+                    PendingWrite next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null)
+                    {
+                        break;
+                    }
+                    if (next == FLUSH)
+                    {
+                        flushNow = true;
+                    }
+                    else
+                    {
+                        batch.add(next);
+                        flushNow = drain(batch);
+                    }
+                }
+                flush(batch);
+            }
+            catch (InterruptedException e)
+            {
+                closed = true;
+                if (!batch.isEmpty())
+                {
+                    flush(batch);
+                }
+            }
+            catch (RuntimeException e)
+            {
+                // never let the flusher die with callers waiting
+                LOG.error("Group commit failed: " + e.getMessage(), e);
+                for (PendingWrite write : batch)
+                {
+                    write.fail(e);
+                }
+            }
+            finally
+            {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Moves queued writes into the batch, up to the max batch.
+     *
+     * @param batch
+     *            the batch
+     * @return true, if close() asked for an immediate flush
+     */
+    private boolean drain(List<PendingWrite> batch)
+    {
+        int from = batch.size();
+        queue.drainTo(batch, maxBatch - from);
+        return batch.subList(from, batch.size()).remove(FLUSH);
+    }
+
+    /**
+     * Writes one batch and completes its futures.
+     *
+     * @param batch
+     *            the batch
+     */
+    private void flush(List<PendingWrite> batch)
+    {
+        List<EnhancedEntity> entities = new ArrayList<EnhancedEntity>(batch.size());
+        List<EntityMetadata> metadata = new ArrayList<EntityMetadata>(batch.size());
+        for (PendingWrite write : batch)
+        {
+            entities.add(write.entity);
+            metadata.add(write.metadata);
+        }
+
+        try
+        {
+            client.writeData(entities, metadata);
+            batches.incrementAndGet();
+            writes.addAndGet(batch.size());
+            for (PendingWrite write : batch)
+            {
+                write.complete();
+            }
+            LOG.debug("Group commit >> " + batch.size() + " writes");
+        }
+        catch (Exception e)
+        {
+            failedBatches.incrementAndGet();
+            if (batch.size() == 1)
+            {
+                batch.get(0).fail(e);
+                return;
+            }
+            LOG.warn("Group commit of " + batch.size() + " writes failed, writing them one by one: " + e.getMessage());
+            for (PendingWrite write : batch)
+            {
+                try
+                {
+                    client.writeData(write.em, write.entity, write.metadata);
+                    write.complete();
+                }
+                catch (Exception ex)
+                {
+                    write.fail(ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * A write waiting for its batch; the future of its caller.
+     */
+    private static final class PendingWrite extends FutureTask<Void>
+    {
+
+        /** Never run, the flusher completes the future instead. */
+        private static final Callable<Void> NOOP = new Callable<Void>()
+        {
+            @Override
+            public Void call()
+            {
+                return null;
+            }
+        };
+
+        /** The em. */
+        private final EntityManagerImpl em;
+
+        /** The entity. */
+        private final EnhancedEntity entity;
+
+        /** The metadata. */
+        private final EntityMetadata metadata;
+
+        /**
+         * Instantiates a new pending write.
+         *
+         * @param em
+         *            the em
+         * @param entity
+         *            the entity
+         * @param metadata
+         *            the metadata
+         */
+        PendingWrite(EntityManagerImpl em, EnhancedEntity entity, EntityMetadata metadata)
+        {
+            super(NOOP);
+            this.em = em;
+            this.entity = entity;
+            this.metadata = metadata;
+        }
+
+        /**
+         * Marks the entity written.
+         */
+        void complete()
+        {
+            set(null);
+        }
+
+        /**
+         * Marks the entity failed.
+         *
+         * @param cause
+         *            the cause
+         */
+        void fail(Throwable cause)
+        {
+            setException(cause);
+        }
+    }
+}
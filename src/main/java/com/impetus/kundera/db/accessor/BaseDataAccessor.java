@@ -16,13 +16,17 @@
 package com.impetus.kundera.db.accessor;
 
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.impetus.kundera.BatchClient;
+import com.impetus.kundera.Client;
 import com.impetus.kundera.Constants;
 import com.impetus.kundera.db.DataAccessor;
+import com.impetus.kundera.db.GroupCommitter;
 import com.impetus.kundera.ejb.EntityManagerImpl;
 import com.impetus.kundera.metadata.EntityMetadata;
 import com.impetus.kundera.proxy.EnhancedEntity;
@@ -80,6 +84,50 @@ public abstract class BaseDataAccessor implements DataAccessor
         getEntityManager().getClient().delete(m.getSchema(), m.getTableName(), id);
     }
 
+    /*
+     * @see com.impetus.kundera.db.DataAccessor#write(java.util.List,
+     * java.util.List)
+     */
+    @Override
+    public void write(List<EnhancedEntity> entities, List<EntityMetadata> metadata) throws Exception
+    {
+        Client client = getEntityManager().getClient();
+        if (client instanceof BatchClient)
+        {
+            log.debug("Batch >> Write >> " + entities.size() + " entities");
+            ((BatchClient) client).writeData(entities, metadata);
+            return;
+        }
+        for (int i = 0; i < entities.size(); i++)
+        {
+            write(entities.get(i), metadata.get(i));
+        }
+    }
+
+    /**
+     * Writes an entity with the client, grouped with writes of other callers
+     * when group commit is enabled.
+     *
+     * @param e
+     *            the e
+     * @param m
+     *            the m
+     * @throws Exception
+     *             the exception
+     */
+    protected void writeData(EnhancedEntity e, EntityMetadata m) throws Exception
+    {
+        GroupCommitter committer = getEntityManager().getFactory().getGroupCommitter();
+        if (committer.isEnabled())
+        {
+            committer.write(getEntityManager(), e, m);
+        }
+        else
+        {
+            getEntityManager().getClient().writeData(getEntityManager(), e, m);
+        }
+    }
+
     /**
      * Creates a string representation of a set of foreign keys by combining
      * them together separated by "~" character.
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.ejb;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Ids of lazy proxies an EntityManager has handed out but not yet
+ * initialized, per entity class. When one of them is initialized, others of
+ * the same class are read along with it in one multiget.
+ *
+ * Only used from the owning EntityManager's thread, like the session.
+ *
+ * @author animesh.kumar
+ */
+public class BatchFetchQueue
+{
+
+    /**
+     * Property for the number of members of a lazy collection read per
+     * multiget, where the relation has no @BatchSize.
+     */
+    public static final String BATCH_SIZE = "kundera.fetch.batch_size";
+
+    /** The Constant DEFAULT_BATCH_SIZE. */
+    public static final int DEFAULT_BATCH_SIZE = 50;
+
+    /** Pending ids, by entity class, with the batch size each was added with. */
+    private final Map<Class<?>, LinkedHashMap<String, Integer>> pending =
+            new HashMap<Class<?>, LinkedHashMap<String, Integer>>();
+
+    /**
+     * Adds the id of an uninitialized proxy.
+     *
+     * @param entityClass
+     *            the entity class
+     * @param id
+     *            the id
+     * @param batchSize
+     *            the batch size
+     */
+    public void add(Class<?> entityClass, String id, int batchSize)
+    {
+        LinkedHashMap<String, Integer> ids = pending.get(entityClass);
+        if (ids == null)
+        {
+            ids = new LinkedHashMap<String, Integer>();
+            pending.put(entityClass, ids);
+        }
+        ids.put(id, batchSize);
+    }
+
+    /**
+     * Takes id and up to batch size - 1 other pending ids of the same class
+     * off the queue.
+     *
+     * @param entityClass
+     *            the entity class
+     * @param id
+     *            the id being initialized
+     * @return the ids to read, id first
+     */
+    public String[] nextBatch(Class<?> entityClass, String id)
+    {
+        LinkedHashMap<String, Integer> ids = pending.get(entityClass);
+        if (ids == null || !ids.containsKey(id))
+        {
+            return new String[] { id };
+        }
+
+        int batchSize = Math.max(1, ids.remove(id));
+        String[] batch = new String[Math.min(batchSize, ids.size() + 1)];
+        batch[0] = id;
+        Iterator<String> it = ids.keySet().iterator();
+        for (int i = 1; i < batch.length; i++)
+        {
+            batch[i] = it.next();
+            it.remove();
+        }
+        if (ids.isEmpty())
+        {
+            pending.remove(entityClass);
+        }
+        return batch;
+    }
+
+    /**
+     * Forgets all pending ids.
+     */
+    public void clear()
+    {
+        pending.clear();
+    }
+}
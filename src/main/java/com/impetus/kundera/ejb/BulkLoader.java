@@ -0,0 +1,1074 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.ejb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.PersistenceException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.impetus.kundera.cache.Cache;
+import com.impetus.kundera.metadata.EntityMetadata;
+import com.impetus.kundera.metadata.MetadataUtils;
+import com.impetus.kundera.property.PropertyAccessException;
+import com.impetus.kundera.property.PropertyAccessorHelper;
+import com.impetus.kundera.proxy.EnhancedEntity;
+
+/**
+ * Loads large numbers of entities without going through the EntityManager.
+ * Entities are read from an iterator on the calling thread, cut into batches
+ * and handed through a bounded queue to writer threads, each writing whole
+ * batches with one datastore call where the client allows it. The loader
+ * blocks when the writers fall behind, so memory stays bounded however many
+ * entities are loaded.
+ *
+ * What persist() does per entity is skipped: relations are not cascaded (only
+ * the ids of related entities are kept, so related entities must be loaded
+ * themselves), no proxies are created, no lifecycle events fire and nothing
+ * enters a session. Entities are indexed by a separate thread after their batch
+ * is written, inline by the writers, or not at all, as configured.
+ *
+ * A failed batch is retried; if it still fails, its ids and the error are
+ * recorded and loading goes on. Progress is logged and passed to the
+ * {@link Listener} at a fixed interval.
+ *
+ * Configured with these persistence unit properties:
+ * <ul>
+ * <li><code>kundera.bulk.threads</code>: writer threads, default the number
+ * of processors</li>
+ * <li><code>kundera.bulk.batch_size</code>: entities per batch, default 500</li>
+ * <li><code>kundera.bulk.queue_size</code>: batches waiting for a writer,
+ * default twice the writer threads</li>
+ * <li><code>kundera.bulk.retries</code>: retries of a failed batch, default 3</li>
+ * <li><code>kundera.bulk.indexing</code>: <code>deferred</code> (default),
+ * <code>inline</code> or <code>none</code></li>
+ * <li><code>kundera.bulk.report_interval</code>: milliseconds between
+ * progress reports, default 10000</li>
+ * </ul>
+ *
+ * @author animesh.kumar
+ */
+public class BulkLoader
+{
+
+    /** The Constant log. */
+    private static final Log LOG = LogFactory.getLog(BulkLoader.class);
+
+    /** The Constant THREADS. */
+    public static final String THREADS = "kundera.bulk.threads";
+
+    /** The Constant BATCH_SIZE. */
+    public static final String BATCH_SIZE = "kundera.bulk.batch_size";
+
+    /** The Constant QUEUE_SIZE. */
+    public static final String QUEUE_SIZE = "kundera.bulk.queue_size";
+
+    /** The Constant RETRIES. */
+    public static final String RETRIES = "kundera.bulk.retries";
+
+    /** The Constant INDEXING. */
+    public static final String INDEXING = "kundera.bulk.indexing";
+
+    /** The Constant REPORT_INTERVAL. */
+    public static final String REPORT_INTERVAL = "kundera.bulk.report_interval";
+
+    /** The Constant DEFAULT_BATCH_SIZE. */
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    /** The Constant DEFAULT_RETRIES. */
+    public static final int DEFAULT_RETRIES = 3;
+
+    /** The Constant DEFAULT_REPORT_INTERVAL. */
+    public static final long DEFAULT_REPORT_INTERVAL = 10000;
+
+    /** Pause before the first retry of a batch, doubled on each further one. */
+    private static final long RETRY_PAUSE = 100;
+
+    /** Milliseconds between checks that the workers of a full queue are alive. */
+    private static final long PUT_CHECK_INTERVAL = 1000;
+
+    /** Tells a worker there are no more batches. */
+    private static final Batch END = new Batch(0);
+
+    /**
+     * When entities are indexed.
+     */
+    public enum Indexing
+    {
+
+        /** By one thread, after their batch is written. */
+        DEFERRED,
+
+        /** By the writer, right after writing their batch. */
+        INLINE,
+
+        /** Not at all. */
+        NONE
+    }
+
+    /**
+     * Receives progress of a load.
+     */
+    public interface Listener
+    {
+
+        /**
+         * Called at every report interval, and once when loading is done.
+         *
+         * @param progress
+         *            the progress
+         */
+        void progress(Progress progress);
+
+        /**
+         * Called when a batch could not be written, retries included.
+         *
+         * @param batch
+         *            the batch
+         */
+        void batchFailed(FailedBatch batch);
+    }
+
+    /** The factory. */
+    private final EntityManagerFactoryImpl factory;
+
+    /** The threads. */
+    private final int threads;
+
+    /** The batch size. */
+    private final int batchSize;
+
+    /** The queue size, in batches. */
+    private final int queueSize;
+
+    /** The retries. */
+    private final int retries;
+
+    /** The indexing. */
+    private final Indexing indexing;
+
+    /** The report interval, in milliseconds. */
+    private final long reportInterval;
+
+    /** The listener, may be null. */
+    private volatile Listener listener;
+
+    /** Set while a load runs. */
+    private final AtomicBoolean loading = new AtomicBoolean();
+
+    /** Entities read from the iterator. */
+    private final AtomicLong read = new AtomicLong();
+
+    /** Entities written. */
+    private final AtomicLong written = new AtomicLong();
+
+    /** Entities in failed batches. */
+    private final AtomicLong failed = new AtomicLong();
+
+    /** Entities indexed. */
+    private final AtomicLong indexed = new AtomicLong();
+
+    /** When the current load started, in nanoseconds. */
+    private volatile long started;
+
+    /** When the last load ended, in nanoseconds; 0 while loading. */
+    private volatile long ended;
+
+    /** The failed batches. */
+    private final List<FailedBatch> failedBatches = Collections.synchronizedList(new ArrayList<FailedBatch>());
+
+    /**
+     * Instantiates a new bulk loader.
+     *
+     * @param factory
+     *            the factory
+     * @param threads
+     *            writer threads
+     * @param batchSize
+     *            entities per batch
+     * @param queueSize
+     *            batches waiting for a writer
+     * @param retries
+     *            retries of a failed batch
+     * @param indexing
+     *            the indexing
+     * @param reportInterval
+     *            milliseconds between progress reports
+     */
+    public BulkLoader(EntityManagerFactoryImpl factory, int threads, int batchSize, int queueSize, int retries,
+            Indexing indexing, long reportInterval)
+    {
+        if (threads < 1 || batchSize < 1 || queueSize < 1 || retries < 0 || reportInterval < 1)
+        {
+            throw new IllegalArgumentException("Invalid bulk load settings: threads=" + threads + ", batchSize="
+                    + batchSize + ", queueSize=" + queueSize + ", retries=" + retries + ", reportInterval="
+                    + reportInterval);
+        }
+        this.factory = factory;
+        this.threads = threads;
+        this.batchSize = batchSize;
+        this.queueSize = queueSize;
+        this.retries = retries;
+        this.indexing = indexing;
+        this.reportInterval = reportInterval;
+    }
+
+    /**
+     * Creates the bulk loader from persistence unit properties.
+     *
+     * @param factory
+     *            the factory
+     * @param props
+     *            the props, may be null
+     * @return the bulk loader
+     */
+    public static BulkLoader fromProperties(EntityManagerFactoryImpl factory, Map<?, ?> props)
+    {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int batchSize = DEFAULT_BATCH_SIZE;
+        int queueSize = -1;
+        int retries = DEFAULT_RETRIES;
+        Indexing indexing = Indexing.DEFERRED;
+        long reportInterval = DEFAULT_REPORT_INTERVAL;
+        if (props != null)
+        {
+            if (props.get(THREADS) != null)
+            {
+                threads = Integer.parseInt(props.get(THREADS).toString().trim());
+            }
+            if (props.get(BATCH_SIZE) != null)
+            {
+                batchSize = Integer.parseInt(props.get(BATCH_SIZE).toString().trim());
+            }
+            if (props.get(QUEUE_SIZE) != null)
+            {
+                queueSize = Integer.parseInt(props.get(QUEUE_SIZE).toString().trim());
+            }
+            if (props.get(RETRIES) != null)
+            {
+                retries = Integer.parseInt(props.get(RETRIES).toString().trim());
+            }
+            if (props.get(INDEXING) != null)
+            {
+                indexing = Indexing.valueOf(props.get(INDEXING).toString().trim().toUpperCase());
+            }
+            if (props.get(REPORT_INTERVAL) != null)
+            {
+                reportInterval = Long.parseLong(props.get(REPORT_INTERVAL).toString().trim());
+            }
+        }
+        return new BulkLoader(factory, threads, batchSize, queueSize < 0 ? 2 * threads : queueSize, retries,
+                indexing, reportInterval);
+    }
+
+    /**
+     * Sets the listener.
+     *
+     * @param listener
+     *            the new listener
+     */
+    public void setListener(Listener listener)
+    {
+        this.listener = listener;
+    }
+
+    /**
+     * Loads entities.
+     *
+     * @param entities
+     *            the entities
+     * @return the progress once all are written and indexed
+     */
+    public Progress load(Iterable<?> entities)
+    {
+        return load(entities.iterator());
+    }
+
+    /**
+     * Loads entities, returning when all are written and indexed. Failed
+     * batches do not stop the load; see {@link #getFailedBatches()}. An
+     * entity that cannot be loaded at all, such as one without id, stops it
+     * once the batches already queued are written.
+     *
+     * @param entities
+     *            the entities
+     * @return the progress
+     */
+    public Progress load(Iterator<?> entities)
+    {
+        if (!loading.compareAndSet(false, true))
+        {
+            throw new IllegalStateException("A load is already running.");
+        }
+        read.set(0);
+        written.set(0);
+        failed.set(0);
+        indexed.set(0);
+        failedBatches.clear();
+        started = System.nanoTime();
+        ended = 0;
+
+        BlockingQueue<Batch> writeQueue = new ArrayBlockingQueue<Batch>(queueSize);
+        BlockingQueue<Batch> indexQueue = indexing == Indexing.DEFERRED ? new ArrayBlockingQueue<Batch>(queueSize)
+                : null;
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads + (indexQueue != null ? 1 : 0),
+                new LoaderThreadFactory());
+        Future<?> indexer = indexQueue != null ? workers.submit(new Indexer(indexQueue)) : null;
+        List<Future<?>> writers = new ArrayList<Future<?>>();
+        for (int i = 0; i < threads; i++)
+        {
+            writers.add(workers.submit(new Writer(writeQueue, indexQueue, indexer)));
+        }
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(new LoaderThreadFactory());
+        reporter.scheduleAtFixedRate(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                report();
+            }
+        }, reportInterval, reportInterval, TimeUnit.MILLISECONDS);
+
+        try
+        {
+            Map<Class<?>, EntityMetadata> metadataByClass = new HashMap<Class<?>, EntityMetadata>();
+            Batch batch = new Batch(batchSize);
+            while (entities.hasNext())
+            {
+                Object entity = entities.next();
+                read.incrementAndGet();
+                EntityMetadata m = metadataByClass.get(entity.getClass());
+                if (m == null)
+                {
+                    factory.getMetadataManager().validate(entity.getClass());
+                    m = factory.getMetadataManager().getEntityMetadata(entity.getClass());
+                    metadataByClass.put(entity.getClass(), m);
+                }
+                batch.add(toEnhancedEntity(entity, m), m);
+                if (batch.size() >= batchSize)
+                {
+                    put(writeQueue, batch, writers);
+                    batch = new Batch(batchSize);
+                }
+            }
+            if (batch.size() > 0)
+            {
+                put(writeQueue, batch, writers);
+            }
+        }
+        finally
+        {
+            try
+            {
+                for (int i = 0; i < threads; i++)
+                {
+                    put(writeQueue, END, writers);
+                }
+                await(writers);
+                if (indexer != null)
+                {
+                    put(indexQueue, END, Collections.<Future<?>> singletonList(indexer));
+                    await(Collections.<Future<?>> singletonList(indexer));
+                }
+            }
+            finally
+            {
+                workers.shutdownNow();
+                reporter.shutdownNow();
+                ended = System.nanoTime();
+                loading.set(false);
+            }
+        }
+        return report();
+    }
+
+    /**
+     * Current progress of the running load, or the result of the last one.
+     *
+     * @return the progress
+     */
+    public Progress getProgress()
+    {
+        long end = ended != 0 ? ended : System.nanoTime();
+        return new Progress(read.get(), written.get(), failed.get(), indexed.get(), TimeUnit.NANOSECONDS
+                .toMillis(end - started));
+    }
+
+    /**
+     * Batches of the running or last load that could not be written.
+     *
+     * @return the failed batches
+     */
+    public List<FailedBatch> getFailedBatches()
+    {
+        synchronized (failedBatches)
+        {
+            return new ArrayList<FailedBatch>(failedBatches);
+        }
+    }
+
+    /**
+     * Logs progress and passes it to the listener.
+     *
+     * @return the progress
+     */
+    private Progress report()
+    {
+        Progress progress = getProgress();
+        LOG.info("Bulk load >> " + progress);
+        Listener l = listener;
+        if (l != null)
+        {
+            try
+            {
+                l.progress(progress);
+            }
+            catch (RuntimeException e)
+            {
+                LOG.warn("Bulk load listener failed: " + e.getMessage());
+            }
+        }
+        return progress;
+    }
+
+    /**
+     * Wraps an entity, along with the ids of its related entities. Related
+     * entities themselves are not followed.
+     *
+     * @param entity
+     *            the entity
+     * @param m
+     *            the m
+     * @return the enhanced entity
+     */
+    private EnhancedEntity toEnhancedEntity(Object entity, EntityMetadata m)
+    {
+        try
+        {
+            String id = PropertyAccessorHelper.getId(entity, m);
+            if (null == id || id.trim().isEmpty())
+            {
+                throw new PersistenceException("Missing primary key >> " + m.getEntityClazz().getName() + "#"
+                        + m.getIdProperty().getName());
+            }
+
+            Map<String, Set<String>> foreignKeysMap = MetadataUtils.getForeignKeysMap(entity, m, factory
+                    .getMetadataManager());
+            return factory.getEnhancedEntity(entity, id, foreignKeysMap);
+        }
+        catch (PropertyAccessException e)
+        {
+            throw new PersistenceException(e.getMessage());
+        }
+    }
+
+    /**
+     * Writes a batch, with retries, and records the outcome.
+     *
+     * @param em
+     *            the em
+     * @param batch
+     *            the batch
+     * @return true, if written
+     */
+    private boolean write(EntityManagerImpl em, Batch batch)
+    {
+        Exception cause = null;
+        int attempts = 0;
+        long pause = RETRY_PAUSE;
+        while (attempts <= retries)
+        {
+            attempts++;
+            try
+            {
+                em.getDataManager().persist(batch.entities, batch.metadata);
+                cause = null;
+                break;
+            }
+            catch (Exception e)
+            {
+                cause = e;
+                if (attempts <= retries)
+                {
+                    LOG.warn("Bulk load batch failed, retrying in " + pause + "ms: " + e.getMessage());
+                    try
+                    {
+                        Thread.sleep(pause);
+                    }
+                    catch (InterruptedException ie)
+                    {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                    pause *= 2;
+                }
+            }
+        }
+
+        if (cause == null)
+        {
+            written.addAndGet(batch.size());
+            try
+            {
+                forget(batch);
+            }
+            catch (RuntimeException e)
+            {
+                LOG.warn("Bulk load could not evict written entities from the caches: " + e.getMessage());
+            }
+            return true;
+        }
+
+        failed.addAndGet(batch.size());
+        List<String> ids = new ArrayList<String>(batch.size());
+        for (EnhancedEntity e : batch.entities)
+        {
+            ids.add(e.getId());
+        }
+        FailedBatch failedBatch = new FailedBatch(ids, cause, attempts);
+        failedBatches.add(failedBatch);
+        LOG.error("Bulk load batch of " + ids.size() + " entities failed after " + attempts + " attempts: "
+                + (cause != null ? cause.getMessage() : "interrupted"));
+        Listener l = listener;
+        if (l != null)
+        {
+            try
+            {
+                l.batchFailed(failedBatch);
+            }
+            catch (RuntimeException e)
+            {
+                LOG.warn("Bulk load listener failed: " + e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops what the caches know about the written entities.
+     *
+     * @param batch
+     *            the batch
+     */
+    private void forget(Batch batch)
+    {
+        Map<Class<?>, Cache> caches = new HashMap<Class<?>, Cache>();
+        for (EnhancedEntity e : batch.entities)
+        {
+            Class<?> clazz = e.getEntity().getClass();
+            factory.getNegativeLookupCache().invalidate(clazz, e.getId());
+            Cache cache = caches.get(clazz);
+            if (cache == null)
+            {
+                cache = factory.getCache(clazz);
+                caches.put(clazz, cache);
+            }
+            if (cache != null)
+            {
+                cache.remove(clazz.getName() + "_" + e.getId());
+            }
+        }
+    }
+
+    /**
+     * Indexes the entities of a written batch, class by class.
+     *
+     * @param batch
+     *            the batch
+     */
+    private void index(Batch batch)
+    {
+        Map<Class<?>, List<Object>> byClass = new LinkedHashMap<Class<?>, List<Object>>();
+        Map<Class<?>, EntityMetadata> metadataByClass = new HashMap<Class<?>, EntityMetadata>();
+        for (int i = 0; i < batch.size(); i++)
+        {
+            Object entity = batch.entities.get(i).getEntity();
+            List<Object> list = byClass.get(entity.getClass());
+            if (list == null)
+            {
+                list = new ArrayList<Object>();
+                byClass.put(entity.getClass(), list);
+                metadataByClass.put(entity.getClass(), batch.metadata.get(i));
+            }
+            list.add(entity);
+        }
+        for (Map.Entry<Class<?>, List<Object>> entry : byClass.entrySet())
+        {
+            try
+            {
+                factory.getIndexManager().write(metadataByClass.get(entry.getKey()), entry.getValue());
+                indexed.addAndGet(entry.getValue().size());
+            }
+            catch (RuntimeException e)
+            {
+                LOG.error("Bulk load could not index " + entry.getValue().size() + " " + entry.getKey().getName()
+                        + " entities: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Puts a batch on a queue, waiting for room as long as a worker taking
+     * from it is alive, and rethrowing what stopped them otherwise.
+     *
+     * @param queue
+     *            the queue
+     * @param batch
+     *            the batch
+     * @param consumers
+     *            the workers taking from the queue
+     */
+    private static void put(BlockingQueue<Batch> queue, Batch batch, List<Future<?>> consumers)
+    {
+        try
+        {
+            while (!queue.offer(batch, PUT_CHECK_INTERVAL, TimeUnit.MILLISECONDS))
+            {
+                boolean alive = false;
+                for (Future<?> consumer : consumers)
+                {
+                    if (consumer.isDone())
+                    {
+                        await(Collections.<Future<?>> singletonList(consumer));
+                    }
+                    else
+                    {
+                        alive = true;
+                    }
+                }
+                if (!alive)
+                {
+                    throw new PersistenceException("Bulk load workers stopped.");
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new PersistenceException("Bulk load interrupted.");
+        }
+    }
+
+    /**
+     * Waits for workers to finish.
+     *
+     * @param futures
+     *            the futures
+     */
+    private static void await(List<Future<?>> futures)
+    {
+        for (Future<?> future : futures)
+        {
+            try
+            {
+                future.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new PersistenceException("Bulk load interrupted.");
+            }
+            catch (ExecutionException e)
+            {
+                throw new PersistenceException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Takes batches off the write queue and writes them.
+     */
+    private final class Writer implements Runnable
+    {
+
+        /** The write queue. */
+        private final BlockingQueue<Batch> writeQueue;
+
+        /** The index queue, null unless indexing is deferred. */
+        private final BlockingQueue<Batch> indexQueue;
+
+        /** The worker taking from the index queue, null if none. */
+        private final Future<?> indexer;
+
+        /**
+         * Instantiates a new writer.
+         *
+         * @param writeQueue
+         *            the write queue
+         * @param indexQueue
+         *            the index queue
+         * @param indexer
+         *            the worker taking from the index queue
+         */
+        Writer(BlockingQueue<Batch> writeQueue, BlockingQueue<Batch> indexQueue, Future<?> indexer)
+        {
+            this.writeQueue = writeQueue;
+            this.indexQueue = indexQueue;
+            this.indexer = indexer;
+        }
+
+        @Override
+        public void run()
+        {
+            // only used to reach the data manager; nothing enters its session
+            EntityManagerImpl em = (EntityManagerImpl) factory.createEntityManager();
+            try
+            {
+                while (true)
+                {
+                    Batch batch = writeQueue.take();
+                    if (batch == END)
+                    {
+                        return;
+                    }
+                    if (write(em, batch))
+                    {
+                        if (indexing == Indexing.INLINE)
+                        {
+                            index(batch);
+                        }
+                        else if (indexQueue != null)
+                        {
+                            put(indexQueue, batch, Collections.<Future<?>> singletonList(indexer));
+                        }
+                    }
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            finally
+            {
+                em.close();
+            }
+        }
+    }
+
+    /**
+     * Takes written batches off the index queue and indexes them.
+     */
+    private final class Indexer implements Runnable
+    {
+
+        /** The index queue. */
+        private final BlockingQueue<Batch> indexQueue;
+
+        /**
+         * Instantiates a new indexer.
+         *
+         * @param indexQueue
+         *            the index queue
+         */
+        Indexer(BlockingQueue<Batch> indexQueue)
+        {
+            this.indexQueue = indexQueue;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (true)
+                {
+                    Batch batch = indexQueue.take();
+                    if (batch == END)
+                    {
+                        return;
+                    }
+                    index(batch);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Entities written together, with their metadata at the same positions.
+     */
+    private static final class Batch
+    {
+
+        /** The entities. */
+        private final List<EnhancedEntity> entities;
+
+        /** The metadata. */
+        private final List<EntityMetadata> metadata;
+
+        /**
+         * Instantiates a new batch.
+         *
+         * @param capacity
+         *            the capacity
+         */
+        Batch(int capacity)
+        {
+            entities = new ArrayList<EnhancedEntity>(capacity);
+            metadata = new ArrayList<EntityMetadata>(capacity);
+        }
+
+        /**
+         * Adds an entity.
+         *
+         * @param e
+         *            the e
+         * @param m
+         *            the m
+         */
+        void add(EnhancedEntity e, EntityMetadata m)
+        {
+            entities.add(e);
+            metadata.add(m);
+        }
+
+        /**
+         * Size.
+         *
+         * @return the int
+         */
+        int size()
+        {
+            return entities.size();
+        }
+    }
+
+    /**
+     * Names loader threads, and keeps them from holding up JVM exit.
+     */
+    private static final class LoaderThreadFactory implements ThreadFactory
+    {
+
+        /** The Constant count. */
+        private static final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread thread = new Thread(r, "kundera-bulk-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * A snapshot of the progress of a load.
+     */
+    public static final class Progress
+    {
+
+        /** Entities read. */
+        private final long read;
+
+        /** Entities written. */
+        private final long written;
+
+        /** Entities in failed batches. */
+        private final long failed;
+
+        /** Entities indexed. */
+        private final long indexed;
+
+        /** The elapsed time, in milliseconds. */
+        private final long elapsed;
+
+        /**
+         * Instantiates a new progress.
+         *
+         * @param read
+         *            the read
+         * @param written
+         *            the written
+         * @param failed
+         *            the failed
+         * @param indexed
+         *            the indexed
+         * @param elapsed
+         *            the elapsed
+         */
+        Progress(long read, long written, long failed, long indexed, long elapsed)
+        {
+            this.read = read;
+            this.written = written;
+            this.failed = failed;
+            this.indexed = indexed;
+            this.elapsed = elapsed;
+        }
+
+        /**
+         * Entities read from the iterator.
+         *
+         * @return the read
+         */
+        public long getRead()
+        {
+            return read;
+        }
+
+        /**
+         * Entities written.
+         *
+         * @return the written
+         */
+        public long getWritten()
+        {
+            return written;
+        }
+
+        /**
+         * Entities in batches that could not be written.
+         *
+         * @return the failed
+         */
+        public long getFailed()
+        {
+            return failed;
+        }
+
+        /**
+         * Entities indexed.
+         *
+         * @return the indexed
+         */
+        public long getIndexed()
+        {
+            return indexed;
+        }
+
+        /**
+         * Time since the load started, in milliseconds.
+         *
+         * @return the elapsed millis
+         */
+        public long getElapsedMillis()
+        {
+            return elapsed;
+        }
+
+        /**
+         * Entities written per second.
+         *
+         * @return the writes per second
+         */
+        public double getWritesPerSecond()
+        {
+            return elapsed > 0 ? written * 1000.0 / elapsed : 0;
+        }
+
+        /* @see java.lang.Object#toString() */
+        @Override
+        public String toString()
+        {
+            StringBuilder builder = new StringBuilder();
+            builder.append("read=").append(read);
+            builder.append(", written=").append(written);
+            builder.append(", failed=").append(failed);
+            builder.append(", indexed=").append(indexed);
+            builder.append(", elapsed=").append(elapsed).append("ms");
+            builder.append(", writes/s=").append((long) getWritesPerSecond());
+            return builder.toString();
+        }
+    }
+
+    /**
+     * A batch that could not be written.
+     */
+    public static final class FailedBatch
+    {
+
+        /** Ids of the entities in the batch. */
+        private final List<String> ids;
+
+        /** The cause of the last attempt, null if interrupted. */
+        private final Exception cause;
+
+        /** The attempts. */
+        private final int attempts;
+
+        /**
+         * Instantiates a new failed batch.
+         *
+         * @param ids
+         *            the ids
+         * @param cause
+         *            the cause
+         * @param attempts
+         *            the attempts
+         */
+        FailedBatch(List<String> ids, Exception cause, int attempts)
+        {
+            this.ids = Collections.unmodifiableList(ids);
+            this.cause = cause;
+            this.attempts = attempts;
+        }
+
+        /**
+         * Ids of the entities in the batch.
+         *
+         * @return the ids
+         */
+        public List<String> getIds()
+        {
+            return ids;
+        }
+
+        /**
+         * Why the last attempt failed.
+         *
+         * @return the cause
+         */
+        public Exception getCause()
+        {
+            return cause;
+        }
+
+        /**
+         * Number of attempts made.
+         *
+         * @return the attempts
+         */
+        public int getAttempts()
+        {
+            return attempts;
+        }
+    }
+}
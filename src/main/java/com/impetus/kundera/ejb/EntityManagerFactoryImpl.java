@@ -16,13 +16,18 @@
 package com.impetus.kundera.ejb;
 
 import java.lang.reflect.Method;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.persistence.Entity;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
+import javax.persistence.FetchType;
 import javax.persistence.PersistenceUnitUtil;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.metamodel.Metamodel;
@@ -32,22 +37,35 @@ import org.apache.commons.lang.NotImplementedException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.impetus.kundera.Client;
 import com.impetus.kundera.cache.Cache;
 import com.impetus.kundera.cache.CacheException;
 import com.impetus.kundera.cache.CacheProvider;
+import com.impetus.kundera.cache.NegativeLookupCache;
+import com.impetus.kundera.cache.NonOperationalCacheProvider;
+import com.impetus.kundera.cache.offheap.EntityStateSerializer;
 import com.impetus.kundera.classreading.ClasspathReader;
 import com.impetus.kundera.classreading.Reader;
+import com.impetus.kundera.db.GroupCommitter;
+import com.impetus.kundera.index.IndexManager;
+import com.impetus.kundera.metadata.EntityMetadata;
 import com.impetus.kundera.metadata.MetadataManager;
 import com.impetus.kundera.proxy.EnhancedEntity;
 import com.impetus.kundera.proxy.EntityEnhancerFactory;
 import com.impetus.kundera.proxy.KunderaProxy;
 import com.impetus.kundera.proxy.LazyInitializerFactory;
-import com.impetus.kundera.proxy.cglib.CglibEntityEnhancerFactory;
+import com.impetus.kundera.proxy.SimpleEntityEnhancerFactory;
 import com.impetus.kundera.proxy.cglib.CglibLazyInitializerFactory;
+import com.impetus.kundera.query.QueryResultCache;
 
 /**
  * The Class EntityManagerFactoryImpl.
  *
+ * The factory is thread-safe. It owns one connected {@link Client}, the entity
+ * metadata (read-only once the client is set), the index and the caches, and
+ * shares them with every EntityManager it creates. EntityManagers themselves
+ * are not thread-safe; see {@link EntityManagerImpl}.
+ *
  * @author animesh.kumar
  */
 public class EntityManagerFactoryImpl implements EntityManagerFactory
@@ -96,6 +114,31 @@ public class EntityManagerFactoryImpl implements EntityManagerFactory
     /** The lazy initializer factory. */
     private LazyInitializerFactory lazyInitializerFactory;
 
+    /** Members of a lazy collection read per multiget, by default. */
+    private int fetchBatchSize = BatchFetchQueue.DEFAULT_BATCH_SIZE;
+
+    /** The query result cache, created on first use. */
+    private volatile QueryResultCache queryResultCache;
+
+    /** The negative lookup cache, created on first use. */
+    private volatile NegativeLookupCache negativeLookupCache;
+
+    /** The read coalescer, created on first use. */
+    private volatile ReadCoalescer readCoalescer;
+
+    /** The client shared by all entity managers. */
+    private volatile Client client;
+
+    /** The index manager, created on first use. */
+    private volatile IndexManager indexManager;
+
+    /** The group committer, created on first use. */
+    private volatile GroupCommitter groupCommitter;
+
+    /** Serializers of entity state by entity class, created on first use. */
+    private final ConcurrentMap<Class<?>, EntityStateSerializer> stateSerializers =
+            new ConcurrentHashMap<Class<?>, EntityStateSerializer>();
+
     /**
      * A convenience constructor.
      *
@@ -130,8 +173,8 @@ public class EntityManagerFactoryImpl implements EntityManagerFactory
      */
     public EntityManagerFactoryImpl(String persistenceUnitName, Map props)
     {
-        onLoad(persistenceUnitName);
         this.props = props;
+        onLoad(persistenceUnitName);
     }
 
     /**
@@ -145,8 +188,8 @@ public class EntityManagerFactoryImpl implements EntityManagerFactory
     public EntityManagerFactoryImpl(PersistenceMetadata metaData, Map props)
     {
         this.classes = metaData.getClasses();
-        onLoad(metaData.getName());
         this.props = props;
+        onLoad(metaData.getName());
     }
 
     /**
@@ -174,12 +217,47 @@ public class EntityManagerFactoryImpl implements EntityManagerFactory
 
         metadataManager.build();
 
-        enhancedProxyFactory = new CglibEntityEnhancerFactory();
+        enhancedProxyFactory = new SimpleEntityEnhancerFactory();
         lazyInitializerFactory = new CglibLazyInitializerFactory();
+        cacheProvider = new NonOperationalCacheProvider();
+
+        if (props != null && props.get(BatchFetchQueue.BATCH_SIZE) != null)
+        {
+            fetchBatchSize = Integer.parseInt(props.get(BatchFetchQueue.BATCH_SIZE).toString().trim());
+        }
+
+        if (props != null && Boolean.parseBoolean(String.valueOf(props.get(LazyInitializerFactory.PREGENERATE))))
+        {
+            generateLazyProxyClasses();
+        }
 
         LOG.info("EntityManagerFactoryImpl loaded in " + (System.currentTimeMillis() - start) + "ms.");
     }
 
+    /**
+     * Generates proxy classes for the targets of all lazy relations, so the
+     * first lazy load of each does not pay for class generation.
+     */
+    private void generateLazyProxyClasses()
+    {
+        Set<Class<?>> targets = new HashSet<Class<?>>();
+        for (EntityMetadata m : metadataManager.getEntityMetadatasAsList())
+        {
+            for (EntityMetadata.Relation relation : m.getRelations())
+            {
+                if (FetchType.LAZY.equals(relation.getFetchType()))
+                {
+                    targets.add(relation.getTargetEntity());
+                }
+            }
+        }
+        for (Class<?> target : targets)
+        {
+            lazyInitializerFactory.generateProxyClass(target);
+        }
+        LOG.info("Generated " + targets.size() + " lazy proxy classes.");
+    }
+
     /**
      * Gets the cache.
      *
@@ -200,6 +278,211 @@ public class EntityManagerFactoryImpl implements EntityManagerFactory
         }
     }
 
+    /**
+     * Gets the number of members of a lazy collection read per multiget, for
+     * relations without @BatchSize. Read from {@link BatchFetchQueue#BATCH_SIZE}.
+     *
+     * @return the fetch batch size
+     */
+    public int getFetchBatchSize()
+    {
+        return fetchBatchSize;
+    }
+
+    /**
+     * Gets the query result cache. Size is read from
+     * {@link QueryResultCache#MAX_ENTRIES}.
+     *
+     * @return the query result cache
+     */
+    public QueryResultCache getQueryResultCache()
+    {
+        if (queryResultCache == null)
+        {
+            synchronized (this)
+            {
+                if (queryResultCache == null)
+                {
+                    int maxEntries = QueryResultCache.DEFAULT_MAX_ENTRIES;
+                    Object value = props != null ? props.get(QueryResultCache.MAX_ENTRIES) : null;
+                    if (value != null)
+                    {
+                        maxEntries = Integer.parseInt(value.toString().trim());
+                    }
+                    queryResultCache = new QueryResultCache(maxEntries);
+                }
+            }
+        }
+        return queryResultCache;
+    }
+
+    /**
+     * Gets the cache of entities known to be absent from the datastore. It is
+     * disabled unless {@link NegativeLookupCache#TTL} is set.
+     *
+     * @return the negative lookup cache
+     */
+    public NegativeLookupCache getNegativeLookupCache()
+    {
+        if (negativeLookupCache == null)
+        {
+            synchronized (this)
+            {
+                if (negativeLookupCache == null)
+                {
+                    negativeLookupCache = NegativeLookupCache.fromProperties(props);
+                }
+            }
+        }
+        return negativeLookupCache;
+    }
+
+    /**
+     * Gets the coalescer shared by concurrent identical reads. It is disabled
+     * unless {@link ReadCoalescer#ENABLED} is set.
+     *
+     * @return the read coalescer
+     */
+    public ReadCoalescer getReadCoalescer()
+    {
+        if (readCoalescer == null)
+        {
+            synchronized (this)
+            {
+                if (readCoalescer == null)
+                {
+                    readCoalescer = ReadCoalescer.fromProperties(props);
+                }
+            }
+        }
+        return readCoalescer;
+    }
+
+    /**
+     * Gets the serializer that copies the state of entities of a class, such
+     * as for handing a shared read to several entity managers.
+     *
+     * @param entityClass
+     *            the entity class
+     * @return the entity state serializer
+     */
+    public EntityStateSerializer getEntityStateSerializer(Class<?> entityClass)
+    {
+        EntityStateSerializer serializer = stateSerializers.get(entityClass);
+        if (serializer == null)
+        {
+            serializer = new EntityStateSerializer(metadataManager.getEntityMetadata(entityClass), metadataManager);
+            EntityStateSerializer existing = stateSerializers.putIfAbsent(entityClass, serializer);
+            if (existing != null)
+            {
+                serializer = existing;
+            }
+        }
+        return serializer;
+    }
+
+    /**
+     * Sets the client shared by all entity managers of this factory, and
+     * fixes the datastore type on all entity metadata.
+     *
+     * @param client
+     *            the new client
+     */
+    public void setClient(Client client)
+    {
+        this.client = client;
+        metadataManager.setDBType(client.getType());
+    }
+
+    /**
+     * Gets the client.
+     *
+     * @return the client
+     */
+    public Client getClient()
+    {
+        return client;
+    }
+
+    /**
+     * Gets the group committer shared by all entity managers. It is disabled
+     * unless {@link GroupCommitter#ENABLED} is set and the client is a
+     * {@link com.impetus.kundera.BatchClient}.
+     *
+     * @return the group committer
+     */
+    public GroupCommitter getGroupCommitter()
+    {
+        if (groupCommitter == null)
+        {
+            synchronized (this)
+            {
+                if (groupCommitter == null)
+                {
+                    groupCommitter = GroupCommitter.fromProperties(props, client);
+                }
+            }
+        }
+        return groupCommitter;
+    }
+
+    /**
+     * Creates a bulk loader configured from the persistence unit properties,
+     * for loads that need a listener or their failed batches.
+     *
+     * @return the bulk loader
+     */
+    public BulkLoader createBulkLoader()
+    {
+        return BulkLoader.fromProperties(this, props);
+    }
+
+    /**
+     * Loads entities in bulk, bypassing sessions, cascades and lifecycle
+     * events. See {@link BulkLoader}.
+     *
+     * @param entities
+     *            the entities
+     * @return the progress once all entities are written and indexed
+     */
+    public BulkLoader.Progress bulkLoad(Iterator<?> entities)
+    {
+        return createBulkLoader().load(entities);
+    }
+
+    /**
+     * Loads entities in bulk, bypassing sessions, cascades and lifecycle
+     * events. See {@link BulkLoader}.
+     *
+     * @param entities
+     *            the entities
+     * @return the progress once all entities are written and indexed
+     */
+    public BulkLoader.Progress bulkLoad(Iterable<?> entities)
+    {
+        return createBulkLoader().load(entities);
+    }
+
+    /**
+     * Gets the index manager shared by all entity managers.
+     *
+     * @return the index manager
+     */
+    public IndexManager getIndexManager()
+    {
+        if (indexManager == null)
+        {
+            synchronized (this)
+            {
+                if (indexManager == null)
+                {
+                    indexManager = new IndexManager(this, props);
+                }
+            }
+        }
+        return indexManager;
+    }
+
     /**
      * Gets the metadata manager.
      *
@@ -220,8 +503,29 @@ public class EntityManagerFactoryImpl implements EntityManagerFactory
     public final void close()
     {
         closed = true;
-        // client.shutdown();
+        if (groupCommitter != null)
+        {
+            // pending writes go out before the client goes away
+            groupCommitter.close();
+        }
+        if (indexManager != null)
+        {
+            // commits what is left of the index
+            indexManager.close();
+        }
+        if (client != null)
+        {
+            client.shutdown();
+        }
         cacheProvider.shutdown();
+        if (queryResultCache != null)
+        {
+            queryResultCache.clear();
+        }
+        if (negativeLookupCache != null)
+        {
+            negativeLookupCache.clear();
+        }
     }
 
     /* @see javax.persistence.EntityManagerFactory#createEntityManager() */
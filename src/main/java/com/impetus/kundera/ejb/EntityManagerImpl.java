@@ -16,9 +16,12 @@
 package com.impetus.kundera.ejb;
 
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import javax.persistence.CascadeType;
 import javax.persistence.EntityManagerFactory;
@@ -33,6 +36,7 @@ import javax.persistence.PrePersist;
 import javax.persistence.PreRemove;
 import javax.persistence.PreUpdate;
 import javax.persistence.Query;
+import javax.persistence.QueryTimeoutException;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
@@ -43,19 +47,30 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.impetus.kundera.Client;
+import com.impetus.kundera.cache.NegativeLookupCache;
 import com.impetus.kundera.db.DataManager;
 import com.impetus.kundera.ejb.event.EntityEventDispatcher;
 import com.impetus.kundera.index.IndexManager;
 import com.impetus.kundera.loader.DBType;
 import com.impetus.kundera.metadata.EntityMetadata;
+import com.impetus.kundera.metadata.FetchPlan;
 import com.impetus.kundera.metadata.MetadataManager;
 import com.impetus.kundera.mongodb.query.MongoDBQuery;
+import com.impetus.kundera.property.PropertyAccessorHelper;
 import com.impetus.kundera.proxy.EnhancedEntity;
 import com.impetus.kundera.query.LuceneQuery;
+import com.impetus.kundera.query.QueryHints;
 
 /**
  * The Class EntityManagerImpl.
  *
+ * An EntityManager is not thread-safe: like any persistence context, it
+ * belongs to one thread or request at a time. EntityManagers are cheap to
+ * create; they share the factory's client, metadata, index and caches, which
+ * are all thread-safe. Create one per unit of work with
+ * {@link EntityManagerFactoryImpl#createEntityManager()}, or reuse them
+ * through an {@link EntityManagerPool}.
+ *
  * @author animesh.kumar
  */
 public class EntityManagerImpl implements KunderaEntityManager
@@ -76,9 +91,6 @@ public class EntityManagerImpl implements KunderaEntityManager
     /** The data manager. */
     private DataManager dataManager;
 
-    /** The index manager. */
-    private IndexManager indexManager;
-
     /** The metadata manager. */
     private MetadataManager metadataManager;
 
@@ -94,6 +106,15 @@ public class EntityManagerImpl implements KunderaEntityManager
     /** The event dispatcher. */
     private EntityEventDispatcher eventDispatcher;
 
+    /** Uninitialized lazy proxies that may load together. */
+    private BatchFetchQueue batchFetchQueue;
+
+    /** Fetch plan of the find or query running, if any. */
+    private FetchPlan fetchPlan;
+
+    /** Sequence number of the last index change made through this manager. */
+    private long lastIndexSequence;
+
     /**
      * Instantiates a new entity manager impl.
      *
@@ -105,12 +126,14 @@ public class EntityManagerImpl implements KunderaEntityManager
     public EntityManagerImpl(EntityManagerFactoryImpl factory)
     {
         this.factory = factory;
+        this.client = factory.getClient();
         this.metadataManager = factory.getMetadataManager();
         this.persistenceUnitName = factory.getPersistenceUnitName();
         dataManager = new DataManager(this);
         entityResolver = new EntityResolver(this);
         session = new EntityManagerSession(this);
         eventDispatcher = new EntityEventDispatcher();
+        batchFetchQueue = new BatchFetchQueue();
     }
 
     /**
@@ -150,6 +173,12 @@ public class EntityManagerImpl implements KunderaEntityManager
             return e;
         }
 
+        if (factory.getNegativeLookupCache().isKnownAbsent(entityClass, primaryKey))
+        {
+            log.debug(entityClass.getName() + "_" + primaryKey + " is known to be absent!");
+            return null;
+        }
+
         return immediateLoadAndCache(entityClass, primaryKey);
     }
 
@@ -164,18 +193,37 @@ public class EntityManagerImpl implements KunderaEntityManager
      *            the primary key
      * @return the e
      */
-    protected <E> E immediateLoadAndCache(Class<E> entityClass, Object primaryKey)
+    protected <E> E immediateLoadAndCache(final Class<E> entityClass, final Object primaryKey)
     {
         try
         {
-            EntityMetadata m = metadataManager.getEntityMetadata(entityClass);
-            m.setDBType(this.client.getType());
-            E e = dataManager.find(entityClass, m, primaryKey.toString());
-            if (e != null)
+            final EntityMetadata m = metadataManager.getEntityMetadata(entityClass);
+            final NegativeLookupCache absent = factory.getNegativeLookupCache();
+            // taken only if this entity manager reads the datastore itself
+            final long[] generation = { -1 };
+            List<E> found = loadShared(entityClass.getName() + "_" + primaryKey, entityClass,
+                    new Callable<List<E>>()
+                    {
+                        @Override
+                        public List<E> call() throws Exception
+                        {
+                            generation[0] = absent.getGeneration(entityClass, primaryKey);
+                            E e = dataManager.find(entityClass, m, primaryKey.toString());
+                            return e != null ? Collections.singletonList(e) : Collections.<E> emptyList();
+                        }
+                    });
+            if (!found.isEmpty())
             {
-                session.store(primaryKey, e, m.isCacheable());
+                E e = found.get(0);
+                session.store(primaryKey, e, isSecondLevelCacheable(m));
+                return e;
             }
-            return e;
+            // a miss shared from another read may predate a write since
+            if (generation[0] >= 0)
+            {
+                absent.markAbsent(entityClass, primaryKey, generation[0]);
+            }
+            return null;
         }
         catch (Exception exp)
         {
@@ -188,7 +236,7 @@ public class EntityManagerImpl implements KunderaEntityManager
      * java.lang.Object[])
      */
     @Override
-    public final <E> List<E> find(Class<E> entityClass, Object... primaryKeys)
+    public final <E> List<E> find(final Class<E> entityClass, Object... primaryKeys)
     {
         if (closed)
         {
@@ -207,17 +255,64 @@ public class EntityManagerImpl implements KunderaEntityManager
             return new ArrayList<E>();
         }
 
-        // TODO: load from cache first
+        // load from cache first, keeping the order of primaryKeys
+        NegativeLookupCache absent = factory.getNegativeLookupCache();
+        Map<String, E> found = new LinkedHashMap<String, E>();
+        Map<String, Long> generations = new HashMap<String, Long>();
+        List<String> missing = new ArrayList<String>();
+        for (Object primaryKey : primaryKeys)
+        {
+            String id = primaryKey.toString();
+            E e = session.lookup(entityClass, id);
+            found.put(id, e);
+            if (e == null && !absent.isKnownAbsent(entityClass, id))
+            {
+                missing.add(id);
+                generations.put(id, absent.getGeneration(entityClass, id));
+            }
+        }
+
+        if (missing.isEmpty())
+        {
+            return new ArrayList<E>(found.values());
+        }
 
         try
         {
-            String[] ids = Arrays.asList(primaryKeys).toArray(new String[] {});
-            EntityMetadata m = metadataManager.getEntityMetadata(entityClass);
-            m.setDBType(this.client.getType());
-            List<E> entities = dataManager.find(entityClass, m, ids);
+            final EntityMetadata m = metadataManager.getEntityMetadata(entityClass);
+            final String[] ids = missing.toArray(new String[] {});
+            // eager relations of all of them are read together
+            List<E> entities = entityResolver.loadInBatch(new Callable<List<E>>()
+            {
+                @Override
+                public List<E> call() throws Exception
+                {
+                    return dataManager.find(entityClass, m, ids);
+                }
+            });
+
+            // cache entities for future lookup
+            for (E e : entities)
+            {
+                String id = PropertyAccessorHelper.getId(e, m);
+                session.store(id, e, isSecondLevelCacheable(m));
+                found.put(id, e);
+                missing.remove(id);
+            }
+            for (String id : missing)
+            {
+                absent.markAbsent(entityClass, id, generations.get(id));
+            }
 
-            // TODO: cache entities for future lookup
-            return entities;
+            List<E> result = new ArrayList<E>(found.size());
+            for (E e : found.values())
+            {
+                if (e != null)
+                {
+                    result.add(e);
+                }
+            }
+            return result;
         }
         catch (Exception e)
         {
@@ -249,16 +344,16 @@ public class EntityManagerImpl implements KunderaEntityManager
                 log.debug("Removing @Entity >> " + o);
 
                 EntityMetadata m = metadataManager.getEntityMetadata(o.getEntity().getClass());
-                m.setDBType(this.client.getType());
                 // fire PreRemove events
-                eventDispatcher.fireEventListeners(m, o, PreRemove.class);
+                eventDispatcher.fireEventListeners(m, o.getEntity(), PreRemove.class);
 
                 session.remove(o.getEntity().getClass(), o.getId());
                 dataManager.remove(o, m);
-                getIndexManager().remove(m, o.getEntity(), o.getId());
+                lastIndexSequence = Math.max(lastIndexSequence, getIndexManager().remove(m, o.getEntity(),
+                        o.getId()));
 
                 // fire PostRemove events
-                eventDispatcher.fireEventListeners(m, o, PostRemove.class);
+                eventDispatcher.fireEventListeners(m, o.getEntity(), PostRemove.class);
             }
         }
         catch (Exception exp)
@@ -284,6 +379,7 @@ public class EntityManagerImpl implements KunderaEntityManager
 
             List<EnhancedEntity> reachableEntities = entityResolver
                     .resolve(e, CascadeType.MERGE, this.client.getType());
+            checkComplete(reachableEntities);
 
             // save each one
             for (EnhancedEntity o : reachableEntities)
@@ -291,20 +387,24 @@ public class EntityManagerImpl implements KunderaEntityManager
                 log.debug("Merging @Entity >> " + o);
 
                 EntityMetadata metadata = metadataManager.getEntityMetadata(o.getEntity().getClass());
-                metadata.setDBType(this.client.getType());
                 // TODO: throw OptisticLockException if wrong version and
                 // optimistic locking enabled
 
                 // fire PreUpdate events
-                eventDispatcher.fireEventListeners(metadata, o, PreUpdate.class);
+                eventDispatcher.fireEventListeners(metadata, o.getEntity(), PreUpdate.class);
 
                 dataManager.merge(o, metadata);
-                getIndexManager().update(metadata, o.getEntity());
+                factory.getNegativeLookupCache().invalidate(o.getEntity().getClass(), o.getId());
+                lastIndexSequence = Math.max(lastIndexSequence, getIndexManager().update(metadata, o.getEntity()));
 
                 // fire PreUpdate events
-                eventDispatcher.fireEventListeners(metadata, o, PostUpdate.class);
+                eventDispatcher.fireEventListeners(metadata, o.getEntity(), PostUpdate.class);
             }
         }
+        catch (PersistenceException exp)
+        {
+            throw exp;
+        }
         catch (Exception exp)
         {
             throw new PersistenceException(exp);
@@ -329,6 +429,7 @@ public class EntityManagerImpl implements KunderaEntityManager
 
             List<EnhancedEntity> reachableEntities = entityResolver.resolve(e, CascadeType.PERSIST, this.client
                     .getType());
+            checkComplete(reachableEntities);
 
             // save each one
             for (EnhancedEntity o : reachableEntities)
@@ -336,20 +437,24 @@ public class EntityManagerImpl implements KunderaEntityManager
                 log.debug("Persisting @Entity >> " + o);
 
                 EntityMetadata metadata = metadataManager.getEntityMetadata(o.getEntity().getClass());
-                metadata.setDBType(this.client.getType());
                 // TODO: throw EntityExistsException if already exists
 
                 // fire pre-persist events
-                eventDispatcher.fireEventListeners(metadata, o, PrePersist.class);
+                eventDispatcher.fireEventListeners(metadata, o.getEntity(), PrePersist.class);
 
                 // TODO uncomment
                 dataManager.persist(o, metadata);
-                getIndexManager().write(metadata, o.getEntity());
+                factory.getNegativeLookupCache().invalidate(o.getEntity().getClass(), o.getId());
+                lastIndexSequence = Math.max(lastIndexSequence, getIndexManager().write(metadata, o.getEntity()));
 
                 // fire post-persist events
-                eventDispatcher.fireEventListeners(metadata, o, PostPersist.class);
+                eventDispatcher.fireEventListeners(metadata, o.getEntity(), PostPersist.class);
             }
         }
+        catch (PersistenceException exp)
+        {
+            throw exp;
+        }
         catch (Exception exp)
         {
             exp.printStackTrace();
@@ -357,13 +462,35 @@ public class EntityManagerImpl implements KunderaEntityManager
         }
     }
 
+    /**
+     * Rejects writing entities loaded with a fetch plan leaving some of their
+     * properties out, before anything is written: the datastore would get the
+     * defaults of what was left out.
+     *
+     * @param entities
+     *            the entities to write
+     */
+    private void checkComplete(List<EnhancedEntity> entities)
+    {
+        for (EnhancedEntity o : entities)
+        {
+            FetchPlan plan = session.getPartialPlan(o.getId(), o.getEntity());
+            if (plan != null)
+            {
+                throw new PersistenceException(o.getEntity().getClass().getName() + "_" + o.getId()
+                        + " was loaded with fetch plan " + plan.getName()
+                        + ", which leaves some of its properties out; find it without the plan to write it.");
+            }
+        }
+    }
+
     /* @see javax.persistence.EntityManager#clear() */
     @Override
     public final void clear()
     {
         checkClosed();
         session.clear();
-        client.shutdown();
+        batchFetchQueue.clear();
     }
 
     /* @see javax.persistence.EntityManager#close() */
@@ -372,6 +499,7 @@ public class EntityManagerImpl implements KunderaEntityManager
     {
         closed = true;
         session = null;
+        batchFetchQueue.clear();
     }
 
     /* @see javax.persistence.EntityManager#contains(java.lang.Object) */
@@ -457,7 +585,29 @@ public class EntityManagerImpl implements KunderaEntityManager
     @Override
     public final <T> T getReference(Class<T> entityClass, Object primaryKey)
     {
-        throw new NotImplementedException("TODO");
+        if (closed)
+        {
+            throw new PersistenceException("EntityManager already closed.");
+        }
+        if (primaryKey == null)
+        {
+            throw new IllegalArgumentException("primaryKey value must not be null.");
+        }
+
+        // Validate
+        metadataManager.validate(entityClass);
+
+        T e = session.lookup(entityClass, primaryKey);
+        if (null != e)
+        {
+            log.debug(entityClass.getName() + "_" + primaryKey + " is loaded from cache!");
+            return e;
+        }
+
+        // read on first use of anything but the id, if ever
+        EntityMetadata m = metadataManager.getEntityMetadata(entityClass);
+        return entityClass.cast(factory.getLazyEntity(entityClass.getName() + "_" + primaryKey, entityClass, m
+                .getReadIdentifierMethod(), m.getWriteIdentifierMethod(), primaryKey.toString(), this));
     }
 
     /* @see javax.persistence.EntityManager#getTransaction() */
@@ -502,9 +652,32 @@ public class EntityManagerImpl implements KunderaEntityManager
      * @see javax.persistence.EntityManager#find(java.lang.Class, java.lang.Object, java.util.Map)
      */
     @Override
-    public <T> T find(Class<T> paramClass, Object paramObject, Map<String, Object> paramMap)
+    public <T> T find(final Class<T> paramClass, final Object paramObject, Map<String, Object> paramMap)
     {
-        throw new NotImplementedException("TODO");
+        Object plan = paramMap != null ? paramMap.get(QueryHints.FETCH_PLAN) : null;
+        if (plan == null)
+        {
+            return find(paramClass, paramObject);
+        }
+        try
+        {
+            return loadWithFetchPlan(plan, new Callable<T>()
+            {
+                @Override
+                public T call() throws Exception
+                {
+                    return find(paramClass, paramObject);
+                }
+            });
+        }
+        catch (RuntimeException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new PersistenceException(e);
+        }
     }
 
     /* (non-Javadoc)
@@ -715,11 +888,7 @@ public class EntityManagerImpl implements KunderaEntityManager
      */
     public final IndexManager getIndexManager()
     {
-        if (indexManager == null)
-        {
-            indexManager = new IndexManager(this);
-        }
-        return indexManager;
+        return factory.getIndexManager();
     }
 
     /**
@@ -763,8 +932,175 @@ public class EntityManagerImpl implements KunderaEntityManager
         return entityResolver;
     }
 
+    /**
+     * Gets the fetch plan of the find or query running.
+     *
+     * @return the fetch plan, null if loading as annotated
+     */
+    public FetchPlan getFetchPlan()
+    {
+        return fetchPlan;
+    }
+
+    /**
+     * Waits until the index reflects every change made through this entity
+     * manager, so a query reads its own writes while indexing runs in the
+     * background.
+     *
+     * @param timeout
+     *            the timeout, in milliseconds
+     * @throws QueryTimeoutException
+     *             if the index did not catch up in time
+     */
+    public void waitForIndex(long timeout)
+    {
+        if (!getIndexManager().awaitIndexed(lastIndexSequence, timeout))
+        {
+            throw new QueryTimeoutException("Index did not catch up with this EntityManager in " + timeout + " ms.");
+        }
+    }
+
+    /**
+     * Runs loader with a fetch plan in effect. The plan of an enclosing call
+     * is put back afterwards.
+     *
+     * @param <T>
+     *            the generic type
+     * @param plan
+     *            a {@link FetchPlan}, the name of a declared one, or null
+     * @param loader
+     *            the loader
+     * @return what loader returned
+     * @throws Exception
+     *             the exception
+     * @see QueryHints#FETCH_PLAN
+     */
+    public <T> T loadWithFetchPlan(Object plan, Callable<T> loader) throws Exception
+    {
+        if (plan == null)
+        {
+            return loader.call();
+        }
+
+        FetchPlan previous = fetchPlan;
+        if (plan instanceof FetchPlan)
+        {
+            fetchPlan = (FetchPlan) plan;
+        }
+        else
+        {
+            fetchPlan = metadataManager.getFetchPlan(plan.toString());
+            if (fetchPlan == null)
+            {
+                fetchPlan = previous;
+                throw new IllegalArgumentException("Unknown fetch plan >> " + plan);
+            }
+        }
+
+        try
+        {
+            return loader.call();
+        }
+        finally
+        {
+            fetchPlan = previous;
+        }
+    }
+
+    /**
+     * Loads entities, sharing the read with concurrent identical reads of
+     * other entity managers if reads are coalesced. Every entity manager gets
+     * entities of its own: the one that read gets what it read, the others
+     * copies of their state, with relations resolved in their own session.
+     * Eager relations are read in one batch.
+     *
+     * @param <E>
+     *            the entity type
+     * @param key
+     *            identifies the read; the fetch plan in effect is added
+     * @param entityClass
+     *            the entity class
+     * @param loader
+     *            reads the entities
+     * @return the entities
+     * @throws Exception
+     *             the exception
+     * @see ReadCoalescer
+     */
+    public <E> List<E> loadShared(String key, final Class<E> entityClass, final Callable<List<E>> loader)
+            throws Exception
+    {
+        ReadCoalescer coalescer = factory.getReadCoalescer();
+        // within a running batch relations are not populated before it ends,
+        // so there would be no complete state to copy
+        if (!coalescer.isEnabled() || entityResolver.isBatching())
+        {
+            return entityResolver.loadInBatch(loader);
+        }
+
+        // by plan identity, as plans built in code may share a name
+        String readKey = fetchPlan != null ? key + "|plan" + fetchPlan.getId() : key;
+        SharedRead<E> read = coalescer.execute(readKey, new Callable<SharedRead<E>>()
+        {
+            @Override
+            public SharedRead<E> call() throws Exception
+            {
+                return new SharedRead<E>(EntityManagerImpl.this, entityClass, entityResolver.loadInBatch(loader));
+            }
+        });
+        List<E> entities = read.getEntities(this);
+        return entities != null ? entities : entityResolver.loadInBatch(loader);
+    }
+
+    /**
+     * Whether entities loaded now may go to the second level cache: partial
+     * ones, loaded with a plan that leaves properties out, may not.
+     *
+     * @param m
+     *            the m
+     * @return true, if cacheable
+     */
+    private boolean isSecondLevelCacheable(EntityMetadata m)
+    {
+        return m.isCacheable() && (fetchPlan == null || !fetchPlan.hasExclusions(m.getEntityClazz()));
+    }
+
+    /**
+     * Gets the queue of lazy proxies waiting to be loaded.
+     *
+     * @return the batch fetch queue
+     */
+    public BatchFetchQueue getBatchFetchQueue()
+    {
+        return batchFetchQueue;
+    }
+
+    /**
+     * Finds an entity for a lazy proxy. Other proxies of the same class queued
+     * with it in the {@link BatchFetchQueue} are read in the same multiget.
+     *
+     * @param <E>
+     *            the element type
+     * @param entityClass
+     *            the entity class
+     * @param primaryKey
+     *            the primary key
+     * @return the entity
+     */
+    public <E> E findBatched(Class<E> entityClass, String primaryKey)
+    {
+        String[] batch = batchFetchQueue.nextBatch(entityClass, primaryKey);
+        if (batch.length > 1)
+        {
+            log.debug("Batch loading " + batch.length + " proxies of " + entityClass.getName());
+            // lands the whole batch in the session
+            find(entityClass, (Object[]) batch);
+        }
+        return find(entityClass, primaryKey);
+    }
+
     @Override
-    public <T> List<T> find(Class<T> entityClass, Map<String, String> primaryKeys)
+    public <T> List<T> find(final Class<T> entityClass, final Map<String, String> primaryKeys)
     {
 
         if (closed)
@@ -790,9 +1126,15 @@ public class EntityManagerImpl implements KunderaEntityManager
         {
             // String[] ids = Arrays.asList(primaryKeys).toArray(new String[]
             // {});
-            EntityMetadata m = metadataManager.getEntityMetadata(entityClass);
-            m.setDBType(this.client.getType());
-            List<T> entities = dataManager.find(entityClass, m, primaryKeys);
+            final EntityMetadata m = metadataManager.getEntityMetadata(entityClass);
+            List<T> entities = entityResolver.loadInBatch(new Callable<List<T>>()
+            {
+                @Override
+                public List<T> call() throws Exception
+                {
+                    return dataManager.find(entityClass, m, primaryKeys);
+                }
+            });
 
             // TODO: cache entities for future lookup
             return entities;
@@ -0,0 +1,214 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.ejb;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+
+/**
+ * Bounded pool of EntityManagers of one factory. A thread borrows an
+ * EntityManager for a unit of work and releases it afterwards; its session is
+ * cleared on release, so nothing leaks from one borrower to the next. At most
+ * <code>maxSize</code> EntityManagers are out at a time.
+ *
+ * The pool is thread-safe; a borrowed EntityManager must only be used by the
+ * borrowing thread until it is released.
+ *
+ * <pre>
+ * EntityManager em = pool.borrow();
+ * try
+ * {
+ *     em.find(Author.class, &quot;smith&quot;);
+ * }
+ * finally
+ * {
+ *     pool.release(em);
+ * }
+ * </pre>
+ *
+ * @author animesh.kumar
+ */
+public class EntityManagerPool
+{
+
+    /** The factory. */
+    private final EntityManagerFactory factory;
+
+    /** Idle entity managers. */
+    private final Queue<EntityManager> idle = new ConcurrentLinkedQueue<EntityManager>();
+
+    /** One permit per entity manager that may be borrowed. */
+    private final Semaphore permits;
+
+    /** The closed. */
+    private volatile boolean closed;
+
+    /**
+     * Instantiates a new entity manager pool.
+     *
+     * @param factory
+     *            the factory
+     * @param maxSize
+     *            most entity managers borrowed at a time
+     */
+    public EntityManagerPool(EntityManagerFactory factory, int maxSize)
+    {
+        if (maxSize <= 0)
+        {
+            throw new IllegalArgumentException("Pool size must be positive.");
+        }
+        this.factory = factory;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Borrows an entity manager, waiting as long as it takes for one.
+     *
+     * @return the entity manager
+     */
+    public EntityManager borrow()
+    {
+        checkOpen();
+        try
+        {
+            permits.acquire();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new PersistenceException("Interrupted while waiting for an EntityManager.");
+        }
+        return take();
+    }
+
+    /**
+     * Borrows an entity manager, waiting at most timeout.
+     *
+     * @param timeout
+     *            the timeout
+     * @param unit
+     *            the unit
+     * @return the entity manager
+     * @throws PersistenceException
+     *             if none became free in time
+     */
+    public EntityManager borrow(long timeout, TimeUnit unit)
+    {
+        checkOpen();
+        try
+        {
+            if (!permits.tryAcquire(timeout, unit))
+            {
+                throw new PersistenceException("No EntityManager free after " + timeout + " " + unit);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new PersistenceException("Interrupted while waiting for an EntityManager.");
+        }
+        return take();
+    }
+
+    /**
+     * Returns an entity manager to the pool. Closed entity managers are
+     * dropped and replaced on demand.
+     *
+     * @param em
+     *            the em
+     */
+    public void release(EntityManager em)
+    {
+        try
+        {
+            if (em.isOpen())
+            {
+                em.clear();
+                if (closed)
+                {
+                    em.close();
+                }
+                else
+                {
+                    idle.offer(em);
+                }
+            }
+        }
+        finally
+        {
+            permits.release();
+        }
+    }
+
+    /**
+     * Closes all idle entity managers; borrowed ones are closed on release.
+     */
+    public void close()
+    {
+        closed = true;
+        EntityManager em;
+        while ((em = idle.poll()) != null)
+        {
+            em.close();
+        }
+    }
+
+    /**
+     * Number of idle entity managers.
+     *
+     * @return the int
+     */
+    public int getIdleCount()
+    {
+        return idle.size();
+    }
+
+    /**
+     * Takes an idle entity manager, or creates one. Caller holds a permit.
+     *
+     * @return the entity manager
+     */
+    private EntityManager take()
+    {
+        EntityManager em = idle.poll();
+        try
+        {
+            return em != null ? em : factory.createEntityManager();
+        }
+        catch (RuntimeException e)
+        {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Check open.
+     */
+    private void checkOpen()
+    {
+        if (closed)
+        {
+            throw new PersistenceException("EntityManagerPool already closed.");
+        }
+    }
+}
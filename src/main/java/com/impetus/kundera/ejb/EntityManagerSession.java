@@ -16,12 +16,19 @@
 package com.impetus.kundera.ejb;
 
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
+import javax.persistence.PersistenceException;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.impetus.kundera.cache.Cache;
+import com.impetus.kundera.metadata.EntityMetadata;
+import com.impetus.kundera.metadata.FetchPlan;
+import com.impetus.kundera.property.PropertyAccessException;
+import com.impetus.kundera.proxy.EnhancedEntity;
 
 /**
  * The Class EntityManagerCache.
@@ -33,7 +40,13 @@ public class EntityManagerSession
     private static final Log LOG = LogFactory.getLog(EntityManagerSession.class);
 
     /** cache is used to store objects retrieved in this EntityManager session. */
-    private Map<Object, Object> sessionCache;
+    private final Map<Object, Object> sessionCache;
+
+    /**
+     * Keys of entities in L1 loaded with a plan leaving some of their
+     * properties out, and that plan. Only finds under the same plan get them.
+     */
+    private final Map<Object, FetchPlan> partial;
 
     /** The em. */
     private EntityManagerImpl em;
@@ -48,6 +61,7 @@ public class EntityManagerSession
     {
         this.em = em;
         this.sessionCache = new ConcurrentHashMap<Object, Object>();
+        this.partial = new ConcurrentHashMap<Object, FetchPlan>();
     }
 
     /**
@@ -67,6 +81,11 @@ public class EntityManagerSession
         String key = cacheKey(entityClass, id);
         LOG.debug("Reading from L1 >> " + key);
         T o = (T) sessionCache.get(key);
+        if (o != null && !isComplete(key))
+        {
+            LOG.debug("Partial in L1, read again >> " + key);
+            o = null;
+        }
 
         // go to second-level cache
         if (o == null)
@@ -75,7 +94,13 @@ public class EntityManagerSession
             Cache c = em.getFactory().getCache(entityClass);
             if (c != null)
             {
-                o = (T) c.get(key);
+                Object cached = c.get(key);
+                if (cached instanceof EnhancedEntity)
+                {
+                    // detached state, wire up the relations
+                    cached = attach(entityClass, (EnhancedEntity) cached);
+                }
+                o = (T) cached;
                 if (o != null)
                 {
                     LOG.debug("Found item in second level cache!");
@@ -85,6 +110,48 @@ public class EntityManagerSession
         return o;
     }
 
+    /**
+     * Puts an entity read back from L2, or copied from another entity
+     * manager's read, into L1 and populates its relations from the foreign
+     * keys kept along with it.
+     *
+     * @param entityClass
+     *            the entity class
+     * @param cached
+     *            the cached
+     * @return the entity
+     */
+    Object attach(Class<?> entityClass, EnhancedEntity cached)
+    {
+        Object entity = cached.getEntity();
+        // in L1 before the relations, so cycles end here
+        put(cacheKey(entityClass, cached.getId()), entity);
+
+        Map<String, Set<String>> foreignKeysMap = cached.getForeignKeysMap();
+        if (foreignKeysMap == null || foreignKeysMap.isEmpty())
+        {
+            return entity;
+        }
+        EntityMetadata m = em.getMetadataManager().getEntityMetadata(entityClass);
+        try
+        {
+            for (Map.Entry<String, Set<String>> entry : foreignKeysMap.entrySet())
+            {
+                EntityMetadata.Relation relation = m.getRelation(entry.getKey());
+                if (relation != null)
+                {
+                    em.getEntityResolver().populateForeignEntities(entity, cached.getId(), relation,
+                            entry.getValue().toArray(new String[0]));
+                }
+            }
+        }
+        catch (PropertyAccessException e)
+        {
+            throw new PersistenceException(e.getMessage());
+        }
+        return entity;
+    }
+
     /**
      * Store in L1 only.
      *
@@ -112,7 +179,7 @@ public class EntityManagerSession
     {
         String key = cacheKey(entity.getClass(), id);
         LOG.debug("Writing to L1 >> " + key);
-        sessionCache.put(key, entity);
+        put(key, entity);
 
         if (spillOverToL2)
         {
@@ -158,6 +225,7 @@ public class EntityManagerSession
         String key = cacheKey(entityClass, id);
         LOG.debug("Removing from L1 >> " + key);
         Object o = sessionCache.remove(key);
+        partial.remove(key);
 
         if (spillOverToL2)
         {
@@ -189,8 +257,62 @@ public class EntityManagerSession
         return clazz.getName() + "_" + id;
     }
 
+    /**
+     * Puts an entity in L1, remembering whether the fetch plan in effect
+     * leaves some of its properties out.
+     * @param key
+     *            the key
+     * @param entity
+     *            the entity
+     */
+    private void put(String key, Object entity)
+    {
+        sessionCache.put(key, entity);
+        FetchPlan plan = em.getFetchPlan();
+        if (plan != null && plan.hasExclusions(entity.getClass()))
+        {
+            partial.put(key, plan);
+        }
+        else
+        {
+            partial.remove(key);
+        }
+    }
+
+    /**
+     * Whether the entity of a key in L1 is complete enough for the fetch plan
+     * in effect: it is unless it was loaded with another plan leaving
+     * something out.
+     * @param key
+     *            the key
+     * @return true, if complete
+     */
+    private boolean isComplete(String key)
+    {
+        FetchPlan loadedWith = partial.get(key);
+        return loadedWith == null || loadedWith == em.getFetchPlan();
+    }
+
+    /**
+     * Gets the plan an entity in L1 was loaded with, if that plan left some
+     * of its properties out. Writing such an entity back would overwrite
+     * what it left out.
+     *
+     * @param id
+     *            the id
+     * @param entity
+     *            the entity
+     * @return the plan, null if the entity is not partial in L1
+     */
+    FetchPlan getPartialPlan(Object id, Object entity)
+    {
+        String key = cacheKey(entity.getClass(), id);
+        return sessionCache.get(key) == entity ? partial.get(key) : null;
+    }
+
     public final void clear()
     {
-        sessionCache = new ConcurrentHashMap<Object, Object>();
+        sessionCache.clear();
+        partial.clear();
     }
 }
@@ -17,12 +17,20 @@ package com.impetus.kundera.ejb;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 import javax.persistence.CascadeType;
 import javax.persistence.FetchType;
@@ -33,9 +41,15 @@ import org.apache.commons.logging.LogFactory;
 
 import com.impetus.kundera.loader.DBType;
 import com.impetus.kundera.metadata.EntityMetadata;
+import com.impetus.kundera.metadata.FetchPlan;
 import com.impetus.kundera.property.PropertyAccessException;
 import com.impetus.kundera.property.PropertyAccessorHelper;
 import com.impetus.kundera.proxy.EnhancedEntity;
+import com.impetus.kundera.proxy.KunderaProxy;
+import com.impetus.kundera.proxy.LazyInitializer;
+import com.impetus.kundera.proxy.PersistentCollection;
+import com.impetus.kundera.proxy.PersistentList;
+import com.impetus.kundera.proxy.PersistentSet;
 
 /**
  * The Class EntityReachabilityResolver.
@@ -51,6 +65,12 @@ public class EntityResolver
     /** The em. */
     private EntityManagerImpl em;
 
+    /** Depth of nested {@link #loadInBatch(Callable)} calls. */
+    private int batchDepth;
+
+    /** Eager relations waiting for their targets, while in a batch. */
+    private List<PendingRelation> pendingRelations = new ArrayList<PendingRelation>();
+
     /**
      * Instantiates a new entity resolver.
      *
@@ -63,7 +83,14 @@ public class EntityResolver
     }
 
     /**
-     * Resolve all reachable entities from entity
+     * Resolve all reachable entities from entity. The graph is walked with an
+     * explicit stack, so its depth is not bound by the call stack, and
+     * entities are told apart by identity.
+     *
+     * Entities come in topological order: targets of a relation before the
+     * entities referring to them, or the other way round for
+     * {@link CascadeType#REMOVE}. Entities on a cycle come in the order they
+     * were reached.
      *
      * @param entity
      *            the entity
@@ -73,12 +100,12 @@ public class EntityResolver
      */
     public List<EnhancedEntity> resolve(Object entity, CascadeType cascadeType, DBType dbType)
     {
-        Map<String, EnhancedEntity> map = new HashMap<String, EnhancedEntity>();
+        List<EnhancedEntity> entities = new ArrayList<EnhancedEntity>();
         try
         {
             LOG.debug("Resolving reachable entities for cascade " + cascadeType);
 
-            recursivelyResolveEntities(entity, cascadeType, map);
+            resolveEntities(entity, cascadeType, entities);
 
         }
         catch (PropertyAccessException e)
@@ -88,48 +115,115 @@ public class EntityResolver
 
         if (LOG.isDebugEnabled())
         {
-            for (Map.Entry<String, EnhancedEntity> entry : map.entrySet())
+            for (EnhancedEntity e : entities)
             {
-                LOG.debug("Entity => " + entry.getKey() + ", ForeignKeys => " + entry.getValue().getForeignKeysMap());
+                LOG.debug("Entity => " + e + ", ForeignKeys => " + e.getForeignKeysMap());
             }
         }
 
-        return new ArrayList<EnhancedEntity>(map.values());
+        if (CascadeType.REMOVE.equals(cascadeType))
+        {
+            Collections.reverse(entities);
+        }
+        return entities;
     }
 
     /**
-     * helper method to recursively build reachable object list.
+     * helper method to build reachable object list, depth first. An entity is
+     * added once all the entities it cascades to are.
      *
-     * @param o
-     *            the o
+     * @param root
+     *            the root
      * @param cascadeType
      *            the cascade type
      * @param entities
      *            the entities
-     * @return the all reachable entities
      * @throws PropertyAccessException
      *             the property access exception
      */
-    private void recursivelyResolveEntities(Object o, CascadeType cascadeType, Map<String, EnhancedEntity> entities)
+    private void resolveEntities(Object root, CascadeType cascadeType, List<EnhancedEntity> entities)
             throws PropertyAccessException
     {
+        Map<Class<?>, EntityMetadata> metadata = new HashMap<Class<?>, EntityMetadata>();
+        Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        LinkedList<ResolvingEntity> stack = new LinkedList<ResolvingEntity>();
 
-        EntityMetadata m = null;
-        try
+        ResolvingEntity resolving = visit(root, null, metadata, visited);
+        if (resolving != null)
         {
-            m = em.getMetadataManager().getEntityMetadata(o.getClass());
+            stack.push(resolving);
         }
-        catch (Exception e)
+        while (!stack.isEmpty())
         {
-            // Object might already be an enhanced entity
+            ResolvingEntity top = stack.peek();
+            Object target = nextTarget(top, cascadeType, metadata);
+            if (target == null)
+            {
+                // everything it cascades to is in already
+                stack.pop();
+                entities.add(top.enhancedEntity);
+                continue;
+            }
+
+            resolving = visit(target, top.targetId, metadata, visited);
+            if (resolving != null)
+            {
+                stack.push(resolving);
+            }
+        }
+    }
+
+    /**
+     * Starts resolving an entity, unless it was already reached or is not an
+     * entity. A lazy proxy is left alone until it is initialized, and then
+     * stands for the entity it loaded.
+     *
+     * @param o
+     *            the o
+     * @param id
+     *            its id when known, or null
+     * @param metadata
+     *            metadata looked up so far, by class
+     * @param visited
+     *            the entities reached so far
+     * @return the resolving entity, or null
+     * @throws PropertyAccessException
+     *             the property access exception
+     */
+    private ResolvingEntity visit(Object o, String id, Map<Class<?>, EntityMetadata> metadata, Set<Object> visited)
+            throws PropertyAccessException
+    {
+        if (!visited.add(o))
+        {
+            return null;
+        }
+
+        if (o instanceof KunderaProxy)
+        {
+            LazyInitializer li = ((KunderaProxy) o).getKunderaLazyInitializer();
+            if (li.isUninitialized())
+            {
+                // a reference never read, its foreign key is all there is
+                return null;
+            }
+            o = li.getImplementation();
+            if (!visited.add(o))
+            {
+                return null;
+            }
         }
 
+        EntityMetadata m = getEntityMetadata(o.getClass(), metadata);
         if (m == null)
         {
-            return;
+            // Object might already be an enhanced entity
+            return null;
         }
 
-        String id = PropertyAccessorHelper.getId(o, m);
+        if (id == null)
+        {
+            id = PropertyAccessorHelper.getId(o, m);
+        }
 
         // Ensure that @Id is set
         if (null == id || id.trim().isEmpty())
@@ -138,99 +232,283 @@ public class EntityResolver
                     + m.getIdProperty().getName());
         }
 
-        // Dummy name to check if the object is already processed
-        String mapKeyForEntity = m.getEntityClazz().getName() + "_" + id;
-
-        if (entities.containsKey(mapKeyForEntity))
+        if (LOG.isDebugEnabled())
         {
-            return;
+            LOG.debug("Resolving >> " + m.getEntityClazz().getName() + "_" + id);
         }
 
-        LOG.debug("Resolving >> " + mapKeyForEntity);
-
         // Map to hold property-name=>foreign-entity relations
         Map<String, Set<String>> foreignKeysMap = new HashMap<String, Set<String>>();
+        return new ResolvingEntity(o, m, em.getFactory().getEnhancedEntity(o, id, foreignKeysMap), foreignKeysMap);
+    }
 
-        // Save to map
-        entities.put(mapKeyForEntity, em.getFactory().getEnhancedEntity(o, id, foreignKeysMap));
-
-        // Iterate over EntityMetata.Relation relations
-        for (EntityMetadata.Relation relation : m.getRelations())
+    /**
+     * Moves on to the next entity the resolving entity cascades to, noting
+     * foreign keys on the way.
+     *
+     * @param r
+     *            the resolving entity
+     * @param cascadeType
+     *            the cascade type
+     * @param metadata
+     *            metadata looked up so far, by class
+     * @return the next target, or null if there are no more
+     * @throws PropertyAccessException
+     *             the property access exception
+     */
+    private Object nextTarget(ResolvingEntity r, CascadeType cascadeType, Map<Class<?>, EntityMetadata> metadata)
+            throws PropertyAccessException
+    {
+        List<EntityMetadata.Relation> relations = r.metadata.getRelations();
+        while (r.relationIndex < relations.size())
         {
-
-            // Cascade?
-            if (!relation.getCascades().contains(CascadeType.ALL) && !relation.getCascades().contains(cascadeType))
+            EntityMetadata.Relation relation = relations.get(r.relationIndex);
+            if (r.targets == null && !startRelation(r, relation, cascadeType))
             {
+                r.relationIndex++;
                 continue;
             }
 
-            // Target entity
-            Class<?> targetClass = relation.getTargetEntity();
-            // Mapped to this property
-            Field targetField = relation.getProperty();
-            // Is it optional?
-            boolean optional = relation.isOptional();
-
-            // Value
-            Object value = PropertyAccessorHelper.getObject(o, targetField);
-
-            // if object is not null, then proceed
-            if (null != value)
+            if (r.targets.hasNext())
             {
+                Object target = r.targets.next();
+                r.targetId = PropertyAccessorHelper.getId(target, getEntityMetadata(relation.getTargetEntity(),
+                        metadata));
+                r.foreignKeys.add(r.targetId);
 
-                if (relation.isUnary())
+                // an instance of a subclass has its id read again
+                if (!target.getClass().equals(relation.getTargetEntity()))
                 {
-                    // Unary relation will have single target object.
-                    String targetId = PropertyAccessorHelper.getId(value, em.getMetadataManager().getEntityMetadata(
-                            targetClass));
+                    r.targetId = null;
+                }
+                return target;
+            }
 
-                    Set<String> foreignKeys = new HashSet<String>();
+            r.targets = null;
+            r.relationIndex++;
+        }
+        return null;
+    }
 
-                    foreignKeys.add(targetId);
-                    // put to map
-                    foreignKeysMap.put(targetField.getName(), foreignKeys);
+    /**
+     * Starts on a relation of the resolving entity.
+     *
+     * @param r
+     *            the resolving entity
+     * @param relation
+     *            the relation
+     * @param cascadeType
+     *            the cascade type
+     * @return true, if it has targets to cascade to
+     * @throws PropertyAccessException
+     *             the property access exception
+     */
+    private boolean startRelation(ResolvingEntity r, EntityMetadata.Relation relation, CascadeType cascadeType)
+            throws PropertyAccessException
+    {
+        // Cascade?
+        if (!relation.getCascades().contains(CascadeType.ALL) && !relation.getCascades().contains(cascadeType))
+        {
+            return false;
+        }
 
-                    // get all other reachable objects from object "value"
-                    recursivelyResolveEntities(value, cascadeType, entities);
+        // Mapped to this property
+        Field targetField = relation.getProperty();
 
-                }
-                if (relation.isCollection())
-                {
-                    // Collection relation can have many target objects.
+        // Value
+        Object value = PropertyAccessorHelper.getObject(r.entity, targetField);
 
-                    // Value must map to Collection interface.
-                    @SuppressWarnings("unchecked")
-                    Collection collection = (Collection) value;
+        // if the value is null
+        if (null == value)
+        {
+            // halt, if this was a non-optional property
+            if (!relation.isOptional())
+            {
+                throw new PersistenceException("Missing " + relation.getTargetEntity().getName() + "."
+                        + targetField.getName());
+            }
+            return false;
+        }
 
-                    Set<String> foreignKeys = new HashSet<String>();
+        if (relation.isCollection() && value instanceof PersistentCollection
+                && !((PersistentCollection) value).isInitialized())
+        {
+            // never touched, so neither it nor its members changed
+            r.foreignKeysMap.put(targetField.getName(), new HashSet<String>(((PersistentCollection) value)
+                    .getForeignKeys()));
+            return false;
+        }
 
-                    // Iterate over each Object and get the @Id
-                    for (Object o_ : collection)
-                    {
-                        String targetId = PropertyAccessorHelper.getId(o_, em.getMetadataManager().getEntityMetadata(
-                                targetClass));
+        r.foreignKeys = new HashSet<String>();
+        r.foreignKeysMap.put(targetField.getName(), r.foreignKeys);
+        if (relation.isUnary())
+        {
+            // Unary relation will have single target object.
+            r.targets = Collections.singleton(value).iterator();
+        }
+        else
+        {
+            // Collection relation can have many target objects.
+            r.targets = ((Collection<?>) value).iterator();
+        }
+        return true;
+    }
 
-                        foreignKeys.add(targetId);
+    /**
+     * Gets the metadata of a class, looking it up once per resolve.
+     *
+     * @param clazz
+     *            the clazz
+     * @param metadata
+     *            metadata looked up so far, by class
+     * @return the entity metadata, null if clazz is not an entity
+     */
+    private EntityMetadata getEntityMetadata(Class<?> clazz, Map<Class<?>, EntityMetadata> metadata)
+    {
+        if (metadata.containsKey(clazz))
+        {
+            return metadata.get(clazz);
+        }
 
-                        // Get all other reachable objects from "o_"
-                        recursivelyResolveEntities(o_, cascadeType, entities);
-                    }
-                    foreignKeysMap.put(targetField.getName(), foreignKeys);
-                }
-            }
+        EntityMetadata m = null;
+        try
+        {
+            m = em.getMetadataManager().getEntityMetadata(clazz);
+        }
+        catch (Exception e)
+        {
+            // not an entity
+        }
+        metadata.put(clazz, m);
+        return m;
+    }
 
-            // if the value is null
-            else
+    /**
+     * Runs loader, deferring the eager relations of everything it reads.
+     * Afterwards the targets are read with one multiget per target class,
+     * skipping those already in the session, and then set on their owners.
+     * Targets that have eager relations of their own are handled the same
+     * way, a level at a time. Nested calls join the outermost batch.
+     *
+     * @param <T>
+     *            the generic type
+     * @param loader
+     *            reads the entities
+     * @return what loader returned, with eager relations populated
+     * @throws Exception
+     *             the exception
+     */
+    public <T> T loadInBatch(Callable<T> loader) throws Exception
+    {
+        if (batchDepth > 0)
+        {
+            return loader.call();
+        }
+
+        batchDepth++;
+        try
+        {
+            T result = loader.call();
+            loadPendingRelations();
+            return result;
+        }
+        finally
+        {
+            batchDepth--;
+            pendingRelations.clear();
+        }
+    }
+
+    /**
+     * Whether a batch is running, so eager relations of what is read now are
+     * only populated when it ends.
+     *
+     * @return true, if batching
+     */
+    boolean isBatching()
+    {
+        return batchDepth > 0;
+    }
+
+    /**
+     * Loads and sets the targets of pending eager relations.
+     *
+     * @throws PropertyAccessException
+     *             the property access exception
+     */
+    private void loadPendingRelations() throws PropertyAccessException
+    {
+        while (!pendingRelations.isEmpty())
+        {
+            List<PendingRelation> level = pendingRelations;
+            pendingRelations = new ArrayList<PendingRelation>();
+
+            // every foreign key of this level, by target class
+            Map<Class<?>, Set<String>> keysByClass = new LinkedHashMap<Class<?>, Set<String>>();
+            for (PendingRelation pending : level)
             {
-                // halt, if this was a non-optional property
-                if (!optional)
+                Class<?> targetClass = pending.relation.getTargetEntity();
+                Set<String> keys = keysByClass.get(targetClass);
+                if (keys == null)
                 {
-                    throw new PersistenceException("Missing " + targetClass.getName() + "." + targetField.getName());
+                    keys = new LinkedHashSet<String>();
+                    keysByClass.put(targetClass, keys);
                 }
+                keys.addAll(Arrays.asList(pending.foreignKeys));
+            }
+
+            // one multiget per class; targets land in the session and
+            // their own eager relations queue up for the next level
+            for (Map.Entry<Class<?>, Set<String>> entry : keysByClass.entrySet())
+            {
+                LOG.debug("Batch loading " + entry.getValue().size() + " of " + entry.getKey().getName());
+                em.find(entry.getKey(), entry.getValue().toArray());
+            }
+
+            for (PendingRelation pending : level)
+            {
+                setForeignEntities(pending.entity, pending.relation, pending.foreignKeys);
             }
         }
     }
 
+    /**
+     * Sets the targets of an eager relation from the session, once loaded.
+     *
+     * @param entity
+     *            the entity
+     * @param relation
+     *            the relation
+     * @param foreignKeys
+     *            the foreign keys
+     * @throws PropertyAccessException
+     *             the property access exception
+     */
+    private void setForeignEntities(Object entity, EntityMetadata.Relation relation, String[] foreignKeys)
+            throws PropertyAccessException
+    {
+        Class<?> targetClass = relation.getTargetEntity();
+        if (relation.isUnary())
+        {
+            PropertyAccessorHelper.set(entity, relation.getProperty(), em.getSession().lookup(targetClass,
+                    foreignKeys[0]));
+            return;
+        }
+
+        Collection<Object> foreignObjects = relation.getPropertyType().equals(Set.class) ? new HashSet<Object>()
+                : new ArrayList<Object>();
+        for (String foreignKey : foreignKeys)
+        {
+            Object foreignObject = em.getSession().lookup(targetClass, foreignKey);
+            // not found
+            if (foreignObject != null)
+            {
+                foreignObjects.add(foreignObject);
+            }
+        }
+        PropertyAccessorHelper.set(entity, relation.getProperty(), foreignObjects);
+    }
+
     /**
      * Populate foreign entities.
      *
@@ -245,6 +523,7 @@ public class EntityResolver
      * @throws PropertyAccessException
      *             the property access exception
      */
+    @SuppressWarnings("unchecked")
     public void populateForeignEntities(Object entity, String entityId, EntityMetadata.Relation relation,
             String... foreignKeys) throws PropertyAccessException
     {
@@ -254,6 +533,13 @@ public class EntityResolver
             return;
         }
 
+        FetchPlan plan = em.getFetchPlan();
+        if (plan != null && plan.isExcluded(entity.getClass(), relation.getProperty().getName()))
+        {
+            return;
+        }
+        FetchType fetch = plan != null ? plan.getFetchType(entity.getClass(), relation) : relation.getFetchType();
+
         String entityName = entity.getClass().getName() + "_" + entityId + "#" + relation.getProperty().getName();
 
         LOG.debug("Populating foreign entities for " + entityName);
@@ -263,18 +549,46 @@ public class EntityResolver
 
         // Eagerly Caching containing entity to avoid it's own loading,
         // in case the target contains a reference to containing entity.
-        em.getSession().store(entity, entityId, Boolean.FALSE);
+        em.getSession().store(entityId, entity, Boolean.FALSE);
+
+        if (batchDepth > 0 && FetchType.EAGER.equals(fetch))
+        {
+            // loaded along with the rest of the batch
+            pendingRelations.add(new PendingRelation(entity, relation, foreignKeys));
+            return;
+        }
 
         if (relation.isUnary())
         {
             // there is just one target object
             String foreignKey = foreignKeys[0];
 
-            Object foreignObject = getForeignEntityOrProxy(entityName, foreignEntityClass, foreignKey, relation);
+            Object foreignObject = getForeignEntityOrProxy(entityName, foreignEntityClass, foreignKey, relation,
+                    fetch);
 
             PropertyAccessorHelper.set(entity, relation.getProperty(), foreignObject);
         }
 
+        else if (relation.isCollection() && FetchType.LAZY.equals(fetch))
+        {
+            // keep the keys only, members are read when first used
+            int batchSize = relation.getBatchSize() > 0 ? relation.getBatchSize() : em.getFactory()
+                    .getFetchBatchSize();
+            Collection<?> foreignObjects;
+            if (relation.getPropertyType().equals(Set.class))
+            {
+                foreignObjects = new PersistentSet<Object>(em, entityName, (Class<Object>) foreignEntityClass,
+                        foreignKeys, batchSize);
+            }
+            else
+            {
+                foreignObjects = new PersistentList<Object>(em, entityName, (Class<Object>) foreignEntityClass,
+                        foreignKeys, batchSize);
+            }
+
+            PropertyAccessorHelper.set(entity, relation.getProperty(), foreignObjects);
+        }
+
         else if (relation.isCollection())
         {
             // there could be multiple target objects
@@ -293,7 +607,8 @@ public class EntityResolver
             // Iterate over keys
             for (String foreignKey : foreignKeys)
             {
-                Object foreignObject = getForeignEntityOrProxy(entityName, foreignEntityClass, foreignKey, relation);
+                Object foreignObject = getForeignEntityOrProxy(entityName, foreignEntityClass, foreignKey, relation,
+                        fetch);
                 foreignObjects.add(foreignObject);
             }
 
@@ -312,10 +627,12 @@ public class EntityResolver
      *            the foreign key
      * @param relation
      *            the relation
+     * @param fetch
+     *            the fetch type in effect for the relation
      * @return the foreign entity or proxy
      */
     private Object getForeignEntityOrProxy(String entityName, Class<?> persistentClass, String foreignKey,
-            EntityMetadata.Relation relation)
+            EntityMetadata.Relation relation, FetchType fetch)
     {
 
         // Check in session cache!
@@ -325,8 +642,6 @@ public class EntityResolver
             return cached;
         }
 
-        FetchType fetch = relation.getFetchType();
-
         if (fetch.equals(FetchType.EAGER))
         {
             LOG.debug("Eagerly loading >> " + persistentClass.getName() + "_" + foreignKey);
@@ -341,9 +656,99 @@ public class EntityResolver
             // metadata
             EntityMetadata m = em.getMetadataManager().getEntityMetadata(persistentClass);
 
+            if (relation.getBatchSize() > 1)
+            {
+                // let sibling proxies load along with this one
+                em.getBatchFetchQueue().add(persistentClass, foreignKey, relation.getBatchSize());
+            }
+
             return em.getFactory().getLazyEntity(entityName, persistentClass, m.getReadIdentifierMethod(),
                     m.getWriteIdentifierMethod(), foreignKey, em);
         }
     }
 
+    /**
+     * An entity being resolved, with how far through its relations it is.
+     */
+    private static final class ResolvingEntity
+    {
+
+        /** The entity. */
+        private final Object entity;
+
+        /** The metadata. */
+        private final EntityMetadata metadata;
+
+        /** The enhanced entity. */
+        private final EnhancedEntity enhancedEntity;
+
+        /** The foreign keys map of the enhanced entity. */
+        private final Map<String, Set<String>> foreignKeysMap;
+
+        /** Index of the relation being resolved. */
+        private int relationIndex;
+
+        /** Targets of that relation not reached yet, null if not started. */
+        private Iterator<?> targets;
+
+        /** Foreign keys of that relation. */
+        private Set<String> foreignKeys;
+
+        /** Id of the last target, if read with the target class metadata. */
+        private String targetId;
+
+        /**
+         * Instantiates a new resolving entity.
+         *
+         * @param entity
+         *            the entity
+         * @param metadata
+         *            the metadata
+         * @param enhancedEntity
+         *            the enhanced entity
+         * @param foreignKeysMap
+         *            the foreign keys map
+         */
+        private ResolvingEntity(Object entity, EntityMetadata metadata, EnhancedEntity enhancedEntity,
+                Map<String, Set<String>> foreignKeysMap)
+        {
+            this.entity = entity;
+            this.metadata = metadata;
+            this.enhancedEntity = enhancedEntity;
+            this.foreignKeysMap = foreignKeysMap;
+        }
+    }
+
+    /**
+     * An eager relation of a loaded entity, waiting for its targets.
+     */
+    private static final class PendingRelation
+    {
+
+        /** The entity. */
+        private final Object entity;
+
+        /** The relation. */
+        private final EntityMetadata.Relation relation;
+
+        /** The foreign keys. */
+        private final String[] foreignKeys;
+
+        /**
+         * Instantiates a new pending relation.
+         *
+         * @param entity
+         *            the entity
+         * @param relation
+         *            the relation
+         * @param foreignKeys
+         *            the foreign keys
+         */
+        PendingRelation(Object entity, EntityMetadata.Relation relation, String[] foreignKeys)
+        {
+            this.entity = entity;
+            this.relation = relation;
+            this.foreignKeys = foreignKeys;
+        }
+    }
 }
@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.ejb;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Coalesces concurrent identical datastore reads. The first caller for a key
+ * runs the read; callers arriving while it is in flight wait for and share its
+ * result instead of issuing their own. A waiting caller gives up after a
+ * bounded wait and reads on its own.
+ *
+ * Callers share the very object the read returned, so only reads whose
+ * results are not modified afterwards should go through here. Entities are
+ * not shared this way: {@link EntityManagerImpl#loadShared} hands every
+ * entity manager instances of its own.
+ *
+ * Enabled with <code>kundera.coalesce.enabled</code>;
+ * <code>kundera.coalesce.max_wait</code> bounds the wait in milliseconds,
+ * default 5000.
+ *
+ * @author animesh.kumar
+ */
+public class ReadCoalescer
+{
+
+    /** The Constant log. */
+    private static final Log LOG = LogFactory.getLog(ReadCoalescer.class);
+
+    /** The Constant ENABLED. */
+    public static final String ENABLED = "kundera.coalesce.enabled";
+
+    /** The Constant MAX_WAIT. */
+    public static final String MAX_WAIT = "kundera.coalesce.max_wait";
+
+    /** The Constant DEFAULT_MAX_WAIT. */
+    public static final long DEFAULT_MAX_WAIT = 5000;
+
+    /** The enabled. */
+    private final boolean enabled;
+
+    /** The max wait, in milliseconds. */
+    private final long maxWait;
+
+    /** Reads in flight, by key. */
+    private final ConcurrentMap<String, FutureTask<Object>> inFlight =
+            new ConcurrentHashMap<String, FutureTask<Object>>();
+
+    /** Reads that were served by another caller's read. */
+    private final AtomicLong coalescedReads = new AtomicLong();
+
+    /**
+     * Instantiates a new read coalescer.
+     *
+     * @param enabled
+     *            the enabled
+     * @param maxWait
+     *            the max wait, in milliseconds
+     */
+    public ReadCoalescer(boolean enabled, long maxWait)
+    {
+        this.enabled = enabled;
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Creates the coalescer from persistence unit properties.
+     *
+     * @param props
+     *            the props, may be null
+     * @return the read coalescer
+     */
+    public static ReadCoalescer fromProperties(Map<?, ?> props)
+    {
+        boolean enabled = false;
+        long maxWait = DEFAULT_MAX_WAIT;
+        if (props != null)
+        {
+            if (props.get(ENABLED) != null)
+            {
+                enabled = Boolean.valueOf(props.get(ENABLED).toString().trim());
+            }
+            if (props.get(MAX_WAIT) != null)
+            {
+                maxWait = Long.parseLong(props.get(MAX_WAIT).toString().trim());
+            }
+        }
+        return new ReadCoalescer(enabled, maxWait);
+    }
+
+    /**
+     * Runs a read, or joins an identical one already in flight.
+     *
+     * @param <V>
+     *            the value type
+     * @param key
+     *            identifies the read
+     * @param read
+     *            the read
+     * @return the result
+     * @throws Exception
+     *             thrown by the read
+     */
+    @SuppressWarnings("unchecked")
+    public <V> V execute(String key, final Callable<V> read) throws Exception
+    {
+        if (!enabled)
+        {
+            return read.call();
+        }
+
+        FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>()
+        {
+            @Override
+            public Object call() throws Exception
+            {
+                return read.call();
+            }
+        });
+        FutureTask<Object> existing = inFlight.putIfAbsent(key, task);
+
+        if (existing == null)
+        {
+            try
+            {
+                task.run();
+                return (V) unwrap(task, -1);
+            }
+            finally
+            {
+                inFlight.remove(key, task);
+            }
+        }
+
+        try
+        {
+            V value = (V) unwrap(existing, maxWait);
+            coalescedReads.incrementAndGet();
+            LOG.debug("Coalesced read >> " + key);
+            return value;
+        }
+        catch (TimeoutException e)
+        {
+            LOG.debug("Gave up waiting on in-flight read, reading again >> " + key);
+            return read.call();
+        }
+    }
+
+    /**
+     * Number of reads that were served by another caller's read.
+     *
+     * @return the coalesced reads
+     */
+    public long getCoalescedReads()
+    {
+        return coalescedReads.get();
+    }
+
+    /**
+     * Checks if is enabled.
+     *
+     * @return true, if is enabled
+     */
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Gets the result of a read, rethrowing what it threw.
+     *
+     * @param task
+     *            the task
+     * @param timeout
+     *            milliseconds to wait, negative to wait for ever
+     * @return the object
+     * @throws Exception
+     *             the exception
+     */
+    private Object unwrap(FutureTask<Object> task, long timeout) throws Exception
+    {
+        try
+        {
+            return timeout < 0 ? task.get() : task.get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+            {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error)
+            {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.ejb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.impetus.kundera.cache.offheap.CachedEntity;
+import com.impetus.kundera.cache.offheap.EntityStateSerializer;
+import com.impetus.kundera.property.PropertyAccessException;
+
+/**
+ * Entities read once on behalf of several entity managers. They belong to the
+ * persistence context of the entity manager that read them, so their state is
+ * copied as soon as the read is done; every other entity manager gets
+ * instances of its own built from that copy, kept in its own session and with
+ * relations resolved by its own resolver.
+ *
+ * @param <E>
+ *            the entity type
+ * @author animesh.kumar
+ */
+final class SharedRead<E>
+{
+
+    /** The Constant log. */
+    private static final Log LOG = LogFactory.getLog(SharedRead.class);
+
+    /** The entity manager that read. */
+    private final EntityManagerImpl reader;
+
+    /** The entity class. */
+    private final Class<E> entityClass;
+
+    /** The entities, as read. */
+    private final List<E> entities;
+
+    /** The serializer. */
+    private final EntityStateSerializer serializer;
+
+    /** State of each entity, null if it could not be copied. */
+    private final List<byte[]> states;
+
+    /**
+     * Instantiates a shared read, copying the state of what was read.
+     *
+     * @param reader
+     *            the entity manager that read
+     * @param entityClass
+     *            the entity class
+     * @param entities
+     *            the entities read, relations resolved
+     */
+    SharedRead(EntityManagerImpl reader, Class<E> entityClass, List<E> entities)
+    {
+        this.reader = reader;
+        this.entityClass = entityClass;
+        this.entities = entities;
+        this.serializer = reader.getFactory().getEntityStateSerializer(entityClass);
+
+        List<byte[]> copied = new ArrayList<byte[]>(entities.size());
+        try
+        {
+            for (E entity : entities)
+            {
+                copied.add(serializer.serialize(entity));
+            }
+        }
+        catch (PropertyAccessException e)
+        {
+            LOG.debug("Could not copy state of " + entityClass.getName() + ", it is not shared >> " + e.getMessage());
+            copied = null;
+        }
+        this.states = copied;
+    }
+
+    /**
+     * Gets the entities for an entity manager: what was read for the reader,
+     * copies for any other. Entities already in the session of the entity
+     * manager are taken from there.
+     *
+     * @param em
+     *            the entity manager
+     * @return the entities, null if they cannot be shared and em has to read
+     *         on its own
+     * @throws Exception
+     *             the exception
+     */
+    List<E> getEntities(final EntityManagerImpl em) throws Exception
+    {
+        if (em == reader)
+        {
+            return entities;
+        }
+        if (states == null)
+        {
+            return null;
+        }
+
+        // eager relations of all copies are read together
+        return em.getEntityResolver().loadInBatch(new Callable<List<E>>()
+        {
+            @Override
+            public List<E> call() throws Exception
+            {
+                List<E> copies = new ArrayList<E>(states.size());
+                for (byte[] state : states)
+                {
+                    CachedEntity copy = serializer.deserialize(state);
+                    E entity = em.getSession().lookup(entityClass, copy.getId());
+                    if (entity == null)
+                    {
+                        entity = entityClass.cast(em.getSession().attach(entityClass, copy));
+                    }
+                    copies.add(entity);
+                }
+                return copies;
+            }
+        });
+    }
+}
@@ -18,6 +18,7 @@ package com.impetus.kundera.hbase.admin;
 import java.io.IOException;
 
 import com.impetus.kundera.metadata.EntityMetadata;
+import com.impetus.kundera.metadata.FetchPlan;
 import com.impetus.kundera.proxy.EnhancedEntity;
 
 /**
@@ -53,6 +54,13 @@ public interface DataHandler
      */
     <E> E readData(String tableName, Class<E> clazz, EntityMetadata m, String rowKey) throws IOException;
 
+    /**
+     * Populates data as readData does, leaving out column families the fetch
+     * plan excludes.
+     */
+    <E> E readData(String tableName, Class<E> clazz, EntityMetadata m, String rowKey, FetchPlan plan)
+            throws IOException;
+
     /**
      * Shutdown.
      */
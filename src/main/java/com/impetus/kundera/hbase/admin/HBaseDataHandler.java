@@ -48,6 +48,7 @@ import com.impetus.kundera.metadata.EntityMetadata;
 import com.impetus.kundera.metadata.EntityMetadata.Column;
 import com.impetus.kundera.metadata.EntityMetadata.Relation;
 import com.impetus.kundera.metadata.EntityMetadata.SuperColumn;
+import com.impetus.kundera.metadata.FetchPlan;
 import com.impetus.kundera.metadata.MetadataUtils;
 import com.impetus.kundera.property.PropertyAccessException;
 import com.impetus.kundera.property.PropertyAccessorFactory;
@@ -129,6 +130,13 @@ public class HBaseDataHandler implements DataHandler
 
     @Override
     public <E> E readData(final String tableName, Class<E> clazz, EntityMetadata m, final String rowKey) throws IOException
+    {
+        return readData(tableName, clazz, m, rowKey, null);
+    }
+
+    @Override
+    public <E> E readData(final String tableName, Class<E> clazz, EntityMetadata m, final String rowKey,
+            FetchPlan plan) throws IOException
     {        
         
         E e = null;
@@ -140,7 +148,7 @@ public class HBaseDataHandler implements DataHandler
             HBaseData data = hbaseReader.LoadData(gethTable(tableName), rowKey);                          
             
             //Populate raw data from HBase into entity
-            populateEntityFromHbaseData(e, data, m, rowKey);           
+            populateEntityFromHbaseData(e, data, m, rowKey, plan);           
         }
         catch (InstantiationException e1)
         {
@@ -306,7 +314,8 @@ public class HBaseDataHandler implements DataHandler
     }
     
     //TODO: Scope of performance improvement in this method
-    private void populateEntityFromHbaseData(Object entity, HBaseData data, EntityMetadata m, String rowKey)
+    private void populateEntityFromHbaseData(Object entity, HBaseData data, EntityMetadata m, String rowKey,
+            FetchPlan plan)
     {       
         try
         {  
@@ -317,6 +326,10 @@ public class HBaseDataHandler implements DataHandler
             List<SuperColumn> columnFamilies = m.getSuperColumnsAsList();  //Yes, for HBase they are called column families
             for(SuperColumn columnFamily : columnFamilies) {            
                 Field columnFamilyFieldInEntity = columnFamily.getField();
+                if (plan != null && plan.isExcluded(entity.getClass(), columnFamilyFieldInEntity.getName()))
+                {
+                    continue;
+                }
                 Class<?> columnFamilyClass = columnFamilyFieldInEntity.getType();
                 
                 //Get a name->field map for columns in this column family
@@ -113,7 +113,7 @@ public class HBaseClient implements com.impetus.kundera.Client
     {
         //columnFamily has a different meaning for HBase, so it won't be used here
         String tableName = m.getTableName();
-        E e = handler.readData(tableName, clazz, m, rowKey);
+        E e = handler.readData(tableName, clazz, m, rowKey, em.getFetchPlan());
         return e;
     }
 
@@ -131,7 +131,7 @@ public class HBaseClient implements com.impetus.kundera.Client
         List<E> entities = new ArrayList<E>();
         for (String rowKey : keys)
         {
-            E e = handler.readData(m.getTableName(), clazz, m, rowKey);
+            E e = handler.readData(m.getTableName(), clazz, m, rowKey, em.getFetchPlan());
             entities.add(e);
         }
         return entities;
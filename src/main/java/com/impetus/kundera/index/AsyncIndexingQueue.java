@@ -0,0 +1,1107 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.impetus.kundera.ejb.EntityManagerFactoryImpl;
+import com.impetus.kundera.ejb.EntityManagerImpl;
+import com.impetus.kundera.metadata.EntityMetadata;
+import com.impetus.kundera.property.PropertyAccessException;
+import com.impetus.kundera.query.QueryResultCache;
+
+/**
+ * Takes index changes off the write path. Changes are queued, and a
+ * background thread hands them to the {@link Indexer} in batches. Changes to
+ * the same entity are coalesced while queued: the last one wins. A change
+ * holds a copy of the entity's state taken when it is queued, so the
+ * application can go on changing the entity meanwhile.
+ *
+ * Every change gets a sequence number. {@link #await(long, long)} waits until
+ * the index reflects every change up to a sequence number, so a query can
+ * read what its entity manager wrote.
+ *
+ * With a journal, every change is also appended to a local file before it is
+ * queued, and the applied sequence number after every batch. Changes not
+ * applied when the process went down are replayed when the queue is next
+ * opened; entities are then read again from the datastore, so the index gets
+ * their latest state. The journal is flushed to the operating system, not
+ * synced to disk: it survives the JVM crashing, not the machine.
+ *
+ * A change the indexer fails on is queued again and retried after
+ * {@link #RETRY_DELAY} milliseconds, and the applied sequence number stays
+ * before it. After {@link #MAX_ATTEMPTS} attempts, or at close, it is given
+ * up on and no longer holds the applied sequence number back; with a journal
+ * it is kept there, to be replayed when the queue is next opened. Should the
+ * applier itself die, writers and waiters get an {@link IndexingException}
+ * rather than waiting for it.
+ *
+ * Enabled with <code>kundera.index.async.enabled</code>.
+ * <code>kundera.index.async.capacity</code> is the most entities with queued
+ * changes, default 10000, after which writers wait;
+ * <code>kundera.index.async.batch_size</code> the largest batch, default 500;
+ * and <code>kundera.index.async.journal</code> the path of the journal, none
+ * by default.
+ *
+ * @author animesh.kumar
+ */
+public class AsyncIndexingQueue
+{
+
+    /** The Constant log. */
+    private static final Log LOG = LogFactory.getLog(AsyncIndexingQueue.class);
+
+    /** The Constant ENABLED. */
+    public static final String ENABLED = "kundera.index.async.enabled";
+
+    /** The Constant CAPACITY. */
+    public static final String CAPACITY = "kundera.index.async.capacity";
+
+    /** The Constant BATCH_SIZE. */
+    public static final String BATCH_SIZE = "kundera.index.async.batch_size";
+
+    /**
+     * Path of the journal. It is flushed, not synced, on every change, so it
+     * only covers the JVM crashing.
+     */
+    public static final String JOURNAL = "kundera.index.async.journal";
+
+    /** The Constant DEFAULT_CAPACITY. */
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    /** The Constant DEFAULT_BATCH_SIZE. */
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    /** Milliseconds to wait before retrying changes the indexer failed on. */
+    public static final long RETRY_DELAY = 1000;
+
+    /** Attempts at a change before giving up on it. */
+    public static final int MAX_ATTEMPTS = 3;
+
+    /** Journal record of a change. */
+    private static final byte CHANGE_RECORD = 'C';
+
+    /** Journal record of the applied sequence number. */
+    private static final byte APPLIED_RECORD = 'A';
+
+    /** Journal record of a change given up on, replayed whatever was applied. */
+    private static final byte ABANDONED_RECORD = 'X';
+
+    /** The kinds of change. */
+    private enum Operation
+    {
+        /** Adds the entity. */
+        INDEX,
+        /** Replaces the entity. */
+        UPDATE,
+        /** Removes the entity. */
+        UNINDEX
+    }
+
+    /** The indexer. */
+    private final Indexer indexer;
+
+    /** The factory, to read entities replayed from the journal. */
+    private final EntityManagerFactoryImpl factory;
+
+    /** Query results to invalidate once changes are applied. */
+    private final QueryResultCache queryResultCache;
+
+    /** The capacity. */
+    private final int capacity;
+
+    /** The batch size. */
+    private final int batchSize;
+
+    /** The journal file, null if none. */
+    private final File journalFile;
+
+    /** The journal, null if none. */
+    private DataOutputStream journal;
+
+    /** Queued changes by entity, in the order first queued. */
+    private final LinkedHashMap<String, Change> pending = new LinkedHashMap<String, Change>();
+
+    /** Guards the queue, the sequence numbers and the journal. */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Signalled when changes are queued, or on close. */
+    private final Condition notEmpty = lock.newCondition();
+
+    /** Signalled when queued changes are taken. */
+    private final Condition notFull = lock.newCondition();
+
+    /** Signalled when changes are applied. */
+    private final Condition applied = lock.newCondition();
+
+    /** The last sequence number given out. */
+    private long submittedSequence;
+
+    /** Every change up to this sequence number is in the index. */
+    private long appliedSequence;
+
+    /** Changes given up on, by entity, kept in the journal until indexed. */
+    private final Map<String, Change> abandoned = new LinkedHashMap<String, Change>();
+
+    /** What stopped the applier, null while it runs. */
+    private Throwable failure;
+
+    /** The thread applying changes. */
+    private final Thread applier;
+
+    /** Entity manager of the applier, reading replayed entities. */
+    private EntityManagerImpl em;
+
+    /** The closed. */
+    private boolean closed;
+
+    /**
+     * Opens the queue, replaying the journal if there is one.
+     *
+     * @param indexer
+     *            the indexer
+     * @param factory
+     *            the factory
+     * @param queryResultCache
+     *            the query result cache
+     * @param capacity
+     *            the capacity
+     * @param batchSize
+     *            the batch size
+     * @param journalFile
+     *            the journal file, null for none
+     */
+    public AsyncIndexingQueue(Indexer indexer, EntityManagerFactoryImpl factory, QueryResultCache queryResultCache,
+            int capacity, int batchSize, File journalFile)
+    {
+        if (capacity < 1 || batchSize < 1)
+        {
+            throw new IllegalArgumentException("Capacity and batch size must be positive: " + capacity + ", "
+                    + batchSize);
+        }
+        this.indexer = indexer;
+        this.factory = factory;
+        this.queryResultCache = queryResultCache;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.journalFile = journalFile;
+
+        if (journalFile != null)
+        {
+            replay();
+        }
+
+        applier = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    applyLoop();
+                }
+                catch (Throwable t)
+                {
+                    fail(t);
+                }
+            }
+        }, "kundera-async-indexer");
+        applier.setDaemon(true);
+        applier.start();
+    }
+
+    /**
+     * Creates the queue from persistence unit properties.
+     *
+     * @param indexer
+     *            the indexer
+     * @param factory
+     *            the factory
+     * @param queryResultCache
+     *            the query result cache
+     * @param props
+     *            the props, may be null
+     * @return the queue, null if not enabled
+     */
+    public static AsyncIndexingQueue fromProperties(Indexer indexer, EntityManagerFactoryImpl factory,
+            QueryResultCache queryResultCache, Map<?, ?> props)
+    {
+        if (props == null || props.get(ENABLED) == null || !Boolean.valueOf(props.get(ENABLED).toString().trim()))
+        {
+            return null;
+        }
+        int capacity = DEFAULT_CAPACITY;
+        int batchSize = DEFAULT_BATCH_SIZE;
+        File journalFile = null;
+        if (props.get(CAPACITY) != null)
+        {
+            capacity = Integer.parseInt(props.get(CAPACITY).toString().trim());
+        }
+        if (props.get(BATCH_SIZE) != null)
+        {
+            batchSize = Integer.parseInt(props.get(BATCH_SIZE).toString().trim());
+        }
+        if (props.get(JOURNAL) != null)
+        {
+            journalFile = new File(props.get(JOURNAL).toString().trim());
+        }
+        return new AsyncIndexingQueue(indexer, factory, queryResultCache, capacity, batchSize, journalFile);
+    }
+
+    /**
+     * Queues indexing an entity.
+     *
+     * @param metadata
+     *            the metadata
+     * @param id
+     *            the id
+     * @param entity
+     *            the entity
+     * @return the sequence number of the change
+     */
+    public long index(EntityMetadata metadata, String id, Object entity)
+    {
+        return submit(Operation.INDEX, metadata, id, entity);
+    }
+
+    /**
+     * Queues replacing the indexed state of an entity.
+     *
+     * @param metadata
+     *            the metadata
+     * @param id
+     *            the id
+     * @param entity
+     *            the entity
+     * @return the sequence number of the change
+     */
+    public long update(EntityMetadata metadata, String id, Object entity)
+    {
+        return submit(Operation.UPDATE, metadata, id, entity);
+    }
+
+    /**
+     * Queues removing an entity from the index.
+     *
+     * @param metadata
+     *            the metadata
+     * @param id
+     *            the id
+     * @return the sequence number of the change
+     */
+    public long unindex(EntityMetadata metadata, String id)
+    {
+        return submit(Operation.UNINDEX, metadata, id, null);
+    }
+
+    /**
+     * Queues a change, coalescing it with one already queued for the entity.
+     *
+     * @param operation
+     *            the operation
+     * @param metadata
+     *            the metadata
+     * @param id
+     *            the id
+     * @param entity
+     *            the entity, null to read it when applied
+     * @return the sequence number of the change
+     */
+    private long submit(Operation operation, EntityMetadata metadata, String id, Object entity)
+    {
+        String key = key(metadata, id);
+        byte[] state = snapshot(metadata, entity);
+        lock.lock();
+        try
+        {
+            while (pending.size() >= capacity && !pending.containsKey(key) && !closed && failure == null)
+            {
+                notFull.awaitUninterruptibly();
+            }
+            if (closed)
+            {
+                throw new IndexingException("Indexing queue already closed.");
+            }
+            checkFailure();
+            return enqueue(operation, metadata, id, state);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies the state of an entity, for the applier to index.
+     *
+     * @param metadata
+     *            the metadata
+     * @param entity
+     *            the entity, may be null
+     * @return the state, null to read the entity when applied
+     */
+    private byte[] snapshot(EntityMetadata metadata, Object entity)
+    {
+        if (entity == null)
+        {
+            return null;
+        }
+        try
+        {
+            return factory.getEntityStateSerializer(metadata.getEntityClazz()).serialize(entity);
+        }
+        catch (PropertyAccessException e)
+        {
+            LOG.warn("Could not copy state of " + metadata.getEntityClazz().getName()
+                    + ", it is read again when indexed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Journals and queues a change, however many are queued. Must hold the
+     * lock.
+     *
+     * @param operation
+     *            the operation
+     * @param metadata
+     *            the metadata
+     * @param id
+     *            the id
+     * @param state
+     *            state of the entity, null to read it when applied
+     * @return the sequence number of the change
+     */
+    private long enqueue(Operation operation, EntityMetadata metadata, String id, byte[] state)
+    {
+        String key = key(metadata, id);
+        long sequence = ++submittedSequence;
+        journal(operation, metadata, id, sequence);
+
+        Change queued = pending.get(key);
+        if (queued == null)
+        {
+            pending.put(key, new Change(operation, metadata, id, state, sequence));
+            notEmpty.signal();
+        }
+        else
+        {
+            queued.operation = coalesce(queued.operation, operation);
+            queued.state = state;
+            queued.lastSequence = sequence;
+        }
+        return sequence;
+    }
+
+    /**
+     * Gets the operation of a change made after another not applied yet.
+     *
+     * @param earlier
+     *            the earlier operation
+     * @param later
+     *            the later operation
+     * @return the operation
+     */
+    private static Operation coalesce(Operation earlier, Operation later)
+    {
+        // the last change wins; an index over an earlier change must still
+        // replace what the index had
+        return later == Operation.INDEX && earlier != Operation.INDEX ? Operation.UPDATE : later;
+    }
+
+    /**
+     * Gets the key of an entity in the queue.
+     *
+     * @param metadata
+     *            the metadata
+     * @param id
+     *            the id
+     * @return the key
+     */
+    private static String key(EntityMetadata metadata, String id)
+    {
+        return metadata.getEntityClazz().getName() + "_" + id;
+    }
+
+    /**
+     * Waits until every change up to a sequence number is in the index.
+     *
+     * @param sequence
+     *            the sequence number
+     * @param timeout
+     *            the timeout, in milliseconds
+     * @return true, if applied in time
+     */
+    public boolean await(long sequence, long timeout)
+    {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        lock.lock();
+        try
+        {
+            while (appliedSequence < sequence)
+            {
+                checkFailure();
+                if (nanos <= 0)
+                {
+                    return false;
+                }
+                nanos = applied.awaitNanos(nanos);
+            }
+            return true;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Throws if the applier died. Must hold the lock.
+     */
+    private void checkFailure()
+    {
+        if (failure != null)
+        {
+            throw new IndexingException("Index changes are no longer applied, the applier failed: " + failure);
+        }
+    }
+
+    /**
+     * Records that the applier died, waking writers and waiters.
+     *
+     * @param t
+     *            what stopped it
+     */
+    private void fail(Throwable t)
+    {
+        LOG.error("Index changes are no longer applied, the applier failed: " + t, t);
+        lock.lock();
+        try
+        {
+            failure = t;
+            notFull.signalAll();
+            applied.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the last sequence number given out.
+     *
+     * @return the sequence number
+     */
+    public long getSubmittedSequence()
+    {
+        lock.lock();
+        try
+        {
+            return submittedSequence;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Applies queued changes, a batch at a time, until closed and drained.
+     */
+    private void applyLoop()
+    {
+        while (true)
+        {
+            List<Change> batch = new ArrayList<Change>();
+            long batchSequence = 0;
+            lock.lock();
+            try
+            {
+                while (pending.isEmpty() && !closed)
+                {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (pending.isEmpty())
+                {
+                    // closed and drained
+                    return;
+                }
+                Iterator<Change> it = pending.values().iterator();
+                while (it.hasNext() && batch.size() < batchSize)
+                {
+                    Change change = it.next();
+                    it.remove();
+                    batch.add(change);
+                    batchSequence = Math.max(batchSequence, change.lastSequence);
+                }
+                notFull.signalAll();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            List<Change> failed = apply(batch);
+
+            lock.lock();
+            try
+            {
+                if (!failed.isEmpty())
+                {
+                    requeue(failed);
+                }
+
+                // changes still queued were first made before some of the
+                // batch; the index does not reflect those yet
+                long done = batchSequence;
+                if (!pending.isEmpty())
+                {
+                    done = Math.min(done, pending.values().iterator().next().firstSequence - 1);
+                }
+                if (done > appliedSequence)
+                {
+                    appliedSequence = done;
+                    journalApplied();
+                }
+                applied.signalAll();
+
+                if (!failed.isEmpty())
+                {
+                    awaitRetry();
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Queues changes the indexer failed on again, ahead of those queued, or
+     * gives up on them after {@link #MAX_ATTEMPTS} or once closed. Must hold
+     * the lock.
+     *
+     * @param failed
+     *            the failed changes, in the order taken
+     */
+    private void requeue(List<Change> failed)
+    {
+        // failed changes were first made before anything queued since
+        LinkedHashMap<String, Change> queued = new LinkedHashMap<String, Change>(pending);
+        pending.clear();
+        for (Change change : failed)
+        {
+            String key = key(change.metadata, change.id);
+            if (closed || ++change.attempts >= MAX_ATTEMPTS)
+            {
+                abandon(key, change);
+                continue;
+            }
+            Change later = queued.remove(key);
+            if (later != null)
+            {
+                later.operation = coalesce(change.operation, later.operation);
+                later.firstSequence = change.firstSequence;
+                later.attempts = change.attempts;
+                change = later;
+            }
+            pending.put(key, change);
+        }
+        pending.putAll(queued);
+    }
+
+    /**
+     * Gives up on a change, keeping it in the journal to be replayed. Must
+     * hold the lock.
+     *
+     * @param key
+     *            the key
+     * @param change
+     *            the change
+     */
+    private void abandon(String key, Change change)
+    {
+        if (journal == null)
+        {
+            LOG.error("Giving up indexing " + key + " after " + change.attempts + " attempts");
+            return;
+        }
+        LOG.error("Giving up indexing " + key + " after " + change.attempts + " attempts, kept in the index journal "
+                + journalFile);
+        abandoned.put(key, change);
+        try
+        {
+            writeRecord(ABANDONED_RECORD, change.operation, change.metadata, change.id, change.lastSequence);
+        }
+        catch (IOException e)
+        {
+            LOG.error("Could not write index journal " + journalFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Waits {@link #RETRY_DELAY} milliseconds before retrying, or until
+     * closed. Must hold the lock.
+     */
+    private void awaitRetry()
+    {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(RETRY_DELAY);
+        try
+        {
+            while (nanos > 0 && !closed)
+            {
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Applies a batch of changes, invalidating cached query results of the
+     * classes changed once.
+     *
+     * @param batch
+     *            the batch
+     * @return the changes the indexer failed on
+     */
+    private List<Change> apply(List<Change> batch)
+    {
+        List<Change> failed = new ArrayList<Change>();
+        Set<Class<?>> changedClasses = new HashSet<Class<?>>();
+        for (Change change : batch)
+        {
+            try
+            {
+                Class<?> entityClass = change.metadata.getEntityClazz();
+                Object entity = null;
+                Operation operation = change.operation;
+                if (change.state != null)
+                {
+                    entity = factory.getEntityStateSerializer(entityClass).deserialize(change.state).getEntity();
+                }
+                else if (operation != Operation.UNINDEX)
+                {
+                    // replayed: index what the datastore has now
+                    entity = getEntityManager().find(entityClass, change.id);
+                    operation = entity == null ? Operation.UNINDEX : Operation.UPDATE;
+                }
+
+                switch (operation)
+                {
+                case INDEX:
+                    indexer.index(change.metadata, entity);
+                    break;
+                case UPDATE:
+                    indexer.update(change.metadata, entity);
+                    break;
+                default:
+                    indexer.unindex(change.metadata, change.id);
+                    break;
+                }
+                changedClasses.add(entityClass);
+                forget(change);
+            }
+            catch (Exception e)
+            {
+                LOG.error("Error while indexing " + key(change.metadata, change.id) + ": " + e.getMessage());
+                failed.add(change);
+            }
+        }
+        if (em != null)
+        {
+            em.clear();
+        }
+        for (Class<?> changedClass : changedClasses)
+        {
+            queryResultCache.invalidate(changedClass);
+        }
+        return failed;
+    }
+
+    /**
+     * Drops a change given up on earlier once its entity is indexed again.
+     *
+     * @param change
+     *            the change indexed
+     */
+    private void forget(Change change)
+    {
+        lock.lock();
+        try
+        {
+            abandoned.remove(key(change.metadata, change.id));
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the entity manager reading replayed entities.
+     *
+     * @return the entity manager
+     */
+    private EntityManagerImpl getEntityManager()
+    {
+        if (em == null)
+        {
+            em = (EntityManagerImpl) factory.createEntityManager();
+        }
+        return em;
+    }
+
+    /**
+     * Appends a change to the journal.
+     *
+     * @param operation
+     *            the operation
+     * @param metadata
+     *            the metadata
+     * @param id
+     *            the id
+     * @param sequence
+     *            the sequence
+     */
+    private void journal(Operation operation, EntityMetadata metadata, String id, long sequence)
+    {
+        if (journal == null)
+        {
+            return;
+        }
+        try
+        {
+            writeRecord(CHANGE_RECORD, operation, metadata, id, sequence);
+        }
+        catch (IOException e)
+        {
+            throw new IndexingException("Could not write index journal " + journalFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Appends a change record to the journal.
+     *
+     * @param record
+     *            the kind of record
+     * @param operation
+     *            the operation
+     * @param metadata
+     *            the metadata
+     * @param id
+     *            the id
+     * @param sequence
+     *            the sequence
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private void writeRecord(byte record, Operation operation, EntityMetadata metadata, String id, long sequence)
+            throws IOException
+    {
+        journal.writeByte(record);
+        journal.writeLong(sequence);
+        journal.writeByte(operation.ordinal());
+        journal.writeUTF(metadata.getEntityClazz().getName());
+        journal.writeUTF(id);
+        journal.flush();
+    }
+
+    /**
+     * Appends the applied sequence number to the journal, starting it afresh
+     * with the changes given up on once nothing is queued.
+     */
+    private void journalApplied()
+    {
+        if (journal == null)
+        {
+            return;
+        }
+        try
+        {
+            if (appliedSequence == submittedSequence)
+            {
+                journal.close();
+                journal = openJournal(false);
+                for (Change change : abandoned.values())
+                {
+                    writeRecord(ABANDONED_RECORD, change.operation, change.metadata, change.id, change.lastSequence);
+                }
+            }
+            else
+            {
+                journal.writeByte(APPLIED_RECORD);
+                journal.writeLong(appliedSequence);
+                journal.flush();
+            }
+        }
+        catch (IOException e)
+        {
+            LOG.error("Could not write index journal " + journalFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Queues the changes of the journal not applied yet, and opens it for
+     * appending. Replayed changes are queued past the capacity, since nothing
+     * applies them before the queue is open.
+     */
+    private void replay()
+    {
+        List<Change> replayed = new ArrayList<Change>();
+        Set<Change> replayedAbandoned = new HashSet<Change>();
+        long replayedApplied = 0;
+        if (journalFile.exists())
+        {
+            DataInputStream in = null;
+            try
+            {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+                while (true)
+                {
+                    byte record = in.readByte();
+                    long sequence = in.readLong();
+                    if (record == APPLIED_RECORD)
+                    {
+                        replayedApplied = Math.max(replayedApplied, sequence);
+                        continue;
+                    }
+                    Operation operation = Operation.values()[in.readByte()];
+                    String className = in.readUTF();
+                    String id = in.readUTF();
+                    EntityMetadata metadata = factory.getMetadataManager().getEntityMetadata(
+                            Class.forName(className));
+                    Change change = new Change(operation, metadata, id, null, sequence);
+                    replayed.add(change);
+                    if (record == ABANDONED_RECORD)
+                    {
+                        replayedAbandoned.add(change);
+                    }
+                }
+            }
+            catch (EOFException e)
+            {
+                // end of the journal, or a record cut short by the crash
+            }
+            catch (Exception e)
+            {
+                LOG.error("Could not read index journal " + journalFile + ", replaying what was read: "
+                        + e.getMessage());
+            }
+            finally
+            {
+                close(in);
+            }
+        }
+
+        try
+        {
+            journal = openJournal(false);
+        }
+        catch (IOException e)
+        {
+            throw new IndexingException("Could not open index journal " + journalFile + ": " + e.getMessage());
+        }
+
+        int count = 0;
+        lock.lock();
+        try
+        {
+            for (Change change : replayed)
+            {
+                if (change.lastSequence > replayedApplied || replayedAbandoned.contains(change))
+                {
+                    enqueue(change.operation, change.metadata, change.id, null);
+                    count++;
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        if (count > 0)
+        {
+            LOG.info("Replaying " + count + " index changes from " + journalFile);
+        }
+    }
+
+    /**
+     * Opens the journal.
+     *
+     * @param append
+     *            whether to append to it or start it afresh
+     * @return the journal
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private DataOutputStream openJournal(boolean append) throws IOException
+    {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, append)));
+    }
+
+    /**
+     * Closes a journal stream, quietly.
+     *
+     * @param in
+     *            the stream
+     */
+    private void close(DataInputStream in)
+    {
+        if (in != null)
+        {
+            try
+            {
+                in.close();
+            }
+            catch (IOException e)
+            {
+                LOG.warn("Could not close index journal " + journalFile + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Applies what is queued and stops.
+     */
+    public void close()
+    {
+        lock.lock();
+        try
+        {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        try
+        {
+            applier.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        lock.lock();
+        try
+        {
+            if (journal != null)
+            {
+                journal.close();
+                journal = null;
+            }
+        }
+        catch (IOException e)
+        {
+            LOG.warn("Could not close index journal " + journalFile + ": " + e.getMessage());
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        if (em != null)
+        {
+            em.close();
+        }
+    }
+
+    /**
+     * A queued change of an entity.
+     */
+    private static final class Change
+    {
+
+        /** The operation. */
+        private Operation operation;
+
+        /** The metadata. */
+        private final EntityMetadata metadata;
+
+        /** The id. */
+        private final String id;
+
+        /** State of the entity, null to read it when applied. */
+        private byte[] state;
+
+        /** Sequence number of the first change coalesced into this one. */
+        private long firstSequence;
+
+        /** Sequence number of the last change coalesced into this one. */
+        private long lastSequence;
+
+        /** Attempts that failed. */
+        private int attempts;
+
+        /**
+         * Instantiates a new change.
+         *
+         * @param operation
+         *            the operation
+         * @param metadata
+         *            the metadata
+         * @param id
+         *            the id
+         * @param state
+         *            the state
+         * @param sequence
+         *            the sequence
+         */
+        private Change(Operation operation, EntityMetadata metadata, String id, byte[] state, long sequence)
+        {
+            this.operation = operation;
+            this.metadata = metadata;
+            this.id = id;
+            this.state = state;
+            this.firstSequence = sequence;
+            this.lastSequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.index;
+
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Reserves blocks of document numbers by claiming them in a datastore shared
+ * by all writers. A block is claimed by writing a claim under its number; the
+ * oldest claim of a block wins, and losers move on to the next block.
+ *
+ * A claim older than ours may still be in flight when we read the claims back,
+ * so a writer that finds itself the oldest waits a grace period, longer than a
+ * claim write can take, and reads them again before using the block. Claims
+ * are ordered by the timestamps of the datastore, so clocks of the writers
+ * must be in sync to well within the grace period.
+ *
+ * @author animesh.kumar
+ */
+public abstract class ClaimingDocIdReserver implements DocIdReserver
+{
+
+    /*
+     * @see com.impetus.kundera.index.DocIdReserver#reserveDocIdBlock(java.lang.String,
+     * int)
+     */
+    @Override
+    public long reserveDocIdBlock(String indexName, int blockSize) throws Exception
+    {
+        String token = UUID.randomUUID().toString();
+        long block = getLastBlock(indexName) + 1;
+        while (block * blockSize + blockSize <= Integer.MAX_VALUE)
+        {
+            writeClaim(indexName, block, token);
+            if (isOldest(token, readClaims(indexName, block)))
+            {
+                Thread.sleep(getClaimGrace());
+                if (isOldest(token, readClaims(indexName, block)))
+                {
+                    return block;
+                }
+            }
+            block++;
+        }
+        throw new IndexingException("Document numbers of " + indexName + " exhausted.");
+    }
+
+    /**
+     * Checks whether a claim is the oldest of a block, ties going to the
+     * lowest token.
+     *
+     * @param token
+     *            the token of the claim
+     * @param claims
+     *            timestamps of the claims of the block, by token
+     * @return true, if it is
+     */
+    private boolean isOldest(String token, Map<String, Long> claims)
+    {
+        Long timestamp = claims.get(token);
+        if (timestamp == null)
+        {
+            return false;
+        }
+        for (Map.Entry<String, Long> claim : claims.entrySet())
+        {
+            long other = claim.getValue();
+            if (other < timestamp || (other == timestamp && claim.getKey().compareTo(token) < 0))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the highest block of an index anyone claimed.
+     *
+     * @param indexName
+     *            the index name
+     * @return the block number, 0 if none
+     * @throws Exception
+     *             the exception
+     */
+    protected abstract long getLastBlock(String indexName) throws Exception;
+
+    /**
+     * Writes a claim of a block, returning once the datastore holds it.
+     *
+     * @param indexName
+     *            the index name
+     * @param block
+     *            the block number
+     * @param token
+     *            the token of the claim
+     * @throws Exception
+     *             the exception
+     */
+    protected abstract void writeClaim(String indexName, long block, String token) throws Exception;
+
+    /**
+     * Reads the claims of a block.
+     *
+     * @param indexName
+     *            the index name
+     * @param block
+     *            the block number
+     * @return timestamps of the claims, by token
+     * @throws Exception
+     *             the exception
+     */
+    protected abstract Map<String, Long> readClaims(String indexName, long block) throws Exception;
+
+    /**
+     * Gets how long to wait before reading claims again; longer than a claim
+     * write can take, the skew of writer clocks included.
+     *
+     * @return the grace period, in milliseconds
+     */
+    protected abstract long getClaimGrace();
+}
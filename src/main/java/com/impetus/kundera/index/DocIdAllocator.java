@@ -0,0 +1,273 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.index;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Hands out Lucandra document numbers from blocks reserved through a
+ * {@link DocIdReserver}, one reservation per block. Without a reserver,
+ * blocks are only unique within this JVM. Reservations can take a while, see
+ * {@link ClaimingDocIdReserver}, so they run in the background: the next
+ * block of an index is reserved once half of the current one is handed out,
+ * and no lock is held while waiting for one. Each index has a lock of its
+ * own, so a reservation for one never holds up the others.
+ *
+ * The block size is set with <code>kundera.index.docid_block_size</code>,
+ * default 1000. Numbers left in a block, and a block reserved ahead, when the
+ * JVM stops are not used.
+ *
+ * @author animesh.kumar
+ */
+public class DocIdAllocator
+{
+
+    /** The Constant LOG. */
+    private static final Log LOG = LogFactory.getLog(DocIdAllocator.class);
+
+    /** The Constant BLOCK_SIZE. */
+    public static final String BLOCK_SIZE = "kundera.index.docid_block_size";
+
+    /** The Constant DEFAULT_BLOCK_SIZE. */
+    public static final int DEFAULT_BLOCK_SIZE = 1000;
+
+    /** The reserver, null to reserve within this JVM. */
+    private final DocIdReserver reserver;
+
+    /** The block size. */
+    private final int blockSize;
+
+    /** Blocks of each index. */
+    private final ConcurrentMap<String, Blocks> blocks = new ConcurrentHashMap<String, Blocks>();
+
+    /** Reserves blocks, null without a reserver. */
+    private final ExecutorService reservations;
+
+    /**
+     * Instantiates a new doc id allocator.
+     *
+     * @param reserver
+     *            the reserver, null to reserve within this JVM
+     * @param blockSize
+     *            the block size
+     */
+    public DocIdAllocator(DocIdReserver reserver, int blockSize)
+    {
+        if (blockSize < 1)
+        {
+            throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+        }
+        if (reserver == null)
+        {
+            LOG.warn("No document number reserver, numbers are unique within this JVM only.");
+        }
+        this.reserver = reserver;
+        this.blockSize = blockSize;
+        reservations = reserver == null ? null : Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "kundera-docid-reserve");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Creates the allocator from persistence unit properties.
+     *
+     * @param reserver
+     *            the reserver, may be null
+     * @param props
+     *            the props, may be null
+     * @return the allocator
+     */
+    public static DocIdAllocator fromProperties(DocIdReserver reserver, Map<?, ?> props)
+    {
+        int blockSize = DEFAULT_BLOCK_SIZE;
+        if (props != null && props.get(BLOCK_SIZE) != null)
+        {
+            blockSize = Integer.parseInt(props.get(BLOCK_SIZE).toString().trim());
+        }
+        return new DocIdAllocator(reserver, blockSize);
+    }
+
+    /**
+     * Gets the next document number of an index, waiting for a block to be
+     * reserved if none is left.
+     *
+     * @param indexName
+     *            the index name
+     * @return the document number
+     */
+    public int next(String indexName)
+    {
+        Blocks index = blocks.get(indexName);
+        if (index == null)
+        {
+            Blocks existing = blocks.putIfAbsent(indexName, index = new Blocks());
+            if (existing != null)
+            {
+                index = existing;
+            }
+        }
+
+        while (true)
+        {
+            Future<Long> reserving;
+            synchronized (index)
+            {
+                if (index.next < index.end)
+                {
+                    int number = (int) index.next++;
+                    if ((index.end - index.next) * 2 <= blockSize && index.reserving == null && reservations != null)
+                    {
+                        index.reserving = reserve(indexName);
+                    }
+                    return number;
+                }
+                if (reservations == null)
+                {
+                    index.install(indexName, ++index.lastLocal);
+                    continue;
+                }
+                if (index.reserving == null)
+                {
+                    index.reserving = reserve(indexName);
+                }
+                reserving = index.reserving;
+            }
+
+            // wait without the lock; whoever gets there first installs it
+            long block = await(indexName, index, reserving);
+            synchronized (index)
+            {
+                if (index.reserving == reserving)
+                {
+                    index.reserving = null;
+                    index.install(indexName, block);
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts reserving the next block of an index in the background.
+     *
+     * @param indexName
+     *            the index name
+     * @return the block number, once reserved
+     */
+    private Future<Long> reserve(final String indexName)
+    {
+        return reservations.submit(new Callable<Long>()
+        {
+            @Override
+            public Long call() throws Exception
+            {
+                return reserver.reserveDocIdBlock(indexName, blockSize);
+            }
+        });
+    }
+
+    /**
+     * Waits for a block being reserved. A failed reservation is dropped, so
+     * the next caller tries again.
+     *
+     * @param indexName
+     *            the index name
+     * @param index
+     *            the blocks of the index
+     * @param reserving
+     *            the reservation
+     * @return the block number
+     */
+    private long await(String indexName, Blocks index, Future<Long> reserving)
+    {
+        try
+        {
+            return reserving.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IndexingException("Interrupted while reserving document numbers of " + indexName);
+        }
+        catch (ExecutionException e)
+        {
+            synchronized (index)
+            {
+                if (index.reserving == reserving)
+                {
+                    index.reserving = null;
+                }
+            }
+            throw new IndexingException("Could not reserve document numbers of " + indexName + ": "
+                    + e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Numbers of one index, guarded by itself.
+     */
+    private final class Blocks
+    {
+
+        /** Next number of the current block. */
+        private long next;
+
+        /** End of the current block. */
+        private long end;
+
+        /** The next block being reserved, null if none. */
+        private Future<Long> reserving;
+
+        /** Last block reserved within this JVM. */
+        private long lastLocal;
+
+        /**
+         * Makes a block the current one.
+         *
+         * @param indexName
+         *            the index name
+         * @param block
+         *            the block number
+         */
+        private void install(String indexName, long block)
+        {
+            long first = block * blockSize;
+            if (first + blockSize > Integer.MAX_VALUE)
+            {
+                throw new IndexingException("Document numbers of " + indexName + " exhausted.");
+            }
+            next = first;
+            end = first + blockSize;
+        }
+    }
+}
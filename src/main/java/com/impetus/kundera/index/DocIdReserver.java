@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.index;
+
+/**
+ * Reserves blocks of Lucandra document numbers, so that no two writers of an
+ * index, in this JVM or another, use the same number. Implemented by clients
+ * that can reserve them in the datastore, see {@link DocIdAllocator}.
+ *
+ * @author animesh.kumar
+ */
+public interface DocIdReserver
+{
+
+    /**
+     * Reserves the next free block of document numbers of an index.
+     *
+     * @param indexName
+     *            the index name
+     * @param blockSize
+     *            the block size
+     * @return the number of the block reserved, starting at 1; it holds the
+     *         document numbers from number * blockSize on
+     * @throws Exception
+     *             the exception
+     */
+    long reserveDocIdBlock(String indexName, int blockSize) throws Exception;
+}
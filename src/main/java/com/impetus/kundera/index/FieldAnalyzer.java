@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.index;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.util.Version;
+
+/**
+ * Analyzes each field with the analyzer set for it, others with a default
+ * one. Unlike Lucene's PerFieldAnalyzerWrapper, analyzers may be set while
+ * fields are analyzed, as entities are first seen.
+ *
+ * @author animesh.kumar
+ */
+public final class FieldAnalyzer extends Analyzer
+{
+
+    /** Analyzers by class name, one instance of each. */
+    private static final ConcurrentMap<String, Analyzer> NAMED = new ConcurrentHashMap<String, Analyzer>();
+
+    /** The default analyzer. */
+    private final Analyzer defaultAnalyzer;
+
+    /** Analyzers by field name. */
+    private final ConcurrentMap<String, Analyzer> analyzers = new ConcurrentHashMap<String, Analyzer>();
+
+    /**
+     * Instantiates a new field analyzer.
+     *
+     * @param defaultAnalyzer
+     *            the default analyzer
+     */
+    public FieldAnalyzer(Analyzer defaultAnalyzer)
+    {
+        this.defaultAnalyzer = defaultAnalyzer;
+    }
+
+    /**
+     * Sets the analyzer of a field, unless set already.
+     *
+     * @param field
+     *            the field
+     * @param className
+     *            the class name of the analyzer, see {@link #forName(String)}
+     */
+    public void setAnalyzer(String field, String className)
+    {
+        if (!analyzers.containsKey(field))
+        {
+            analyzers.putIfAbsent(field, forName(className));
+        }
+    }
+
+    /**
+     * Gets the analyzer of a class, created with the current Lucene version
+     * if it takes one.
+     *
+     * @param className
+     *            the class name
+     * @return the analyzer
+     */
+    @SuppressWarnings("deprecation")
+    public static Analyzer forName(String className)
+    {
+        Analyzer analyzer = NAMED.get(className);
+        if (analyzer != null)
+        {
+            return analyzer;
+        }
+        try
+        {
+            Class<? extends Analyzer> clazz = Class.forName(className).asSubclass(Analyzer.class);
+            try
+            {
+                analyzer = clazz.getConstructor(Version.class).newInstance(Version.LUCENE_CURRENT);
+            }
+            catch (NoSuchMethodException e)
+            {
+                analyzer = clazz.newInstance();
+            }
+        }
+        catch (Exception e)
+        {
+            throw new IndexingException("Could not create analyzer " + className + ": " + e.getMessage());
+        }
+        Analyzer existing = NAMED.putIfAbsent(className, analyzer);
+        return existing == null ? analyzer : existing;
+    }
+
+    /**
+     * Gets the analyzer of a field.
+     *
+     * @param field
+     *            the field
+     * @return the analyzer
+     */
+    private Analyzer getAnalyzer(String field)
+    {
+        Analyzer analyzer = analyzers.get(field);
+        return analyzer == null ? defaultAnalyzer : analyzer;
+    }
+
+    /*
+     * @see org.apache.lucene.analysis.Analyzer#tokenStream(java.lang.String,
+     * java.io.Reader)
+     */
+    @Override
+    public TokenStream tokenStream(String fieldName, Reader reader)
+    {
+        return getAnalyzer(fieldName).tokenStream(fieldName, reader);
+    }
+
+    /*
+     * @see
+     * org.apache.lucene.analysis.Analyzer#reusableTokenStream(java.lang.String
+     * , java.io.Reader)
+     */
+    @Override
+    public TokenStream reusableTokenStream(String fieldName, Reader reader) throws IOException
+    {
+        return getAnalyzer(fieldName).reusableTokenStream(fieldName, reader);
+    }
+
+    /*
+     * @see
+     * org.apache.lucene.analysis.Analyzer#getPositionIncrementGap(java.lang
+     * .String)
+     */
+    @Override
+    public int getPositionIncrementGap(String fieldName)
+    {
+        return getAnalyzer(fieldName).getPositionIncrementGap(fieldName);
+    }
+
+    /*
+     * @see
+     * org.apache.lucene.analysis.Analyzer#getOffsetGap(org.apache.lucene.document
+     * .Fieldable)
+     */
+    @Override
+    public int getOffsetGap(Fieldable field)
+    {
+        return getAnalyzer(field.name()).getOffsetGap(field);
+    }
+}
@@ -15,6 +15,7 @@
  ******************************************************************************/
 package com.impetus.kundera.index;
 
+import java.util.List;
 import java.util.Map;
 
 import javax.persistence.PersistenceException;
@@ -23,15 +24,19 @@ import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.util.Version;
 
 import com.impetus.kundera.Constants;
-import com.impetus.kundera.ejb.EntityManagerImpl;
+import com.impetus.kundera.ejb.EntityManagerFactoryImpl;
 import com.impetus.kundera.loader.DBType;
 import com.impetus.kundera.metadata.EntityMetadata;
 import com.impetus.kundera.mongodb.query.MongoDBIndexer;
+import com.impetus.kundera.property.PropertyAccessException;
 import com.impetus.kundera.property.PropertyAccessorHelper;
+import com.impetus.kundera.query.QueryResultCache;
 
 /**
- * Manager responsible to co-ordinate with an Indexer. It is bound with
- * EntityManager.
+ * Manager responsible to co-ordinate with an Indexer. It is shared by all
+ * EntityManagers of a factory. With <code>kundera.index.async.enabled</code>
+ * index changes are applied in the background, see
+ * {@link AsyncIndexingQueue}.
  *
  * @author animesh.kumar
  */
@@ -41,25 +46,46 @@ public class IndexManager
     /** The indexer. */
     private Indexer indexer;
 
+    /** Query results to invalidate on index changes. */
+    private QueryResultCache queryResultCache;
+
+    /** Index changes waiting to be applied, null if applied right away. */
+    private AsyncIndexingQueue asyncQueue;
+
+    /**
+     * The Constructor.
+     *
+     * @param factory
+     *            the factory
+     */
+    public IndexManager(EntityManagerFactoryImpl factory)
+    {
+        this(factory, null);
+    }
+
     /**
      * The Constructor.
      *
-     * @param manager
-     *            the manager
+     * @param factory
+     *            the factory
+     * @param props
+     *            persistence unit properties, may be null
      */
     @SuppressWarnings("deprecation")
-    public IndexManager(EntityManagerImpl manager)
+    public IndexManager(EntityManagerFactoryImpl factory, Map<?, ?> props)
     {
-        DBType dbType = manager.getClient().getType();
+        DBType dbType = factory.getClient().getType();
         if (dbType.MONGODB.equals(dbType))
         {
-            indexer = new MongoDBIndexer(manager.getClient());
+            indexer = new MongoDBIndexer(factory.getClient());
         }
         else
         {
-            indexer = new KunderaIndexer(manager.getClient(), new StandardAnalyzer(Version.LUCENE_CURRENT));
+            indexer = new KunderaIndexer(factory.getClient(), new StandardAnalyzer(Version.LUCENE_CURRENT), props,
+                    factory.getMetadataManager());
         }
-
+        queryResultCache = factory.getQueryResultCache();
+        asyncQueue = AsyncIndexingQueue.fromProperties(indexer, factory, queryResultCache, props);
     }
 
     /**
@@ -71,9 +97,15 @@ public class IndexManager
      *            the entity
      * @param key
      *            the key
+     * @return sequence number to wait for the change with, 0 if applied
+     * @see #awaitIndexed(long, long)
      */
-    public final void remove(EntityMetadata metadata, Object entity, String key)
+    public final long remove(EntityMetadata metadata, Object entity, String key)
     {
+        if (asyncQueue != null)
+        {
+            return asyncQueue.unindex(metadata, key);
+        }
         try
         {
             indexer.unindex(metadata, key);
@@ -82,6 +114,11 @@ public class IndexManager
         {
             throw new PersistenceException(e.getMessage());
         }
+        finally
+        {
+            queryResultCache.invalidate(metadata.getEntityClazz());
+        }
+        return 0;
     }
 
     /**
@@ -91,19 +128,27 @@ public class IndexManager
      *            the metadata
      * @param entity
      *            the entity
+     * @return sequence number to wait for the change with, 0 if applied
      */
-    public final void update(EntityMetadata metadata, Object entity)
+    public final long update(EntityMetadata metadata, Object entity)
     {
+        if (asyncQueue != null)
+        {
+            return asyncQueue.update(metadata, getId(metadata, entity), entity);
+        }
         try
         {
-            String id = PropertyAccessorHelper.getId(entity, metadata);
-            indexer.unindex(metadata, id);
-            indexer.index(metadata, entity);
+            indexer.update(metadata, entity);
         }
         catch (Exception e)
         {
             throw new PersistenceException(e.getMessage());
         }
+        finally
+        {
+            queryResultCache.invalidate(metadata.getEntityClazz());
+        }
+        return 0;
     }
 
     /**
@@ -113,10 +158,97 @@ public class IndexManager
      *            the metadata
      * @param entity
      *            the entity
+     * @return sequence number to wait for the change with, 0 if applied
+     */
+    public final long write(EntityMetadata metadata, Object entity)
+    {
+        if (asyncQueue != null)
+        {
+            return asyncQueue.index(metadata, getId(metadata, entity), entity);
+        }
+        try
+        {
+            indexer.index(metadata, entity);
+        }
+        finally
+        {
+            // after indexing, so a query racing the write is not cached
+            queryResultCache.invalidate(metadata.getEntityClazz());
+        }
+        return 0;
+    }
+
+    /**
+     * Indexes objects of one class, invalidating cached query results once.
+     *
+     * @param metadata
+     *            the metadata
+     * @param entities
+     *            the entities
+     * @return sequence number to wait for the changes with, 0 if applied
+     */
+    public final long write(EntityMetadata metadata, List<?> entities)
+    {
+        if (asyncQueue != null)
+        {
+            long sequence = 0;
+            for (Object entity : entities)
+            {
+                sequence = asyncQueue.index(metadata, getId(metadata, entity), entity);
+            }
+            return sequence;
+        }
+        try
+        {
+            for (Object entity : entities)
+            {
+                indexer.index(metadata, entity);
+            }
+        }
+        finally
+        {
+            queryResultCache.invalidate(metadata.getEntityClazz());
+        }
+        return 0;
+    }
+
+    /**
+     * Waits until the index reflects every change up to a sequence number
+     * returned by {@link #write(EntityMetadata, Object)},
+     * {@link #update(EntityMetadata, Object)} or
+     * {@link #remove(EntityMetadata, Object, String)}.
+     *
+     * @param sequence
+     *            the sequence number
+     * @param timeout
+     *            the timeout, in milliseconds
+     * @return true, if the index caught up in time
+     */
+    public final boolean awaitIndexed(long sequence, long timeout)
+    {
+        return asyncQueue == null || sequence <= 0 || asyncQueue.await(sequence, timeout);
+    }
+
+    /**
+     * Gets the id of an entity.
+     *
+     * @param metadata
+     *            the metadata
+     * @param entity
+     *            the entity
+     * @return the id
      */
-    public final void write(EntityMetadata metadata, Object entity)
+    private String getId(EntityMetadata metadata, Object entity)
     {
-        indexer.index(metadata, entity);
+        try
+        {
+            return PropertyAccessorHelper.getId(entity, metadata);
+        }
+        catch (PropertyAccessException e)
+        {
+            throw new IndexingException("Can't read id of " + metadata.getEntityClazz().getName() + ": "
+                    + e.getMessage());
+        }
     }
 
     /**
@@ -162,4 +294,69 @@ public class IndexManager
         return indexer.search(query, start, count);
     }
 
+    /**
+     * Searches the index of an entity only.
+     *
+     * @param metadata
+     *            the metadata
+     * @param query
+     *            the query
+     * @param start
+     *            the start
+     * @param count
+     *            the count
+     * @return the search results
+     */
+    public final Map<String, String> search(EntityMetadata metadata, String query, int start, int count)
+    {
+        return indexer.search(metadata, query, start, count);
+    }
+
+    /**
+     * Searches the index of an entity only, in an order of its properties.
+     *
+     * @param metadata
+     *            the metadata
+     * @param query
+     *            the query
+     * @param ordering
+     *            the ordering, see {@link Indexer}
+     * @param start
+     *            the start
+     * @param count
+     *            the count
+     * @return the search results, in order
+     */
+    public final Map<String, String> search(EntityMetadata metadata, String query, String ordering, int start,
+            int count)
+    {
+        return indexer.search(metadata, query, ordering, start, count);
+    }
+
+    /**
+     * Counts the hits of a query in the index of an entity.
+     *
+     * @param metadata
+     *            the metadata
+     * @param query
+     *            the query
+     * @return the number of hits
+     */
+    public final int count(EntityMetadata metadata, String query)
+    {
+        return indexer.count(metadata, query);
+    }
+
+    /**
+     * Flushes pending index changes and releases the index.
+     */
+    public final void close()
+    {
+        if (asyncQueue != null)
+        {
+            asyncQueue.close();
+        }
+        indexer.close();
+    }
+
 }
@@ -0,0 +1,288 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import lucandra.IndexReader;
+
+import org.apache.cassandra.db.RowMutation;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * One partition of the index: an index of its own, written, committed and
+ * refreshed independently of the others. A partition lives in Cassandra,
+ * through Lucandra, or in a local directory, with a {@link SharedIndexWriter}
+ * and a {@link SearcherManager} of its own.
+ * 
+ * Lucandra changes are buffered per thread until {@link #flush()}, so the
+ * documents of one entity are written together; their document numbers come
+ * from a {@link DocIdAllocator}.
+ *
+ * @author animesh.kumar
+ */
+public class IndexPartition
+{
+
+    /** The name, also the Lucandra index name. */
+    private final String name;
+
+    /** The local directory, null if the partition is kept by Lucandra. */
+    private final File directory;
+
+    /** The analyzer. */
+    private final Analyzer analyzer;
+
+    /** Document numbers of a Lucandra partition. */
+    private final DocIdAllocator docIds;
+
+    /** Lucandra writers, buffering the changes of their thread. */
+    private final ThreadLocal<lucandra.IndexWriter> lucandraWriter = new ThreadLocal<lucandra.IndexWriter>()
+    {
+        @Override
+        protected lucandra.IndexWriter initialValue()
+        {
+            return new lucandra.IndexWriter();
+        }
+    };
+
+    /** Persistence unit properties, configuring writer and searchers. */
+    private final Map<?, ?> props;
+
+    /** Writer of a local partition, opened on first use. */
+    private volatile SharedIndexWriter writer;
+
+    /** Searchers of the partition, opened on first search. */
+    private volatile SearcherManager searcherManager;
+
+    /**
+     * Instantiates a new index partition.
+     *
+     * @param name
+     *            the name
+     * @param directory
+     *            the local directory, null to keep the partition in
+     *            Cassandra
+     * @param analyzer
+     *            the analyzer
+     * @param docIds
+     *            document numbers of a Lucandra partition, null for a local
+     *            one
+     * @param props
+     *            persistence unit properties, may be null
+     */
+    public IndexPartition(String name, File directory, Analyzer analyzer, DocIdAllocator docIds, Map<?, ?> props)
+    {
+        this.name = name;
+        this.directory = directory;
+        this.analyzer = analyzer;
+        this.docIds = docIds;
+        this.props = props;
+    }
+
+    /**
+     * Gets the name.
+     *
+     * @return the name
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Adds a document. Lucandra documents are written on {@link #flush()}.
+     *
+     * @param document
+     *            the document
+     */
+    public void addDocument(Document document)
+    {
+        if (directory != null)
+        {
+            getWriter().addDocument(document);
+            return;
+        }
+        try
+        {
+            RowMutation[] rms = null;
+            lucandraWriter.get().addDocument(name, document, analyzer, docIds.next(name), false, rms);
+        }
+        catch (Exception e)
+        {
+            throw new IndexingException(e.getMessage());
+        }
+    }
+
+    /**
+     * Replaces the documents having a term with a document. Lucandra
+     * documents are added only; their old ones must be deleted beforehand.
+     *
+     * @param term
+     *            the term
+     * @param document
+     *            the document
+     */
+    public void updateDocument(Term term, Document document)
+    {
+        if (directory != null)
+        {
+            getWriter().updateDocument(term, document);
+        }
+        else
+        {
+            addDocument(document);
+        }
+    }
+
+    /**
+     * Deletes the documents having a term. Lucandra documents are deleted on
+     * {@link #flush()}.
+     *
+     * @param term
+     *            the term
+     */
+    public void deleteDocuments(Term term)
+    {
+        if (directory != null)
+        {
+            getWriter().deleteDocuments(term);
+            return;
+        }
+        try
+        {
+            lucandraWriter.get().deleteDocuments(name, term, false);
+        }
+        catch (Exception e)
+        {
+            throw new IndexingException(e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the Lucandra changes buffered by this thread, in one batch. Local
+     * changes are committed by their writer and need no flush.
+     */
+    public void flush()
+    {
+        if (directory != null)
+        {
+            return;
+        }
+        try
+        {
+            lucandraWriter.get().commit(name, true);
+        }
+        catch (Exception e)
+        {
+            throw new IndexingException(e.getMessage());
+        }
+    }
+
+    /**
+     * Gets the writer of a local partition, opening it on first use.
+     *
+     * @return the writer
+     */
+    private SharedIndexWriter getWriter()
+    {
+        if (writer == null)
+        {
+            synchronized (this)
+            {
+                if (writer == null)
+                {
+                    if (!directory.isDirectory())
+                    {
+                        directory.mkdirs();
+                    }
+                    try
+                    {
+                        writer = SharedIndexWriter.fromProperties(FSDirectory.open(directory), analyzer, props);
+                    }
+                    catch (IOException e)
+                    {
+                        throw new IndexingException(e.getMessage());
+                    }
+                }
+            }
+        }
+        return writer;
+    }
+
+    /**
+     * Gets the searcher manager of the partition, opening it on first use. A
+     * local partition is read near real time from its writer.
+     *
+     * @return the searcher manager
+     */
+    public SearcherManager getSearcherManager()
+    {
+        if (searcherManager == null)
+        {
+            synchronized (this)
+            {
+                if (searcherManager == null)
+                {
+                    try
+                    {
+                        org.apache.lucene.index.IndexReader reader;
+                        if (directory == null)
+                        {
+                            reader = new IndexReader(name);
+                        }
+                        else
+                        {
+                            reader = org.apache.lucene.index.IndexReader.open(getWriter().getIndexWriter(), true);
+                        }
+                        searcherManager = SearcherManager.fromProperties(reader, props);
+                    }
+                    catch (IndexingException e)
+                    {
+                        throw e;
+                    }
+                    catch (Exception e)
+                    {
+                        throw new IndexingException(e.getMessage());
+                    }
+                }
+            }
+        }
+        return searcherManager;
+    }
+
+    /**
+     * Closes searchers and writer of the partition.
+     */
+    public synchronized void close()
+    {
+        if (searcherManager != null)
+        {
+            searcherManager.close();
+            searcherManager = null;
+        }
+        if (writer != null)
+        {
+            writer.close();
+            writer = null;
+        }
+    }
+}
@@ -47,6 +47,16 @@ public interface Indexer
      */
     void index(EntityMetadata metadata, Object object);
 
+    /**
+     * Replaces the indexed state of an object.
+     *
+     * @param metadata
+     *            the metadata
+     * @param object
+     *            the object
+     */
+    void update(EntityMetadata metadata, Object object);
+
     /**
      * Searches for an object. Note that the "query" must be in Indexer
      * specified form.
@@ -62,4 +72,54 @@ public interface Indexer
     // List<String> search(String query, int start, int count);
 
     Map<String, String> search(String luceneQuery, int start, int count);
+
+    /**
+     * Searches for objects of an entity, in its part of the index only.
+     *
+     * @param metadata
+     *            the metadata
+     * @param luceneQuery
+     *            the query
+     * @param start
+     *            the start
+     * @param count
+     *            the count
+     * @return the search results
+     */
+    Map<String, String> search(EntityMetadata metadata, String luceneQuery, int start, int count);
+
+    /**
+     * Searches for objects of an entity, in its part of the index only, in
+     * an order of its properties.
+     *
+     * @param metadata
+     *            the metadata
+     * @param luceneQuery
+     *            the query
+     * @param ordering
+     *            comma separated properties, each followed by ASC or DESC
+     *            optionally; null to order by relevance
+     * @param start
+     *            the start
+     * @param count
+     *            the count
+     * @return the search results, in order
+     */
+    Map<String, String> search(EntityMetadata metadata, String luceneQuery, String ordering, int start, int count);
+
+    /**
+     * Counts the objects of an entity matching a query.
+     *
+     * @param metadata
+     *            the metadata
+     * @param luceneQuery
+     *            the query
+     * @return the number of hits
+     */
+    int count(EntityMetadata metadata, String luceneQuery);
+
+    /**
+     * Flushes pending changes and releases the index.
+     */
+    void close();
 }
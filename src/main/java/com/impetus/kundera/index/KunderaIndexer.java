@@ -17,38 +17,46 @@ package com.impetus.kundera.index;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
-import lucandra.IndexReader;
-
-import org.apache.cassandra.db.RowMutation;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
-import org.apache.lucene.index.CorruptIndexException;
-import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.queryParser.QueryParser;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
-import org.apache.lucene.store.LockObtainFailedException;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
 import org.apache.lucene.util.Version;
 
 import com.impetus.kundera.Client;
 import com.impetus.kundera.Constants;
+import com.impetus.kundera.index.PagingCollector.Hit;
 import com.impetus.kundera.loader.DBType;
 import com.impetus.kundera.metadata.EntityMetadata;
 import com.impetus.kundera.metadata.EntityMetadata.PropertyIndex;
+import com.impetus.kundera.metadata.MetadataManager;
 import com.impetus.kundera.property.PropertyAccessException;
 import com.impetus.kundera.property.PropertyAccessorHelper;
 
@@ -56,6 +64,24 @@ import com.impetus.kundera.property.PropertyAccessorHelper;
 /**
  * The Class KunderaIndexer.
  * 
+ * All entities go into one index unless
+ * <code>kundera.index.partitioning</code> is <code>entity</code>; each index
+ * name of {@link EntityMetadata#getIndexName()} then gets an
+ * {@link IndexPartition} of its own, split further by id hash into
+ * <code>kundera.index.partitions.&lt;index name&gt;</code> partitions if set.
+ * Partitions are committed and refreshed independently, and searched in
+ * parallel.
+ * 
+ * Numeric and date properties are indexed as numbers, so that ranges of them
+ * are searched within the index, see {@link NumericQueryParser}. Text
+ * properties get an untokenized copy as well, so that hits can be sorted by
+ * any property. Each property is indexed as its {@link PropertyIndex} tells:
+ * as a keyword or analyzed by an analyzer of its own, with or without norms,
+ * stored or not.
+ * 
+ * On Cassandra, all Lucandra changes of one index, update or unindex are
+ * written to the partition together, see {@link IndexPartition#flush()}.
+ * 
  * @author animesh.kumar
  */
 public class KunderaIndexer implements Indexer
@@ -93,14 +119,79 @@ public class KunderaIndexer implements Indexer
     /** The Constant SUPERCOLUMN_INDEX. */
     private static final String SUPERCOLUMN_INDEX = UUID + ".entity.super.indexname";
 
-    /** The doc number. */
-    private static int docNumber = 1;
+    /** Prefix of the untokenized copies of text properties, sorted by. */
+    private static final String SORT_FIELD_PREFIX = UUID + ".sort.";
+
+    /** The Constant PARTITIONING. */
+    public static final String PARTITIONING = "kundera.index.partitioning";
+
+    /** Partitions by index name, see {@link #PARTITIONING}. */
+    public static final String ENTITY_PARTITIONING = "entity";
+
+    /** Prefix of the number of hash partitions of an index name. */
+    public static final String HASH_PARTITIONS = "kundera.index.partitions.";
+
+    /** Hits read at a time by searches for every hit. */
+    private static final int PAGE_SIZE = 100;
+
+    /** The most cursors kept. */
+    private static final int MAX_CURSORS = 256;
 
     /** The client. */
     private Client client;
 
-    /** The analyzer. */
-    private Analyzer analyzer;
+    /** The analyzer, by field. */
+    private final FieldAnalyzer analyzer;
+
+    /** Persistence unit properties, configuring the writer. */
+    private Map<?, ?> props;
+
+    /** Metadata of every entity, to find partitions not opened yet; may be null. */
+    private final MetadataManager metadataManager;
+
+    /** Whether each index name has partitions of its own. */
+    private final boolean partitioned;
+
+    /** Partitions by name, opened on first use. */
+    private final ConcurrentMap<String, IndexPartition> partitions = new ConcurrentHashMap<String, IndexPartition>();
+
+    /** Document numbers of Lucandra partitions, created on first use. */
+    private volatile DocIdAllocator docIds;
+
+    /** Searches partitions in parallel, created on first use. */
+    private volatile ExecutorService searchExecutor;
+
+    /** Where pages served end, by partitions, query and position. */
+    private final Map<String, Cursor> cursors = Collections.synchronizedMap(new LinkedHashMap<String, Cursor>(16,
+            0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Cursor> eldest)
+        {
+            return size() > MAX_CURSORS;
+        }
+    });
+
+    /** Types of the properties indexed as numbers, by field name. */
+    private final ConcurrentMap<String, Class<?>> numericFields = new ConcurrentHashMap<String, Class<?>>();
+
+    /** Names of the properties indexed as keywords. */
+    private final Set<String> keywordFields = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /** Entities whose fields are registered. */
+    private final Set<Class<?>> registered = Collections.newSetFromMap(new ConcurrentHashMap<Class<?>, Boolean>());
+
+    /** Query parsers, which are not thread safe, one per thread. */
+    private final ThreadLocal<QueryParser> queryParser = new ThreadLocal<QueryParser>()
+    {
+        @SuppressWarnings("deprecation")
+        @Override
+        protected QueryParser initialValue()
+        {
+            return new NumericQueryParser(Version.LUCENE_CURRENT, DEFAULT_SEARCHABLE_FIELD, analyzer, numericFields,
+                    keywordFields);
+        }
+    };
 
     /**
      * Instantiates a new lucandra indexer.
@@ -111,9 +202,49 @@ public class KunderaIndexer implements Indexer
      *            the analyzer
      */
     public KunderaIndexer(Client client, Analyzer analyzer)
+    {
+        this(client, analyzer, null);
+    }
+
+    /**
+     * Instantiates a new lucandra indexer.
+     * 
+     * @param client
+     *            the client
+     * @param analyzer
+     *            the analyzer of properties having none of their own
+     * @param props
+     *            persistence unit properties, see {@link SharedIndexWriter}
+     *            and {@link #PARTITIONING}
+     */
+    public KunderaIndexer(Client client, Analyzer analyzer, Map<?, ?> props)
+    {
+        this(client, analyzer, props, null);
+    }
+
+    /**
+     * Instantiates a new lucandra indexer.
+     * 
+     * @param client
+     *            the client
+     * @param analyzer
+     *            the analyzer of properties having none of their own
+     * @param props
+     *            persistence unit properties, see {@link SharedIndexWriter}
+     *            and {@link #PARTITIONING}
+     * @param metadataManager
+     *            metadata of every entity, so a search of all entities covers
+     *            the Lucandra partitions of those not written since start;
+     *            may be null
+     */
+    public KunderaIndexer(Client client, Analyzer analyzer, Map<?, ?> props, MetadataManager metadataManager)
     {
         this.client = client;
-        this.analyzer = analyzer;
+        this.metadataManager = metadataManager;
+        this.analyzer = new FieldAnalyzer(analyzer);
+        this.props = props;
+        this.partitioned = props != null && props.get(PARTITIONING) != null
+                && ENTITY_PARTITIONING.equalsIgnoreCase(props.get(PARTITIONING).toString().trim());
     }
 
     /*
@@ -132,19 +263,14 @@ public class KunderaIndexer implements Indexer
     public final void unindex(EntityMetadata metadata, String id)
     {
         LOG.debug("Unindexing @Entity[" + metadata.getEntityClazz().getName() + "] for key:" + id);
+        IndexPartition partition = getPartition(metadata, id);
         try
         {
-            /* String indexName, Query query, boolean autoCommit */
-
-            getIndexWriter().deleteDocuments(INDEX_NAME, new Term(KUNDERA_ID_FIELD, getKunderaId(metadata, id)), true);
-        }
-        catch (CorruptIndexException e)
-        {
-            throw new IndexingException(e.getMessage());
+            partition.deleteDocuments(new Term(KUNDERA_ID_FIELD, getKunderaId(metadata, id)));
         }
-        catch (IOException e)
+        finally
         {
-            throw new IndexingException(e.getMessage());
+            partition.flush();
         }
     }
 
@@ -171,7 +297,85 @@ public class KunderaIndexer implements Indexer
 
         LOG.debug("Indexing @Entity[" + metadata.getEntityClazz().getName() + "] " + object);
 
-        performIndexing(metadata, object);
+        registerFields(metadata);
+        IndexPartition partition = getPartition(metadata, getId(metadata, object));
+        try
+        {
+            performIndexing(metadata, object);
+        }
+        finally
+        {
+            partition.flush();
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.impetus.kundera.index.Indexer#update(com.impetus.kundera.metadata.
+     * EntityMetadata, java.lang.Object)
+     */
+    @Override
+    public final void update(EntityMetadata metadata, Object object)
+    {
+        if (!metadata.getDBType().equals(DBType.CASSANDRA))
+        {
+            // local index documents replace the old ones as they are written
+            index(metadata, object);
+            return;
+        }
+        registerFields(metadata);
+        String id = getId(metadata, object);
+        IndexPartition partition = getPartition(metadata, id);
+        try
+        {
+            // old documents go in the same batch as the new ones
+            partition.deleteDocuments(new Term(KUNDERA_ID_FIELD, getKunderaId(metadata, id)));
+            if (metadata.isIndexable())
+            {
+                performIndexing(metadata, object);
+            }
+        }
+        finally
+        {
+            partition.flush();
+        }
+    }
+
+    /**
+     * Gets the id of an entity.
+     * 
+     * @param metadata
+     *            the metadata
+     * @param object
+     *            the object
+     * @return the id
+     */
+    private String getId(EntityMetadata metadata, Object object)
+    {
+        try
+        {
+            return PropertyAccessorHelper.getId(object, metadata);
+        }
+        catch (PropertyAccessException e)
+        {
+            throw new IllegalArgumentException("Id could not be read.");
+        }
+    }
+
+    /* @see com.impetus.kundera.index.Indexer#close() */
+    @Override
+    public final void close()
+    {
+        if (searchExecutor != null)
+        {
+            searchExecutor.shutdown();
+        }
+        for (IndexPartition partition : partitions.values())
+        {
+            partition.close();
+        }
     }
 
     /**
@@ -190,6 +394,12 @@ public class KunderaIndexer implements Indexer
         // we need to create seperate lucene document for indexing.
         if (metadata.getType().equals(EntityMetadata.Type.SUPER_COLUMN_FAMILY))
         {
+            if (!metadata.getDBType().equals(DBType.CASSANDRA))
+            {
+                // one document per super column, so the old ones go first
+                String id = getId(metadata, object);
+                getPartition(metadata, id).deleteDocuments(new Term(KUNDERA_ID_FIELD, getKunderaId(metadata, id)));
+            }
             Map<String, EntityMetadata.SuperColumn> superColMap = metadata.getSuperColumnsMap();
 
             for (String superColumnName : superColMap.keySet())
@@ -229,7 +439,7 @@ public class KunderaIndexer implements Indexer
             currentDoc = new Document();
             prepareIndexDocument(metadata, object, currentDoc);
             addIndexProperties(metadata, object, currentDoc);
-            onPersist(metadata, currentDoc);
+            onPersist(metadata, currentDoc, true);
         }
 
     }
@@ -265,14 +475,12 @@ public class KunderaIndexer implements Indexer
     {
         for (EntityMetadata.Column col : superColumn.getColumns())
         {
-            java.lang.reflect.Field field = col.getField();
-            String colName = col.getName();
-            String indexName = metadata.getIndexName();
-            indexField(embeddedObject, currentDoc, field, colName, indexName);
+            indexField(embeddedObject, currentDoc, metadata.new PropertyIndex(col.getField(), col.getName()),
+                    metadata.getIndexName());
         }
         // add document.
         addIndexProperties(metadata, object, currentDoc);
-        onPersist(metadata, currentDoc);
+        onPersist(metadata, currentDoc, false);
     }
 
     /**
@@ -285,8 +493,9 @@ public class KunderaIndexer implements Indexer
      */
     private void indexSuperColumnName(String superColumnName, Document currentDoc)
     {
+        // a single term, read back through the field cache
         Field luceneField = new Field(SUPERCOLUMN_INDEX, superColumnName, Field.Store.YES,
-                Field.Index.ANALYZED_NO_NORMS);
+                Field.Index.NOT_ANALYZED_NO_NORMS);
         currentDoc.add(luceneField);
 
     }
@@ -298,33 +507,20 @@ public class KunderaIndexer implements Indexer
      *            the metadata
      * @param document
      *            the document
+     * @param replace
+     *            whether the document replaces those of the same entity
      */
-    private void onPersist(EntityMetadata metadata, Document document)
+    private void onPersist(EntityMetadata metadata, Document document, boolean replace)
     {
-        try
-        {
-            LOG.debug("Flushing to Lucandra: " + document);
-            if (!metadata.getDBType().equals(DBType.CASSANDRA))
-            {
-                IndexWriter w = getDefaultIndexWriter();
-                w.addDocument(document, analyzer);
-                w.optimize();
-                w.commit();
-                w.close();
-
-            }
-            else
-            {
-                indexDocument(document);
-            }
-        }
-        catch (CorruptIndexException e)
+        LOG.debug("Flushing to Lucandra: " + document);
+        IndexPartition partition = getPartition(metadata, document.get(ENTITY_ID_FIELD));
+        if (replace)
         {
-            throw new IndexingException(e.getMessage());
+            partition.updateDocument(new Term(KUNDERA_ID_FIELD, document.get(KUNDERA_ID_FIELD)), document);
         }
-        catch (IOException e)
+        else
         {
-            throw new IndexingException(e.getMessage());
+            partition.addDocument(document);
         }
     }
 
@@ -343,10 +539,7 @@ public class KunderaIndexer implements Indexer
         String indexName = metadata.getIndexName();
         for (PropertyIndex index : metadata.getIndexProperties())
         {
-
-            java.lang.reflect.Field property = index.getProperty();
-            String propertyName = index.getName();
-            indexField(object, document, property, propertyName, indexName);
+            indexField(object, document, index, indexName);
         }
     }
 
@@ -373,11 +566,11 @@ public class KunderaIndexer implements Indexer
                     Field.Store.YES, Field.Index.ANALYZED_NO_NORMS);
             document.add(luceneField);
 
-            // index namespace for unique deletion
+            // index namespace for unique deletion, as a single term
             luceneField = new Field(KUNDERA_ID_FIELD, getKunderaId(metadata, id), // adding
                     // class
                     // namespace
-                    Field.Store.YES, Field.Index.ANALYZED_NO_NORMS);
+                    Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS);
             document.add(luceneField);
 
             // index entity class
@@ -396,30 +589,6 @@ public class KunderaIndexer implements Indexer
         }
     }
 
-    /**
-     * Index document.
-     * 
-     * @param document
-     *            the document
-     */
-    private void indexDocument(Document document)
-    {
-        try
-        {
-            RowMutation[] rms = null;
-            lucandra.IndexWriter indexWriter = getIndexWriter();
-            indexWriter.addDocument(INDEX_NAME, document, analyzer, docNumber++, true, rms);
-        }
-        catch (CorruptIndexException e)
-        {
-            throw new IndexingException(e.getMessage());
-        }
-        catch (IOException e)
-        {
-            throw new IndexingException(e.getMessage());
-        }
-    }
-
     /**
      * Index field.
      * 
@@ -427,24 +596,50 @@ public class KunderaIndexer implements Indexer
      *            the object
      * @param document
      *            the document
-     * @param field
-     *            the field
-     * @param colName
-     *            the col name
+     * @param index
+     *            the property and how it is indexed
      * @param indexName
      *            the index name
      */
-    private void indexField(Object object, Document document, java.lang.reflect.Field field, String colName,
-            String indexName)
+    private void indexField(Object object, Document document, PropertyIndex index, String indexName)
     {
+        java.lang.reflect.Field field = index.getProperty();
         try
         {
+            String name = getCannonicalPropertyName(indexName, index.getName());
+            if (NumericQueryParser.isNumeric(field.getType()))
+            {
+                Object value = PropertyAccessorHelper.getObject(object, field);
+                if (value != null)
+                {
+                    document.add(NumericQueryParser.newField(name, value, index.isStore()));
+                }
+                else
+                {
+                    LOG.warn("value is null for field" + field.getName());
+                }
+                return;
+            }
             String value = PropertyAccessorHelper.getString(object, field);
             if (value != null)
             {
-                Field luceneField = new Field(getCannonicalPropertyName(indexName, colName), value, Field.Store.NO,
-                        Field.Index.ANALYZED);
+                Field.Index how;
+                if (index.isKeyword())
+                {
+                    how = index.isNorms() ? Field.Index.NOT_ANALYZED : Field.Index.NOT_ANALYZED_NO_NORMS;
+                }
+                else
+                {
+                    how = index.isNorms() ? Field.Index.ANALYZED : Field.Index.ANALYZED_NO_NORMS;
+                }
+                Field luceneField = new Field(name, value, index.isStore() ? Field.Store.YES : Field.Store.NO, how);
                 document.add(luceneField);
+                if (!index.isKeyword())
+                {
+                    // keywords are sorted by as they are
+                    document.add(new Field(SORT_FIELD_PREFIX + name, value, Field.Store.NO,
+                            Field.Index.NOT_ANALYZED_NO_NORMS));
+                }
             }
             else
             {
@@ -462,72 +657,430 @@ public class KunderaIndexer implements Indexer
      * 
      * @see com.impetus.kundera.index.Indexer#search(java.lang.String, int, int)
      */
-    @SuppressWarnings("deprecation")
     @Override
     public final Map<String, String> search(String luceneQuery, int start, int count)
     {
+        List<IndexPartition> targets;
+        if (partitioned)
+        {
+            // not knowing the entity, every partition there is
+            targets = getAllPartitions();
+        }
+        else
+        {
+            targets = Collections.singletonList(getPartition(INDEX_NAME));
+        }
+        return search(targets, luceneQuery, null, start, count);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.impetus.kundera.index.Indexer#search(com.impetus.kundera.metadata
+     * .EntityMetadata, java.lang.String, int, int)
+     */
+    @Override
+    public final Map<String, String> search(EntityMetadata metadata, String luceneQuery, int start, int count)
+    {
+        return search(metadata, luceneQuery, null, start, count);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.impetus.kundera.index.Indexer#search(com.impetus.kundera.metadata
+     * .EntityMetadata, java.lang.String, java.lang.String, int, int)
+     */
+    @Override
+    public final Map<String, String> search(EntityMetadata metadata, String luceneQuery, String ordering, int start,
+            int count)
+    {
+        registerFields(metadata);
+        return search(getPartitions(metadata), luceneQuery, ordering, start, count);
+    }
 
-        if (Constants.INVALID == count)
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.impetus.kundera.index.Indexer#count(com.impetus.kundera.metadata
+     * .EntityMetadata, java.lang.String)
+     */
+    @Override
+    public final int count(EntityMetadata metadata, String luceneQuery)
+    {
+        registerFields(metadata);
+        List<IndexPartition> targets = getPartitions(metadata);
+        Query q = parse(luceneQuery);
+        List<SearcherManager> managers = new ArrayList<SearcherManager>(targets.size());
+        List<IndexSearcher> searchers = acquire(targets, managers);
+        try
         {
-            count = 100;
+            int totalHits = 0;
+            for (int i = 0; i < searchers.size(); i++)
+            {
+                PagingCollector collector = new PagingCollector(i, null, 0);
+                searchers.get(i).search(q, collector);
+                totalHits += collector.getTotalHits();
+            }
+            return totalHits;
         }
+        catch (IOException e)
+        {
+            throw new IndexingException(e.getMessage());
+        }
+        finally
+        {
+            release(managers, searchers);
+        }
+    }
 
-        LOG.debug("Searching index with query[" + luceneQuery + "], start:" + start + ", count:" + count);
+    /**
+     * Searches partitions, in parallel if more than one, keeping the hits of
+     * all by rank or ordering. A page following one served before continues
+     * from the last hit of that, if the partitions were not refreshed since.
+     * 
+     * @param targets
+     *            the partitions
+     * @param luceneQuery
+     *            the lucene query
+     * @param ordering
+     *            the ordering, null to rank by score
+     * @param start
+     *            the position of the first hit
+     * @param count
+     *            the count, {@link Constants#INVALID} for every hit
+     * @return the search results, in the order of the hits
+     */
+    private Map<String, String> search(List<IndexPartition> targets, String luceneQuery, String ordering,
+            int start, int count)
+    {
+        if (start < 0)
+        {
+            start = 0;
+        }
 
-        // Set<String> entityIds = new HashSet<String>();
-        Map<String, String> indexCol = new HashMap<String, String>();
+        LOG.debug("Searching index with query[" + luceneQuery + "], ordering:" + ordering + ", start:" + start
+                + ", count:" + count + ", partitions:" + targets.size());
 
-        org.apache.lucene.index.IndexReader indexReader = null;
+        // Set<String> entityIds = new HashSet<String>();
+        Map<String, String> indexCol = new LinkedHashMap<String, String>();
 
+        Query q = parse(luceneQuery);
+        Sort sort = getSort(ordering);
+        // pages of different orderings continue from cursors of their own
+        String searchKey = ordering == null ? luceneQuery : luceneQuery + " ORDER BY " + ordering;
+        List<SearcherManager> managers = new ArrayList<SearcherManager>(targets.size());
+        List<IndexSearcher> searchers = acquire(targets, managers);
         try
         {
-            if (client.getType().equals(DBType.CASSANDRA))
+            for (SearcherManager searcherManager : managers)
             {
-                indexReader = new IndexReader(INDEX_NAME);
+                searcherManager.recordQuery(q, sort, KUNDERA_ID_FIELD, SUPERCOLUMN_INDEX);
+            }
+
+            if (Constants.INVALID == count)
+            {
+                // every hit, a page at a time
+                List<Hit> page;
+                int position = start;
+                do
+                {
+                    page = page(targets, searchers, searchKey, q, sort, position, PAGE_SIZE);
+                    addHits(page, indexCol);
+                    position += page.size();
+                }
+                while (page.size() == PAGE_SIZE);
             }
             else
             {
-                indexReader = getDefaultReader();
+                addHits(page(targets, searchers, searchKey, q, sort, start, count), indexCol);
             }
         }
-        catch (Exception e)
+        catch (IOException e)
         {
             throw new IndexingException(e.getMessage());
         }
-        IndexSearcher searcher = new IndexSearcher(indexReader);
+        finally
+        {
+            release(managers, searchers);
+        }
 
-        QueryParser qp = new QueryParser(Version.LUCENE_CURRENT, DEFAULT_SEARCHABLE_FIELD, analyzer);
-        try
+        // log.debug("Result[" + entityIds + "]");
+        return indexCol;
+    }
+
+    /**
+     * Collects a page of hits.
+     * 
+     * @param targets
+     *            the partitions
+     * @param searchers
+     *            their searchers
+     * @param luceneQuery
+     *            the lucene query, with its ordering if any
+     * @param q
+     *            the parsed query
+     * @param sort
+     *            the sort, null to rank by score
+     * @param start
+     *            the position of the first hit
+     * @param count
+     *            the count
+     * @return the hits, best first
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private List<Hit> page(List<IndexPartition> targets, final List<IndexSearcher> searchers, String luceneQuery,
+            final Query q, final Sort sort, int start, int count) throws IOException
+    {
+        Hit after = null;
+        int skip = start;
+        if (start > 0)
         {
-            Query q = qp.parse(luceneQuery);
-            TopDocs docs = searcher.search(q, count);
+            Cursor cursor = cursors.get(getCursorKey(targets, luceneQuery, start));
+            if (cursor != null && cursor.isValid(searchers))
+            {
+                after = cursor.last;
+                skip = 0;
+            }
+        }
+        final Hit from = after;
+        final int n = (int) Math.min((long) skip + count, Integer.MAX_VALUE);
 
-            int nullCount=0;
-            //Assuming Supercol will be null in case if alias only.
-            //This is a quick fix
-            for (ScoreDoc sc : docs.scoreDocs)
+        List<Hit> hits = new ArrayList<Hit>();
+        if (searchers.size() == 1)
+        {
+            hits.addAll(collect(searchers.get(0), q, sort, 0, from, n));
+        }
+        else
+        {
+            List<Future<List<Hit>>> results = new ArrayList<Future<List<Hit>>>();
+            for (int i = 0; i < searchers.size(); i++)
             {
-                Document doc = searcher.doc(sc.doc);
-                String entityId = doc.get(ENTITY_ID_FIELD);
-                String superCol = doc.get(SUPERCOLUMN_INDEX);
-                if(superCol ==null)
+                final int partition = i;
+                results.add(getSearchExecutor().submit(new Callable<List<Hit>>()
                 {
-                    superCol= "SuperCol"+nullCount++;
+                    @Override
+                    public List<Hit> call() throws IOException
+                    {
+                        return collect(searchers.get(partition), q, sort, partition, from, n);
+                    }
+                }));
+            }
+            for (Future<List<Hit>> result : results)
+            {
+                try
+                {
+                    hits.addAll(result.get());
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IndexingException("Interrupted while searching " + luceneQuery);
+                }
+                catch (ExecutionException e)
+                {
+                    throw new IndexingException(e.getCause().getMessage());
                 }
-                indexCol.put(superCol, entityId);
             }
+            Collections.sort(hits, PagingCollector.order(sort));
+        }
+
+        List<Hit> page = new ArrayList<Hit>(hits.subList(Math.min(skip, hits.size()), Math.min(n, hits.size())));
+        if (!page.isEmpty())
+        {
+            // without the field values, which would keep the segments' cache
+            cursors.put(getCursorKey(targets, luceneQuery, start + page.size()), new Cursor(searchers, page.get(
+                    page.size() - 1).detach()));
+        }
+        return page;
+    }
+
+    /**
+     * Collects the top hits of one partition after a cursor.
+     * 
+     * @param searcher
+     *            the searcher
+     * @param q
+     *            the query
+     * @param sort
+     *            the sort, null to rank by score
+     * @param partition
+     *            the partition
+     * @param after
+     *            the cursor, null for the top hits
+     * @param count
+     *            the count
+     * @return the hits, best first
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private List<Hit> collect(IndexSearcher searcher, Query q, Sort sort, int partition, Hit after, int count)
+            throws IOException
+    {
+        PagingCollector collector = new PagingCollector(partition, after, count, sort, KUNDERA_ID_FIELD,
+                SUPERCOLUMN_INDEX);
+        searcher.search(q, collector);
+        return collector.getHits();
+    }
+
+    /**
+     * Adds the entity ids of hits, as read from the field cache while
+     * collecting; stored documents are not loaded.
+     * 
+     * @param hits
+     *            the hits
+     * @param indexCol
+     *            the search results to add to
+     */
+    private void addHits(List<Hit> hits, Map<String, String> indexCol)
+    {
+        //Assuming Supercol will be null in case if alias only.
+        //This is a quick fix
+        for (Hit hit : hits)
+        {
+            String kunderaId = hit.getValue(0);
+            String entityId = kunderaId == null ? null : kunderaId.substring(kunderaId.indexOf(DELIMETER) + 1);
+            String superCol = hit.getValue(1);
+            if(superCol ==null)
+            {
+                superCol= "SuperCol"+indexCol.size();
+            }
+            indexCol.put(superCol, entityId);
+        }
+    }
+
+    /**
+     * Parses a lucene query.
+     * 
+     * @param luceneQuery
+     *            the lucene query
+     * @return the query
+     */
+    private Query parse(String luceneQuery)
+    {
+        try
+        {
+            return queryParser.get().parse(luceneQuery);
         }
         catch (ParseException e)
         {
-            new IndexingException(e.getMessage());
+            throw new IndexingException(e.getMessage());
         }
-        catch (IOException e)
+    }
+
+    /**
+     * Gets the sort of an ordering. Numeric properties sort as numbers, text
+     * ones by their untokenized copy.
+     * 
+     * @param ordering
+     *            comma separated properties, each followed by ASC or DESC
+     *            optionally; null to rank by score
+     * @return the sort, null to rank by score
+     */
+    private Sort getSort(String ordering)
+    {
+        if (ordering == null || ordering.trim().length() == 0)
         {
-            new IndexingException(e.getMessage());
+            return null;
         }
+        String[] orders = ordering.split(",");
+        SortField[] sortFields = new SortField[orders.length];
+        for (int i = 0; i < orders.length; i++)
+        {
+            String[] parts = orders[i].trim().split("\\s+");
+            if (parts.length > 2 || (parts.length == 2 && !parts[1].equalsIgnoreCase("ASC")
+                    && !parts[1].equalsIgnoreCase("DESC")))
+            {
+                throw new IndexingException("Bad ordering: " + ordering);
+            }
+            String field = parts[0];
+            boolean reverse = parts.length == 2 && parts[1].equalsIgnoreCase("DESC");
+            Class<?> type = numericFields.get(field);
+            if (keywordFields.contains(field))
+            {
+                sortFields[i] = new SortField(field, SortField.STRING, reverse);
+            }
+            else if (type == null)
+            {
+                sortFields[i] = new SortField(SORT_FIELD_PREFIX + field, SortField.STRING, reverse);
+            }
+            else
+            {
+                sortFields[i] = new SortField(field, NumericQueryParser.getSortType(type), reverse);
+            }
+        }
+        return new Sort(sortFields);
+    }
 
-        // log.debug("Result[" + entityIds + "]");
-        return indexCol;
+    /**
+     * Acquires a searcher of each partition, so all pages of a search read
+     * the same state.
+     * 
+     * @param targets
+     *            the partitions
+     * @param managers
+     *            to add their searcher managers to
+     * @return the searchers
+     */
+    private List<IndexSearcher> acquire(List<IndexPartition> targets, List<SearcherManager> managers)
+    {
+        List<IndexSearcher> searchers = new ArrayList<IndexSearcher>(targets.size());
+        try
+        {
+            for (IndexPartition partition : targets)
+            {
+                SearcherManager searcherManager = partition.getSearcherManager();
+                searchers.add(searcherManager.acquire());
+                managers.add(searcherManager);
+            }
+        }
+        catch (RuntimeException e)
+        {
+            release(managers, searchers);
+            throw e;
+        }
+        return searchers;
+    }
+
+    /**
+     * Releases searchers.
+     * 
+     * @param managers
+     *            the searcher managers
+     * @param searchers
+     *            the searchers
+     */
+    private void release(List<SearcherManager> managers, List<IndexSearcher> searchers)
+    {
+        for (int i = 0; i < searchers.size(); i++)
+        {
+            managers.get(i).release(searchers.get(i));
+        }
+    }
+
+    /**
+     * Gets the key of the cursor at a position of a search.
+     * 
+     * @param targets
+     *            the partitions
+     * @param luceneQuery
+     *            the lucene query
+     * @param position
+     *            the position
+     * @return the cursor key
+     */
+    private String getCursorKey(List<IndexPartition> targets, String luceneQuery, int position)
+    {
+        StringBuilder key = new StringBuilder();
+        for (IndexPartition partition : targets)
+        {
+            key.append(partition.getName()).append(',');
+        }
+        return key.append('|').append(luceneQuery).append('|').append(position).toString();
     }
 
     /**
@@ -545,6 +1098,63 @@ public class KunderaIndexer implements Indexer
         return metadata.getEntityClazz().getCanonicalName() + DELIMETER + id;
     }
 
+    /**
+     * Registers how the properties of an entity are indexed, once, so that
+     * they are analyzed and parsed as such before any of it is indexed in
+     * this JVM.
+     * 
+     * @param metadata
+     *            the metadata
+     */
+    private void registerFields(EntityMetadata metadata)
+    {
+        if (registered.contains(metadata.getEntityClazz()))
+        {
+            return;
+        }
+        for (PropertyIndex index : metadata.getIndexProperties())
+        {
+            registerField(metadata, index);
+        }
+        if (metadata.getType().equals(EntityMetadata.Type.SUPER_COLUMN_FAMILY))
+        {
+            for (EntityMetadata.SuperColumn superColumn : metadata.getSuperColumnsMap().values())
+            {
+                for (EntityMetadata.Column col : superColumn.getColumns())
+                {
+                    registerField(metadata, metadata.new PropertyIndex(col.getField(), col.getName()));
+                }
+            }
+        }
+        registered.add(metadata.getEntityClazz());
+    }
+
+    /**
+     * Registers how a property is indexed.
+     * 
+     * @param metadata
+     *            the metadata
+     * @param index
+     *            the property index
+     */
+    private void registerField(EntityMetadata metadata, PropertyIndex index)
+    {
+        String name = getCannonicalPropertyName(metadata.getIndexName(), index.getName());
+        Class<?> type = index.getProperty().getType();
+        if (NumericQueryParser.isNumeric(type))
+        {
+            numericFields.putIfAbsent(name, type);
+        }
+        else if (index.isKeyword())
+        {
+            keywordFields.add(name);
+        }
+        else if (index.getAnalyzer() != null)
+        {
+            analyzer.setAnalyzer(name, index.getAnalyzer());
+        }
+    }
+
     /**
      * Gets the cannonical property name.
      * 
@@ -560,84 +1170,224 @@ public class KunderaIndexer implements Indexer
         return indexName + "." + propertyName;
     }
 
-    // helper method to get Lucandra IndexWriter object
     /**
-     * Gets the index writer.
+     * Gets the partitions of an entity.
      * 
-     * @return the index writer
+     * @param metadata
+     *            the metadata
+     * @return the partitions
      */
-    private lucandra.IndexWriter getIndexWriter()
+    private List<IndexPartition> getPartitions(EntityMetadata metadata)
     {
-        try
+        if (!partitioned)
         {
-            return new lucandra.IndexWriter();
+            return Collections.singletonList(getPartition(INDEX_NAME));
         }
-        catch (Exception e)
+        List<IndexPartition> entityPartitions = new ArrayList<IndexPartition>();
+        for (String name : getPartitionNames(metadata))
         {
-            throw new IndexingException(e.getMessage());
+            entityPartitions.add(getPartition(name));
         }
+        return entityPartitions;
     }
 
     /**
-     * Added for HBase support.
+     * Gets the names of the partitions of an entity.
      * 
-     * @return default index writer
+     * @param metadata
+     *            the metadata
+     * @return the partition names
      */
-    private IndexWriter getDefaultIndexWriter()
+    private List<String> getPartitionNames(EntityMetadata metadata)
     {
-        StandardAnalyzer analyzer = new StandardAnalyzer(Version.LUCENE_CURRENT);
-        Directory index = null;
-        IndexWriter w = null;
-        try
+        int hashPartitions = getHashPartitions(metadata);
+        if (hashPartitions == 1)
         {
-            index = FSDirectory.open(getIndexDirectory());
-            if (index.listAll().length == 0)
+            return Collections.singletonList(getPartitionName(metadata));
+        }
+        List<String> names = new ArrayList<String>(hashPartitions);
+        for (int i = 0; i < hashPartitions; i++)
+        {
+            names.add(getPartitionName(metadata) + "." + i);
+        }
+        return names;
+    }
+
+    /**
+     * Gets every partition, not only those opened since start: the local
+     * index has a directory for each partition written to, and Lucandra
+     * partitions follow from the metadata of indexed entities.
+     * 
+     * @return the partitions
+     */
+    private List<IndexPartition> getAllPartitions()
+    {
+        Set<String> names = new LinkedHashSet<String>(partitions.keySet());
+        if (!client.getType().equals(DBType.CASSANDRA))
+        {
+            File[] directories = getIndexDirectory().listFiles();
+            if (directories != null)
             {
-                LOG.info("Creating fresh Index because it was empty");
-                w = new IndexWriter(index, analyzer, true, IndexWriter.MaxFieldLength.LIMITED);
+                for (File directory : directories)
+                {
+                    if (directory.isDirectory() && directory.getName().startsWith(INDEX_NAME + "."))
+                    {
+                        names.add(directory.getName());
+                    }
+                }
             }
-            else
+        }
+        else if (metadataManager != null)
+        {
+            for (EntityMetadata metadata : metadataManager.getEntityMetadatasAsList())
             {
-                w = new IndexWriter(index, analyzer, false, IndexWriter.MaxFieldLength.LIMITED);
+                if (metadata.isIndexable())
+                {
+                    names.addAll(getPartitionNames(metadata));
+                }
             }
-
         }
-        catch (CorruptIndexException e)
+
+        List<IndexPartition> all = new ArrayList<IndexPartition>(names.size());
+        for (String name : names)
         {
-            throw new IndexingException(e.getMessage());
+            all.add(getPartition(name));
         }
-        catch (LockObtainFailedException e)
+        return all;
+    }
+
+    /**
+     * Gets the partition holding an entity.
+     * 
+     * @param metadata
+     *            the metadata
+     * @param id
+     *            the id
+     * @return the partition
+     */
+    private IndexPartition getPartition(EntityMetadata metadata, String id)
+    {
+        if (!partitioned)
         {
-            throw new IndexingException(e.getMessage());
+            return getPartition(INDEX_NAME);
         }
-        catch (IOException e)
+        int hashPartitions = getHashPartitions(metadata);
+        if (hashPartitions == 1)
         {
-            throw new IndexingException(e.getMessage());
+            return getPartition(getPartitionName(metadata));
         }
-        return w;
+        int hash = (id.hashCode() & Integer.MAX_VALUE) % hashPartitions;
+        return getPartition(getPartitionName(metadata) + "." + hash);
     }
 
     /**
-     * Returns default index reader.
+     * Gets a partition by name, opening it on first use. The local index of
+     * all entities stays where it was; partitions go below it.
      * 
-     * @return index reader.
+     * @param name
+     *            the name
+     * @return the partition
      */
-    private org.apache.lucene.index.IndexReader getDefaultReader()
+    private IndexPartition getPartition(String name)
     {
-        org.apache.lucene.index.IndexReader reader = null;
-        try
+        IndexPartition partition = partitions.get(name);
+        if (partition == null)
         {
-            reader = IndexReader.open(FSDirectory.open(getIndexDirectory()));
+            File directory = null;
+            DocIdAllocator partitionDocIds = null;
+            if (!client.getType().equals(DBType.CASSANDRA))
+            {
+                directory = INDEX_NAME.equals(name) ? getIndexDirectory() : new File(getIndexDirectory(), name);
+            }
+            else
+            {
+                partitionDocIds = getDocIds();
+            }
+            partition = new IndexPartition(name, directory, analyzer, partitionDocIds, props);
+            IndexPartition existing = partitions.putIfAbsent(name, partition);
+            if (existing != null)
+            {
+                partition = existing;
+            }
         }
-        catch (CorruptIndexException e)
+        return partition;
+    }
+
+    /**
+     * Gets the allocator of Lucandra document numbers, reserving them through
+     * the client if it can.
+     * 
+     * @return the doc ids
+     */
+    private DocIdAllocator getDocIds()
+    {
+        if (docIds == null)
         {
-            throw new IndexingException(e.getMessage());
+            synchronized (this)
+            {
+                if (docIds == null)
+                {
+                    docIds = DocIdAllocator.fromProperties(client instanceof DocIdReserver ? (DocIdReserver) client
+                            : null, props);
+                }
+            }
         }
-        catch (IOException e)
+        return docIds;
+    }
+
+    /**
+     * Gets the name of the partition of an entity.
+     * 
+     * @param metadata
+     *            the metadata
+     * @return the partition name
+     */
+    private String getPartitionName(EntityMetadata metadata)
+    {
+        return INDEX_NAME + "." + metadata.getIndexName().replaceAll("[^A-Za-z0-9_-]", "_");
+    }
+
+    /**
+     * Gets the number of hash partitions of an entity.
+     * 
+     * @param metadata
+     *            the metadata
+     * @return the hash partitions, at least 1
+     */
+    private int getHashPartitions(EntityMetadata metadata)
+    {
+        Object value = props.get(HASH_PARTITIONS + metadata.getIndexName());
+        return value == null ? 1 : Math.max(1, Integer.parseInt(value.toString().trim()));
+    }
+
+    /**
+     * Gets the executor searching partitions in parallel.
+     * 
+     * @return the search executor
+     */
+    private ExecutorService getSearchExecutor()
+    {
+        if (searchExecutor == null)
         {
-            throw new IndexingException(e.getMessage());
+            synchronized (this)
+            {
+                if (searchExecutor == null)
+                {
+                    searchExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                            new ThreadFactory()
+                            {
+                                @Override
+                                public Thread newThread(Runnable r)
+                                {
+                                    Thread t = new Thread(r, "kundera-index-search");
+                                    t.setDaemon(true);
+                                    return t;
+                                }
+                            });
+                }
+            }
         }
-        return reader;
+        return searchExecutor;
     }
 
     /**
@@ -655,4 +1405,55 @@ public class KunderaIndexer implements Indexer
         }
         return file;
     }
+
+    /**
+     * The last hit of a page served, and the readers it was found with.
+     */
+    private static final class Cursor
+    {
+
+        /** The readers of the partitions, not kept from closing. */
+        private final List<WeakReference<IndexReader>> readers;
+
+        /** The last hit. */
+        private final Hit last;
+
+        /**
+         * Instantiates a new cursor.
+         * 
+         * @param searchers
+         *            the searchers of the partitions
+         * @param last
+         *            the last hit
+         */
+        private Cursor(List<IndexSearcher> searchers, Hit last)
+        {
+            this.readers = new ArrayList<WeakReference<IndexReader>>(searchers.size());
+            for (IndexSearcher searcher : searchers)
+            {
+                readers.add(new WeakReference<IndexReader>(searcher.getIndexReader()));
+            }
+            this.last = last;
+        }
+
+        /**
+         * Whether the cursor holds for searchers, reading what it was found
+         * in.
+         * 
+         * @param searchers
+         *            the searchers
+         * @return true, if valid
+         */
+        private boolean isValid(List<IndexSearcher> searchers)
+        {
+            for (int i = 0; i < searchers.size(); i++)
+            {
+                if (readers.get(i).get() != searchers.get(i).getIndexReader())
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
 }
@@ -0,0 +1,363 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.index;
+
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.util.Version;
+
+/**
+ * Query parser aware of the fields indexed as {@link NumericField}s. Terms
+ * and ranges of those become {@link NumericRangeQuery}s; <code>*</code> opens
+ * either end of a range, numeric or not. Dates are numbers of milliseconds.
+ * Terms of keyword fields are taken as they are, neither analyzed nor
+ * lowercased.
+ *
+ * @author animesh.kumar
+ */
+public class NumericQueryParser extends QueryParser
+{
+
+    /** Open end of a range. */
+    private static final String OPEN = "*";
+
+    /** Types of the numeric fields, by field name. */
+    private final Map<String, Class<?>> numericFields;
+
+    /** Names of the fields indexed as single untokenized terms. */
+    private final Set<String> keywordFields;
+
+    /**
+     * Instantiates a new numeric query parser.
+     *
+     * @param matchVersion
+     *            the match version
+     * @param defaultField
+     *            the default field
+     * @param analyzer
+     *            the analyzer
+     * @param numericFields
+     *            types of the numeric fields, by field name; read on each
+     *            parse
+     */
+    public NumericQueryParser(Version matchVersion, String defaultField, Analyzer analyzer,
+            Map<String, Class<?>> numericFields)
+    {
+        this(matchVersion, defaultField, analyzer, numericFields, Collections.<String> emptySet());
+    }
+
+    /**
+     * Instantiates a new numeric query parser, aware of keyword fields too.
+     *
+     * @param matchVersion
+     *            the match version
+     * @param defaultField
+     *            the default field
+     * @param analyzer
+     *            the analyzer
+     * @param numericFields
+     *            types of the numeric fields, by field name; read on each
+     *            parse
+     * @param keywordFields
+     *            names of the keyword fields; read on each parse
+     */
+    public NumericQueryParser(Version matchVersion, String defaultField, Analyzer analyzer,
+            Map<String, Class<?>> numericFields, Set<String> keywordFields)
+    {
+        super(matchVersion, defaultField, analyzer);
+        this.numericFields = numericFields;
+        this.keywordFields = keywordFields;
+    }
+
+    /**
+     * Quotes a value as one term, or one phrase of an analyzed field,
+     * whatever characters it has. A quoted number of a numeric field still
+     * becomes a {@link NumericRangeQuery}, and a quoted range end an end.
+     *
+     * @param value
+     *            the value
+     * @return the quoted value
+     */
+    public static String quote(String value)
+    {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /**
+     * Escapes a value to be followed by <code>*</code> in a prefix query.
+     * Whitespace is escaped too, as a prefix cannot be quoted.
+     *
+     * @param value
+     *            the value
+     * @return the escaped value
+     */
+    public static String escapePrefix(String value)
+    {
+        return escape(value).replaceAll("(\\s)", "\\\\$1");
+    }
+
+    /**
+     * Whether values of a type are indexed as numbers.
+     *
+     * @param type
+     *            the type
+     * @return true, if numeric
+     */
+    public static boolean isNumeric(Class<?> type)
+    {
+        return type == int.class || type == Integer.class || type == long.class || type == Long.class
+                || type == short.class || type == Short.class || type == byte.class || type == Byte.class
+                || type == float.class || type == Float.class || type == double.class || type == Double.class
+                || Date.class.isAssignableFrom(type) || Calendar.class.isAssignableFrom(type);
+    }
+
+    /**
+     * Gets the {@link SortField} type of numbers of a type.
+     *
+     * @param type
+     *            the type, {@link #isNumeric(Class)}
+     * @return the sort type
+     */
+    public static int getSortType(Class<?> type)
+    {
+        if (isLong(type))
+        {
+            return SortField.LONG;
+        }
+        if (type == float.class || type == Float.class)
+        {
+            return SortField.FLOAT;
+        }
+        if (type == double.class || type == Double.class)
+        {
+            return SortField.DOUBLE;
+        }
+        return SortField.INT;
+    }
+
+    /**
+     * Whether numbers of a type are indexed as longs, dates included.
+     *
+     * @param type
+     *            the type
+     * @return true, if long
+     */
+    private static boolean isLong(Class<?> type)
+    {
+        return type == long.class || type == Long.class || Date.class.isAssignableFrom(type)
+                || Calendar.class.isAssignableFrom(type);
+    }
+
+    /**
+     * Creates the numeric field of a value.
+     *
+     * @param name
+     *            the field name
+     * @param value
+     *            the value, of a type {@link #isNumeric(Class)}
+     * @return the field
+     */
+    public static NumericField newField(String name, Object value)
+    {
+        return newField(name, value, false);
+    }
+
+    /**
+     * Creates the numeric field of a value, stored or not.
+     *
+     * @param name
+     *            the field name
+     * @param value
+     *            the value, of a type {@link #isNumeric(Class)}
+     * @param store
+     *            whether the value is stored
+     * @return the field
+     */
+    public static NumericField newField(String name, Object value, boolean store)
+    {
+        NumericField field = new NumericField(name, NumericField.DEFAULT_PRECISION_STEP, store ? Field.Store.YES
+                : Field.Store.NO, true);
+        if (value instanceof Date)
+        {
+            return field.setLongValue(((Date) value).getTime());
+        }
+        if (value instanceof Calendar)
+        {
+            return field.setLongValue(((Calendar) value).getTimeInMillis());
+        }
+        if (value instanceof Long)
+        {
+            return field.setLongValue((Long) value);
+        }
+        if (value instanceof Float)
+        {
+            return field.setFloatValue((Float) value);
+        }
+        if (value instanceof Double)
+        {
+            return field.setDoubleValue((Double) value);
+        }
+        return field.setIntValue(((Number) value).intValue());
+    }
+
+    /*
+     * @see org.apache.lucene.queryParser.QueryParser#getFieldQuery(java.lang.String,
+     * java.lang.String, boolean)
+     */
+    @Override
+    protected Query getFieldQuery(String field, String queryText, boolean quoted) throws ParseException
+    {
+        if (numericFields.containsKey(field))
+        {
+            return newNumericRangeQuery(field, queryText, queryText, true);
+        }
+        if (keywordFields.contains(field))
+        {
+            return newTermQuery(new Term(field, queryText));
+        }
+        return super.getFieldQuery(field, queryText, quoted);
+    }
+
+    /*
+     * @see org.apache.lucene.queryParser.QueryParser#getPrefixQuery(java.lang.String,
+     * java.lang.String)
+     */
+    @Override
+    protected Query getPrefixQuery(String field, String termStr) throws ParseException
+    {
+        if (keywordFields.contains(field))
+        {
+            return newPrefixQuery(new Term(field, termStr));
+        }
+        return super.getPrefixQuery(field, termStr);
+    }
+
+    /*
+     * @see org.apache.lucene.queryParser.QueryParser#getWildcardQuery(java.lang.String,
+     * java.lang.String)
+     */
+    @Override
+    protected Query getWildcardQuery(String field, String termStr) throws ParseException
+    {
+        if (keywordFields.contains(field))
+        {
+            return newWildcardQuery(new Term(field, termStr));
+        }
+        return super.getWildcardQuery(field, termStr);
+    }
+
+    /*
+     * @see org.apache.lucene.queryParser.QueryParser#getRangeQuery(java.lang.String,
+     * java.lang.String, java.lang.String, boolean)
+     */
+    @Override
+    protected Query getRangeQuery(String field, String part1, String part2, boolean inclusive)
+            throws ParseException
+    {
+        if (numericFields.containsKey(field))
+        {
+            return newNumericRangeQuery(field, part1, part2, inclusive);
+        }
+        if (keywordFields.contains(field))
+        {
+            return newRangeQuery(field, open(part1), open(part2), inclusive);
+        }
+        if (OPEN.equals(part1) || OPEN.equals(part2))
+        {
+            String min = open(part1);
+            String max = open(part2);
+            if (getLowercaseExpandedTerms())
+            {
+                min = min == null ? null : min.toLowerCase();
+                max = max == null ? null : max.toLowerCase();
+            }
+            return newRangeQuery(field, min, max, inclusive);
+        }
+        return super.getRangeQuery(field, part1, part2, inclusive);
+    }
+
+    /**
+     * Creates the range query of a numeric field.
+     *
+     * @param field
+     *            the field
+     * @param part1
+     *            the lower end, <code>*</code> if open
+     * @param part2
+     *            the upper end, <code>*</code> if open
+     * @param inclusive
+     *            whether the ends are included
+     * @return the query
+     * @throws ParseException
+     *             if an end is not a number of the field's type
+     */
+    private Query newNumericRangeQuery(String field, String part1, String part2, boolean inclusive)
+            throws ParseException
+    {
+        Class<?> type = numericFields.get(field);
+        String min = part1 == null ? null : open(part1.trim());
+        String max = part2 == null ? null : open(part2.trim());
+        try
+        {
+            if (isLong(type))
+            {
+                return NumericRangeQuery.newLongRange(field, min == null ? null : Long.valueOf(min),
+                        max == null ? null : Long.valueOf(max), inclusive, inclusive);
+            }
+            if (type == float.class || type == Float.class)
+            {
+                return NumericRangeQuery.newFloatRange(field, min == null ? null : Float.valueOf(min),
+                        max == null ? null : Float.valueOf(max), inclusive, inclusive);
+            }
+            if (type == double.class || type == Double.class)
+            {
+                return NumericRangeQuery.newDoubleRange(field, min == null ? null : Double.valueOf(min),
+                        max == null ? null : Double.valueOf(max), inclusive, inclusive);
+            }
+            return NumericRangeQuery.newIntRange(field, min == null ? null : Integer.valueOf(min),
+                    max == null ? null : Integer.valueOf(max), inclusive, inclusive);
+        }
+        catch (NumberFormatException e)
+        {
+            throw new ParseException("Not a " + type.getSimpleName() + " of " + field + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Maps an open end of a range to null.
+     *
+     * @param part
+     *            the end
+     * @return the end, null if open
+     */
+    private String open(String part)
+    {
+        return OPEN.equals(part) ? null : part;
+    }
+}
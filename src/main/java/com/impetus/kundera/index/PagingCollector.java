@@ -0,0 +1,525 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.index;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+
+/**
+ * Collects the top hits of one partition that rank after a cursor, so a page
+ * deep into the results costs the hits of that page only. Hits rank by
+ * descending score, then ascending partition, then ascending document, which
+ * is stable for as long as the partitions are read by the same readers.
+ *
+ * Given a {@link Sort}, hits rank by its fields instead of the score, ties
+ * still broken by partition and document. Sort values are read from the
+ * {@link FieldCache}; numeric fields must be indexed as numbers, text fields
+ * untokenized.
+ *
+ * Untokenized fields can be read for the hits from the {@link FieldCache},
+ * loaded once per segment, instead of from the stored documents.
+ *
+ * @author animesh.kumar
+ */
+public final class PagingCollector extends Collector
+{
+
+    /** Orders hits by rank, best first. */
+    public static final Comparator<Hit> BY_RANK = new Comparator<Hit>()
+    {
+        @Override
+        public int compare(Hit h1, Hit h2)
+        {
+            int c = Float.compare(h2.score, h1.score);
+            if (c == 0)
+            {
+                c = h1.partition - h2.partition;
+            }
+            return c != 0 ? c : h1.doc - h2.doc;
+        }
+    };
+
+    /** The partition. */
+    private final int partition;
+
+    /** The cursor, null to collect from the top. */
+    private final Hit after;
+
+    /** The sort fields, null to rank by score. */
+    private final SortField[] sortFields;
+
+    /** The order of hits, best first. */
+    private final Comparator<Hit> order;
+
+    /** Whether hits are scored. */
+    private final boolean scored;
+
+    /** Values of the sort fields in the segment collected, by sort field. */
+    private Object[] segmentSortValues;
+
+    /** The number of hits to keep. */
+    private final int count;
+
+    /** Fields read from the field cache for the hits. */
+    private final String[] fields;
+
+    /** Values of the fields in the segment collected, by field and doc. */
+    private String[][] segmentValues;
+
+    /** The best hits so far, worst first. */
+    private final PriorityQueue<Hit> queue;
+
+    /** The scorer. */
+    private Scorer scorer;
+
+    /** The doc base of the segment collected. */
+    private int docBase;
+
+    /** The total hits, collected or not. */
+    private int totalHits;
+
+    /**
+     * Instantiates a new paging collector.
+     *
+     * @param partition
+     *            the partition collected
+     * @param after
+     *            the last hit of the previous page, null for the first page
+     * @param count
+     *            the number of hits to keep
+     * @param fields
+     *            untokenized fields to read for the hits, see
+     *            {@link Hit#getValue(int)}
+     */
+    public PagingCollector(int partition, Hit after, int count, String... fields)
+    {
+        this(partition, after, count, null, fields);
+    }
+
+    /**
+     * Instantiates a new paging collector, ranking hits by a sort.
+     *
+     * @param partition
+     *            the partition collected
+     * @param after
+     *            the last hit of the previous page, null for the first page
+     * @param count
+     *            the number of hits to keep
+     * @param sort
+     *            the sort, null to rank by score
+     * @param fields
+     *            untokenized fields to read for the hits, see
+     *            {@link Hit#getValue(int)}
+     */
+    public PagingCollector(int partition, Hit after, int count, Sort sort, String... fields)
+    {
+        this.partition = partition;
+        this.after = after;
+        this.count = count;
+        this.fields = fields;
+        this.sortFields = sort == null ? null : sort.getSort();
+        this.order = order(sort);
+        this.scored = sortFields == null || isScored(sortFields);
+        this.queue = new PriorityQueue<Hit>(Math.max(1, count), Collections.reverseOrder(order));
+    }
+
+    /**
+     * Gets the order of hits under a sort, best first.
+     *
+     * @param sort
+     *            the sort, null to rank by score
+     * @return the order
+     */
+    public static Comparator<Hit> order(Sort sort)
+    {
+        if (sort == null)
+        {
+            return BY_RANK;
+        }
+        final SortField[] sortFields = sort.getSort();
+        return new Comparator<Hit>()
+        {
+            @Override
+            public int compare(Hit h1, Hit h2)
+            {
+                for (int i = 0; i < sortFields.length; i++)
+                {
+                    int c = compareValues(sortFields[i], h1.sortValues[i], h2.sortValues[i]);
+                    if (c != 0)
+                    {
+                        return c;
+                    }
+                }
+                int c = h1.partition - h2.partition;
+                return c != 0 ? c : h1.doc - h2.doc;
+            }
+        };
+    }
+
+    /**
+     * Compares the values of a sort field, in the order of the field.
+     *
+     * @param sortField
+     *            the sort field
+     * @param v1
+     *            the first value
+     * @param v2
+     *            the second value
+     * @return the comparison
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static int compareValues(SortField sortField, Object v1, Object v2)
+    {
+        int c;
+        if (v1 == null || v2 == null)
+        {
+            // documents without a value first
+            c = v1 == null ? (v2 == null ? 0 : -1) : 1;
+        }
+        else
+        {
+            c = ((Comparable) v1).compareTo(v2);
+        }
+        if (sortField.getType() == SortField.SCORE)
+        {
+            // best scores first, as Lucene does
+            c = -c;
+        }
+        return sortField.getReverse() ? -c : c;
+    }
+
+    /**
+     * Whether a sort ranks by score.
+     *
+     * @param sortFields
+     *            the sort fields
+     * @return true, if any of them is the score
+     */
+    private static boolean isScored(SortField[] sortFields)
+    {
+        for (SortField sortField : sortFields)
+        {
+            if (sortField.getType() == SortField.SCORE)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* @see org.apache.lucene.search.Collector#setScorer(org.apache.lucene.search.Scorer) */
+    @Override
+    public void setScorer(Scorer scorer) throws IOException
+    {
+        this.scorer = scorer;
+    }
+
+    /* @see org.apache.lucene.search.Collector#collect(int) */
+    @Override
+    public void collect(int doc) throws IOException
+    {
+        totalHits++;
+        if (count == 0)
+        {
+            return;
+        }
+        float score = scored ? scorer.score() : 0f;
+        Hit hit = new Hit(score, partition, docBase + doc, segmentValues, doc, getSortValues(score, doc));
+        if (after != null && order.compare(hit, after) <= 0)
+        {
+            // on an earlier page
+            return;
+        }
+        if (queue.size() < count)
+        {
+            queue.add(hit);
+        }
+        else if (order.compare(hit, queue.peek()) < 0)
+        {
+            queue.poll();
+            queue.add(hit);
+        }
+    }
+
+    /*
+     * @see
+     * org.apache.lucene.search.Collector#setNextReader(org.apache.lucene.index
+     * .IndexReader, int)
+     */
+    @Override
+    public void setNextReader(IndexReader reader, int docBase) throws IOException
+    {
+        this.docBase = docBase;
+        if (fields.length > 0 && count > 0)
+        {
+            segmentValues = new String[fields.length][];
+            for (int i = 0; i < fields.length; i++)
+            {
+                segmentValues[i] = FieldCache.DEFAULT.getStrings(reader, fields[i]);
+            }
+        }
+        if (sortFields != null && count > 0)
+        {
+            segmentSortValues = new Object[sortFields.length];
+            for (int i = 0; i < sortFields.length; i++)
+            {
+                segmentSortValues[i] = getSortValues(reader, sortFields[i]);
+            }
+        }
+    }
+
+    /**
+     * Reads the values of a sort field in a segment.
+     *
+     * @param reader
+     *            the segment reader
+     * @param sortField
+     *            the sort field
+     * @return the values, by doc; null for the score and doc
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private Object getSortValues(IndexReader reader, SortField sortField) throws IOException
+    {
+        switch (sortField.getType())
+        {
+        case SortField.INT:
+            return FieldCache.DEFAULT.getInts(reader, sortField.getField(), FieldCache.NUMERIC_UTILS_INT_PARSER);
+        case SortField.LONG:
+            return FieldCache.DEFAULT.getLongs(reader, sortField.getField(), FieldCache.NUMERIC_UTILS_LONG_PARSER);
+        case SortField.FLOAT:
+            return FieldCache.DEFAULT.getFloats(reader, sortField.getField(), FieldCache.NUMERIC_UTILS_FLOAT_PARSER);
+        case SortField.DOUBLE:
+            return FieldCache.DEFAULT.getDoubles(reader, sortField.getField(),
+                    FieldCache.NUMERIC_UTILS_DOUBLE_PARSER);
+        case SortField.STRING:
+            return FieldCache.DEFAULT.getStrings(reader, sortField.getField());
+        case SortField.SCORE:
+        case SortField.DOC:
+            return null;
+        default:
+            throw new IllegalArgumentException("Unsupported sort on " + sortField.getField());
+        }
+    }
+
+    /**
+     * Gets the values a hit is sorted by.
+     *
+     * @param score
+     *            the score of the hit
+     * @param doc
+     *            the doc within the segment
+     * @return the sort values, null if ranked by score
+     */
+    private Object[] getSortValues(float score, int doc)
+    {
+        if (sortFields == null)
+        {
+            return null;
+        }
+        Object[] values = new Object[sortFields.length];
+        for (int i = 0; i < sortFields.length; i++)
+        {
+            Object segment = segmentSortValues[i];
+            switch (sortFields[i].getType())
+            {
+            case SortField.INT:
+                values[i] = ((int[]) segment)[doc];
+                break;
+            case SortField.LONG:
+                values[i] = ((long[]) segment)[doc];
+                break;
+            case SortField.FLOAT:
+                values[i] = ((float[]) segment)[doc];
+                break;
+            case SortField.DOUBLE:
+                values[i] = ((double[]) segment)[doc];
+                break;
+            case SortField.STRING:
+                values[i] = ((String[]) segment)[doc];
+                break;
+            case SortField.SCORE:
+                values[i] = score;
+                break;
+            default:
+                values[i] = docBase + doc;
+                break;
+            }
+        }
+        return values;
+    }
+
+    /* @see org.apache.lucene.search.Collector#acceptsDocsOutOfOrder() */
+    @Override
+    public boolean acceptsDocsOutOfOrder()
+    {
+        return false;
+    }
+
+    /**
+     * Gets the hits kept, best first.
+     *
+     * @return the hits
+     */
+    public List<Hit> getHits()
+    {
+        List<Hit> hits = new ArrayList<Hit>(queue);
+        Collections.sort(hits, order);
+        return hits;
+    }
+
+    /**
+     * Gets the number of hits of the partition, on earlier pages or not.
+     *
+     * @return the total hits
+     */
+    public int getTotalHits()
+    {
+        return totalHits;
+    }
+
+    /**
+     * A hit of a partition.
+     */
+    public static final class Hit
+    {
+
+        /** The score. */
+        private final float score;
+
+        /** The partition. */
+        private final int partition;
+
+        /** The document, within the partition. */
+        private final int doc;
+
+        /** Values of the fields read in the segment of the hit, if any. */
+        private final String[][] values;
+
+        /** The document, within its segment. */
+        private final int segmentDoc;
+
+        /** The values of the sort fields, null if ranked by score. */
+        private final Object[] sortValues;
+
+        /**
+         * Instantiates a new hit.
+         *
+         * @param score
+         *            the score
+         * @param partition
+         *            the partition
+         * @param doc
+         *            the doc
+         */
+        public Hit(float score, int partition, int doc)
+        {
+            this(score, partition, doc, null, doc, null);
+        }
+
+        /**
+         * Instantiates a new hit, with the field values of its segment.
+         *
+         * @param score
+         *            the score
+         * @param partition
+         *            the partition
+         * @param doc
+         *            the doc
+         * @param values
+         *            the field values of the segment, by field and doc
+         * @param segmentDoc
+         *            the doc within the segment
+         * @param sortValues
+         *            the values of the sort fields, null if ranked by score
+         */
+        private Hit(float score, int partition, int doc, String[][] values, int segmentDoc, Object[] sortValues)
+        {
+            this.score = score;
+            this.partition = partition;
+            this.doc = doc;
+            this.values = values;
+            this.segmentDoc = segmentDoc;
+            this.sortValues = sortValues;
+        }
+
+        /**
+         * Copies the hit without the field values of its segment, which
+         * would keep the segment's field cache, but with what it is sorted
+         * by; a cursor of it orders as the hit.
+         *
+         * @return the copy
+         */
+        public Hit detach()
+        {
+            return new Hit(score, partition, doc, null, doc, sortValues);
+        }
+
+        /**
+         * Gets the score.
+         *
+         * @return the score
+         */
+        public float getScore()
+        {
+            return score;
+        }
+
+        /**
+         * Gets the partition.
+         *
+         * @return the partition
+         */
+        public int getPartition()
+        {
+            return partition;
+        }
+
+        /**
+         * Gets the doc.
+         *
+         * @return the doc
+         */
+        public int getDoc()
+        {
+            return doc;
+        }
+
+        /**
+         * Gets the value of a field read by the collector.
+         *
+         * @param field
+         *            the position of the field among those read
+         * @return the value, null if the document has none or fields were
+         *         not read
+         */
+        public String getValue(int field)
+        {
+            return values == null ? null : values[field][segmentDoc];
+        }
+    }
+}
@@ -0,0 +1,408 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.index;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+
+/**
+ * Shares one {@link IndexSearcher} of an index among concurrent queries. A
+ * query {@link #acquire()}s the current searcher and {@link #release}s it when
+ * done; the reader under it is reference counted, so it is closed once it is
+ * replaced and the last query using it is done.
+ *
+ * The reader is reopened when a query starts, if it no longer sees the latest
+ * changes and it was last reopened at least
+ * <code>kundera.index.max_staleness</code> milliseconds ago, default 0. One
+ * query reopens while the others go on with the current searcher. A reader
+ * opened from an {@link org.apache.lucene.index.IndexWriter} reopens near
+ * real time, seeing changes not committed yet. Before a new searcher is put
+ * to use, the last <code>kundera.index.warm_queries</code> distinct queries,
+ * default 8, are run on it to warm its caches, collecting hits the way
+ * queries do so the {@link FieldCache} entries they read are loaded too.
+ *
+ * A reader that refreshes in place, as Lucandra's does, returns itself from
+ * reopen; it stays the current searcher, and only its field cache entries,
+ * which no longer match its documents, are dropped and loaded again.
+ *
+ * @author animesh.kumar
+ */
+public class SearcherManager
+{
+
+    /** The Constant log. */
+    private static final Log LOG = LogFactory.getLog(SearcherManager.class);
+
+    /** The Constant MAX_STALENESS. */
+    public static final String MAX_STALENESS = "kundera.index.max_staleness";
+
+    /** The Constant WARM_QUERIES. */
+    public static final String WARM_QUERIES = "kundera.index.warm_queries";
+
+    /** The Constant DEFAULT_MAX_STALENESS, in milliseconds. */
+    public static final long DEFAULT_MAX_STALENESS = 0;
+
+    /** The Constant DEFAULT_WARM_QUERIES. */
+    public static final int DEFAULT_WARM_QUERIES = 8;
+
+    /** Hits asked for when warming. */
+    private static final int WARM_HITS = 10;
+
+    /** The current searcher, swapped while holding this manager's lock. */
+    private IndexSearcher current;
+
+    /** The max staleness, in milliseconds. */
+    private final long maxStaleness;
+
+    /** The number of queries kept for warming. */
+    private final int warmQueries;
+
+    /** Recent queries, oldest first, by query and sort. */
+    private final Map<String, RecentQuery> recentQueries = new LinkedHashMap<String, RecentQuery>();
+
+    /** When the reader was last reopened. */
+    private volatile long lastRefresh;
+
+    /** Held by the query reopening the reader. */
+    private final ReentrantLock refreshLock = new ReentrantLock();
+
+    /** The closed. */
+    private volatile boolean closed;
+
+    /**
+     * Instantiates a new searcher manager.
+     *
+     * @param reader
+     *            the reader to start with, now owned by the manager
+     * @param maxStaleness
+     *            the max staleness, in milliseconds
+     * @param warmQueries
+     *            the number of recent queries to warm new searchers with
+     */
+    public SearcherManager(IndexReader reader, long maxStaleness, int warmQueries)
+    {
+        this.current = new IndexSearcher(reader);
+        this.maxStaleness = maxStaleness;
+        this.warmQueries = warmQueries;
+        this.lastRefresh = System.currentTimeMillis();
+    }
+
+    /**
+     * Creates the searcher manager from persistence unit properties.
+     *
+     * @param reader
+     *            the reader to start with, now owned by the manager
+     * @param props
+     *            the props, may be null
+     * @return the searcher manager
+     */
+    public static SearcherManager fromProperties(IndexReader reader, Map<?, ?> props)
+    {
+        long maxStaleness = DEFAULT_MAX_STALENESS;
+        int warmQueries = DEFAULT_WARM_QUERIES;
+        if (props != null)
+        {
+            if (props.get(MAX_STALENESS) != null)
+            {
+                maxStaleness = Long.parseLong(props.get(MAX_STALENESS).toString().trim());
+            }
+            if (props.get(WARM_QUERIES) != null)
+            {
+                warmQueries = Integer.parseInt(props.get(WARM_QUERIES).toString().trim());
+            }
+        }
+        return new SearcherManager(reader, maxStaleness, warmQueries);
+    }
+
+    /**
+     * Gets the current searcher, reopening it first if it is stale. It must
+     * be given back with {@link #release(IndexSearcher)}.
+     *
+     * @return the index searcher
+     */
+    public IndexSearcher acquire()
+    {
+        if (closed)
+        {
+            throw new IndexingException("Searcher manager already closed.");
+        }
+        maybeRefresh();
+        synchronized (this)
+        {
+            // under the lock, so the reader cannot be released in between
+            IndexSearcher searcher = current;
+            searcher.getIndexReader().incRef();
+            return searcher;
+        }
+    }
+
+    /**
+     * Gives back a searcher from {@link #acquire()}.
+     *
+     * @param searcher
+     *            the searcher
+     */
+    public void release(IndexSearcher searcher)
+    {
+        decRef(searcher.getIndexReader());
+    }
+
+    /**
+     * Keeps a query to warm later searchers with.
+     *
+     * @param query
+     *            the query
+     */
+    public void recordQuery(Query query)
+    {
+        recordQuery(query, null);
+    }
+
+    /**
+     * Keeps a query to warm later searchers with, along with how its hits
+     * are collected.
+     *
+     * @param query
+     *            the query
+     * @param sort
+     *            the sort, null to rank by score
+     * @param fields
+     *            the fields read from the {@link FieldCache} for its hits
+     */
+    public void recordQuery(Query query, Sort sort, String... fields)
+    {
+        if (warmQueries <= 0)
+        {
+            return;
+        }
+        String key = query + "|" + sort + "|" + Arrays.toString(fields);
+        synchronized (recentQueries)
+        {
+            // most recent last
+            recentQueries.remove(key);
+            recentQueries.put(key, new RecentQuery(query, sort, fields));
+            if (recentQueries.size() > warmQueries)
+            {
+                Iterator<String> eldest = recentQueries.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Reopens the reader if it is stale, unless another query already is.
+     */
+    public void maybeRefresh()
+    {
+        if (System.currentTimeMillis() - lastRefresh < maxStaleness || !refreshLock.tryLock())
+        {
+            return;
+        }
+        try
+        {
+            if (closed)
+            {
+                return;
+            }
+            IndexReader reader;
+            synchronized (this)
+            {
+                reader = current.getIndexReader();
+            }
+            if (isCurrent(reader))
+            {
+                return;
+            }
+
+            IndexReader reopened = reader.reopen();
+            lastRefresh = System.currentTimeMillis();
+            if (reopened == reader)
+            {
+                // refreshed in place, if at all: no new searcher, and no
+                // reference to give back; cached fields may be out of date
+                FieldCache.DEFAULT.purge(reader);
+                IndexSearcher searcher;
+                synchronized (this)
+                {
+                    searcher = current;
+                }
+                warm(searcher);
+                return;
+            }
+
+            IndexSearcher searcher = new IndexSearcher(reopened);
+            warm(searcher);
+            synchronized (this)
+            {
+                current = searcher;
+            }
+            // closes once queries still using it are done
+            decRef(reader);
+        }
+        catch (IOException e)
+        {
+            throw new IndexingException(e.getMessage());
+        }
+        finally
+        {
+            refreshLock.unlock();
+        }
+    }
+
+    /**
+     * Checks whether a reader sees the latest changes. Readers that cannot
+     * tell are taken as stale.
+     *
+     * @param reader
+     *            the reader
+     * @return true, if current
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    private boolean isCurrent(IndexReader reader) throws IOException
+    {
+        try
+        {
+            return reader.isCurrent();
+        }
+        catch (UnsupportedOperationException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Runs the recent queries on a new searcher, collecting hits as they
+     * were, so the field cache entries they read are loaded.
+     *
+     * @param searcher
+     *            the searcher
+     */
+    private void warm(IndexSearcher searcher)
+    {
+        List<RecentQuery> queries;
+        synchronized (recentQueries)
+        {
+            queries = new ArrayList<RecentQuery>(recentQueries.values());
+        }
+        for (RecentQuery recent : queries)
+        {
+            try
+            {
+                searcher.search(recent.query, new PagingCollector(0, null, WARM_HITS, recent.sort, recent.fields));
+            }
+            catch (IOException e)
+            {
+                LOG.warn("Error while warming searcher with " + recent.query + ": " + e.getMessage());
+            }
+            catch (RuntimeException e)
+            {
+                LOG.warn("Error while warming searcher with " + recent.query + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Releases a reference to a reader.
+     *
+     * @param reader
+     *            the reader
+     */
+    private void decRef(IndexReader reader)
+    {
+        try
+        {
+            reader.decRef();
+        }
+        catch (IOException e)
+        {
+            throw new IndexingException(e.getMessage());
+        }
+    }
+
+    /**
+     * A query run recently, and how its hits were collected.
+     */
+    private static final class RecentQuery
+    {
+
+        /** The query. */
+        private final Query query;
+
+        /** The sort, null to rank by score. */
+        private final Sort sort;
+
+        /** The fields read from the field cache for its hits. */
+        private final String[] fields;
+
+        /**
+         * Instantiates a new recent query.
+         *
+         * @param query
+         *            the query
+         * @param sort
+         *            the sort
+         * @param fields
+         *            the fields
+         */
+        private RecentQuery(Query query, Sort sort, String[] fields)
+        {
+            this.query = query;
+            this.sort = sort;
+            this.fields = fields;
+        }
+    }
+
+    /**
+     * Releases the current searcher. Queries using it may finish.
+     */
+    public void close()
+    {
+        refreshLock.lock();
+        try
+        {
+            if (!closed)
+            {
+                closed = true;
+                IndexReader reader;
+                synchronized (this)
+                {
+                    reader = current.getIndexReader();
+                }
+                decRef(reader);
+            }
+        }
+        finally
+        {
+            refreshLock.unlock();
+        }
+    }
+}
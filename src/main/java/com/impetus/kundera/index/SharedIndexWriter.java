@@ -0,0 +1,341 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.index;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Version;
+
+/**
+ * One {@link IndexWriter} for an index, kept open and shared by all threads
+ * writing to it. Changes are committed every
+ * <code>kundera.index.commit_interval</code> milliseconds, default 1000, and
+ * once <code>kundera.index.commit_documents</code> changes are waiting,
+ * default 1000; either can be turned off with 0. Segments are merged in the
+ * background by a {@link TieredMergePolicy} allowing
+ * <code>kundera.index.segments_per_tier</code> segments per tier, default 10,
+ * rather than by optimizing the index. Documents are buffered in up to
+ * <code>kundera.index.ram_buffer_mb</code> of memory, default 16.
+ *
+ * @author animesh.kumar
+ */
+public class SharedIndexWriter
+{
+
+    /** The Constant log. */
+    private static final Log LOG = LogFactory.getLog(SharedIndexWriter.class);
+
+    /** The Constant COMMIT_INTERVAL. */
+    public static final String COMMIT_INTERVAL = "kundera.index.commit_interval";
+
+    /** The Constant COMMIT_DOCUMENTS. */
+    public static final String COMMIT_DOCUMENTS = "kundera.index.commit_documents";
+
+    /** The Constant SEGMENTS_PER_TIER. */
+    public static final String SEGMENTS_PER_TIER = "kundera.index.segments_per_tier";
+
+    /** The Constant RAM_BUFFER_MB. */
+    public static final String RAM_BUFFER_MB = "kundera.index.ram_buffer_mb";
+
+    /** The Constant DEFAULT_COMMIT_INTERVAL, in milliseconds. */
+    public static final long DEFAULT_COMMIT_INTERVAL = 1000;
+
+    /** The Constant DEFAULT_COMMIT_DOCUMENTS. */
+    public static final int DEFAULT_COMMIT_DOCUMENTS = 1000;
+
+    /** The Constant DEFAULT_SEGMENTS_PER_TIER. */
+    public static final double DEFAULT_SEGMENTS_PER_TIER = 10;
+
+    /** The Constant DEFAULT_RAM_BUFFER_MB. */
+    public static final double DEFAULT_RAM_BUFFER_MB = 16;
+
+    /** The writer. */
+    private final IndexWriter writer;
+
+    /** The analyzer. */
+    private final Analyzer analyzer;
+
+    /** Changes after which a commit is due, 0 for none. */
+    private final int commitDocuments;
+
+    /** Changes since the last commit. */
+    private final AtomicInteger uncommitted = new AtomicInteger();
+
+    /** Commits on the interval, null if there is none. */
+    private final ScheduledExecutorService committer;
+
+    /** Held while committing or closing. */
+    private final Object commitLock = new Object();
+
+    /** The closed. */
+    private volatile boolean closed;
+
+    /**
+     * Opens a writer on a directory, creating the index if there is none.
+     *
+     * @param directory
+     *            the directory
+     * @param analyzer
+     *            the analyzer
+     * @param commitInterval
+     *            milliseconds between commits, 0 for none
+     * @param commitDocuments
+     *            changes after which a commit is due, 0 for none
+     * @param segmentsPerTier
+     *            segments allowed per tier before a merge
+     * @param ramBufferMB
+     *            memory for buffered documents
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    @SuppressWarnings("deprecation")
+    public SharedIndexWriter(Directory directory, Analyzer analyzer, long commitInterval, int commitDocuments,
+            double segmentsPerTier, double ramBufferMB) throws IOException
+    {
+        this.analyzer = analyzer;
+        this.commitDocuments = commitDocuments;
+
+        TieredMergePolicy mergePolicy = new TieredMergePolicy();
+        mergePolicy.setSegmentsPerTier(segmentsPerTier);
+
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_CURRENT, analyzer);
+        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+        config.setMergePolicy(mergePolicy);
+        config.setRAMBufferSizeMB(ramBufferMB);
+        writer = new IndexWriter(directory, config);
+
+        if (commitInterval > 0)
+        {
+            committer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "kundera-index-commit");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            committer.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        commit();
+                    }
+                    catch (RuntimeException e)
+                    {
+                        LOG.error("Error while committing index: " + e.getMessage());
+                    }
+                }
+            }, commitInterval, commitInterval, TimeUnit.MILLISECONDS);
+        }
+        else
+        {
+            committer = null;
+        }
+    }
+
+    /**
+     * Opens a writer configured from persistence unit properties.
+     *
+     * @param directory
+     *            the directory
+     * @param analyzer
+     *            the analyzer
+     * @param props
+     *            the props, may be null
+     * @return the shared index writer
+     * @throws IOException
+     *             Signals that an I/O exception has occurred.
+     */
+    public static SharedIndexWriter fromProperties(Directory directory, Analyzer analyzer, Map<?, ?> props)
+            throws IOException
+    {
+        long commitInterval = DEFAULT_COMMIT_INTERVAL;
+        int commitDocuments = DEFAULT_COMMIT_DOCUMENTS;
+        double segmentsPerTier = DEFAULT_SEGMENTS_PER_TIER;
+        double ramBufferMB = DEFAULT_RAM_BUFFER_MB;
+        if (props != null)
+        {
+            if (props.get(COMMIT_INTERVAL) != null)
+            {
+                commitInterval = Long.parseLong(props.get(COMMIT_INTERVAL).toString().trim());
+            }
+            if (props.get(COMMIT_DOCUMENTS) != null)
+            {
+                commitDocuments = Integer.parseInt(props.get(COMMIT_DOCUMENTS).toString().trim());
+            }
+            if (props.get(SEGMENTS_PER_TIER) != null)
+            {
+                segmentsPerTier = Double.parseDouble(props.get(SEGMENTS_PER_TIER).toString().trim());
+            }
+            if (props.get(RAM_BUFFER_MB) != null)
+            {
+                ramBufferMB = Double.parseDouble(props.get(RAM_BUFFER_MB).toString().trim());
+            }
+        }
+        return new SharedIndexWriter(directory, analyzer, commitInterval, commitDocuments, segmentsPerTier,
+                ramBufferMB);
+    }
+
+    /**
+     * Adds a document, or replaces those having term.
+     *
+     * @param term
+     *            the term identifying the document
+     * @param document
+     *            the document
+     */
+    public void updateDocument(Term term, Document document)
+    {
+        try
+        {
+            writer.updateDocument(term, document, analyzer);
+        }
+        catch (IOException e)
+        {
+            throw new IndexingException(e.getMessage());
+        }
+        changed();
+    }
+
+    /**
+     * Adds a document.
+     *
+     * @param document
+     *            the document
+     */
+    public void addDocument(Document document)
+    {
+        try
+        {
+            writer.addDocument(document, analyzer);
+        }
+        catch (IOException e)
+        {
+            throw new IndexingException(e.getMessage());
+        }
+        changed();
+    }
+
+    /**
+     * Deletes the documents having term.
+     *
+     * @param term
+     *            the term
+     */
+    public void deleteDocuments(Term term)
+    {
+        try
+        {
+            writer.deleteDocuments(term);
+        }
+        catch (IOException e)
+        {
+            throw new IndexingException(e.getMessage());
+        }
+        changed();
+    }
+
+    /**
+     * Counts a change, committing if enough are waiting.
+     */
+    private void changed()
+    {
+        if (uncommitted.incrementAndGet() >= commitDocuments && commitDocuments > 0)
+        {
+            commit();
+        }
+    }
+
+    /**
+     * Commits waiting changes, if any.
+     */
+    public void commit()
+    {
+        synchronized (commitLock)
+        {
+            if (closed || uncommitted.getAndSet(0) == 0)
+            {
+                return;
+            }
+            try
+            {
+                writer.commit();
+            }
+            catch (IOException e)
+            {
+                throw new IndexingException(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Gets the underlying writer, for readers that see its changes before
+     * they are committed.
+     *
+     * @return the index writer
+     */
+    public IndexWriter getIndexWriter()
+    {
+        return writer;
+    }
+
+    /**
+     * Commits waiting changes and closes the writer.
+     */
+    public void close()
+    {
+        if (committer != null)
+        {
+            committer.shutdown();
+        }
+        synchronized (commitLock)
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+            try
+            {
+                writer.close();
+            }
+            catch (IOException e)
+            {
+                throw new IndexingException(e.getMessage());
+            }
+        }
+    }
+}
@@ -33,6 +33,7 @@ import org.apache.log4j.Logger;
 import com.impetus.kundera.Client;
 import com.impetus.kundera.cache.CacheProvider;
 import com.impetus.kundera.cache.NonOperationalCacheProvider;
+import com.impetus.kundera.cache.offheap.OffHeapCacheProvider;
 import com.impetus.kundera.ejb.EntityManagerFactoryImpl;
 import com.impetus.kundera.ejb.PersistenceMetadata;
 import com.impetus.kundera.ejb.PersistenceXmlLoader;
@@ -101,15 +102,14 @@ public class Configuration
             node = props.getProperty("kundera.nodes");
             port = props.getProperty("kundera.port");
             keyspace = props.getProperty("kundera.keyspace");
-            
-            String resourceName = "net.sf.ehcache.configurationResourceName";
+
             ClientType clientType = ClientType.getValue(client.toUpperCase());
             createIdentifier(clientType, persistenceUnit);
-            setField(emf, emf.getClass().getDeclaredField("cacheProvider"), initSecondLevelCache(props
-                    .getProperty("kundera.cache.provider_class"), resourceName));
+            setField(emf, emf.getClass().getDeclaredField("cacheProvider"), initSecondLevelCache(props,
+                    (EntityManagerFactoryImpl) emf));
+            setClient(emf, clientType, persistenceUnit);
             emfMap.put(identifier, emf);
             em = emf.createEntityManager();
-            setClient(em, clientType, persistenceUnit);
             emMap.put(identifier, em);
             logger.info("Kundera Client is: " + props.getProperty("kundera.client"));
 
@@ -148,17 +148,16 @@ public class Configuration
                 node = props.getProperty("kundera.nodes");
                 port = props.getProperty("kundera.port");
                 keyspace = props.getProperty("kundera.keyspace");
-                String resourceName = "net.sf.ehcache.configurationResourceName";
                 ClientType clientType = ClientType.getValue(client.toUpperCase());
                 createIdentifier(clientType, metadata.getName());
                 if (!emfMap.containsKey(identifier))
                 {
                     EntityManagerFactory emf = Persistence.createEntityManagerFactory(metadata.getName());
-                    setField(emf, emf.getClass().getDeclaredField("cacheProvider"), initSecondLevelCache(props
-                            .getProperty("kundera.cache.provider_class"), resourceName));
+                    setField(emf, emf.getClass().getDeclaredField("cacheProvider"), initSecondLevelCache(props,
+                            (EntityManagerFactoryImpl) emf));
+                    setClient(emf, clientType, metadata.getName());
                     emfMap.put(identifier, emf);
                     EntityManager em = emf.createEntityManager();
-                    setClient(em, clientType, metadata.getName());
                     emMap.put(identifier, em);
                     logger.info((emf.getClass().getDeclaredField("cacheProvider")));
                 }
@@ -182,6 +181,27 @@ public class Configuration
         return emMap.get(clientType);
     }
 
+    /**
+     * Returns the factory of a persistence unit loaded by {@link #init(URL)}.
+     * Its EntityManagers share one client; create one per thread or request,
+     * or pool them with {@link com.impetus.kundera.ejb.EntityManagerPool}.
+     *
+     * @param persistenceUnit
+     *            the persistence unit
+     * @return the entity manager factory, or null if not loaded
+     */
+    public EntityManagerFactory getEntityManagerFactory(String persistenceUnit)
+    {
+        for (EntityManagerFactory emf : emfMap.values())
+        {
+            if (persistenceUnit.equals(((EntityManagerFactoryImpl) emf).getPersistenceUnitName()))
+            {
+                return emf;
+            }
+        }
+        return null;
+    }
+
     /**
      * Invoked on end of application.
      */
@@ -205,25 +225,19 @@ public class Configuration
     }
 
     /**
-     * Set client to entity manager.
+     * Set client to entity manager factory, to be shared by all its entity
+     * managers.
      *
-     * @param em
-     *            the em
+     * @param emf
+     *            the emf
      * @param clientType
      *            the client type
      * @param persistenceUnit
      *            the persistence unit
      */
-    private void setClient(EntityManager em, ClientType clientType, String persistenceUnit)
+    private void setClient(EntityManagerFactory emf, ClientType clientType, String persistenceUnit)
     {
-        try
-        {
-            setField(em, em.getClass().getDeclaredField("client"), getClient(clientType, persistenceUnit));
-        }
-        catch (NoSuchFieldException e)
-        {
-            throw new PersistenceException(e.getMessage());
-        }
+        ((EntityManagerFactoryImpl) emf).setClient(getClient(clientType, persistenceUnit));
     }
 
     /**
@@ -285,17 +299,16 @@ public class Configuration
     /**
      * Inits the second level cache.
      *
-     * @param cacheProviderClassName
-     *            the cache provider class name
-     * @param classResourceName
-     *            the class resource name
+     * @param props
+     *            the persistence unit properties
+     * @param emf
+     *            the emf
      * @return the cache provider
      */
     @SuppressWarnings("unchecked")
-    private CacheProvider initSecondLevelCache(String cacheProviderClassName, String classResourceName)
+    private CacheProvider initSecondLevelCache(Properties props, EntityManagerFactoryImpl emf)
     {
-        // String cacheProviderClassName = (String)
-        // props.get("kundera.cache.provider_class");
+        String cacheProviderClassName = props.getProperty("kundera.cache.provider_class");
         CacheProvider cacheProvider = null;
         if (cacheProviderClassName != null)
         {
@@ -303,7 +316,11 @@ public class Configuration
             {
                 Class<CacheProvider> cacheProviderClass = (Class<CacheProvider>) Class.forName(cacheProviderClassName);
                 cacheProvider = cacheProviderClass.newInstance();
-                cacheProvider.init(classResourceName);
+                cacheProvider.init(props);
+                if (cacheProvider instanceof OffHeapCacheProvider)
+                {
+                    ((OffHeapCacheProvider) cacheProvider).setMetadataManager(emf.getMetadataManager());
+                }
             }
             catch (Exception e)
             {
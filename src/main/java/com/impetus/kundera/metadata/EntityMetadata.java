@@ -26,6 +26,7 @@ import java.util.Map;
 import javax.persistence.CascadeType;
 import javax.persistence.FetchType;
 
+import com.impetus.kundera.api.Index;
 import com.impetus.kundera.ejb.event.CallbackMethod;
 import com.impetus.kundera.loader.DBType;
 
@@ -934,6 +935,18 @@ public final class EntityMetadata
         /** The boost. */
         private float boost = 1.0f;
 
+        /** Whether indexed as a single untokenized term. */
+        private boolean keyword;
+
+        /** Class name of the analyzer, null for the default one. */
+        private String analyzer;
+
+        /** Whether norms are kept. */
+        private boolean norms = true;
+
+        /** Whether the value is stored. */
+        private boolean store;
+
         /**
          * The Constructor.
          *
@@ -942,12 +955,12 @@ public final class EntityMetadata
          */
         public PropertyIndex(Field property)
         {
-            this.property = property;
-            this.name = property.getName();
+            this(property, property.getName());
         }
 
         /**
-         * Instantiates a new property index.
+         * Instantiates a new property index, with the options of the
+         * {@link Index} of the property, if any.
          *
          * @param property
          *            the property
@@ -958,6 +971,14 @@ public final class EntityMetadata
         {
             this.property = property;
             this.name = name;
+            Index idx = property.getAnnotation(Index.class);
+            if (idx != null)
+            {
+                this.keyword = idx.keyword();
+                this.analyzer = idx.analyzer().trim().length() == 0 ? null : idx.analyzer().trim();
+                this.norms = idx.norms();
+                this.store = idx.store();
+            }
         }
 
         /**
@@ -1000,6 +1021,90 @@ public final class EntityMetadata
         {
             this.boost = boost;
         }
+
+        /**
+         * Checks if is keyword.
+         *
+         * @return true, if indexed as a single untokenized term
+         */
+        public boolean isKeyword()
+        {
+            return keyword;
+        }
+
+        /**
+         * Sets the keyword.
+         *
+         * @param keyword
+         *            the new keyword
+         */
+        public void setKeyword(boolean keyword)
+        {
+            this.keyword = keyword;
+        }
+
+        /**
+         * Gets the analyzer.
+         *
+         * @return the analyzer class name, null for the default one
+         */
+        public String getAnalyzer()
+        {
+            return analyzer;
+        }
+
+        /**
+         * Sets the analyzer.
+         *
+         * @param analyzer
+         *            the new analyzer class name
+         */
+        public void setAnalyzer(String analyzer)
+        {
+            this.analyzer = analyzer;
+        }
+
+        /**
+         * Checks if norms are kept.
+         *
+         * @return true, if norms are kept
+         */
+        public boolean isNorms()
+        {
+            return norms;
+        }
+
+        /**
+         * Sets the norms.
+         *
+         * @param norms
+         *            the new norms
+         */
+        public void setNorms(boolean norms)
+        {
+            this.norms = norms;
+        }
+
+        /**
+         * Checks if the value is stored.
+         *
+         * @return true, if stored
+         */
+        public boolean isStore()
+        {
+            return store;
+        }
+
+        /**
+         * Sets the store.
+         *
+         * @param store
+         *            the new store
+         */
+        public void setStore(boolean store)
+        {
+            this.store = store;
+        }
     }
 
     /**
@@ -1138,6 +1243,9 @@ public final class EntityMetadata
         /** The type. */
         private ForeignKey type;
 
+        /** The batch size, 0 if not set. */
+        private int batchSize;
+
         /**
          * Instantiates a new relation.
          *
@@ -1257,6 +1365,27 @@ public final class EntityMetadata
             return type;
         }
 
+        /**
+         * Gets the batch size set with @BatchSize.
+         *
+         * @return the batch size, 0 if not set
+         */
+        public int getBatchSize()
+        {
+            return batchSize;
+        }
+
+        /**
+         * Sets the batch size.
+         *
+         * @param batchSize
+         *            the new batch size
+         */
+        public void setBatchSize(int batchSize)
+        {
+            this.batchSize = batchSize;
+        }
+
         /**
          * Checks if is unary.
          *
@@ -0,0 +1,241 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.metadata;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.FetchType;
+
+/**
+ * A named set of overrides of how an entity graph is loaded. For a property
+ * of an @Entity class it can change the fetch type of a relation, or leave a
+ * column, an embedded object or a relation out altogether.
+ *
+ * Plans are declared with {@link com.impetus.kundera.api.NamedFetchPlan} or
+ * built in code, and passed to finds and queries with the
+ * {@link com.impetus.kundera.query.QueryHints#FETCH_PLAN} hint. Entities
+ * loaded with a plan that leaves something out are not put in the second
+ * level cache, and a later find under another plan, or none, reads them again.
+ *
+ * @author animesh.kumar
+ */
+public class FetchPlan
+{
+
+    /** Source of plan ids. */
+    private static final AtomicLong IDS = new AtomicLong();
+
+    /** The id, unique among plans. */
+    private final long id = IDS.incrementAndGet();
+
+    /** The name. */
+    private final String name;
+
+    /** Fetch type overrides, by class name and property. */
+    private final Map<String, FetchType> fetchTypes = new HashMap<String, FetchType>();
+
+    /** Properties not loaded, by class name and property. */
+    private final Set<String> excluded = new HashSet<String>();
+
+    /**
+     * Instantiates a new fetch plan.
+     *
+     * @param name
+     *            the name
+     */
+    public FetchPlan(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * Gets the name.
+     *
+     * @return the name
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Gets the id. Every plan has its own, so plans built in code under the
+     * same name are told apart.
+     * @return the id
+     */
+    public long getId()
+    {
+        return id;
+    }
+
+    /**
+     * Loads a relation eagerly.
+     *
+     * @param entityClass
+     *            the entity class owning the relation
+     * @param property
+     *            the property
+     * @return this plan
+     */
+    public FetchPlan eager(Class<?> entityClass, String property)
+    {
+        return fetch(entityClass, property, FetchType.EAGER);
+    }
+
+    /**
+     * Loads a relation lazily.
+     *
+     * @param entityClass
+     *            the entity class owning the relation
+     * @param property
+     *            the property
+     * @return this plan
+     */
+    public FetchPlan lazy(Class<?> entityClass, String property)
+    {
+        return fetch(entityClass, property, FetchType.LAZY);
+    }
+
+    /**
+     * Sets the fetch type of a relation.
+     *
+     * @param entityClass
+     *            the entity class owning the relation
+     * @param property
+     *            the property
+     * @param fetchType
+     *            the fetch type
+     * @return this plan
+     */
+    public FetchPlan fetch(Class<?> entityClass, String property, FetchType fetchType)
+    {
+        fetchTypes.put(key(entityClass, property), fetchType);
+        return this;
+    }
+
+    /**
+     * Leaves a column, embedded object or relation out. It stays at whatever
+     * the entity's constructor set it to.
+     *
+     * @param entityClass
+     *            the entity class
+     * @param property
+     *            the property
+     * @return this plan
+     */
+    public FetchPlan exclude(Class<?> entityClass, String property)
+    {
+        excluded.add(key(entityClass, property));
+        return this;
+    }
+
+    /**
+     * Adds the overrides of another plan to this one.
+     *
+     * @param plan
+     *            the plan
+     */
+    public void merge(FetchPlan plan)
+    {
+        fetchTypes.putAll(plan.fetchTypes);
+        excluded.addAll(plan.excluded);
+    }
+
+    /**
+     * Gets the fetch type of a relation under this plan.
+     *
+     * @param entityClass
+     *            the entity class owning the relation
+     * @param relation
+     *            the relation
+     * @return the fetch type
+     */
+    public FetchType getFetchType(Class<?> entityClass, EntityMetadata.Relation relation)
+    {
+        FetchType fetchType = fetchTypes.get(key(entityClass, relation.getProperty().getName()));
+        return fetchType != null ? fetchType : relation.getFetchType();
+    }
+
+    /**
+     * Checks if a property is left out.
+     *
+     * @param entityClass
+     *            the entity class
+     * @param property
+     *            the property
+     * @return true, if is excluded
+     */
+    public boolean isExcluded(Class<?> entityClass, String property)
+    {
+        return !excluded.isEmpty() && excluded.contains(key(entityClass, property));
+    }
+
+    /**
+     * Checks if the plan leaves anything out, so entities loaded with it are
+     * partial.
+     *
+     * @return true, if it has exclusions
+     */
+    public boolean hasExclusions()
+    {
+        return !excluded.isEmpty();
+    }
+
+    /**
+     * Checks if the plan leaves out anything of an entity class, so its
+     * entities loaded with it are partial.
+     * @param entityClass
+     *            the entity class
+     * @return true, if it has exclusions for the class
+     */
+    public boolean hasExclusions(Class<?> entityClass)
+    {
+        String prefix = entityClass.getName() + ".";
+        for (String property : excluded)
+        {
+            if (property.startsWith(prefix))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Key of a property.
+     *
+     * @param entityClass
+     *            the entity class
+     * @param property
+     *            the property
+     * @return the string
+     */
+    private String key(Class<?> entityClass, String property)
+    {
+        return entityClass.getName() + "." + property;
+    }
+
+    /* @see java.lang.Object#toString() */
+    @Override
+    public String toString()
+    {
+        return "FetchPlan [name=" + name + ", fetchTypes=" + fetchTypes + ", excluded=" + excluded + "]";
+    }
+}
@@ -33,7 +33,11 @@ import javax.persistence.PersistenceException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.impetus.kundera.api.BatchSize;
+import com.impetus.kundera.api.NamedFetchPlan;
+import com.impetus.kundera.api.NamedFetchPlans;
 import com.impetus.kundera.classreading.AnnotationDiscoveryListener;
+import com.impetus.kundera.loader.DBType;
 import com.impetus.kundera.metadata.EntityMetadata.Relation;
 import com.impetus.kundera.metadata.processor.CacheableAnnotationProcessor;
 import com.impetus.kundera.metadata.processor.EntityListenersProcessor;
@@ -58,6 +62,9 @@ public class MetadataManager implements AnnotationDiscoveryListener
     /** The entity name to class map. */
     private Map<String, Class<?>> entityNameToClassMap = new ConcurrentHashMap<String, Class<?>>();
 
+    /** Fetch plans declared on entities, by name. */
+    private Map<String, FetchPlan> fetchPlans = new ConcurrentHashMap<String, FetchPlan>();
+
     /** The metadata processors. */
     private List<MetadataProcessor> metadataProcessors;
 
@@ -73,6 +80,9 @@ public class MetadataManager implements AnnotationDiscoveryListener
     /** The instantiated. */
     private boolean instantiated = false;
 
+    /** Type of the datastore all entities live in, once known. */
+    private volatile DBType dbType;
+
     /**
      * Instantiates a new metadata manager.
      *
@@ -129,6 +139,7 @@ public class MetadataManager implements AnnotationDiscoveryListener
             // double check locking.
             synchronized (clazz)
             {
+                metadata = metadataCache.get(clazz);
                 if (null == metadata)
                 {
                     metadata = process(clazz);
@@ -139,6 +150,42 @@ public class MetadataManager implements AnnotationDiscoveryListener
         return metadata;
     }
 
+    /**
+     * Sets the type of datastore on the metadata of every entity. This is
+     * done once, when the factory gets its client, so that metadata is not
+     * written to while entity managers read it.
+     *
+     * @param dbType
+     *            the new dB type
+     */
+    public final void setDBType(DBType dbType)
+    {
+        this.dbType = dbType;
+        for (EntityMetadata metadata : metadataCache.values())
+        {
+            setDBType(metadata, dbType);
+        }
+    }
+
+    /**
+     * Sets the type of datastore on the metadata of an entity, and adds what
+     * that datastore needs: documents hold their id as a column too.
+     *
+     * @param metadata
+     *            the metadata
+     * @param dbType
+     *            the dB type
+     */
+    private void setDBType(EntityMetadata metadata, DBType dbType)
+    {
+        metadata.setDBType(dbType);
+        if (DBType.MONGODB.equals(dbType) && metadata.getIdColumn() != null
+                && metadata.getColumn(metadata.getIdColumn().getName()) == null)
+        {
+            metadata.addColumn(metadata.getIdColumn().getName(), metadata.getIdColumn());
+        }
+    }
+
     // helper methods to strip CGLIB from class
 
     /**
@@ -164,6 +211,7 @@ public class MetadataManager implements AnnotationDiscoveryListener
         {
             processor.process(clazz, metadata);
         }
+        setDBType(metadata, dbType);
 
         return metadata;
     }
@@ -246,11 +294,96 @@ public class MetadataManager implements AnnotationDiscoveryListener
         for (EntityMetadata metadata : getEntityMetadatasAsList())
         {
             processRelations(metadata.getEntityClazz());
+            processFetchPlans(metadata.getEntityClazz());
             log.debug("Metadata for @Entity " + metadata.getEntityClazz() + "\n" + metadata);
         }
         instantiated = true;
     }
 
+    /**
+     * Gets a fetch plan declared with @NamedFetchPlan.
+     *
+     * @param name
+     *            the name
+     * @return the fetch plan, null if none has that name
+     */
+    public final FetchPlan getFetchPlan(String name)
+    {
+        return fetchPlans.get(name);
+    }
+
+    /**
+     * Merges the @NamedFetchPlan parts declared on an @Entity class into the
+     * plans of the same names.
+     *
+     * @param entity
+     *            the entity
+     */
+    private void processFetchPlans(Class<?> entity)
+    {
+        List<NamedFetchPlan> declared = new ArrayList<NamedFetchPlan>();
+        if (entity.isAnnotationPresent(NamedFetchPlan.class))
+        {
+            declared.add(entity.getAnnotation(NamedFetchPlan.class));
+        }
+        if (entity.isAnnotationPresent(NamedFetchPlans.class))
+        {
+            declared.addAll(Arrays.asList(entity.getAnnotation(NamedFetchPlans.class).value()));
+        }
+
+        for (NamedFetchPlan ann : declared)
+        {
+            FetchPlan plan = new FetchPlan(ann.name());
+            for (String property : ann.eager())
+            {
+                plan.eager(entity, validateFetchPlanProperty(entity, ann.name(), property));
+            }
+            for (String property : ann.lazy())
+            {
+                plan.lazy(entity, validateFetchPlanProperty(entity, ann.name(), property));
+            }
+            for (String property : ann.exclude())
+            {
+                plan.exclude(entity, validateFetchPlanProperty(entity, ann.name(), property));
+            }
+
+            FetchPlan existing = fetchPlans.get(ann.name());
+            if (existing == null)
+            {
+                fetchPlans.put(ann.name(), plan);
+            }
+            else
+            {
+                existing.merge(plan);
+            }
+        }
+    }
+
+    /**
+     * Checks that a property named in a fetch plan exists.
+     *
+     * @param entity
+     *            the entity
+     * @param plan
+     *            the plan name
+     * @param property
+     *            the property
+     * @return the property
+     */
+    private String validateFetchPlanProperty(Class<?> entity, String plan, String property)
+    {
+        try
+        {
+            entity.getDeclaredField(property);
+            return property;
+        }
+        catch (NoSuchFieldException e)
+        {
+            throw new PersistenceException("Error with @NamedFetchPlan(" + plan + ") in @Entity(" + entity.getName()
+                    + "), reason: no property " + property);
+        }
+    }
+
     /**
      * Helper class to scan each @Entity class and build various relational
      * annotation.
@@ -371,6 +504,11 @@ public class MetadataManager implements AnnotationDiscoveryListener
                 }
             }
 
+            Relation relation = metadata.getRelation(f.getName());
+            if (relation != null && f.isAnnotationPresent(BatchSize.class))
+            {
+                relation.setBatchSize(f.getAnnotation(BatchSize.class).value());
+            }
         }
     }
 }
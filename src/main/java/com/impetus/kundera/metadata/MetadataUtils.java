@@ -29,7 +29,9 @@ import javax.persistence.PersistenceException;
 import com.impetus.kundera.Constants;
 import com.impetus.kundera.metadata.EntityMetadata.Column;
 import com.impetus.kundera.metadata.EntityMetadata.SuperColumn;
+import com.impetus.kundera.property.PropertyAccessException;
 import com.impetus.kundera.property.PropertyAccessorHelper;
+import com.impetus.kundera.proxy.PersistentCollection;
 
 /**
  * Utility class for entity metadata related funcntionality
@@ -147,6 +149,58 @@ public class MetadataUtils
         return embeddedCollectionName.substring(embeddedCollectionName.indexOf(Constants.SUPER_COLUMN_NAME_DELIMITER) + 1, embeddedCollectionName.length());
     }  
     
+    /**
+     * Ids of the entities an entity is related to, by relation property.
+     * Related entities are not followed any further.
+     *
+     * @param entity
+     *            the entity
+     * @param m
+     *            metadata of the entity
+     * @param metadataManager
+     *            the metadata manager, to look up related classes
+     * @return the foreign keys map
+     * @throws PropertyAccessException
+     *             the property access exception
+     */
+    public static Map<String, Set<String>> getForeignKeysMap(Object entity, EntityMetadata m,
+            MetadataManager metadataManager) throws PropertyAccessException
+    {
+        Map<String, Set<String>> foreignKeysMap = new HashMap<String, Set<String>>();
+        for (EntityMetadata.Relation relation : m.getRelations())
+        {
+            Object value = PropertyAccessorHelper.getObject(entity, relation.getProperty());
+            if (value == null)
+            {
+                if (!relation.isOptional())
+                {
+                    throw new PersistenceException("Missing " + relation.getTargetEntity().getName() + "."
+                            + relation.getProperty().getName());
+                }
+                continue;
+            }
+            EntityMetadata target = metadataManager.getEntityMetadata(relation.getTargetEntity());
+            Set<String> foreignKeys = new HashSet<String>();
+            if (relation.isUnary())
+            {
+                foreignKeys.add(PropertyAccessorHelper.getId(value, target));
+            }
+            else if (value instanceof PersistentCollection && !((PersistentCollection) value).isInitialized())
+            {
+                foreignKeys.addAll(((PersistentCollection) value).getForeignKeys());
+            }
+            else if (relation.isCollection())
+            {
+                for (Object o : (Collection<?>) value)
+                {
+                    foreignKeys.add(PropertyAccessorHelper.getId(o, target));
+                }
+            }
+            foreignKeysMap.put(relation.getProperty().getName(), foreignKeys);
+        }
+        return foreignKeysMap;
+    }
+
     /**
      * Creates a string representation of a set of foreign keys by combining
      * them together separated by "~" character.
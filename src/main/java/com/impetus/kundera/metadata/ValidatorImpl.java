@@ -17,7 +17,10 @@ package com.impetus.kundera.metadata;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.persistence.Entity;
 import javax.persistence.Id;
@@ -38,8 +41,8 @@ public class ValidatorImpl implements Validator
     /** The Constant log. */
     private static final Log LOG = LogFactory.getLog(ValidatorImpl.class);
 
-    /** cache for validated classes. */
-    private List<Class<?>> classes = new ArrayList<Class<?>>();
+    /** cache for validated classes, shared by all threads. */
+    private Set<Class<?>> classes = Collections.newSetFromMap(new ConcurrentHashMap<Class<?>, Boolean>());
 
     /**
      * Checks the validity of a class for Cassandra entity.
@@ -85,6 +85,18 @@ public class IndexProcessor implements MetadataProcessor
         // scan for fields
         for (Field f : clazz.getDeclaredFields())
         {
+            Index fieldIdx = f.getAnnotation(Index.class);
+            if (fieldIdx != null && !fieldIdx.index())
+            {
+                log.debug("Field " + f.getName() + " of @Entity " + clazz.getName() + " will not be indexed.");
+                continue;
+            }
+            if (fieldIdx != null && fieldIdx.keyword() && !fieldIdx.analyzer().trim().isEmpty())
+            {
+                log.warn("Field " + f.getName() + " of @Entity " + clazz.getName()
+                        + " is indexed as a keyword, its analyzer is not used.");
+            }
+
             if (f.isAnnotationPresent(Id.class))
             {
                 metadata.addIndexProperty(metadata.new PropertyIndex(f, f.getName()));
@@ -57,12 +57,23 @@ public final class DocumentDataAccessor extends BaseDataAccessor
             throw new PersistenceException("Primary key must be annotated with @Column");
         }
 
-        m.addColumn(m.getIdColumn().getName(), m.getIdColumn()); // Add PK
-                                                                 // column
-        getEntityManager().getClient().writeData(getEntityManager(), e, m);
+        writeData(e, m);
 
     }
 
+    @Override
+    public void write(List<EnhancedEntity> entities, List<EntityMetadata> metadata) throws Exception
+    {
+        for (EntityMetadata m : metadata)
+        {
+            if (m.getIdColumn() == null)
+            {
+                throw new PersistenceException("Primary key must be annotated with @Column");
+            }
+        }
+        super.write(entities, metadata);
+    }
+
     @Override
     public <E> E read(Class<E> clazz, EntityMetadata m, String id) throws Exception
     {
@@ -71,7 +82,6 @@ public final class DocumentDataAccessor extends BaseDataAccessor
         String dbName = m.getSchema(); // Database name
         String documentName = m.getTableName(); // Document name for document
                                                 // based data store
-        m.addColumn(m.getIdColumn().getName(), m.getIdColumn());
 
         return getEntityManager().getClient().loadData(getEntityManager(), clazz, dbName, documentName, id, m);
     }
@@ -83,7 +93,6 @@ public final class DocumentDataAccessor extends BaseDataAccessor
 
         String dbName = m.getSchema();
         String documentName = m.getTableName();
-        m.addColumn(m.getIdColumn().getName(), m.getIdColumn());
         return getEntityManager().getClient().loadData(getEntityManager(), clazz, dbName, documentName, m, ids);
     }
 
@@ -18,6 +18,7 @@ package com.impetus.kundera.mongodb.client;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
@@ -32,6 +33,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.scale7.cassandra.pelops.Bytes;
 
+import com.impetus.kundera.BatchClient;
 import com.impetus.kundera.Client;
 import com.impetus.kundera.ejb.EntityManagerImpl;
 import com.impetus.kundera.loader.DBType;
@@ -51,7 +53,7 @@ import com.mongodb.MongoException;
  *
  * @author impetusopensource
  */
-public class MongoDBClient implements Client
+public class MongoDBClient implements Client, BatchClient
 {
 
     /** The contact node. */
@@ -88,6 +90,11 @@ public class MongoDBClient implements Client
     @Override
     public void writeData(EntityManagerImpl em, EnhancedEntity e, EntityMetadata m) throws Exception
     {
+        if (!isOpen())
+        {
+            throw new PersistenceException("MongoDBClient is closed.");
+        }
+
         String dbName = m.getSchema();
         String documentName = m.getTableName();
         String key = e.getId();
@@ -110,8 +117,89 @@ public class MongoDBClient implements Client
             log.debug("Inserting data into " + dbName + "." + documentName + " for " + key);
             DBCollection dbCollection = mongoDb.getCollection(documentName);
 
+            // upsert, as a failed batch may have inserted it meanwhile
+            BasicDBObject searchQuery = new BasicDBObject();
+            searchQuery.put(m.getIdColumn().getName(), key);
             BasicDBObject document = new MongoDBDataHandler().getDocumentFromEntity(em, m, e);
-            dbCollection.insert(document);
+            dbCollection.update(searchQuery, document, true, false);
+        }
+    }
+
+    /**
+     * Writes entities with one lookup of the documents already stored and one
+     * bulk insert of the new ones per collection. Stored documents are
+     * updated one by one. A failed bulk insert may leave some documents
+     * inserted; the single writes retrying them upsert.
+     *
+     * @see com.impetus.kundera.BatchClient#writeData(java.util.List,
+     *      java.util.List)
+     */
+    @Override
+    public void writeData(List<EnhancedEntity> entities, List<EntityMetadata> metadata) throws Exception
+    {
+        if (!isOpen())
+        {
+            throw new PersistenceException("MongoDBClient is closed.");
+        }
+
+        Map<String, List<Integer>> byCollection = new LinkedHashMap<String, List<Integer>>();
+        for (int i = 0; i < entities.size(); i++)
+        {
+            String documentName = metadata.get(i).getTableName();
+            List<Integer> positions = byCollection.get(documentName);
+            if (positions == null)
+            {
+                positions = new ArrayList<Integer>();
+                byCollection.put(documentName, positions);
+            }
+            positions.add(i);
+        }
+
+        MongoDBDataHandler handler = new MongoDBDataHandler();
+        for (Map.Entry<String, List<Integer>> entry : byCollection.entrySet())
+        {
+            String documentName = entry.getKey();
+            String idColumn = metadata.get(entry.getValue().get(0)).getIdColumn().getName();
+            DBCollection dbCollection = mongoDb.getCollection(documentName);
+
+            List<String> keys = new ArrayList<String>();
+            for (int i : entry.getValue())
+            {
+                keys.add(entities.get(i).getId());
+            }
+            Set<String> stored = new HashSet<String>();
+            DBCursor cursor = dbCollection.find(new BasicDBObject(idColumn, new BasicDBObject("$in", keys)),
+                    new BasicDBObject(idColumn, 1));
+            while (cursor.hasNext())
+            {
+                Object key = cursor.next().get(idColumn);
+                if (key != null)
+                {
+                    stored.add(key.toString());
+                }
+            }
+
+            // by id, so an entity written twice in a batch is inserted once
+            Map<String, DBObject> inserts = new LinkedHashMap<String, DBObject>();
+            for (int i : entry.getValue())
+            {
+                EnhancedEntity e = entities.get(i);
+                // the entity manager is not needed to build documents
+                BasicDBObject document = handler.getDocumentFromEntity(null, metadata.get(i), e);
+                if (stored.contains(e.getId()))
+                {
+                    dbCollection.update(new BasicDBObject(idColumn, e.getId()), document);
+                }
+                else
+                {
+                    inserts.put(e.getId(), document);
+                }
+            }
+            if (!inserts.isEmpty())
+            {
+                log.debug("Inserting " + inserts.size() + " documents into " + documentName);
+                dbCollection.insert(new ArrayList<DBObject>(inserts.values()));
+            }
         }
     }
 
@@ -326,6 +414,7 @@ public class MongoDBClient implements Client
         {
             log.info("Closing connection to MONGODB at " + contactNode + " on port " + defaultPort);
             mongo.close();
+            isConnected = false;
             log.info("Connection to MONGODB at " + contactNode + " on port " + defaultPort + " closed");
         }
         else
@@ -334,6 +423,16 @@ public class MongoDBClient implements Client
         }
     }
 
+    /**
+     * Checks if is open.
+     *
+     * @return true, if connected and not shut down
+     */
+    public final boolean isOpen()
+    {
+        return isConnected && mongoDb != null;
+    }
+
     /*
      * (non-Javadoc)
      *
@@ -18,7 +18,6 @@ package com.impetus.kundera.mongodb.client;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
@@ -37,6 +36,7 @@ import com.impetus.kundera.metadata.EntityMetadata;
 import com.impetus.kundera.metadata.EntityMetadata.Column;
 import com.impetus.kundera.metadata.EntityMetadata.Relation;
 import com.impetus.kundera.metadata.EntityMetadata.SuperColumn;
+import com.impetus.kundera.metadata.FetchPlan;
 import com.impetus.kundera.mongodb.DocumentObjectMapper;
 import com.impetus.kundera.mongodb.query.MongoDBQuery;
 import com.impetus.kundera.property.PropertyAccessException;
@@ -64,11 +64,16 @@ public class MongoDBDataHandler
         try
         {
             entity = entityClass.newInstance();
+            FetchPlan plan = em.getFetchPlan();
 
             // Populate entity columns
             List<Column> columns = m.getColumnsAsList();
             for (Column column : columns)
             {
+                if (plan != null && plan.isExcluded(entityClass, column.getField().getName()))
+                {
+                    continue;
+                }
                 PropertyAccessorHelper.set(entity, column.getField(), document.get(column.getName()));
             }
 
@@ -80,6 +85,10 @@ public class MongoDBDataHandler
             for (SuperColumn superColumn : superColumns)
             {
                 Field superColumnField = superColumn.getField();
+                if (plan != null && plan.isExcluded(entityClass, superColumnField.getName()))
+                {
+                    continue;
+                }
                 // Can be a BasicDBObject or a list of it.
                 Object embeddedDocumentObject = document.get(superColumnField.getName());
 
@@ -111,81 +120,24 @@ public class MongoDBDataHandler
             }
 
             // Check relations and fetch data from foreign keys list column
+            String id = PropertyAccessorHelper.getId(entity, m);
             List<Relation> relations = m.getRelations();
             for (Relation relation : relations)
             {
-                Class<?> embeddedEntityClass = relation.getTargetEntity(); // Embedded
-                                                                           // entity
-                                                                           // class
-                Field embeddedPropertyField = relation.getProperty(); // Mapped
-                                                                      // to this
-                                                                      // property
-
-                EntityMetadata relMetadata = em.getMetadataManager().getEntityMetadata(embeddedEntityClass);
-                BasicDBList relList = (BasicDBList) document.get(embeddedPropertyField.getName());
-                ; // List foreign keys
+                // List foreign keys
+                BasicDBList relList = (BasicDBList) document.get(relation.getProperty().getName());
 
                 if (relList != null)
                 {
-                    if (relation.isUnary())
-                    {
-                        String foreignKey = (String) relList.get(0);
-
-                        Object embeddedEntity = null;
-                        try
-                        {
-                            embeddedEntity = em.getClient().loadData(em, embeddedEntityClass,
-                                    relMetadata.getSchema(), relMetadata.getTableName(), foreignKey, relMetadata);
-                        }
-                        catch (Exception e)
-                        {
-                            throw new PersistenceException("Error while fetching relationship entity "
-                                    + relMetadata.getTableName() + " from " + m.getTableName());
-                        }
-                        PropertyAccessorHelper.set(entity, embeddedPropertyField, embeddedEntity);
-                    }
-                    else if (relation.isCollection())
+                    String[] foreignKeys = new String[relList.size()];
+                    for (int i = 0; i < foreignKeys.length; i++)
                     {
-                        List<String> foreignKeys = new ArrayList<String>();
-                        for (Object o : relList)
-                        {
-                            foreignKeys.add((String) o);
-                        }
-
-                        Collection embeddedEntityList = null; // Collection of
-                                                              // embedded
-                                                              // entities
-
-                        try
-                        {
-                            embeddedEntityList = em.getClient().loadData(em, embeddedEntityClass,
-                                    relMetadata.getSchema(), relMetadata.getTableName(), relMetadata,
-                                    foreignKeys.toArray(new String[0]));
-                        }
-                        catch (Exception e)
-                        {
-                            throw new PersistenceException("Error while fetching relationship entity collection  "
-                                    + relMetadata.getTableName() + " from " + m.getTableName());
-                        }
-
-                        Collection<Object> embeddedObjects = null; // Collection
-                                                                   // of
-                                                                   // embedded
-                                                                   // entities
-                        if (relation.getPropertyType().equals(Set.class))
-                        {
-                            embeddedObjects = new HashSet<Object>();
-                        }
-                        else if (relation.getPropertyType().equals(List.class))
-                        {
-                            embeddedObjects = new ArrayList<Object>();
-                        }
-
-                        embeddedObjects.addAll(embeddedEntityList);
-                        PropertyAccessorHelper.set(entity, embeddedPropertyField, embeddedObjects);
-
+                        foreignKeys[i] = (String) relList.get(i);
                     }
 
+                    // honours fetch type and the session; eager targets of a
+                    // whole query result are read with one multiget per class
+                    em.getEntityResolver().populateForeignEntities(entity, id, relation, foreignKeys);
                 }
 
             }
@@ -104,6 +104,30 @@ public class MongoDBIndexer implements Indexer
      *
      * @see com.impetus.kundera.index.Indexer#search(java.lang.String, int, int)
      */
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * com.impetus.kundera.index.Indexer#update(com.impetus.kundera.metadata
+     * .EntityMetadata, java.lang.Object)
+     */
+    @Override
+    public void update(EntityMetadata metadata, Object object)
+    {
+        index(metadata, object);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.impetus.kundera.index.Indexer#close()
+     */
+    @Override
+    public void close()
+    {
+        // MongoDB maintains its own indexes
+    }
+
     @Override
     public Map<String, String> search(String query, int start, int count)
     {
@@ -111,4 +135,23 @@ public class MongoDBIndexer implements Indexer
                 "Invalid method call! When you search on a column, MongoDB will automatically search in index if that exists.");
     }
 
+    @Override
+    public Map<String, String> search(EntityMetadata metadata, String query, int start, int count)
+    {
+        return search(query, start, count);
+    }
+
+    @Override
+    public Map<String, String> search(EntityMetadata metadata, String query, String ordering, int start, int count)
+    {
+        return search(query, start, count);
+    }
+
+    @Override
+    public int count(EntityMetadata metadata, String query)
+    {
+        throw new PersistenceException(
+                "Invalid method call! When you search on a column, MongoDB will automatically search in index if that exists.");
+    }
+
 }
@@ -15,17 +15,22 @@
  ******************************************************************************/
 package com.impetus.kundera.mongodb.query;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import javax.persistence.Query;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.impetus.kundera.Constants;
 import com.impetus.kundera.ejb.EntityManagerImpl;
 import com.impetus.kundera.metadata.EntityMetadata;
 import com.impetus.kundera.metadata.MetadataManager;
+import com.impetus.kundera.property.PropertyAccessorHelper;
 import com.impetus.kundera.query.QueryImpl;
+import com.impetus.kundera.query.QueryResultCache;
 
 /**
  * Query class for MongoDB data store
@@ -47,11 +52,22 @@ public class MongoDBQuery extends QueryImpl
     {
         log.debug("JPA Query is: " + query);
 
-        EntityMetadata m = getEntityMetadata();
+        final EntityMetadata m = getEntityMetadata();
 
         try
         {
-            return getEntityManager().getClient().loadData(getEntityManager(), m, this);
+            return getEntityManager().loadWithFetchPlan(getFetchPlanHint(), new Callable<List<?>>()
+            {
+                @Override
+                public List<?> call() throws Exception
+                {
+                    return getResultList(m);
+                }
+            });
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw e;
         }
         catch (Exception e)
         {
@@ -59,6 +75,69 @@ public class MongoDBQuery extends QueryImpl
         }
     }
 
+    /**
+     * Gets the result list, through the query result cache if the query is
+     * cacheable.
+     *
+     * @param m
+     *            the entity metadata
+     * @return the result list
+     * @throws Exception
+     *             the exception
+     */
+    private List<?> getResultList(EntityMetadata m) throws Exception
+    {
+        if (!isResultCacheable())
+        {
+            return loadData(m);
+        }
+
+        QueryResultCache cache = getEntityManager().getFactory().getQueryResultCache();
+        String key = getResultCacheKey(Constants.INVALID, Constants.INVALID);
+        List<String> ids = cache.get(getEntityClass(), key);
+        if (ids != null)
+        {
+            return getEntityManager().find(getEntityClass(), ids.toArray());
+        }
+
+        long generation = cache.getGeneration(getEntityClass());
+        List<?> entities = loadData(m);
+        ids = new ArrayList<String>(entities.size());
+        for (Object entity : entities)
+        {
+            ids.add(PropertyAccessorHelper.getId(entity, m));
+        }
+        cache.put(getEntityClass(), key, ids, generation);
+        return entities;
+    }
+
+    /**
+     * Runs the query on MongoDB, sharing the run with concurrent identical
+     * queries. Each caller gets its own list of its own entities.
+     *
+     * @param m
+     *            the entity metadata
+     * @return the entities
+     * @throws Exception
+     *             the exception
+     */
+    @SuppressWarnings("unchecked")
+    private List<?> loadData(final EntityMetadata m) throws Exception
+    {
+        final QueryImpl q = this;
+        List<Object> entities = getEntityManager().loadShared(
+                "mongodb|" + getResultCacheKey(Constants.INVALID, Constants.INVALID), (Class<Object>) getEntityClass(),
+                new Callable<List<Object>>()
+                {
+                    @Override
+                    public List<Object> call() throws Exception
+                    {
+                        return getEntityManager().getClient().loadData(getEntityManager(), m, q);
+                    }
+                });
+        return new ArrayList<Object>(entities);
+    }
+
     @Override
     public int executeUpdate()
     {
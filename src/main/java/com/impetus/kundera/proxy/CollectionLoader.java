@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.proxy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.impetus.kundera.LazyInitializationException;
+import com.impetus.kundera.ejb.EntityManagerImpl;
+
+/**
+ * Loads the members of a {@link PersistentCollection}, batchSize ids per
+ * multiget, in the order of their ids. Members that no longer exist are left
+ * out.
+ *
+ * @author animesh.kumar
+ */
+final class CollectionLoader
+{
+
+    /** The Constant log. */
+    private static final Log log = LogFactory.getLog(CollectionLoader.class);
+
+    /** The entity manager the collection was read through. */
+    private final EntityManagerImpl em;
+
+    /** The member class. */
+    private final Class<?> targetClass;
+
+    /** The foreign keys. */
+    private final List<String> foreignKeys;
+
+    /** The batch size. */
+    private final int batchSize;
+
+    /** The name of the collection, for messages. */
+    private final String role;
+
+    /**
+     * Instantiates a new collection loader.
+     *
+     * @param em
+     *            the em
+     * @param role
+     *            the role
+     * @param targetClass
+     *            the target class
+     * @param foreignKeys
+     *            the foreign keys
+     * @param batchSize
+     *            the batch size
+     */
+    CollectionLoader(EntityManagerImpl em, String role, Class<?> targetClass, String[] foreignKeys, int batchSize)
+    {
+        this.em = em;
+        this.role = role;
+        this.targetClass = targetClass;
+        this.foreignKeys = Collections.unmodifiableList(Arrays.asList(foreignKeys));
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Gets the foreign keys.
+     *
+     * @return the foreign keys
+     */
+    List<String> getForeignKeys()
+    {
+        return foreignKeys;
+    }
+
+    /**
+     * Loads the members.
+     *
+     * @return the members
+     * @throws LazyInitializationException
+     *             if the entity manager is gone
+     */
+    List<Object> load()
+    {
+        if (em == null || !em.isOpen())
+        {
+            throw new LazyInitializationException("could not initialize collection " + role
+                    + " - the owning EntityManager was closed");
+        }
+        log.debug("Collection >> Initialization >> " + role + ", " + foreignKeys.size() + " members");
+
+        List<Object> members = new ArrayList<Object>(foreignKeys.size());
+        for (int from = 0; from < foreignKeys.size(); from += batchSize)
+        {
+            List<String> batch = foreignKeys.subList(from, Math.min(from + batchSize, foreignKeys.size()));
+            members.addAll(em.find(targetClass, batch.toArray()));
+        }
+        return members;
+    }
+
+    /**
+     * Describes an uninitialized collection without loading it.
+     *
+     * @return the string
+     */
+    String describe()
+    {
+        return "[uninitialized " + role + ", ids=" + foreignKeys + "]";
+    }
+}
@@ -23,4 +23,10 @@ package com.impetus.kundera.proxy;
 public interface KunderaProxy
 {
 
+    /**
+     * Gets the lazy initializer behind this proxy.
+     *
+     * @return the lazy initializer
+     */
+    LazyInitializer getKunderaLazyInitializer();
 }
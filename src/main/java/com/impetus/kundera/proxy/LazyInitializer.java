@@ -102,4 +102,11 @@ public interface LazyInitializer
      * @return true, if is unwrap
      */
     public boolean isUnwrap();
+
+    /**
+     * Return the underlying persistent object, initializing if necessary.
+     *
+     * @return the implementation
+     */
+    public Object getImplementation();
 }
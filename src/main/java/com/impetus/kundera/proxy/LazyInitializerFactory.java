@@ -31,6 +31,12 @@ import com.impetus.kundera.ejb.EntityManagerImpl;
 public interface LazyInitializerFactory
 {
 
+    /**
+     * Property that, when "true", has the EntityManagerFactory generate proxy
+     * classes for all targets of lazy relations at startup.
+     */
+    String PREGENERATE = "kundera.proxy.pregenerate";
+
     /**
      * Get Lazily loadable @Entity proxy.
      *
@@ -53,4 +59,15 @@ public interface LazyInitializerFactory
     KunderaProxy getProxy(final String entityName, final Class<?> persistentClass, final Method getIdentifierMethod,
             final Method setIdentifierMethod, final String id, final EntityManagerImpl em) throws PersistenceException;
 
+    /**
+     * Generates the proxy class for an @Entity class ahead of its first lazy
+     * load.
+     *
+     * @param persistentClass
+     *            the persistent class
+     * @throws PersistenceException
+     *             the persistence exception
+     */
+    void generateProxyClass(final Class<?> persistentClass) throws PersistenceException;
+
 }
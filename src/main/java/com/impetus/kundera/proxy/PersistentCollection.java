@@ -0,0 +1,43 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.proxy;
+
+import java.util.List;
+
+/**
+ * A collection relation that holds only the ids of its members until it is
+ * first used.
+ *
+ * @author animesh.kumar
+ */
+public interface PersistentCollection
+{
+
+    /**
+     * Checks if the members have been loaded.
+     *
+     * @return true, if is initialized
+     */
+    boolean isInitialized();
+
+    /**
+     * Gets the ids of the members the collection was loaded with. These are
+     * not kept up to date once the collection is initialized.
+     *
+     * @return the foreign keys
+     */
+    List<String> getForeignKeys();
+}
@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.proxy;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.impetus.kundera.ejb.EntityManagerImpl;
+
+/**
+ * List relation that reads its members on first use. Until then only the
+ * ids of the members are held.
+ *
+ * @param <E>
+ *            the element type
+ * @author animesh.kumar
+ */
+public class PersistentList<E> extends AbstractList<E> implements PersistentCollection, Serializable
+{
+
+    /** The Constant serialVersionUID. */
+    private static final long serialVersionUID = 1L;
+
+    /** The loader, null once initialized. */
+    private transient CollectionLoader loader;
+
+    /** The foreign keys it was created with. */
+    private final List<String> foreignKeys;
+
+    /** The members. */
+    private List<E> members;
+
+    /**
+     * Instantiates a new persistent list.
+     *
+     * @param em
+     *            the em
+     * @param role
+     *            entity and property the list belongs to, for messages
+     * @param targetClass
+     *            the member class
+     * @param foreignKeys
+     *            the ids of the members
+     * @param batchSize
+     *            members to read per multiget
+     */
+    public PersistentList(EntityManagerImpl em, String role, Class<E> targetClass, String[] foreignKeys,
+            int batchSize)
+    {
+        this.loader = new CollectionLoader(em, role, targetClass, foreignKeys, batchSize);
+        this.foreignKeys = loader.getForeignKeys();
+    }
+
+    /**
+     * Reads the members, if not read yet.
+     *
+     * @return the members
+     */
+    @SuppressWarnings("unchecked")
+    private List<E> members()
+    {
+        if (members == null)
+        {
+            members = (List<E>) loader.load();
+            loader = null;
+        }
+        return members;
+    }
+
+    /* @see com.impetus.kundera.proxy.PersistentCollection#isInitialized() */
+    @Override
+    public boolean isInitialized()
+    {
+        return members != null;
+    }
+
+    /* @see com.impetus.kundera.proxy.PersistentCollection#getForeignKeys() */
+    @Override
+    public List<String> getForeignKeys()
+    {
+        return foreignKeys;
+    }
+
+    /* @see java.util.AbstractList#get(int) */
+    @Override
+    public E get(int index)
+    {
+        return members().get(index);
+    }
+
+    /* @see java.util.AbstractCollection#size() */
+    @Override
+    public int size()
+    {
+        return members().size();
+    }
+
+    /* @see java.util.AbstractList#set(int, java.lang.Object) */
+    @Override
+    public E set(int index, E element)
+    {
+        return members().set(index, element);
+    }
+
+    /* @see java.util.AbstractList#add(int, java.lang.Object) */
+    @Override
+    public void add(int index, E element)
+    {
+        members().add(index, element);
+        modCount++;
+    }
+
+    /* @see java.util.AbstractList#remove(int) */
+    @Override
+    public E remove(int index)
+    {
+        E removed = members().remove(index);
+        modCount++;
+        return removed;
+    }
+
+    /* @see java.util.AbstractCollection#toString() */
+    @Override
+    public String toString()
+    {
+        return isInitialized() ? members.toString() : loader.describe();
+    }
+
+    /**
+     * Replaces with a plain list on serialization, loading it if needed.
+     *
+     * @return the object
+     */
+    protected Object writeReplace()
+    {
+        return new ArrayList<E>(members());
+    }
+}
@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.proxy;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Plain holder of an @Entity object, its id and the ids of the entities it
+ * relates to. Nothing is generated or subclassed, so the entity's constructor
+ * is never run again and no class is defined per persist.
+ *
+ * @author animesh.kumar
+ */
+public class SimpleEnhancedEntity implements EnhancedEntity
+{
+
+    /** The entity. */
+    private final Object entity;
+
+    /** The id. */
+    private final String id;
+
+    /** The foreign keys map. */
+    private final Map<String, Set<String>> foreignKeysMap;
+
+    /**
+     * Instantiates a new simple enhanced entity.
+     *
+     * @param entity
+     *            the entity
+     * @param id
+     *            the id
+     * @param foreignKeysMap
+     *            the foreign keys map
+     */
+    public SimpleEnhancedEntity(Object entity, String id, Map<String, Set<String>> foreignKeysMap)
+    {
+        this.entity = entity;
+        this.id = id;
+        this.foreignKeysMap = foreignKeysMap;
+    }
+
+    /* @see com.impetus.kundera.proxy.EnhancedEntity#getEntity() */
+    @Override
+    public Object getEntity()
+    {
+        return entity;
+    }
+
+    /* @see com.impetus.kundera.proxy.EnhancedEntity#getId() */
+    @Override
+    public String getId()
+    {
+        return id;
+    }
+
+    /* @see com.impetus.kundera.proxy.EnhancedEntity#getForeignKeysMap() */
+    @Override
+    public Map<String, Set<String>> getForeignKeysMap()
+    {
+        return foreignKeysMap;
+    }
+
+    /* @see java.lang.Object#toString() */
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Entity [id=");
+        builder.append(id);
+        builder.append(", entity=");
+        builder.append(entity);
+        builder.append(", foreignKeys=");
+        builder.append(foreignKeysMap);
+        builder.append("]");
+        return builder.toString();
+    }
+}
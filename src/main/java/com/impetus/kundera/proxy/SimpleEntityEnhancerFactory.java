@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.proxy;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Implementation of EntityEnhancerFactory that wraps entities in a
+ * {@link SimpleEnhancedEntity}. Callers read the real entity through
+ * {@link EnhancedEntity#getEntity()}.
+ *
+ * @author animesh.kumar
+ */
+public class SimpleEntityEnhancerFactory implements EntityEnhancerFactory
+{
+
+    /*
+     * @see
+     * com.impetus.kundera.proxy.EntityEnhancerFactory#getProxy(java.lang.Object
+     * , java.lang.String, java.util.Map)
+     */
+    @Override
+    public EnhancedEntity getProxy(Object entity, String id, Map<String, Set<String>> foreignKeyMap)
+    {
+        return new SimpleEnhancedEntity(entity, id, foreignKeyMap);
+    }
+}
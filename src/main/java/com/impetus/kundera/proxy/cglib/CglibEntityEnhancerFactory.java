@@ -27,7 +27,11 @@ import com.impetus.kundera.proxy.EntityEnhancerFactory;
  * Implementation of EntityEnhancerFactory using cglib library.
  *
  * @author animesh.kumar
+ * @deprecated defines a subclass of the entity and runs its constructor on
+ *             every call; use
+ *             {@link com.impetus.kundera.proxy.SimpleEntityEnhancerFactory}
  */
+@Deprecated
 public class CglibEntityEnhancerFactory implements EntityEnhancerFactory
 {
 
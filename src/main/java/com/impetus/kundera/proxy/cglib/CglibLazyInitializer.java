@@ -18,11 +18,13 @@ package com.impetus.kundera.proxy.cglib;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
+import javax.persistence.EntityNotFoundException;
 import javax.persistence.PersistenceException;
 
 import net.sf.cglib.proxy.Callback;
 import net.sf.cglib.proxy.CallbackFilter;
 import net.sf.cglib.proxy.Enhancer;
+import net.sf.cglib.proxy.Factory;
 import net.sf.cglib.proxy.InvocationHandler;
 import net.sf.cglib.proxy.NoOp;
 
@@ -93,9 +95,21 @@ public final class CglibLazyInitializer implements LazyInitializer, InvocationHa
         }
     };
 
+    /** Handler of proxy prototypes, which are never handed out. */
+    private static final InvocationHandler PROTOTYPE_HANDLER = new InvocationHandler()
+    {
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            throw new LazyInitializationException("proxy prototype used, method=" + method.getName());
+        }
+    };
+
     /**
      * Gets the proxy.
      *
+     * @param factory
+     *            the proxy factory, from
+     *            {@link #getProxyFactory(Class, Class[])}
      * @param entityName
      *            the entity name
      * @param persistentClass
@@ -114,9 +128,10 @@ public final class CglibLazyInitializer implements LazyInitializer, InvocationHa
      * @throws PersistenceException
      *             the persistence exception
      */
-    public static KunderaProxy getProxy(final String entityName, final Class<?> persistentClass,
-            final Class<?>[] interfaces, final Method getIdentifierMethod, final Method setIdentifierMethod,
-            final String id, final EntityManagerImpl em) throws PersistenceException
+    public static KunderaProxy getProxy(final Factory factory, final String entityName,
+            final Class<?> persistentClass, final Class<?>[] interfaces, final Method getIdentifierMethod,
+            final Method setIdentifierMethod, final String id, final EntityManagerImpl em)
+            throws PersistenceException
     {
 
         try
@@ -124,9 +139,8 @@ public final class CglibLazyInitializer implements LazyInitializer, InvocationHa
             final CglibLazyInitializer instance = new CglibLazyInitializer(entityName, persistentClass, interfaces, id,
                     getIdentifierMethod, setIdentifierMethod, em);
 
-            final KunderaProxy proxy;
-            Class factory = getProxyFactory(persistentClass, interfaces);
-            proxy = getProxyInstance(factory, instance);
+            final KunderaProxy proxy = (KunderaProxy) factory.newInstance(new Callback[] { instance,
+                    NoOp.INSTANCE });
             instance.constructed = true;
             return proxy;
         }
@@ -137,36 +151,10 @@ public final class CglibLazyInitializer implements LazyInitializer, InvocationHa
     }
 
     /**
-     * Gets the proxy instance.
-     *
-     * @param factory
-     *            the factory
-     * @param instance
-     *            the instance
-     * @return the proxy instance
-     * @throws InstantiationException
-     *             the instantiation exception
-     * @throws IllegalAccessException
-     *             the illegal access exception
-     */
-    private static KunderaProxy getProxyInstance(Class factory, CglibLazyInitializer instance)
-            throws InstantiationException, IllegalAccessException
-    {
-        KunderaProxy proxy;
-        try
-        {
-            Enhancer.registerCallbacks(factory, new Callback[] { instance, null });
-            proxy = (KunderaProxy) factory.newInstance();
-        }
-        finally
-        {
-            Enhancer.registerCallbacks(factory, null);
-        }
-        return proxy;
-    }
-
-    /**
-     * Gets the proxy factory.
+     * Generates the proxy class for a persistent class and returns a prototype
+     * instance of it. New proxies are created from the prototype with
+     * {@link Factory#newInstance(Callback[])}, which neither generates nor
+     * looks up a class.
      *
      * @param persistentClass
      *            the persistent class
@@ -176,16 +164,34 @@ public final class CglibLazyInitializer implements LazyInitializer, InvocationHa
      * @throws PersistenceException
      *             the persistence exception
      */
-    public static Class getProxyFactory(Class persistentClass, Class[] interfaces) throws PersistenceException
+    public static Factory getProxyFactory(Class<?> persistentClass, Class<?>[] interfaces)
+            throws PersistenceException
     {
-        Enhancer e = new Enhancer();
-        e.setSuperclass(interfaces.length == 1 ? persistentClass : null);
-        e.setInterfaces(interfaces);
-        e.setCallbackTypes(new Class[] { InvocationHandler.class, NoOp.class, });
-        e.setCallbackFilter(FINALIZE_FILTER);
-        e.setUseFactory(false);
-        e.setInterceptDuringConstruction(false);
-        return e.createClass();
+        try
+        {
+            Enhancer e = new Enhancer();
+            e.setSuperclass(interfaces.length == 1 ? persistentClass : null);
+            e.setInterfaces(interfaces);
+            e.setCallbackTypes(new Class[] { InvocationHandler.class, NoOp.class, });
+            e.setCallbackFilter(FINALIZE_FILTER);
+            e.setUseFactory(true);
+            e.setInterceptDuringConstruction(false);
+            Class<?> proxyClass = e.createClass();
+
+            try
+            {
+                Enhancer.registerCallbacks(proxyClass, new Callback[] { PROTOTYPE_HANDLER, NoOp.INSTANCE });
+                return (Factory) proxyClass.newInstance();
+            }
+            finally
+            {
+                Enhancer.registerCallbacks(proxyClass, null);
+            }
+        }
+        catch (Throwable t)
+        {
+            throw new PersistenceException("CGLIB Enhancement failed: " + persistentClass.getName(), t);
+        }
     }
 
     /**
@@ -377,7 +383,12 @@ public final class CglibLazyInitializer implements LazyInitializer, InvocationHa
                 // TODO: consider not calling em.find from here. Not sure 'why',
                 // but something
                 // doesn't feel right.
-                target = em.find(persistentClass, id);
+                target = em.findBatched(persistentClass, id);
+                if (target == null)
+                {
+                    throw new EntityNotFoundException("could not initialize proxy " + persistentClass.getName()
+                            + "_" + id + " - no such entity");
+                }
                 initialized = true;
             }
         }
@@ -386,7 +397,7 @@ public final class CglibLazyInitializer implements LazyInitializer, InvocationHa
     /**
      * Return the underlying persistent object, initializing if necessary.
      *
-     * @return the implementation
+     * @return the implementation {@inheritDoc}
      */
     public final Object getImplementation()
     {
@@ -31,9 +31,14 @@
 package com.impetus.kundera.proxy.cglib;
 
 import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.persistence.PersistenceException;
 
+import net.sf.cglib.proxy.Factory;
+
 import com.impetus.kundera.ejb.EntityManagerImpl;
 import com.impetus.kundera.proxy.KunderaProxy;
 import com.impetus.kundera.proxy.LazyInitializerFactory;
@@ -41,11 +46,21 @@ import com.impetus.kundera.proxy.LazyInitializerFactory;
 /**
  * Implementation of LazyInitializerFactory using cglib library.
  * 
+ * Proxy classes are generated once per persistent class and set of
+ * interfaces, and kept for the life of the factory; each proxy after the
+ * first is a constructor call on the cached class.
+ * 
  * @author animesh.kumar
  */
 public class CglibLazyInitializerFactory implements LazyInitializerFactory
 {
 
+    /** The interfaces every lazy proxy implements. */
+    private static final Class<?>[] INTERFACES = new Class[] { KunderaProxy.class };
+
+    /** Proxy factories, by persistent class and interfaces. */
+    private final ConcurrentMap<ProxyKey, Factory> proxyFactories = new ConcurrentHashMap<ProxyKey, Factory>();
+
     /*
      * @see
      * com.impetus.kundera.proxy.LazyInitializerFactory#getProxy(java.lang.String
@@ -57,9 +72,108 @@ public class CglibLazyInitializerFactory implements LazyInitializerFactory
             Method setIdentifierMethod, String id, EntityManagerImpl em) throws PersistenceException
     {
 
-        return (KunderaProxy) CglibLazyInitializer.getProxy(entityName, persistentClass,
-                new Class[] { KunderaProxy.class }, getIdentifierMethod, setIdentifierMethod, id, em);
+        return CglibLazyInitializer.getProxy(getProxyFactory(persistentClass, INTERFACES), entityName,
+                persistentClass, INTERFACES, getIdentifierMethod, setIdentifierMethod, id, em);
+
+    }
+
+    /*
+     * @see
+     * com.impetus.kundera.proxy.LazyInitializerFactory#generateProxyClass(java
+     * .lang.Class)
+     */
+    @Override
+    public void generateProxyClass(Class<?> persistentClass) throws PersistenceException
+    {
+        getProxyFactory(persistentClass, INTERFACES);
+    }
+
+    /**
+     * Gets the proxy factory, generating the proxy class on first use. Two
+     * threads may both generate a class for the same key; only one is kept.
+     *
+     * @param persistentClass
+     *            the persistent class
+     * @param interfaces
+     *            the interfaces
+     * @return the proxy factory
+     * @throws PersistenceException
+     *             the persistence exception
+     */
+    private Factory getProxyFactory(Class<?> persistentClass, Class<?>[] interfaces) throws PersistenceException
+    {
+        ProxyKey key = new ProxyKey(persistentClass, interfaces);
+        Factory factory = proxyFactories.get(key);
+        if (factory == null)
+        {
+            factory = CglibLazyInitializer.getProxyFactory(persistentClass, interfaces);
+            Factory existing = proxyFactories.putIfAbsent(key, factory);
+            if (existing != null)
+            {
+                factory = existing;
+            }
+        }
+        return factory;
+    }
+
+    /**
+     * Number of proxy classes generated so far.
+     *
+     * @return the int
+     */
+    public int getProxyClassCount()
+    {
+        return proxyFactories.size();
+    }
+
+    /**
+     * Persistent class and interfaces of a proxy class.
+     */
+    private static final class ProxyKey
+    {
+
+        /** The persistent class. */
+        private final Class<?> persistentClass;
+
+        /** The interfaces. */
+        private final Class<?>[] interfaces;
+
+        /**
+         * Instantiates a new proxy key.
+         *
+         * @param persistentClass
+         *            the persistent class
+         * @param interfaces
+         *            the interfaces
+         */
+        ProxyKey(Class<?> persistentClass, Class<?>[] interfaces)
+        {
+            this.persistentClass = persistentClass;
+            this.interfaces = interfaces;
+        }
+
+        /* @see java.lang.Object#hashCode() */
+        @Override
+        public int hashCode()
+        {
+            return 31 * persistentClass.hashCode() + Arrays.hashCode(interfaces);
+        }
 
+        /* @see java.lang.Object#equals(java.lang.Object) */
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj)
+            {
+                return true;
+            }
+            if (!(obj instanceof ProxyKey))
+            {
+                return false;
+            }
+            ProxyKey other = (ProxyKey) obj;
+            return persistentClass.equals(other.persistentClass) && Arrays.equals(interfaces, other.interfaces);
+        }
     }
 
 }
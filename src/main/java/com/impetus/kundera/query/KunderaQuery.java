@@ -17,6 +17,8 @@ package com.impetus.kundera.query;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
@@ -46,13 +48,14 @@ public abstract class KunderaQuery
     public static final String[] INTER_CLAUSE_OPERATORS = { "AND", "OR" };
 
     /** The Constant INTRA_CLAUSE_OPERATORS. */
-    public static final String[] INTRA_CLAUSE_OPERATORS = { "=", "LIKE" };
+    public static final String[] INTRA_CLAUSE_OPERATORS = { "=", "LIKE", ">", ">=", "<", "<=", "BETWEEN", "IN" };
 
     /** The INTER pattern. */
     private static final Pattern INTER_CLAUSE_PATTERN = Pattern.compile("\\band\\b|\\bor\\b", Pattern.CASE_INSENSITIVE);
 
     /** The INTRA pattern. */
-    private static final Pattern INTRA_CLAUSE_PATTERN = Pattern.compile("=|\\blike\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern INTRA_CLAUSE_PATTERN = Pattern.compile(
+            ">=|<=|=|>|<|\\blike\\b|\\bbetween\\b|\\bin\\b", Pattern.CASE_INSENSITIVE);
 
     /** The EntityManager. */
     private EntityManagerImpl em;
@@ -86,6 +89,9 @@ public abstract class KunderaQuery
     /** The filters queue. */
     private Queue filtersQueue = new LinkedList();
 
+    /** The sort orders of the ordering clause. */
+    private List<SortOrder> sortOrders = new ArrayList<SortOrder>();
+
     /**
      * Instantiates a new kundera query.
      *
@@ -235,6 +241,7 @@ public abstract class KunderaQuery
     {
         initEntityClass();
         initFilter();
+        initOrdering();
     }
 
     /**
@@ -298,8 +305,9 @@ public abstract class KunderaQuery
         // clauses must be alternate Inter and Intra conbination, starting with
         // Intra.
         boolean newClause = true;
-        for (String clause : clauses)
+        for (int i = 0; i < clauses.size(); i++)
         {
+            String clause = clauses.get(i);
 
             if (newClause)
             {
@@ -321,7 +329,27 @@ public abstract class KunderaQuery
                     throw new PersistenceException("bad jpa query: " + clause);
                 }
 
-                filtersQueue.add(new FilterClause(property, condition, tokens.get(2)));
+                List<String> values;
+                if (condition.equalsIgnoreCase("BETWEEN"))
+                {
+                    // the AND of BETWEEN was taken for a logical one
+                    if (i + 2 >= clauses.size() || !clauses.get(i + 1).equalsIgnoreCase("AND"))
+                    {
+                        throw new PersistenceException("bad jpa query: " + clause);
+                    }
+                    values = Arrays.asList(tokens.get(2), clauses.get(i + 2));
+                    i += 2;
+                }
+                else if (condition.equalsIgnoreCase("IN"))
+                {
+                    values = splitValues(clause, tokens.get(2));
+                }
+                else
+                {
+                    values = Collections.singletonList(tokens.get(2));
+                }
+
+                filtersQueue.add(new FilterClause(property, condition, values));
                 newClause = false;
             }
 
@@ -340,6 +368,63 @@ public abstract class KunderaQuery
         }
     }
 
+    /**
+     * Inits the sort orders.
+     */
+    private void initOrdering()
+    {
+        if (null == ordering)
+        {
+            return;
+        }
+        String indexName = metadataManager.getEntityMetadata(entityClass).getIndexName();
+        for (String order : ordering.split(","))
+        {
+            String[] tokens = order.trim().split("\\s+");
+            if (tokens.length > 2 || !tokens[0].startsWith(entityAlias + ".")
+                    || (tokens.length == 2 && !tokens[1].equalsIgnoreCase("ASC") && !tokens[1]
+                            .equalsIgnoreCase("DESC")))
+            {
+                throw new PersistenceException("bad jpa query: ORDER BY " + ordering);
+            }
+            // strip alias from property name
+            String property = indexName + "." + tokens[0].substring((entityAlias + ".").length());
+            sortOrders.add(new SortOrder(property, tokens.length == 2 && tokens[1].equalsIgnoreCase("DESC")));
+        }
+    }
+
+    /**
+     * Splits the parenthesized list of values of an IN clause.
+     *
+     * @param clause
+     *            the clause
+     * @param list
+     *            the list
+     * @return the values
+     */
+    private static List<String> splitValues(String clause, String list)
+    {
+        if (!list.startsWith("(") || !list.endsWith(")"))
+        {
+            // a single collection valued parameter
+            if (list.startsWith(":"))
+            {
+                return Collections.singletonList(list);
+            }
+            throw new PersistenceException("bad jpa query: " + clause);
+        }
+        List<String> values = new ArrayList<String>();
+        for (String value : list.substring(1, list.length() - 1).split(","))
+        {
+            if (value.trim().length() == 0)
+            {
+                throw new PersistenceException("bad jpa query: " + clause);
+            }
+            values.add(value.trim());
+        }
+        return values;
+    }
+
     /**
      * Sets the parameter.
      *
@@ -350,25 +435,38 @@ public abstract class KunderaQuery
      */
     public final void setParameter(String name, String value)
     {
-        boolean found = false;
+        setParameter(name, Collections.singletonList(value));
+    }
+
+    /**
+     * Sets a parameter to values, as many as an IN clause takes.
+     *
+     * @param name
+     *            the name
+     * @param values
+     *            the values
+     */
+    public final void setParameter(String name, Collection<String> values)
+    {
         for (Object object : getFilterClauseQueue())
         {
             if (object instanceof FilterClause)
             {
                 FilterClause filter = (FilterClause) object;
                 // key
-                if (filter.getValue().equals(":" + name))
+                int position = filter.getValues().indexOf(":" + name);
+                if (position >= 0)
                 {
-                    filter.setValue(value);
-                    found = true;
+                    if (values.size() != 1 && !filter.getCondition().equalsIgnoreCase("IN"))
+                    {
+                        throw new PersistenceException("parameter " + name + " takes a single value");
+                    }
+                    filter.setValues(position, values);
                     return;
                 }
             }
         }
-        if (!found)
-        {
-            throw new PersistenceException("invalid parameter: " + name);
-        }
+        throw new PersistenceException("invalid parameter: " + name);
     }
 
     /**
@@ -396,6 +494,71 @@ public abstract class KunderaQuery
         return filtersQueue;
     }
 
+    /**
+     * Gets the sort orders of the ordering clause, empty if none.
+     *
+     * @return the sort orders
+     */
+    public final List<SortOrder> getSortOrders()
+    {
+        return sortOrders;
+    }
+
+    // class to keep hold of an ordering clause property
+    /**
+     * The Class SortOrder.
+     */
+    public static final class SortOrder
+    {
+
+        /** The property. */
+        private final String property;
+
+        /** Whether descending. */
+        private final boolean descending;
+
+        /**
+         * Instantiates a new sort order.
+         *
+         * @param property
+         *            the property
+         * @param descending
+         *            whether descending
+         */
+        public SortOrder(String property, boolean descending)
+        {
+            this.property = property;
+            this.descending = descending;
+        }
+
+        /**
+         * Gets the property.
+         *
+         * @return the property
+         */
+        public String getProperty()
+        {
+            return property;
+        }
+
+        /**
+         * Checks if is descending.
+         *
+         * @return true, if is descending
+         */
+        public boolean isDescending()
+        {
+            return descending;
+        }
+
+        /* @see java.lang.Object#toString() */
+        @Override
+        public String toString()
+        {
+            return property + (descending ? " DESC" : " ASC");
+        }
+    }
+
     // class to keep hold of a where clause predicate
     /**
      * The Class FilterClause.
@@ -409,8 +572,8 @@ public abstract class KunderaQuery
         /** The condition. */
         private String condition;
 
-        /** The value. */
-        String value;
+        /** The values: one, both ends of BETWEEN or those of IN. */
+        private List<String> values;
 
         /**
          * The Constructor.
@@ -423,11 +586,26 @@ public abstract class KunderaQuery
          *            the value
          */
         public FilterClause(String property, String condition, String value)
+        {
+            this(property, condition, Collections.singletonList(value));
+        }
+
+        /**
+         * The Constructor.
+         *
+         * @param property
+         *            the property
+         * @param condition
+         *            the condition
+         * @param values
+         *            the values
+         */
+        public FilterClause(String property, String condition, List<String> values)
         {
             super();
             this.property = property;
             this.condition = condition;
-            this.value = value;
+            this.values = new ArrayList<String>(values);
         }
 
         /**
@@ -451,24 +629,37 @@ public abstract class KunderaQuery
         }
 
         /**
-         * Gets the value.
+         * Gets the value, the first one if more.
          *
          * @return the value
          */
         public final String getValue()
         {
-            return value;
+            return values.get(0);
         }
 
         /**
-         * Sets the value.
+         * Gets the values.
          *
-         * @param value
-         *            the value to set
+         * @return the values
+         */
+        public final List<String> getValues()
+        {
+            return Collections.unmodifiableList(values);
+        }
+
+        /**
+         * Replaces a value, a parameter, with values.
+         *
+         * @param position
+         *            the position of the value
+         * @param values
+         *            the values to set
          */
-        protected void setValue(String value)
+        protected void setValues(int position, Collection<String> values)
         {
-            this.value = value;
+            this.values.remove(position);
+            this.values.addAll(position, values);
         }
 
         /* @see java.lang.Object#toString() */
@@ -480,8 +671,8 @@ public abstract class KunderaQuery
             builder.append(property);
             builder.append(", condition=");
             builder.append(condition);
-            builder.append(", value=");
-            builder.append(value);
+            builder.append(", values=");
+            builder.append(values);
             builder.append("]");
             return builder.toString();
         }
@@ -505,6 +696,8 @@ public abstract class KunderaQuery
         builder.append(entityAlias);
         builder.append(", filtersQueue=");
         builder.append(filtersQueue);
+        builder.append(", sortOrders=");
+        builder.append(sortOrders);
         builder.append("]");
         return builder.toString();
     }
@@ -15,10 +15,14 @@
  ******************************************************************************/
 package com.impetus.kundera.query;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
+import javax.persistence.PersistenceException;
 import javax.persistence.Query;
 
 import org.apache.commons.logging.Log;
@@ -27,6 +31,7 @@ import org.apache.commons.logging.LogFactory;
 import com.impetus.kundera.Constants;
 import com.impetus.kundera.ejb.EntityManagerImpl;
 import com.impetus.kundera.index.KunderaIndexer;
+import com.impetus.kundera.index.NumericQueryParser;
 import com.impetus.kundera.metadata.MetadataManager;
 
 /**
@@ -43,6 +48,9 @@ public class LuceneQuery extends QueryImpl implements Query
     /** The max result. */
     int maxResult = Constants.INVALID;
 
+    /** The position of the first hit. */
+    int firstResult = 0;
+
     /** The lucene query. */
     String luceneQuery;
 
@@ -75,6 +83,53 @@ public class LuceneQuery extends QueryImpl implements Query
     /* @see com.impetus.kundera.query.QueryImpl#getResultList() */
     @Override
     public List<?> getResultList()
+    {
+        final String lq = getLuceneQuery();
+        try
+        {
+            return getEntityManager().loadWithFetchPlan(getFetchPlanHint(), new Callable<List<?>>()
+            {
+                @Override
+                public List<?> call()
+                {
+                    return getResultList(lq);
+                }
+            });
+        }
+        catch (RuntimeException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new PersistenceException(e);
+        }
+    }
+
+    /**
+     * Counts the index hits of this query, ignoring first and max results.
+     * Runs a search of its own, so callers paging through the results ask
+     * once.
+     *
+     * @return the total hits
+     */
+    public int getTotalHits()
+    {
+        String q = getLuceneQuery();
+        long indexWait = getIndexWaitHint();
+        if (indexWait >= 0)
+        {
+            getEntityManager().waitForIndex(indexWait);
+        }
+        return getEntityManager().getIndexManager().count(getEntityMetadata(), q);
+    }
+
+    /**
+     * Gets the lucene query, as set or translated from the JPA query.
+     *
+     * @return the lucene query
+     */
+    private String getLuceneQuery()
     {
         log.debug("JPA Query: " + query);
 
@@ -86,10 +141,35 @@ public class LuceneQuery extends QueryImpl implements Query
         }
 
         log.debug("Lucene Query: " + q);
-        Map<String, String> searchFilter = getEntityManager().getIndexManager().search(q, -1, maxResult);
+        return q;
+    }
+
+    /**
+     * Loads the entities matching a lucene query.
+     *
+     * @param q
+     *            the lucene query
+     * @return the result list
+     */
+    private List<?> getResultList(String q)
+    {
+        long indexWait = getIndexWaitHint();
+        if (indexWait >= 0)
+        {
+            getEntityManager().waitForIndex(indexWait);
+        }
+
+        if (isAliasOnly() && isResultCacheable())
+        {
+            return getEntityManager().find(getEntityClass(), getCachedIds(q).toArray());
+        }
+
+        Map<String, String> searchFilter = search(q);
         if (isAliasOnly())
-        {            
-            return getEntityManager().find(getEntityClass(), new HashSet(searchFilter.values()).toArray());
+        {
+            // in the order of the hits
+            return getEntityManager().find(getEntityClass(),
+                    new LinkedHashSet<String>(searchFilter.values()).toArray());
         }
         else
         {
@@ -98,14 +178,142 @@ public class LuceneQuery extends QueryImpl implements Query
 
     }
 
+    /**
+     * Searches the index, sharing the search with concurrent identical
+     * queries. A query waiting for the index searches on its own: a shared
+     * search may have started before its writes were applied.
+     *
+     * @param q
+     *            the lucene query
+     * @return the search results
+     */
+    private Map<String, String> search(final String q)
+    {
+        try
+        {
+            final String ordering = getIndexOrdering();
+            Callable<Map<String, String>> search = new Callable<Map<String, String>>()
+            {
+                @Override
+                public Map<String, String> call()
+                {
+                    return Collections.unmodifiableMap(getEntityManager().getIndexManager().search(
+                            getEntityMetadata(), q, ordering, firstResult, maxResult));
+                }
+            };
+            if (getIndexWaitHint() >= 0)
+            {
+                return search.call();
+            }
+            String key = "lucene|" + getEntityClass().getName() + "|" + q + "|" + ordering + "|" + firstResult + "|"
+                    + maxResult;
+            return getEntityManager().getFactory().getReadCoalescer().execute(key, search);
+        }
+        catch (RuntimeException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new PersistenceException(e);
+        }
+    }
+
+    /**
+     * Ids matching the lucene query, from the query result cache if present.
+     *
+     * @param q
+     *            the lucene query
+     * @return the ids
+     */
+    private List<String> getCachedIds(String q)
+    {
+        QueryResultCache cache = getEntityManager().getFactory().getQueryResultCache();
+        String key = getResultCacheKey(firstResult, maxResult) + "|" + q + "|" + getIndexOrdering();
+
+        List<String> ids = cache.get(getEntityClass(), key);
+        if (ids == null)
+        {
+            long generation = cache.getGeneration(getEntityClass());
+            Map<String, String> searchFilter = search(q);
+            ids = new ArrayList<String>(new LinkedHashSet<String>(searchFilter.values()));
+            cache.put(getEntityClass(), key, ids, generation);
+        }
+        return ids;
+    }
+
+    /**
+     * Gets the ordering clause in index fields, null to order by relevance.
+     *
+     * @return the ordering
+     */
+    private String getIndexOrdering()
+    {
+        if (getSortOrders().isEmpty())
+        {
+            return null;
+        }
+        StringBuilder ordering = new StringBuilder();
+        for (SortOrder order : getSortOrders())
+        {
+            if (ordering.length() > 0)
+            {
+                ordering.append(",");
+            }
+            ordering.append(order);
+        }
+        return ordering.toString();
+    }
+
     /* @see com.impetus.kundera.query.QueryImpl#setMaxResults(int) */
     @Override
     public Query setMaxResults(int maxResult)
     {
+        if (maxResult < 0)
+        {
+            throw new IllegalArgumentException("Max results must not be negative: " + maxResult);
+        }
         this.maxResult = maxResult;
         return this;
     }
 
+    /* @see com.impetus.kundera.query.QueryImpl#getMaxResults() */
+    @Override
+    public int getMaxResults()
+    {
+        return maxResult == Constants.INVALID ? Integer.MAX_VALUE : maxResult;
+    }
+
+    /**
+     * Sets the position of the first index hit to return. Pages are
+     * positioned by hits, so entities with several documents, such as super
+     * column entities, may span pages. A page following the one read last
+     * continues from where that ended instead of collecting every hit
+     * before it.
+     *
+     * @param startPosition
+     *            the start position
+     * @return the query
+     * @see javax.persistence.Query#setFirstResult(int)
+     */
+    @Override
+    public Query setFirstResult(int startPosition)
+    {
+        if (startPosition < 0)
+        {
+            throw new IllegalArgumentException("First result must not be negative: " + startPosition);
+        }
+        this.firstResult = startPosition;
+        return this;
+    }
+
+    /* @see com.impetus.kundera.query.QueryImpl#getFirstResult() */
+    @Override
+    public int getFirstResult()
+    {
+        return firstResult;
+    }
+
     /**
      * Gets the lucene query from jpa query.
      *
@@ -123,22 +331,52 @@ public class LuceneQuery extends QueryImpl implements Query
                 sb.append("+");
                 // property
                 sb.append(filter.getProperty());
+                sb.append(":");
 
-                // joiner
-                String appender = "";
-                if (filter.getCondition().equals("="))
+                // value, ranges open at * and exclusive in braces; values are
+                // quoted, so no character of theirs is taken for syntax
+                String condition = filter.getCondition();
+                String value = NumericQueryParser.quote(filter.getValue());
+                if (condition.equals("="))
                 {
-                    sb.append(":");
+                    sb.append(value);
                 }
-                else if (filter.getCondition().equalsIgnoreCase("like"))
+                else if (condition.equalsIgnoreCase("like"))
                 {
-                    sb.append(":");
-                    appender = "*";
+                    sb.append(NumericQueryParser.escapePrefix(filter.getValue()));
+                    sb.append("*");
+                }
+                else if (condition.equals(">"))
+                {
+                    sb.append("{").append(value).append(" TO *}");
+                }
+                else if (condition.equals(">="))
+                {
+                    sb.append("[").append(value).append(" TO *]");
+                }
+                else if (condition.equals("<"))
+                {
+                    sb.append("{* TO ").append(value).append("}");
+                }
+                else if (condition.equals("<="))
+                {
+                    sb.append("[* TO ").append(value).append("]");
+                }
+                else if (condition.equalsIgnoreCase("between"))
+                {
+                    sb.append("[").append(value).append(" TO ").append(
+                            NumericQueryParser.quote(filter.getValues().get(1))).append("]");
+                }
+                else if (condition.equalsIgnoreCase("in"))
+                {
+                    sb.append("(");
+                    for (String inValue : filter.getValues())
+                    {
+                        sb.append(NumericQueryParser.quote(inValue)).append(" ");
+                    }
+                    sb.setLength(sb.length() - 1);
+                    sb.append(")");
                 }
-
-                // value
-                sb.append(filter.getValue());
-                sb.append(appender);
             }
             else
             {
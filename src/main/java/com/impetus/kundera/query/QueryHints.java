@@ -0,0 +1,60 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.query;
+
+/**
+ * Names of the query hints understood by Kundera, see
+ * {@link javax.persistence.Query#setHint(String, Object)}. Hints not listed
+ * here are kept but ignored.
+ *
+ * @author animesh.kumar
+ */
+public final class QueryHints
+{
+
+    /**
+     * Caches the ids a query returns, keyed by query and bound parameters.
+     * Entities are then resolved through the session and second level cache.
+     * Boolean, or "true"/"false".
+     */
+    public static final String CACHEABLE = "kundera.query.cacheable";
+
+    /**
+     * Fetch plan to load the results with, overriding the fetch types of
+     * relations and leaving properties out. The name of a
+     * {@link com.impetus.kundera.api.NamedFetchPlan}, or a
+     * {@link com.impetus.kundera.metadata.FetchPlan}. Also understood by
+     * {@link javax.persistence.EntityManager#find(Class, Object, java.util.Map)}.
+     */
+    public static final String FETCH_PLAN = "kundera.fetchplan";
+
+    /**
+     * Waits until the index reflects every write of the entity manager before
+     * searching, when indexing runs in the background. Boolean, or the most
+     * milliseconds to wait; true waits up to {@link #DEFAULT_INDEX_WAIT}.
+     */
+    public static final String WAIT_FOR_INDEX = "kundera.query.wait_for_index";
+
+    /** Milliseconds {@link #WAIT_FOR_INDEX} waits when set to true. */
+    public static final long DEFAULT_INDEX_WAIT = 10000;
+
+    /**
+     * Instantiates a new query hints.
+     */
+    private QueryHints()
+    {
+    }
+}
@@ -15,8 +15,11 @@
  ******************************************************************************/
 package com.impetus.kundera.query;
 
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -43,6 +46,9 @@ public abstract class QueryImpl extends KunderaQuery implements Query
     /** The query. */
     protected String query;
 
+    /** The hints. */
+    private Map<String, Object> hints = new HashMap<String, Object>();
+
     /**
      * Instantiates a new query impl.
      *
@@ -122,7 +128,8 @@ public abstract class QueryImpl extends KunderaQuery implements Query
     @Override
     public Query setHint(String hintName, Object value)
     {
-        throw new NotImplementedException("TODO");
+        hints.put(hintName, value);
+        return this;
     }
 
     /* @see javax.persistence.Query#setMaxResults(int) */
@@ -132,17 +139,52 @@ public abstract class QueryImpl extends KunderaQuery implements Query
         throw new NotImplementedException("TODO");
     }
 
-    /*
+    /**
+     * Sets a parameter. Dates are given in milliseconds, as they are indexed;
+     * a collection gives the values of an IN clause.
+     *
      * @see javax.persistence.Query#setParameter(java.lang.String,
-     * java.lang.Object)
+     *      java.lang.Object)
      */
     @Override
     public Query setParameter(String name, Object value)
     {
-        setParameter(name, value.toString());
+        if (value instanceof Collection<?>)
+        {
+            List<String> values = new ArrayList<String>();
+            for (Object element : (Collection<?>) value)
+            {
+                values.add(toParameter(element));
+            }
+            setParameter(name, values);
+        }
+        else
+        {
+            setParameter(name, toParameter(value));
+        }
         return this;
     }
 
+    /**
+     * Converts a parameter value to its query form.
+     *
+     * @param value
+     *            the value
+     * @return the string
+     */
+    private String toParameter(Object value)
+    {
+        if (value instanceof Date)
+        {
+            return String.valueOf(((Date) value).getTime());
+        }
+        if (value instanceof Calendar)
+        {
+            return String.valueOf(((Calendar) value).getTimeInMillis());
+        }
+        return value.toString();
+    }
+
     /* @see javax.persistence.Query#setParameter(int, java.lang.Object) */
     @Override
     public Query setParameter(int position, Object value)
@@ -157,7 +199,7 @@ public abstract class QueryImpl extends KunderaQuery implements Query
     @Override
     public Query setParameter(String name, Date value, TemporalType temporalType)
     {
-        throw new NotImplementedException("TODO");
+        return setParameter(name, (Object) value);
     }
 
     /*
@@ -167,7 +209,7 @@ public abstract class QueryImpl extends KunderaQuery implements Query
     @Override
     public Query setParameter(String name, Calendar value, TemporalType temporalType)
     {
-        throw new NotImplementedException("TODO");
+        return setParameter(name, (Object) value);
     }
 
     /*
@@ -214,7 +256,102 @@ public abstract class QueryImpl extends KunderaQuery implements Query
     @Override
     public Map<String, Object> getHints()
     {
-        throw new NotImplementedException("TODO");
+        return hints;
+    }
+
+    /**
+     * Checks whether a boolean hint is set.
+     *
+     * @param hintName
+     *            the hint name
+     * @return true, if the hint is Boolean.TRUE or "true"
+     */
+    protected boolean isHintSet(String hintName)
+    {
+        Object value = hints.get(hintName);
+        return value != null && Boolean.valueOf(value.toString());
+    }
+
+    /**
+     * Gets the fetch plan hint of this query.
+     *
+     * @return a {@link com.impetus.kundera.metadata.FetchPlan}, the name of
+     *         one, or null
+     * @see QueryHints#FETCH_PLAN
+     */
+    protected Object getFetchPlanHint()
+    {
+        return hints.get(QueryHints.FETCH_PLAN);
+    }
+
+    /**
+     * Gets how long this query waits for the index to reflect the writes of
+     * its entity manager.
+     *
+     * @return milliseconds, -1 if it does not wait
+     * @see QueryHints#WAIT_FOR_INDEX
+     */
+    protected long getIndexWaitHint()
+    {
+        Object value = hints.get(QueryHints.WAIT_FOR_INDEX);
+        if (value == null)
+        {
+            return -1;
+        }
+        if (value instanceof Number)
+        {
+            return ((Number) value).longValue();
+        }
+        String s = value.toString().trim();
+        if (Boolean.parseBoolean(s))
+        {
+            return QueryHints.DEFAULT_INDEX_WAIT;
+        }
+        if ("false".equalsIgnoreCase(s))
+        {
+            return -1;
+        }
+        try
+        {
+            return Long.parseLong(s);
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Invalid value of " + QueryHints.WAIT_FOR_INDEX + ": " + value);
+        }
+    }
+
+    /**
+     * Whether results of this query go through the query result cache.
+     *
+     * @return true, if cacheable
+     * @see QueryHints#CACHEABLE
+     */
+    protected boolean isResultCacheable()
+    {
+        return isHintSet(QueryHints.CACHEABLE);
+    }
+
+    /**
+     * Key of this query in the query result cache: the parsed query along
+     * with its bound parameters, and the requested page.
+     *
+     * @param firstResult
+     *            the first result
+     * @param maxResult
+     *            the max result
+     * @return the result cache key
+     */
+    protected String getResultCacheKey(int firstResult, int maxResult)
+    {
+        StringBuilder key = new StringBuilder();
+        key.append(getEntityClass().getName());
+        key.append('|').append(getResult());
+        key.append('|').append(this);
+        key.append('|').append(getOrdering());
+        key.append('|').append(firstResult);
+        key.append('|').append(maxResult);
+        return key.toString();
     }
 
     /* (non-Javadoc)
@@ -0,0 +1,251 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Factory wide cache of query results. Only the ordered ids of the matching
+ * entities are kept; entities themselves are resolved through the session
+ * and the second level cache.
+ *
+ * Results are grouped by the queried entity class, and all results of a class
+ * are dropped whenever an entity of that class is indexed, re-indexed or
+ * removed from the index.
+ *
+ * @author animesh.kumar
+ */
+public class QueryResultCache
+{
+
+    /** The Constant log. */
+    private static final Log LOG = LogFactory.getLog(QueryResultCache.class);
+
+    /** The Constant MAX_ENTRIES, results kept per entity class. */
+    public static final String MAX_ENTRIES = "kundera.query.cache.max_entries";
+
+    /** The Constant DEFAULT_MAX_ENTRIES. */
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    /** The max entries. */
+    private final int maxEntries;
+
+    /** Results by entity class. */
+    private final ConcurrentMap<Class<?>, Region> regions = new ConcurrentHashMap<Class<?>, Region>();
+
+    /** Lookups answered from the cache. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Lookups not answered from the cache. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Instantiates a new query result cache.
+     *
+     * @param maxEntries
+     *            results kept per entity class
+     */
+    public QueryResultCache(int maxEntries)
+    {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Gets the cached ids for a query.
+     *
+     * @param entityClass
+     *            the entity class
+     * @param key
+     *            the query key
+     * @return the ids, or null if not cached
+     */
+    public List<String> get(Class<?> entityClass, String key)
+    {
+        List<String> ids = getRegion(entityClass).get(key);
+        (ids == null ? misses : hits).incrementAndGet();
+        LOG.debug((ids == null ? "Query cache miss >> " : "Query cache hit >> ") + key);
+        return ids;
+    }
+
+    /**
+     * Current generation of an entity class; it changes on every
+     * invalidation. Take it before running a query and hand it to
+     * {@link #put(Class, String, List, long)}, so that results computed while
+     * the class was being written are not cached.
+     *
+     * @param entityClass
+     *            the entity class
+     * @return the generation
+     */
+    public long getGeneration(Class<?> entityClass)
+    {
+        return getRegion(entityClass).generation.get();
+    }
+
+    /**
+     * Caches the ids a query returned.
+     *
+     * @param entityClass
+     *            the entity class
+     * @param key
+     *            the query key
+     * @param ids
+     *            the ids
+     * @param generation
+     *            generation of the entity class when the query was run
+     */
+    public void put(Class<?> entityClass, String key, List<String> ids, long generation)
+    {
+        getRegion(entityClass).put(key, Collections.unmodifiableList(new ArrayList<String>(ids)), generation);
+    }
+
+    /**
+     * Drops all results of an entity class.
+     *
+     * @param entityClass
+     *            the entity class
+     */
+    public void invalidate(Class<?> entityClass)
+    {
+        Region region = regions.get(entityClass);
+        if (region != null)
+        {
+            region.clear();
+        }
+    }
+
+    /**
+     * Drops all results.
+     */
+    public void clear()
+    {
+        for (Region region : regions.values())
+        {
+            region.clear();
+        }
+    }
+
+    /**
+     * Number of lookups answered from the cache.
+     *
+     * @return the hits
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * Number of lookups not answered from the cache.
+     *
+     * @return the misses
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Gets the region of an entity class.
+     *
+     * @param entityClass
+     *            the entity class
+     * @return the region
+     */
+    private Region getRegion(Class<?> entityClass)
+    {
+        Region region = regions.get(entityClass);
+        if (region == null)
+        {
+            region = new Region();
+            Region existing = regions.putIfAbsent(entityClass, region);
+            if (existing != null)
+            {
+                region = existing;
+            }
+        }
+        return region;
+    }
+
+    /**
+     * Results of one entity class, least recently used dropped first.
+     */
+    private final class Region
+    {
+
+        /** The generation. */
+        private final AtomicLong generation = new AtomicLong();
+
+        /** The results. */
+        private final Map<String, List<String>> results = new LinkedHashMap<String, List<String>>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest)
+            {
+                return size() > maxEntries;
+            }
+        };
+
+        /**
+         * Gets the.
+         *
+         * @param key
+         *            the key
+         * @return the list
+         */
+        synchronized List<String> get(String key)
+        {
+            return results.get(key);
+        }
+
+        /**
+         * Put.
+         *
+         * @param key
+         *            the key
+         * @param ids
+         *            the ids
+         * @param expectedGeneration
+         *            the expected generation
+         */
+        synchronized void put(String key, List<String> ids, long expectedGeneration)
+        {
+            if (generation.get() == expectedGeneration)
+            {
+                results.put(key, ids);
+            }
+        }
+
+        /**
+         * Clear.
+         */
+        synchronized void clear()
+        {
+            generation.incrementAndGet();
+            results.clear();
+        }
+    }
+}
@@ -0,0 +1,478 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.junit;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.impetus.kundera.ejb.EntityManagerFactoryImpl;
+import com.impetus.kundera.entity.Employee;
+import com.impetus.kundera.index.AsyncIndexingQueue;
+import com.impetus.kundera.index.Indexer;
+import com.impetus.kundera.index.IndexingException;
+import com.impetus.kundera.metadata.EntityMetadata;
+
+/**
+ * Index changes are applied in the background, coalesced per entity, and
+ * replayed from the journal after a crash.
+ */
+public class AsyncIndexingQueueTest extends TestCase
+{
+
+    /** The factory. */
+    private EntityManagerFactoryImpl factory;
+
+    /** The metadata. */
+    private EntityMetadata metadata;
+
+    /** The journal. */
+    private File journal;
+
+    /** Queues to close. */
+    private List<AsyncIndexingQueue> queues = new ArrayList<AsyncIndexingQueue>();
+
+    /** Indexers to release before closing. */
+    private List<RecordingIndexer> indexers = new ArrayList<RecordingIndexer>();
+
+    /* @see junit.framework.TestCase#setUp() */
+    @Override
+    protected void setUp() throws Exception
+    {
+        factory = new EntityManagerFactoryImpl("asyncindex", new HashMap<String, String>());
+        metadata = factory.getMetadataManager().getEntityMetadata(Employee.class);
+        journal = File.createTempFile("kundera-index", ".journal");
+        journal.delete();
+    }
+
+    /* @see junit.framework.TestCase#tearDown() */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        for (RecordingIndexer indexer : indexers)
+        {
+            indexer.gate.countDown();
+        }
+        for (AsyncIndexingQueue queue : queues)
+        {
+            queue.close();
+        }
+        journal.delete();
+        factory.close();
+    }
+
+    /**
+     * Test changes queued to one entity are applied once, as the last of
+     * them.
+     */
+    public void testCoalescesPerEntity()
+    {
+        RecordingIndexer indexer = new RecordingIndexer(true);
+        AsyncIndexingQueue queue = open(indexer, null);
+
+        // the applier takes the first change and waits on the gate
+        queue.unindex(metadata, "e0");
+        indexer.awaitCalls(1);
+
+        Employee first = new Employee("e1", "developer");
+        Employee last = new Employee("e1", "architect");
+        queue.index(metadata, "e1", first);
+        queue.update(metadata, "e1", last);
+        queue.index(metadata, "e2", new Employee("e2", "tester"));
+        long sequence = queue.unindex(metadata, "e2");
+
+        indexer.gate.countDown();
+        assertTrue(queue.await(sequence, 5000));
+        assertEquals(Collections.singletonList("unindex e0"), indexer.calls.subList(0, 1));
+        assertEquals(3, indexer.calls.size());
+        assertTrue(indexer.calls.contains("update e1 architect"));
+        assertTrue(indexer.calls.contains("unindex e2"));
+    }
+
+    /**
+     * Test an index over a queued removal replaces what the index has.
+     */
+    public void testIndexAfterRemovalUpdates()
+    {
+        RecordingIndexer indexer = new RecordingIndexer(true);
+        AsyncIndexingQueue queue = open(indexer, null);
+        queue.unindex(metadata, "e0");
+        indexer.awaitCalls(1);
+
+        queue.unindex(metadata, "e1");
+        long sequence = queue.index(metadata, "e1", new Employee("e1", "developer"));
+
+        indexer.gate.countDown();
+        assertTrue(queue.await(sequence, 5000));
+        assertEquals("update e1 developer", indexer.calls.get(1));
+    }
+
+    /**
+     * Test a change indexes the entity as it was when queued, whatever the
+     * application does to it afterwards.
+     */
+    public void testIndexesStateWhenQueued()
+    {
+        RecordingIndexer indexer = new RecordingIndexer(true);
+        AsyncIndexingQueue queue = open(indexer, null);
+        queue.unindex(metadata, "e0");
+        indexer.awaitCalls(1);
+
+        Employee employee = new Employee("e1", "developer");
+        long sequence = queue.index(metadata, "e1", employee);
+        employee.setRole("architect");
+
+        indexer.gate.countDown();
+        assertTrue(queue.await(sequence, 5000));
+        assertEquals("index e1 developer", indexer.calls.get(1));
+    }
+
+    /**
+     * Test waiting for a change times out until it is applied.
+     */
+    public void testAwait()
+    {
+        RecordingIndexer indexer = new RecordingIndexer(true);
+        AsyncIndexingQueue queue = open(indexer, null);
+        long sequence = queue.index(metadata, "e1", new Employee("e1", "developer"));
+
+        assertFalse(queue.await(sequence, 50));
+        indexer.gate.countDown();
+        assertTrue(queue.await(sequence, 5000));
+        assertTrue(queue.await(0, 0));
+    }
+
+    /**
+     * Test changes not applied when the queue went down are replayed when it
+     * opens again.
+     */
+    public void testReplaysJournal()
+    {
+        RecordingIndexer crashed = new RecordingIndexer(true);
+        AsyncIndexingQueue queue = open(crashed, journal);
+        queue.unindex(metadata, "e1");
+        crashed.awaitCalls(1);
+        queue.unindex(metadata, "e2");
+        assertTrue(journal.length() > 0);
+
+        // never applied, as if the process went down here
+        RecordingIndexer indexer = new RecordingIndexer(false);
+        AsyncIndexingQueue reopened = open(indexer, journal);
+        assertTrue(reopened.await(reopened.getSubmittedSequence(), 5000));
+        assertEquals(2, indexer.calls.size());
+        assertTrue(indexer.calls.contains("unindex e1"));
+        assertTrue(indexer.calls.contains("unindex e2"));
+    }
+
+    /**
+     * Test a journal with more changes than the capacity is replayed without
+     * waiting for room.
+     */
+    public void testReplaysPastCapacity()
+    {
+        RecordingIndexer crashed = new RecordingIndexer(true);
+        AsyncIndexingQueue queue = open(crashed, journal, 100);
+        queue.unindex(metadata, "e0");
+        crashed.awaitCalls(1);
+        for (int i = 1; i <= 30; i++)
+        {
+            queue.unindex(metadata, "e" + i);
+        }
+
+        RecordingIndexer indexer = new RecordingIndexer(false);
+        AsyncIndexingQueue reopened = open(indexer, journal, 10);
+        assertTrue(reopened.await(reopened.getSubmittedSequence(), 5000));
+        assertEquals(31, indexer.calls.size());
+        assertTrue(indexer.calls.contains("unindex e0"));
+        assertTrue(indexer.calls.contains("unindex e30"));
+    }
+
+    /**
+     * Test a change the indexer fails on is retried, and not counted as
+     * applied until it is.
+     */
+    public void testRetriesFailedChange()
+    {
+        RecordingIndexer indexer = new RecordingIndexer(false, 1);
+        AsyncIndexingQueue queue = open(indexer, null);
+        long sequence = queue.unindex(metadata, "e1");
+
+        indexer.awaitCalls(1);
+        assertFalse(queue.await(sequence, 100));
+        assertTrue(queue.await(sequence, AsyncIndexingQueue.RETRY_DELAY + 5000));
+        assertEquals(Collections.nCopies(2, "unindex e1"), indexer.calls);
+    }
+
+    /**
+     * Test a change still failing at close is left in the journal and
+     * replayed when the queue opens again.
+     */
+    public void testKeepsFailedChangeInJournal()
+    {
+        RecordingIndexer failing = new RecordingIndexer(false, Integer.MAX_VALUE);
+        AsyncIndexingQueue queue = open(failing, journal);
+        queue.unindex(metadata, "e1");
+        failing.awaitCalls(1);
+        queues.remove(queue);
+        queue.close();
+
+        RecordingIndexer indexer = new RecordingIndexer(false);
+        AsyncIndexingQueue reopened = open(indexer, journal);
+        assertTrue(reopened.await(reopened.getSubmittedSequence(), 5000));
+        assertEquals(Collections.singletonList("unindex e1"), indexer.calls);
+    }
+
+    /**
+     * Test a change failing on every attempt is given up on, no longer holds
+     * back the changes after it, and is replayed from the journal.
+     */
+    public void testAbandonsAfterRetries()
+    {
+        RecordingIndexer failing = new RecordingIndexer(false, Integer.MAX_VALUE);
+        AsyncIndexingQueue queue = open(failing, journal);
+        long sequence = queue.unindex(metadata, "e1");
+
+        assertTrue(queue.await(sequence, AsyncIndexingQueue.RETRY_DELAY * AsyncIndexingQueue.MAX_ATTEMPTS + 5000));
+        assertEquals(AsyncIndexingQueue.MAX_ATTEMPTS, failing.calls.size());
+        queues.remove(queue);
+        queue.close();
+
+        RecordingIndexer indexer = new RecordingIndexer(false);
+        AsyncIndexingQueue reopened = open(indexer, journal);
+        assertTrue(reopened.await(reopened.getSubmittedSequence(), 5000));
+        assertEquals(Collections.singletonList("unindex e1"), indexer.calls);
+    }
+
+    /**
+     * Test writers and waiters get an error, rather than waiting, once the
+     * applier dies.
+     */
+    public void testApplierFailure()
+    {
+        RecordingIndexer broken = new RecordingIndexer(false)
+        {
+            @Override
+            public void unindex(EntityMetadata metadata, String id)
+            {
+                throw new Error("broken");
+            }
+        };
+        AsyncIndexingQueue queue = open(broken, null);
+        long sequence = queue.unindex(metadata, "e1");
+        try
+        {
+            queue.await(sequence, 5000);
+            fail("Applier failure ignored by a waiter");
+        }
+        catch (IndexingException e)
+        {
+            assertTrue(e.getMessage().contains("broken"));
+        }
+        try
+        {
+            queue.unindex(metadata, "e2");
+            fail("Applier failure ignored by a writer");
+        }
+        catch (IndexingException e)
+        {
+            assertTrue(e.getMessage().contains("broken"));
+        }
+    }
+
+    /**
+     * Test the journal is started afresh once everything is applied.
+     */
+    public void testTruncatesJournal()
+    {
+        RecordingIndexer indexer = new RecordingIndexer(false);
+        AsyncIndexingQueue queue = open(indexer, journal);
+        long sequence = queue.unindex(metadata, "e1");
+        assertTrue(queue.await(sequence, 5000));
+        assertEquals(0, journal.length());
+    }
+
+    /**
+     * Opens a queue.
+     *
+     * @param indexer
+     *            the indexer
+     * @param journalFile
+     *            the journal file
+     * @return the queue
+     */
+    private AsyncIndexingQueue open(RecordingIndexer indexer, File journalFile)
+    {
+        return open(indexer, journalFile, 100);
+    }
+
+    /**
+     * Opens a queue.
+     *
+     * @param indexer
+     *            the indexer
+     * @param journalFile
+     *            the journal file
+     * @param capacity
+     *            the capacity
+     * @return the queue
+     */
+    private AsyncIndexingQueue open(RecordingIndexer indexer, File journalFile, int capacity)
+    {
+        AsyncIndexingQueue queue = new AsyncIndexingQueue(indexer, factory, factory.getQueryResultCache(), capacity,
+                10, journalFile);
+        indexers.add(indexer);
+        queues.add(queue);
+        return queue;
+    }
+
+    /**
+     * Records the changes it is handed, the first one held until the gate
+     * opens, failing on the first few.
+     */
+    private static class RecordingIndexer implements Indexer
+    {
+
+        /** The calls. */
+        private final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+
+        /** The gate. */
+        private final CountDownLatch gate;
+
+        /** Calls still to fail. */
+        private final AtomicInteger failures;
+
+        /**
+         * Instantiates a new recording indexer.
+         *
+         * @param gated
+         *            whether the first change waits for the gate
+         */
+        RecordingIndexer(boolean gated)
+        {
+            this(gated, 0);
+        }
+
+        /**
+         * Instantiates a new recording indexer.
+         *
+         * @param gated
+         *            whether the first change waits for the gate
+         * @param failures
+         *            calls to fail
+         */
+        RecordingIndexer(boolean gated, int failures)
+        {
+            gate = new CountDownLatch(gated ? 1 : 0);
+            this.failures = new AtomicInteger(failures);
+        }
+
+        /**
+         * Waits until the indexer was handed some changes.
+         *
+         * @param count
+         *            the count
+         */
+        void awaitCalls(int count)
+        {
+            long until = System.currentTimeMillis() + 5000;
+            while (calls.size() < count && System.currentTimeMillis() < until)
+            {
+                Thread.yield();
+            }
+            assertEquals(count, calls.size());
+        }
+
+        /**
+         * Records a call and waits for the gate.
+         *
+         * @param call
+         *            the call
+         */
+        private void record(String call)
+        {
+            calls.add(call);
+            if (failures.getAndDecrement() > 0)
+            {
+                throw new IndexingException("Failing " + call);
+            }
+            try
+            {
+                gate.await();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void unindex(EntityMetadata metadata, String id)
+        {
+            record("unindex " + id);
+        }
+
+        @Override
+        public void index(EntityMetadata metadata, Object object)
+        {
+            Employee e = (Employee) object;
+            record("index " + e.getName() + " " + e.getRole());
+        }
+
+        @Override
+        public void update(EntityMetadata metadata, Object object)
+        {
+            Employee e = (Employee) object;
+            record("update " + e.getName() + " " + e.getRole());
+        }
+
+        @Override
+        public Map<String, String> search(String luceneQuery, int start, int count)
+        {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public Map<String, String> search(EntityMetadata metadata, String luceneQuery, int start, int count)
+        {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public Map<String, String> search(EntityMetadata metadata, String luceneQuery, String ordering, int start,
+                int count)
+        {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public int count(EntityMetadata metadata, String luceneQuery)
+        {
+            return 0;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.junit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import javax.persistence.PersistenceException;
+
+import junit.framework.TestCase;
+
+import com.impetus.kundera.ejb.BulkLoader;
+import com.impetus.kundera.ejb.EntityManagerFactoryImpl;
+import com.impetus.kundera.entity.Author;
+import com.impetus.kundera.metadata.EntityMetadata;
+import com.impetus.kundera.proxy.EnhancedEntity;
+
+/**
+ * Tests {@link BulkLoader} against a client that records the batches it is
+ * given.
+ */
+public class BulkLoaderTest extends TestCase
+{
+
+    /** The factory. */
+    private EntityManagerFactoryImpl factory;
+
+    /** The client. */
+    private InMemoryClient client;
+
+    /* @see junit.framework.TestCase#setUp() */
+    @Override
+    protected void setUp() throws Exception
+    {
+        client = new InMemoryClient();
+        factory = client.newFactory("bulk");
+    }
+
+    /* @see junit.framework.TestCase#tearDown() */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        factory.close();
+    }
+
+    /**
+     * Test all entities are written, in full batches.
+     */
+    public void testLoadsAllEntitiesInBatches()
+    {
+        BulkLoader loader = new BulkLoader(factory, 4, 100, 2, 0, BulkLoader.Indexing.NONE, 1000);
+        BulkLoader.Progress progress = loader.load(authors(1000));
+
+        assertEquals(1000, progress.getRead());
+        assertEquals(1000, progress.getWritten());
+        assertEquals(0, progress.getFailed());
+        assertEquals(1000, client.getWritten().size());
+        assertEquals(10, client.getBatches().size());
+        for (Integer size : client.getBatches())
+        {
+            assertEquals(100, size.intValue());
+        }
+    }
+
+    /**
+     * Test a batch that keeps failing is reported, and the others written.
+     */
+    public void testFailedBatchIsReported()
+    {
+        client.failWrites("author42", Integer.MAX_VALUE);
+        final List<BulkLoader.FailedBatch> reported = Collections
+                .synchronizedList(new ArrayList<BulkLoader.FailedBatch>());
+
+        BulkLoader loader = new BulkLoader(factory, 2, 100, 2, 1, BulkLoader.Indexing.NONE, 1000);
+        loader.setListener(new BulkLoader.Listener()
+        {
+            @Override
+            public void progress(BulkLoader.Progress progress)
+            {
+            }
+
+            @Override
+            public void batchFailed(BulkLoader.FailedBatch batch)
+            {
+                reported.add(batch);
+            }
+        });
+        BulkLoader.Progress progress = loader.load(authors(500));
+
+        assertEquals(400, progress.getWritten());
+        assertEquals(100, progress.getFailed());
+        assertEquals(1, loader.getFailedBatches().size());
+        assertEquals(loader.getFailedBatches(), reported);
+
+        BulkLoader.FailedBatch failed = reported.get(0);
+        assertTrue(failed.getIds().contains("author42"));
+        assertEquals(2, failed.getAttempts());
+        assertTrue(failed.getCause() instanceof PersistenceException);
+        assertFalse(client.getWritten().contains("author42"));
+    }
+
+    /**
+     * Test a batch failing once is written on retry.
+     */
+    public void testTransientFailureIsRetried()
+    {
+        client.failWrites("author7", 1);
+        BulkLoader loader = new BulkLoader(factory, 2, 50, 2, 2, BulkLoader.Indexing.NONE, 1000);
+        BulkLoader.Progress progress = loader.load(authors(200));
+
+        assertEquals(200, progress.getWritten());
+        assertTrue(loader.getFailedBatches().isEmpty());
+        assertEquals(new HashSet<String>(ids(200)), new HashSet<String>(client.getWritten()));
+    }
+
+    /**
+     * Test an entity without id stops the load.
+     */
+    public void testMissingIdStopsLoad()
+    {
+        List<Author> authors = authors(10);
+        authors.get(5).setUsername(null);
+        BulkLoader loader = new BulkLoader(factory, 1, 3, 1, 0, BulkLoader.Indexing.NONE, 1000);
+        try
+        {
+            loader.load(authors);
+            fail("Loaded an entity without id");
+        }
+        catch (PersistenceException e)
+        {
+            // batches read before the bad entity are still written
+            assertEquals(3, loader.getProgress().getWritten());
+        }
+    }
+
+    /**
+     * Test a writer dying fails the load instead of leaving it waiting for
+     * room in the queue.
+     */
+    public void testDeadWriterFailsLoad()
+    {
+        EntityManagerFactoryImpl broken = new InMemoryClient()
+        {
+            @Override
+            public void writeData(List<EnhancedEntity> entities, List<EntityMetadata> metadata)
+            {
+                throw new Error("broken");
+            }
+        }.newFactory("bulk");
+        try
+        {
+            BulkLoader loader = new BulkLoader(broken, 1, 10, 1, 0, BulkLoader.Indexing.NONE, 1000);
+            loader.load(authors(1000));
+            fail("Load went on without writers");
+        }
+        catch (PersistenceException e)
+        {
+            Throwable cause = e;
+            while (cause.getCause() != null)
+            {
+                cause = cause.getCause();
+            }
+            assertEquals("broken", cause.getMessage());
+        }
+        finally
+        {
+            broken.close();
+        }
+    }
+
+    /**
+     * Authors author0 to author(n-1).
+     *
+     * @param n
+     *            the n
+     * @return the list
+     */
+    private static List<Author> authors(int n)
+    {
+        List<Author> authors = new ArrayList<Author>();
+        for (String id : ids(n))
+        {
+            Author author = new Author();
+            author.setUsername(id);
+            author.setCountry("India");
+            authors.add(author);
+        }
+        return authors;
+    }
+
+    /**
+     * Ids author0 to author(n-1).
+     *
+     * @param n
+     *            the n
+     * @return the list
+     */
+    private static List<String> ids(int n)
+    {
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < n; i++)
+        {
+            ids.add("author" + i);
+        }
+        return ids;
+    }
+}
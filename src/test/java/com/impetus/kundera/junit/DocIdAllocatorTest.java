@@ -0,0 +1,440 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.junit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import com.impetus.kundera.index.ClaimingDocIdReserver;
+import com.impetus.kundera.index.DocIdAllocator;
+import com.impetus.kundera.index.DocIdReserver;
+import com.impetus.kundera.index.IndexingException;
+
+/**
+ * Document numbers come from reserved blocks and are never handed out twice,
+ * by one allocator or by several sharing a reserver, and blocks claimed in a
+ * shared store go to one writer each.
+ */
+public class DocIdAllocatorTest extends TestCase
+{
+
+    /**
+     * Hands out blocks in order, as a datastore would to all nodes.
+     */
+    private static class CountingReserver implements DocIdReserver
+    {
+
+        /** The reservations. */
+        private int reservations;
+
+        /* @see com.impetus.kundera.index.DocIdReserver#reserveDocIdBlock(java.lang.String, int) */
+        @Override
+        public synchronized long reserveDocIdBlock(String indexName, int blockSize)
+        {
+            return ++reservations;
+        }
+    }
+
+    /**
+     * Claims blocks in a {@link ClaimStore}, each claim taking a while to
+     * write.
+     */
+    private static class StoreReserver extends ClaimingDocIdReserver
+    {
+
+        /** The store. */
+        private final ClaimStore store;
+
+        /** Longest time a claim takes to write, in milliseconds. */
+        private final int writeDelay;
+
+        /** The grace. */
+        private final long grace;
+
+        /** Counted down once a claim is being written. */
+        final CountDownLatch writing = new CountDownLatch(1);
+
+        /** The random. */
+        private final Random random = new Random();
+
+        /**
+         * Instantiates a new store reserver.
+         *
+         * @param store
+         *            the store
+         * @param writeDelay
+         *            longest time a claim takes to write
+         * @param grace
+         *            the grace
+         */
+        StoreReserver(ClaimStore store, int writeDelay, long grace)
+        {
+            this.store = store;
+            this.writeDelay = writeDelay;
+            this.grace = grace;
+        }
+
+        @Override
+        protected long getLastBlock(String indexName)
+        {
+            return store.getLastBlock();
+        }
+
+        @Override
+        protected void writeClaim(String indexName, long block, String token) throws Exception
+        {
+            // timestamped when sent, visible when written
+            long timestamp = store.clock.incrementAndGet();
+            writing.countDown();
+            Thread.sleep(random.nextInt(writeDelay + 1));
+            store.put(block, token, timestamp);
+        }
+
+        @Override
+        protected Map<String, Long> readClaims(String indexName, long block)
+        {
+            return store.get(block);
+        }
+
+        @Override
+        protected long getClaimGrace()
+        {
+            return grace;
+        }
+    }
+
+    /**
+     * Claims of blocks, as a datastore shared by all nodes holds them.
+     */
+    private static class ClaimStore
+    {
+
+        /** Clock of all writers. */
+        private final AtomicLong clock = new AtomicLong();
+
+        /** Timestamps of claims by token, by block. */
+        private final Map<Long, Map<String, Long>> claims = new HashMap<Long, Map<String, Long>>();
+
+        /**
+         * Gets the highest block claimed.
+         *
+         * @return the block, 0 if none
+         */
+        synchronized long getLastBlock()
+        {
+            long last = 0;
+            for (Long block : claims.keySet())
+            {
+                last = Math.max(last, block);
+            }
+            return last;
+        }
+
+        /**
+         * Adds a claim.
+         *
+         * @param block
+         *            the block
+         * @param token
+         *            the token
+         * @param timestamp
+         *            the timestamp
+         */
+        synchronized void put(long block, String token, long timestamp)
+        {
+            Map<String, Long> blockClaims = claims.get(block);
+            if (blockClaims == null)
+            {
+                blockClaims = new HashMap<String, Long>();
+                claims.put(block, blockClaims);
+            }
+            blockClaims.put(token, timestamp);
+        }
+
+        /**
+         * Gets the claims of a block.
+         *
+         * @param block
+         *            the block
+         * @return the claims
+         */
+        synchronized Map<String, Long> get(long block)
+        {
+            Map<String, Long> blockClaims = claims.get(block);
+            return blockClaims == null ? new HashMap<String, Long>() : new HashMap<String, Long>(blockClaims);
+        }
+    }
+
+    /**
+     * Numbers of a block are handed out in order, the next block reserved
+     * once half of them are.
+     */
+    public void testReservesOneBlockAtATime()
+    {
+        CountingReserver reserver = new CountingReserver();
+        DocIdAllocator allocator = new DocIdAllocator(reserver, 10);
+
+        for (int i = 10; i < 14; i++)
+        {
+            assertEquals(i, allocator.next("a"));
+        }
+        assertEquals(1, reserver.reservations);
+        for (int i = 14; i < 20; i++)
+        {
+            assertEquals(i, allocator.next("a"));
+        }
+        assertEquals(20, allocator.next("a"));
+        assertEquals(2, reserver.reservations);
+
+        // every index has blocks of its own
+        assertEquals(30, allocator.next("b"));
+        assertEquals(3, reserver.reservations);
+    }
+
+    /**
+     * Allocators sharing a reserver, like nodes sharing a cluster, do not
+     * collide.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testAllocatorsDoNotCollide() throws Exception
+    {
+        final CountingReserver reserver = new CountingReserver();
+        final Set<Integer> numbers = Collections.synchronizedSet(new HashSet<Integer>());
+        final List<Integer> duplicates = Collections.synchronizedList(new ArrayList<Integer>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++)
+        {
+            final DocIdAllocator allocator = new DocIdAllocator(reserver, 7);
+            for (int u = 0; u < 2; u++)
+            {
+                threads.add(new Thread()
+                {
+                    @Override
+                    public void run()
+                    {
+                        for (int i = 0; i < 500; i++)
+                        {
+                            int number = allocator.next("employees");
+                            if (!numbers.add(number))
+                            {
+                                duplicates.add(number);
+                            }
+                        }
+                    }
+                });
+            }
+        }
+        for (Thread thread : threads)
+        {
+            thread.start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        assertTrue("Duplicates: " + duplicates, duplicates.isEmpty());
+        assertEquals(4000, numbers.size());
+    }
+
+    /**
+     * A reservation taking long holds up its own index only.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testSlowReservationHoldsUpItsIndexOnly() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final DocIdAllocator allocator = new DocIdAllocator(new DocIdReserver()
+        {
+            private final AtomicLong reservations = new AtomicLong();
+
+            @Override
+            public long reserveDocIdBlock(String indexName, int blockSize) throws Exception
+            {
+                if (indexName.equals("slow"))
+                {
+                    release.await();
+                }
+                return reservations.incrementAndGet();
+            }
+        }, 10);
+
+        final int[] slowNumber = new int[1];
+        Thread thread = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                slowNumber[0] = allocator.next("slow");
+            }
+        };
+        thread.start();
+
+        long until = System.currentTimeMillis() + 5000;
+        while (thread.getState() != Thread.State.WAITING && System.currentTimeMillis() < until)
+        {
+            Thread.yield();
+        }
+        assertEquals(Thread.State.WAITING, thread.getState());
+        assertEquals(10, allocator.next("fast"));
+        assertEquals(11, allocator.next("fast"));
+
+        release.countDown();
+        thread.join();
+        assertTrue(slowNumber[0] >= 10);
+    }
+
+    /**
+     * An older claim still being written when a newer one is read back wins
+     * the block, since the newer one is read again after the grace period.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testOlderClaimInFlightWins() throws Exception
+    {
+        final ClaimStore store = new ClaimStore();
+        final StoreReserver slow = new StoreReserver(store, 0, 300)
+        {
+            @Override
+            protected void writeClaim(String indexName, long block, String token) throws Exception
+            {
+                if (block == 1)
+                {
+                    long timestamp = store.clock.incrementAndGet();
+                    writing.countDown();
+                    Thread.sleep(100);
+                    store.put(block, token, timestamp);
+                }
+                else
+                {
+                    super.writeClaim(indexName, block, token);
+                }
+            }
+        };
+        StoreReserver fast = new StoreReserver(store, 0, 300);
+
+        final long[] slowBlock = new long[1];
+        Thread thread = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    slowBlock[0] = slow.reserveDocIdBlock("employees", 10);
+                }
+                catch (Exception e)
+                {
+                    slowBlock[0] = -1;
+                }
+            }
+        };
+        thread.start();
+        slow.writing.await();
+
+        assertEquals(2, fast.reserveDocIdBlock("employees", 10));
+        thread.join();
+        assertEquals(1, slowBlock[0]);
+    }
+
+    /**
+     * Writers claiming blocks of one store at once get a block each.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testClaimsDoNotCollide() throws Exception
+    {
+        ClaimStore store = new ClaimStore();
+        final Set<Long> blocks = Collections.synchronizedSet(new HashSet<Long>());
+        final List<Long> duplicates = Collections.synchronizedList(new ArrayList<Long>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++)
+        {
+            final StoreReserver reserver = new StoreReserver(store, 10, 30);
+            threads.add(new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < 5; i++)
+                    {
+                        try
+                        {
+                            Long block = reserver.reserveDocIdBlock("employees", 10);
+                            if (!blocks.add(block))
+                            {
+                                duplicates.add(block);
+                            }
+                        }
+                        catch (Exception e)
+                        {
+                            duplicates.add(-1L);
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads)
+        {
+            thread.start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        assertTrue("Duplicates: " + duplicates, duplicates.isEmpty());
+        assertEquals(20, blocks.size());
+    }
+
+    /**
+     * Reservation failures surface as indexing errors.
+     */
+    public void testReservationFailure()
+    {
+        DocIdAllocator allocator = new DocIdAllocator(new DocIdReserver()
+        {
+            @Override
+            public long reserveDocIdBlock(String indexName, int blockSize) throws Exception
+            {
+                throw new Exception("unavailable");
+            }
+        }, 10);
+        try
+        {
+            allocator.next("a");
+            fail("Reservation failure ignored.");
+        }
+        catch (IndexingException e)
+        {
+            assertTrue(e.getMessage().contains("unavailable"));
+        }
+    }
+}
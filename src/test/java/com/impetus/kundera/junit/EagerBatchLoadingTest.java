@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.junit;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.impetus.kundera.ejb.EntityManagerFactoryImpl;
+import com.impetus.kundera.ejb.EntityManagerImpl;
+import com.impetus.kundera.entity.Employee;
+
+/**
+ * Eager relations of a whole result are read with one multiget per target
+ * class and level, not one read per foreign key.
+ */
+public class EagerBatchLoadingTest extends TestCase
+{
+
+    /** The factory. */
+    private EntityManagerFactoryImpl factory;
+
+    /** The client. */
+    private InMemoryClient client;
+
+    /** The em. */
+    private EntityManagerImpl em;
+
+    /* @see junit.framework.TestCase#setUp() */
+    @Override
+    protected void setUp() throws Exception
+    {
+        client = new InMemoryClient();
+        factory = client.newFactory("eager");
+        putHierarchy(client, 5);
+        em = (EntityManagerImpl) factory.createEntityManager();
+    }
+
+    /* @see junit.framework.TestCase#tearDown() */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        factory.close();
+    }
+
+    /**
+     * Test employees, their bosses and the ceo take one multiget each.
+     */
+    public void testOneMultigetPerLevel()
+    {
+        List<Employee> employees = em.find(Employee.class, "e0", "e1", "e2", "e3", "e4");
+        assertEquals(5, employees.size());
+        assertEquals(3, client.getMultigets());
+        assertEquals(0, client.getReads());
+
+        assertEquals("b0", employees.get(0).getBoss().getName());
+        assertEquals("b1", employees.get(1).getBoss().getName());
+        assertSame(employees.get(0).getBoss(), employees.get(2).getBoss());
+        assertEquals("ceo", employees.get(4).getBoss().getBoss().getName());
+        assertNull(employees.get(4).getBoss().getBoss().getBoss());
+    }
+
+    /**
+     * Test a single find reads targets already in the session from there.
+     */
+    public void testSessionHitsAreSkipped()
+    {
+        em.find(Employee.class, "b0", "b1");
+        int multigets = client.getMultigets();
+
+        Employee employee = em.find(Employee.class, "e0");
+        assertEquals(1, client.getReads());
+        assertEquals(multigets, client.getMultigets());
+        assertEquals("ceo", employee.getBoss().getBoss().getName());
+    }
+
+    /**
+     * Puts a hierarchy in the datastore: employees e0 to e(count - 1) report
+     * to b(N % 2), who report to the ceo.
+     *
+     * @param client
+     *            the client
+     * @param count
+     *            the number of employees
+     * @throws Exception
+     *             the exception
+     */
+    static void putHierarchy(InMemoryClient client, int count) throws Exception
+    {
+        Employee ceo = new Employee("ceo", "ceo");
+        Employee[] bosses = { new Employee("b0", "boss"), new Employee("b1", "boss") };
+        client.put(ceo);
+        for (Employee boss : bosses)
+        {
+            boss.setBoss(ceo);
+            client.put(boss);
+        }
+        for (int i = 0; i < count; i++)
+        {
+            Employee employee = new Employee("e" + i, "staff");
+            employee.setBoss(bosses[i % 2]);
+            client.put(employee);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.junit;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.impetus.kundera.proxy.EnhancedEntity;
+import com.impetus.kundera.proxy.EntityEnhancerFactory;
+import com.impetus.kundera.proxy.SimpleEnhancedEntity;
+import com.impetus.kundera.proxy.SimpleEntityEnhancerFactory;
+import com.impetus.kundera.proxy.cglib.CglibEntityEnhancerFactory;
+
+/**
+ * Checks the plain holder an entity is wrapped in for persist leaves the
+ * entity alone. Set kundera.benchmark.enhancer to also time wrapping with the
+ * holder against a cglib subclass proxy; the numbers are only logged.
+ */
+@SuppressWarnings("deprecation")
+public class EntityEnhancerBenchmarkTest extends TestCase
+{
+
+    /** The logger. */
+    private static Logger logger = Logger.getLogger(EntityEnhancerBenchmarkTest.class);
+
+    /** Wraps before timing, so both paths run compiled code. */
+    private static final int WARMUP = 20000;
+
+    /** Timed wraps per factory. */
+    private static final int ITERATIONS = 100000;
+
+    /**
+     * Test the holder hands back the very entity it was given.
+     */
+    public void testHolderWrapsEntity()
+    {
+        Counted entity = new Counted();
+        Map<String, Set<String>> foreignKeys = foreignKeys();
+
+        EnhancedEntity e = new SimpleEntityEnhancerFactory().getProxy(entity, "1", foreignKeys);
+        assertSame(entity, e.getEntity());
+        assertEquals("1", e.getId());
+        assertSame(foreignKeys, e.getForeignKeysMap());
+        assertFalse(e instanceof Counted);
+    }
+
+    /**
+     * Test the holder does not run the entity constructor; the cglib proxy
+     * does, once per wrap.
+     */
+    public void testNoConstructorSideEffects()
+    {
+        Counted entity = new Counted();
+        int created = Counted.instances;
+
+        new SimpleEntityEnhancerFactory().getProxy(entity, "1", foreignKeys());
+        assertEquals(created, Counted.instances);
+
+        new CglibEntityEnhancerFactory().getProxy(entity, "1", foreignKeys());
+        assertEquals(created + 1, Counted.instances);
+    }
+
+    /**
+     * Test each wrap gets a holder of its own, and the holder keeps what it
+     * was given, however often it is read.
+     */
+    public void testHolderPerWrap()
+    {
+        EntityEnhancerFactory factory = new SimpleEntityEnhancerFactory();
+        Counted entity = new Counted();
+        Map<String, Set<String>> foreignKeys = foreignKeys();
+
+        EnhancedEntity first = factory.getProxy(entity, "1", foreignKeys);
+        EnhancedEntity second = factory.getProxy(entity, "2", null);
+        assertTrue(first instanceof SimpleEnhancedEntity);
+        assertNotSame(first, second);
+        assertSame(first.getEntity(), second.getEntity());
+        assertEquals("1", first.getId());
+        assertEquals("2", second.getId());
+        assertNull(second.getForeignKeysMap());
+        assertSame(first.getForeignKeysMap(), first.getForeignKeysMap());
+        assertEquals(Collections.singleton("a"), first.getForeignKeysMap().get("relation"));
+        assertTrue(first.toString().contains("id=1"));
+    }
+
+    /**
+     * Logs the cost of wrapping with the holder and with a cglib proxy. Opt
+     * in with -Dkundera.benchmark.enhancer.
+     */
+    public void testBenchmark()
+    {
+        if (System.getProperty("kundera.benchmark.enhancer") == null)
+        {
+            return;
+        }
+        EntityEnhancerFactory holder = new SimpleEntityEnhancerFactory();
+        EntityEnhancerFactory proxy = new CglibEntityEnhancerFactory();
+
+        run(holder, WARMUP);
+        run(proxy, WARMUP);
+
+        long holderNanos = run(holder, ITERATIONS);
+        long proxyNanos = run(proxy, ITERATIONS);
+        logger.info("ns per wrap, holder: " + (double) holderNanos / ITERATIONS + ", cglib: "
+                + (double) proxyNanos / ITERATIONS);
+    }
+
+    /**
+     * Wraps count entities.
+     *
+     * @param factory
+     *            the factory
+     * @param count
+     *            the count
+     * @return elapsed nanoseconds
+     */
+    private long run(EntityEnhancerFactory factory, int count)
+    {
+        Map<String, Set<String>> foreignKeys = foreignKeys();
+        // keep results reachable, or the holder path is optimized away
+        int sink = 0;
+        long begin = System.nanoTime();
+        for (int i = 0; i < count; i++)
+        {
+            sink += factory.getProxy(new Counted(), "id", foreignKeys).getId().length();
+        }
+        long elapsed = System.nanoTime() - begin;
+        assertEquals(count * 2, sink);
+        return elapsed;
+    }
+
+    /**
+     * Foreign keys as the resolver builds them.
+     *
+     * @return the map
+     */
+    private Map<String, Set<String>> foreignKeys()
+    {
+        Map<String, Set<String>> foreignKeys = new HashMap<String, Set<String>>();
+        Set<String> ids = new HashSet<String>();
+        ids.add("a");
+        foreignKeys.put("relation", ids);
+        return foreignKeys;
+    }
+
+    /**
+     * Entity that counts its instances.
+     */
+    public static class Counted
+    {
+
+        /** Instances created so far. */
+        static int instances;
+
+        /** The name. */
+        private String name;
+
+        /**
+         * Instantiates a new counted.
+         */
+        public Counted()
+        {
+            instances++;
+        }
+
+        /**
+         * Gets the name.
+         *
+         * @return the name
+         */
+        public String getName()
+        {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,339 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.junit;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.impetus.kundera.ejb.EntityManagerFactoryImpl;
+import com.impetus.kundera.ejb.EntityManagerImpl;
+import com.impetus.kundera.ejb.EntityManagerPool;
+import com.impetus.kundera.entity.Author;
+
+/**
+ * Many threads finding entities through pooled EntityManagers of one factory
+ * and one shared client. Checks the pool bound, reuse of EntityManagers and
+ * that borrowers share no entities. Set kundera.benchmark.pool to also time
+ * finds through pooled EntityManagers against finds through one
+ * EntityManager shared under a lock, on a client that simulates datastore
+ * latency; the numbers are only logged.
+ */
+public class EntityManagerPoolStressTest extends TestCase
+{
+
+    /** The logger. */
+    private static Logger logger = Logger.getLogger(EntityManagerPoolStressTest.class);
+
+    /** Simulated datastore latency in the benchmark, in milliseconds. */
+    private static final long LATENCY = 2;
+
+    /** Finds per thread. */
+    private static final int FINDS = 200;
+
+    /** Threads finding at once. */
+    private static final int THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    /** The client. */
+    private InMemoryClient client;
+
+    /** The factory. */
+    private EntityManagerFactoryImpl factory;
+
+    /* @see junit.framework.TestCase#setUp() */
+    @Override
+    protected void setUp() throws Exception
+    {
+        client = new InMemoryClient();
+        factory = client.newFactory("stress");
+        for (int i = 1; i <= THREADS * FINDS; i++)
+        {
+            Author author = new Author();
+            author.setUsername("author" + i);
+            client.put(author);
+        }
+    }
+
+    /* @see junit.framework.TestCase#tearDown() */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        factory.close();
+    }
+
+    /**
+     * Test no more than the pool size are out at once, and the pool creates
+     * no more EntityManagers than that, all on the one client.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testBoundedAndReused() throws Exception
+    {
+        int size = THREADS / 2;
+        final EntityManagerPool pool = new EntityManagerPool(factory, size);
+        final AtomicInteger out = new AtomicInteger();
+        final AtomicInteger maxOut = new AtomicInteger();
+        final Set<EntityManager> created = Collections.synchronizedSet(Collections
+                .newSetFromMap(new IdentityHashMap<EntityManager, Boolean>()));
+
+        run(THREADS, new Finder()
+        {
+            @Override
+            public void find(String id)
+            {
+                EntityManager em = pool.borrow();
+                try
+                {
+                    int now = out.incrementAndGet();
+                    int max;
+                    while (now > (max = maxOut.get()) && !maxOut.compareAndSet(max, now))
+                    {
+                        // retry
+                    }
+                    created.add(em);
+                    assertSame(client, ((EntityManagerImpl) em).getClient());
+                    assertEquals(id, em.find(Author.class, id).getUsername());
+                }
+                finally
+                {
+                    out.decrementAndGet();
+                    pool.release(em);
+                }
+            }
+        });
+
+        assertTrue("Out at once: " + maxOut.get(), maxOut.get() <= size);
+        assertTrue("Created: " + created.size(), created.size() <= size);
+        assertEquals(created.size(), pool.getIdleCount());
+        assertEquals(THREADS * FINDS, client.getReads());
+        pool.close();
+    }
+
+    /**
+     * Test borrowing times out once the pool is exhausted, and succeeds again
+     * after a release.
+     */
+    public void testExhausted()
+    {
+        EntityManagerPool pool = new EntityManagerPool(factory, 1);
+        EntityManager em = pool.borrow();
+        try
+        {
+            pool.borrow(10, TimeUnit.MILLISECONDS);
+            fail("Borrowed beyond the pool size.");
+        }
+        catch (PersistenceException e)
+        {
+            // expected
+        }
+        pool.release(em);
+        assertSame(em, pool.borrow(10, TimeUnit.MILLISECONDS));
+        pool.release(em);
+        pool.close();
+    }
+
+    /**
+     * Test borrowers holding EntityManagers at once get their own instances,
+     * and a released EntityManager keeps nothing of its last borrower.
+     */
+    public void testNoSharedEntities()
+    {
+        EntityManagerPool pool = new EntityManagerPool(factory, 2);
+        EntityManager em1 = pool.borrow();
+        EntityManager em2 = pool.borrow();
+        assertNotSame(em1, em2);
+
+        Author a1 = em1.find(Author.class, "author1");
+        Author a2 = em2.find(Author.class, "author1");
+        assertNotSame(a1, a2);
+        a1.setCountry("changed");
+        assertNull(a2.getCountry());
+        assertSame(a1, em1.find(Author.class, "author1"));
+        assertEquals(2, client.getReads());
+
+        pool.release(em1);
+        EntityManager again = pool.borrow();
+        assertSame(em1, again);
+        Author fresh = again.find(Author.class, "author1");
+        assertNotSame(a1, fresh);
+        assertNull(fresh.getCountry());
+        assertEquals(3, client.getReads());
+
+        pool.release(again);
+        pool.release(em2);
+        pool.close();
+    }
+
+    /**
+     * Logs finds per second through pooled EntityManagers, with one thread
+     * and with many, and through one EntityManager shared by all threads as
+     * before pooling, against a client with simulated latency. Opt in with
+     * -Dkundera.benchmark.pool.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testBenchmark() throws Exception
+    {
+        if (System.getProperty("kundera.benchmark.pool") == null)
+        {
+            return;
+        }
+        client.setBeforeRead(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep(LATENCY);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        final EntityManagerPool pool = new EntityManagerPool(factory, THREADS);
+        Finder pooled = new Finder()
+        {
+            @Override
+            public void find(String id)
+            {
+                EntityManager em = pool.borrow();
+                try
+                {
+                    em.find(Author.class, id);
+                }
+                finally
+                {
+                    pool.release(em);
+                }
+            }
+        };
+
+        final EntityManager shared = factory.createEntityManager();
+        Finder locked = new Finder()
+        {
+            @Override
+            public void find(String id)
+            {
+                synchronized (shared)
+                {
+                    shared.find(Author.class, id);
+                }
+            }
+        };
+
+        // warm up both paths; the shared EntityManager forgets what it found
+        run(THREADS, pooled);
+        run(THREADS, locked);
+        shared.clear();
+
+        double single = 1 * FINDS * 1e9 / run(1, pooled);
+        double many = THREADS * FINDS * 1e9 / run(THREADS, pooled);
+        double one = THREADS * FINDS * 1e9 / run(THREADS, locked);
+        logger.info("Finds/s pooled with 1 thread: " + (long) single + ", pooled with " + THREADS + " threads: "
+                + (long) many + " (" + String.format("%.1f", many / single) + "x), one shared EntityManager with "
+                + THREADS + " threads: " + (long) one + " (" + String.format("%.1f", one / single) + "x)");
+        shared.close();
+        pool.close();
+    }
+
+    /**
+     * One find of a unit of work.
+     */
+    private interface Finder
+    {
+
+        /**
+         * Finds.
+         *
+         * @param id
+         *            the id
+         */
+        void find(String id);
+    }
+
+    /**
+     * Runs FINDS finds of distinct authors on each of threads threads.
+     *
+     * @param threads
+     *            the threads
+     * @param finder
+     *            the finder
+     * @return elapsed nanoseconds
+     * @throws Exception
+     *             the exception
+     */
+    private long run(int threads, final Finder finder) throws Exception
+    {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicInteger ids = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        for (int t = 0; t < threads; t++)
+        {
+            new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        for (int i = 0; i < FINDS; i++)
+                        {
+                            finder.find("author" + ids.incrementAndGet());
+                        }
+                    }
+                    catch (Throwable e)
+                    {
+                        failure.compareAndSet(null, e);
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+
+        if (failure.get() != null)
+        {
+            throw new AssertionError(failure.get());
+        }
+        return elapsed;
+    }
+}
@@ -0,0 +1,249 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.junit;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.persistence.CascadeType;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.impetus.kundera.ejb.EntityManagerFactoryImpl;
+import com.impetus.kundera.ejb.EntityManagerImpl;
+import com.impetus.kundera.entity.Employee;
+import com.impetus.kundera.loader.DBType;
+import com.impetus.kundera.proxy.EnhancedEntity;
+
+/**
+ * Resolves cascades over synthetic graphs too deep for a recursive walk. Set
+ * kundera.benchmark.resolver to also time graphs of growing size, and
+ * kundera.benchmark.nodes to time a graph of another size, say 1000000,
+ * instead; the numbers are only logged.
+ */
+public class EntityResolverBenchmarkTest extends TestCase
+{
+
+    /** The logger. */
+    private static Logger logger = Logger.getLogger(EntityResolverBenchmarkTest.class);
+
+    /** Graph sizes timed. */
+    private static final int[] SIZES = { 10000, 100000 };
+
+    /** Team members per employee in the timed graphs. */
+    private static final int TEAM_SIZE = 3;
+
+    /** The factory. */
+    private EntityManagerFactoryImpl factory;
+
+    /** The em. */
+    private EntityManagerImpl em;
+
+    /* @see junit.framework.TestCase#setUp() */
+    @Override
+    protected void setUp() throws Exception
+    {
+        factory = new EntityManagerFactoryImpl("resolver", new HashMap<String, String>());
+        em = (EntityManagerImpl) factory.createEntityManager();
+    }
+
+    /* @see junit.framework.TestCase#tearDown() */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        factory.close();
+    }
+
+    /**
+     * Test a chain of bosses 100k long resolves, bosses first.
+     */
+    public void testDeepChain()
+    {
+        int n = 100000;
+        Employee[] chain = new Employee[n];
+        for (int i = n - 1; i >= 0; i--)
+        {
+            chain[i] = new Employee("e" + i, "staff");
+            if (i < n - 1)
+            {
+                chain[i].setBoss(chain[i + 1]);
+            }
+        }
+
+        List<EnhancedEntity> entities = em.getEntityResolver().resolve(chain[0], CascadeType.PERSIST,
+                DBType.CASSANDRA);
+        assertEquals(n, entities.size());
+        assertSame(chain[n - 1], entities.get(0).getEntity());
+        assertSame(chain[0], entities.get(n - 1).getEntity());
+        assertEquals("e1", entities.get(n - 1).getForeignKeysMap().get("boss").iterator().next());
+    }
+
+    /**
+     * Test entities come after their targets, and before them on remove.
+     */
+    public void testTopologicalOrder()
+    {
+        Employee[] graph = graph(1000, new Random(7));
+
+        assertBossesFirst(em.getEntityResolver().resolve(graph[graph.length - 1], CascadeType.PERSIST,
+                DBType.CASSANDRA), false);
+        assertBossesFirst(em.getEntityResolver().resolve(graph[graph.length - 1], CascadeType.REMOVE,
+                DBType.CASSANDRA), true);
+    }
+
+    /**
+     * Test each entity on a cycle is resolved once.
+     */
+    public void testCycle()
+    {
+        Employee a = new Employee("a", "staff");
+        Employee b = new Employee("b", "staff");
+        a.setBoss(b);
+        b.setBoss(a);
+        a.getTeam().add(b);
+        b.getTeam().add(a);
+
+        List<EnhancedEntity> entities = em.getEntityResolver().resolve(a, CascadeType.PERSIST, DBType.CASSANDRA);
+        assertEquals(2, entities.size());
+        assertSame(a, entities.get(1).getEntity());
+        assertEquals("a", entities.get(0).getForeignKeysMap().get("boss").iterator().next());
+    }
+
+    /**
+     * Test every entity of a graph is resolved, once.
+     */
+    public void testGraph()
+    {
+        int n = 1000;
+        Employee[] graph = graph(n, new Random(n));
+
+        List<EnhancedEntity> entities = em.getEntityResolver().resolve(graph[n - 1], CascadeType.PERSIST,
+                DBType.CASSANDRA);
+        assertEquals(n, entities.size());
+        Map<Object, Object> seen = new IdentityHashMap<Object, Object>();
+        for (EnhancedEntity e : entities)
+        {
+            assertNull(seen.put(e.getEntity(), e));
+        }
+        for (Employee employee : graph)
+        {
+            assertTrue(seen.containsKey(employee));
+        }
+    }
+
+    /**
+     * Times resolving graphs of growing size. Opt in with
+     * -Dkundera.benchmark.resolver.
+     */
+    public void testBenchmark()
+    {
+        if (System.getProperty("kundera.benchmark.resolver") == null
+                && System.getProperty("kundera.benchmark.nodes") == null)
+        {
+            return;
+        }
+
+        int[] sizes = SIZES;
+        String nodes = System.getProperty("kundera.benchmark.nodes");
+        if (nodes != null)
+        {
+            sizes = new int[] { Integer.parseInt(nodes) };
+        }
+
+        for (int n : sizes)
+        {
+            Employee[] graph = graph(n, new Random(n));
+            // warm up on a smaller graph of the same shape
+            em.getEntityResolver().resolve(graph(n / 10, new Random(n))[n / 10 - 1], CascadeType.PERSIST,
+                    DBType.CASSANDRA);
+
+            long start = System.nanoTime();
+            List<EnhancedEntity> entities = em.getEntityResolver().resolve(graph[n - 1], CascadeType.PERSIST,
+                    DBType.CASSANDRA);
+            long elapsed = System.nanoTime() - start;
+
+            assertEquals(n, entities.size());
+            logger.info("Resolved " + n + " entities in " + elapsed / 1000000 + " ms, "
+                    + (elapsed / n) + " ns per entity");
+        }
+    }
+
+    /**
+     * Builds a graph where every employee but the first has a boss hired
+     * before them, and a team of employees hired before them too. The last
+     * one reaches all others.
+     *
+     * @param n
+     *            the number of employees
+     * @param random
+     *            the random
+     * @return the employees, by hiring order
+     */
+    private Employee[] graph(int n, Random random)
+    {
+        Employee[] employees = new Employee[n];
+        for (int i = 0; i < n; i++)
+        {
+            employees[i] = new Employee("e" + i, "staff");
+            if (i > 0)
+            {
+                // the one before keeps everybody reachable
+                employees[i].setBoss(employees[i - 1]);
+                for (int j = 0; j < TEAM_SIZE; j++)
+                {
+                    employees[i].getTeam().add(employees[random.nextInt(i)]);
+                }
+            }
+        }
+        return employees;
+    }
+
+    /**
+     * Asserts the boss and team of every employee come before it, or after it
+     * when reversed.
+     *
+     * @param entities
+     *            the entities
+     * @param reversed
+     *            whether the order is reversed
+     */
+    private void assertBossesFirst(List<EnhancedEntity> entities, boolean reversed)
+    {
+        Map<Object, Integer> position = new IdentityHashMap<Object, Integer>();
+        for (int i = 0; i < entities.size(); i++)
+        {
+            position.put(entities.get(i).getEntity(), reversed ? entities.size() - i : i);
+        }
+        for (EnhancedEntity e : entities)
+        {
+            Employee employee = (Employee) e.getEntity();
+            int at = position.get(employee);
+            if (employee.getBoss() != null)
+            {
+                assertTrue(position.get(employee.getBoss()) < at);
+            }
+            for (Employee member : employee.getTeam())
+            {
+                assertTrue(position.get(member) < at);
+            }
+        }
+    }
+}
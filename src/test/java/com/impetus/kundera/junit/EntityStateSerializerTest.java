@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.junit;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import com.impetus.kundera.cache.offheap.CachedEntity;
+import com.impetus.kundera.cache.offheap.EntityStateSerializer;
+import com.impetus.kundera.ejb.EntityManagerFactoryImpl;
+import com.impetus.kundera.entity.Attachment;
+import com.impetus.kundera.entity.Author;
+import com.impetus.kundera.entity.AuthorDetail;
+import com.impetus.kundera.entity.Contact;
+import com.impetus.kundera.entity.Email;
+import com.impetus.kundera.entity.Employee;
+import com.impetus.kundera.entity.Post;
+import com.impetus.kundera.entity.PostData;
+
+/**
+ * Entity state written by the off-heap cache reads back as a new entity equal
+ * to the one written: columns, nulls, dates, embedded objects and collections,
+ * and the ids of related entities.
+ */
+public class EntityStateSerializerTest extends TestCase
+{
+
+    /** The factory. */
+    private EntityManagerFactoryImpl factory;
+
+    /* @see junit.framework.TestCase#setUp() */
+    @Override
+    protected void setUp() throws Exception
+    {
+        factory = new EntityManagerFactoryImpl("serializer", new HashMap<String, String>());
+    }
+
+    /* @see junit.framework.TestCase#tearDown() */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        factory.close();
+    }
+
+    /**
+     * Test columns, nulls among them, and dates to the millisecond.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testColumnsNullsAndDates() throws Exception
+    {
+        Author author = new Author();
+        author.setUsername("amresh");
+        author.setEmailAddress("amresh@example.com");
+        author.setRegistered(new Date(1300000000123L));
+
+        CachedEntity read = roundTrip(author);
+        Author copy = (Author) read.getEntity();
+        assertNotSame(author, copy);
+        assertEquals("amresh", read.getId());
+        assertEquals("amresh", copy.getUsername());
+        assertEquals("amresh@example.com", copy.getEmailAddress());
+        assertNull(copy.getCountry());
+        assertEquals(author.getRegistered(), copy.getRegistered());
+        assertTrue(read.getForeignKeysMap().isEmpty());
+    }
+
+    /**
+     * Test embedded objects, and a null one.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testEmbedded() throws Exception
+    {
+        Post post = new Post();
+        post.setPermalink("post1");
+        PostData data = new PostData();
+        data.setTitle("Caching");
+        data.setBody("Off the heap");
+        data.setCreated(new Date(1300000000456L));
+        post.setData(data);
+        post.setAuthor(null);
+
+        Post copy = (Post) roundTrip(post).getEntity();
+        assertNotSame(post.getData(), copy.getData());
+        assertEquals("Caching", copy.getData().getTitle());
+        assertEquals("Off the heap", copy.getData().getBody());
+        assertEquals(data.getCreated(), copy.getData().getCreated());
+        // none read back; the new post keeps the empty one it is built with
+        assertNull(copy.getAuthor().getAuthor());
+
+        AuthorDetail author = new AuthorDetail();
+        author.setAuthor("kuldeep");
+        post.setAuthor(author);
+        copy = (Post) roundTrip(post).getEntity();
+        assertEquals("kuldeep", copy.getAuthor().getAuthor());
+        assertNull(copy.getAuthor().getEmail());
+    }
+
+    /**
+     * Test embedded collections keep their elements in order.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testEmbeddedCollection() throws Exception
+    {
+        Email email = new Email();
+        email.setMessageId("m1");
+        email.setSubject("Cached");
+        email.setFrom(new Contact("c1", "Ada", "Lovelace", "ada@example.com"));
+        for (int i = 0; i < 3; i++)
+        {
+            Attachment attachment = new Attachment();
+            attachment.setAttachmentId("a" + i);
+            attachment.setFileName("file" + i + ".txt");
+            email.addAttachment(attachment);
+        }
+
+        Email copy = (Email) roundTrip(email).getEntity();
+        assertEquals("Cached", copy.getSubject());
+        assertNull(copy.getBody());
+        assertEquals("Ada", copy.getFrom().getFirstName());
+        assertNull(copy.getTo());
+        assertEquals(3, copy.getAttachments().size());
+        for (int i = 0; i < 3; i++)
+        {
+            assertNotSame(email.getAttachments().get(i), copy.getAttachments().get(i));
+            assertEquals("file" + i + ".txt", copy.getAttachments().get(i).getFileName());
+            assertNull(copy.getAttachments().get(i).getFileType());
+        }
+    }
+
+    /**
+     * Test relations keep the ids of related entities only.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testRelations() throws Exception
+    {
+        Employee employee = new Employee("dev", "developer");
+        employee.setBoss(new Employee("boss", "manager"));
+        employee.addtoTeam(new Employee("t1", "tester"), new Employee("t2", "tester"));
+
+        CachedEntity read = roundTrip(employee);
+        Employee copy = (Employee) read.getEntity();
+        assertEquals("developer", copy.getRole());
+        assertNull(copy.getBoss());
+        assertEquals(Collections.singleton("boss"), read.getForeignKeysMap().get("boss"));
+        Set<String> team = new HashSet<String>();
+        team.add("t1");
+        team.add("t2");
+        assertEquals(team, read.getForeignKeysMap().get("team"));
+        // no department, no foreign keys
+        assertNull(read.getForeignKeysMap().get("deptt"));
+    }
+
+    /**
+     * Serializes an entity and reads it back.
+     *
+     * @param entity
+     *            the entity
+     * @return the entity read
+     * @throws Exception
+     *             the exception
+     */
+    private CachedEntity roundTrip(Object entity) throws Exception
+    {
+        EntityStateSerializer serializer = factory.getEntityStateSerializer(entity.getClass());
+        return serializer.deserialize(serializer.serialize(entity));
+    }
+}
@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.junit;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.persistence.FetchType;
+import javax.persistence.PersistenceException;
+
+import junit.framework.TestCase;
+
+import com.impetus.kundera.ejb.EntityManagerFactoryImpl;
+import com.impetus.kundera.ejb.EntityManagerImpl;
+import com.impetus.kundera.entity.Employee;
+import com.impetus.kundera.metadata.EntityMetadata;
+import com.impetus.kundera.metadata.FetchPlan;
+import com.impetus.kundera.proxy.KunderaProxy;
+import com.impetus.kundera.query.QueryHints;
+
+/**
+ * Fetch plans change how far a find goes into the entity graph.
+ */
+public class FetchPlanTest extends TestCase
+{
+
+    /** The factory. */
+    private EntityManagerFactoryImpl factory;
+
+    /** The client. */
+    private InMemoryClient client;
+
+    /** The em. */
+    private EntityManagerImpl em;
+
+    /* @see junit.framework.TestCase#setUp() */
+    @Override
+    protected void setUp() throws Exception
+    {
+        client = new InMemoryClient();
+        factory = client.newFactory("fetchplan");
+        EagerBatchLoadingTest.putHierarchy(client, 1);
+        em = (EntityManagerImpl) factory.createEntityManager();
+    }
+
+    /* @see junit.framework.TestCase#tearDown() */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        factory.close();
+    }
+
+    /**
+     * Test without a plan the boss chain is read eagerly.
+     */
+    public void testAnnotatedFetch()
+    {
+        Employee employee = em.find(Employee.class, "e0", new HashMap<String, Object>());
+        assertEquals("ceo", employee.getBoss().getBoss().getName());
+        assertEquals(1, client.getReads());
+        assertEquals(2, client.getMultigets());
+    }
+
+    /**
+     * Test an excluded relation is not read at all.
+     */
+    public void testExcludedRelation()
+    {
+        FetchPlan plan = new FetchPlan("noBoss").exclude(Employee.class, "boss");
+        Employee employee = em.find(Employee.class, "e0", hint(plan));
+
+        assertEquals("e0", employee.getName());
+        assertNull(employee.getBoss());
+        assertEquals(1, client.getReads());
+        assertEquals(0, client.getMultigets());
+    }
+
+    /**
+     * Test an entity loaded partially is read again by a find without the
+     * plan, but not by another find with it.
+     */
+    public void testPartialEntityReadAgain()
+    {
+        FetchPlan plan = new FetchPlan("noBoss").exclude(Employee.class, "boss");
+        Employee partial = em.find(Employee.class, "e0", hint(plan));
+        assertSame(partial, em.find(Employee.class, "e0", hint(plan)));
+        assertEquals(1, client.getReads());
+
+        // another plan of the same name is another plan
+        assertNotSame(partial, em.find(Employee.class, "e0",
+                hint(new FetchPlan("noBoss").exclude(Employee.class, "boss"))));
+        assertEquals(2, client.getReads());
+
+        Employee full = em.find(Employee.class, "e0");
+        assertNotSame(partial, full);
+        assertEquals("b0", full.getBoss().getName());
+        assertEquals(3, client.getReads());
+
+        // the complete entity replaced it
+        assertSame(full, em.find(Employee.class, "e0"));
+        assertSame(full, em.find(Employee.class, "e0", hint(plan)));
+        assertEquals(3, client.getReads());
+    }
+
+    /**
+     * Test an entity loaded partially cannot be written back, so the
+     * properties left out keep their stored values.
+     */
+    public void testPartialEntityNotWritten()
+    {
+        FetchPlan plan = new FetchPlan("nameOnly").exclude(Employee.class, "role").exclude(Employee.class, "boss");
+        Employee partial = em.find(Employee.class, "e0", hint(plan));
+        assertNull(partial.getRole());
+        try
+        {
+            em.merge(partial);
+            fail("Partial entity merged");
+        }
+        catch (PersistenceException e)
+        {
+            assertTrue(e.getMessage().contains("nameOnly"));
+        }
+        try
+        {
+            em.persist(partial);
+            fail("Partial entity persisted");
+        }
+        catch (PersistenceException e)
+        {
+            assertTrue(e.getMessage().contains("nameOnly"));
+        }
+        assertTrue(client.getWritten().isEmpty());
+
+        EntityManagerImpl other = (EntityManagerImpl) factory.createEntityManager();
+        Employee stored = other.find(Employee.class, "e0");
+        assertEquals("staff", stored.getRole());
+        assertEquals("b0", stored.getBoss().getName());
+
+        // loaded in full, it can be written
+        Employee full = em.find(Employee.class, "e0");
+        full.setRole("lead");
+        em.merge(full);
+        assertEquals("lead", ((EntityManagerImpl) factory.createEntityManager()).find(Employee.class, "e0")
+                .getRole());
+    }
+
+    /**
+     * Test an eager relation made lazy gets a proxy instead of a read.
+     */
+    public void testLazyOverride()
+    {
+        FetchPlan plan = new FetchPlan("lazyBoss").lazy(Employee.class, "boss");
+        Employee employee = em.find(Employee.class, "e0", hint(plan));
+
+        assertTrue(employee.getBoss() instanceof KunderaProxy);
+        assertEquals(1, client.getReads());
+        assertEquals(0, client.getMultigets());
+    }
+
+    /**
+     * Test the plan is in effect for the find only.
+     */
+    public void testPlanEndsWithFind()
+    {
+        em.find(Employee.class, "e0", hint(new FetchPlan("noBoss").exclude(Employee.class, "boss")));
+        assertNull(em.getFetchPlan());
+    }
+
+    /**
+     * Test an undeclared plan name is rejected.
+     */
+    public void testUnknownPlan()
+    {
+        try
+        {
+            em.find(Employee.class, "e0", hint("undeclared"));
+            fail("Unknown fetch plan accepted");
+        }
+        catch (IllegalArgumentException e)
+        {
+            assertNull(em.getFetchPlan());
+        }
+    }
+
+    /**
+     * Test plans merge and fall back to the annotated fetch type.
+     */
+    public void testMerge()
+    {
+        EntityMetadata m = factory.getMetadataManager().getEntityMetadata(Employee.class);
+        FetchPlan plan = new FetchPlan("p").lazy(Employee.class, "boss");
+        plan.merge(new FetchPlan("p").exclude(Employee.class, "deptt"));
+
+        assertEquals(FetchType.LAZY, plan.getFetchType(Employee.class, m.getRelation("boss")));
+        assertEquals(FetchType.LAZY, plan.getFetchType(Employee.class, m.getRelation("team")));
+        assertTrue(plan.isExcluded(Employee.class, "deptt"));
+        assertTrue(plan.hasExclusions());
+    }
+
+    /**
+     * Hints holding a fetch plan.
+     *
+     * @param plan
+     *            the plan or its name
+     * @return the hints
+     */
+    private Map<String, Object> hint(Object plan)
+    {
+        Map<String, Object> hints = new HashMap<String, Object>();
+        hints.put(QueryHints.FETCH_PLAN, plan);
+        return hints;
+    }
+}
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.junit;
+
+import java.util.List;
+
+import javax.persistence.CascadeType;
+import javax.persistence.EntityNotFoundException;
+
+import junit.framework.TestCase;
+
+import com.impetus.kundera.ejb.EntityManagerFactoryImpl;
+import com.impetus.kundera.ejb.EntityManagerImpl;
+import com.impetus.kundera.entity.Employee;
+import com.impetus.kundera.loader.DBType;
+import com.impetus.kundera.proxy.EnhancedEntity;
+import com.impetus.kundera.proxy.KunderaProxy;
+
+/**
+ * References are proxies that read their entity on first use of anything
+ * but the id.
+ */
+public class GetReferenceTest extends TestCase
+{
+
+    /** The factory. */
+    private EntityManagerFactoryImpl factory;
+
+    /** The client. */
+    private InMemoryClient client;
+
+    /** The em. */
+    private EntityManagerImpl em;
+
+    /* @see junit.framework.TestCase#setUp() */
+    @Override
+    protected void setUp() throws Exception
+    {
+        client = new InMemoryClient();
+        factory = client.newFactory("reference");
+        for (int i = 0; i < 10; i++)
+        {
+            client.put(new Employee("b" + i, "boss"));
+        }
+        em = (EntityManagerImpl) factory.createEntityManager();
+    }
+
+    /* @see junit.framework.TestCase#tearDown() */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        factory.close();
+    }
+
+    /**
+     * Test the id of a reference is read without a datastore hit, the rest
+     * with one.
+     */
+    public void testReadOnFirstUse()
+    {
+        Employee boss = em.getReference(Employee.class, "b0");
+        assertTrue(boss instanceof KunderaProxy);
+        assertEquals("b0", boss.getName());
+        assertEquals(0, reads());
+
+        assertEquals("boss", boss.getRole());
+        assertEquals(1, reads());
+        assertEquals("boss", boss.getRole());
+        assertEquals(1, reads());
+    }
+
+    /**
+     * Test an entity in the session is handed back as is.
+     */
+    public void testSessionHit()
+    {
+        Employee boss = em.find(Employee.class, "b0");
+        assertSame(boss, em.getReference(Employee.class, "b0"));
+        assertEquals(1, reads());
+    }
+
+    /**
+     * Test a reference set as a relation is not read by a cascade.
+     */
+    public void testCascadeLeavesReferenceAlone()
+    {
+        Employee employee = new Employee("e0", "staff");
+        employee.setBoss(em.getReference(Employee.class, "b0"));
+
+        List<EnhancedEntity> entities = em.getEntityResolver().resolve(employee, CascadeType.PERSIST,
+                DBType.CASSANDRA);
+        assertEquals(1, entities.size());
+        assertEquals("b0", entities.get(0).getForeignKeysMap().get("boss").iterator().next());
+        assertEquals(0, reads());
+    }
+
+    /**
+     * Test a reference to a missing entity fails on first use.
+     */
+    public void testMissingEntity()
+    {
+        Employee missing = em.getReference(Employee.class, "missing");
+        try
+        {
+            missing.getRole();
+            fail("Missing entity initialized");
+        }
+        catch (EntityNotFoundException e)
+        {
+            assertEquals(1, reads());
+        }
+    }
+
+    /**
+     * Datastore reads so far, single or multiget.
+     *
+     * @return the reads
+     */
+    private int reads()
+    {
+        return client.getReads() + client.getMultigets();
+    }
+}
@@ -0,0 +1,223 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.junit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.persistence.PersistenceException;
+
+import junit.framework.TestCase;
+
+import com.impetus.kundera.db.GroupCommitter;
+import com.impetus.kundera.proxy.EnhancedEntity;
+
+/**
+ * Tests grouping of concurrent writes by {@link GroupCommitter}, against a
+ * client that records the batches it is given.
+ */
+public class GroupCommitterTest extends TestCase
+{
+
+    /** The client. */
+    private InMemoryClient client;
+
+    /* @see junit.framework.TestCase#setUp() */
+    @Override
+    protected void setUp() throws Exception
+    {
+        client = new InMemoryClient();
+    }
+
+    /**
+     * Test concurrent writes are grouped.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testConcurrentWritesAreGrouped() throws Exception
+    {
+        final GroupCommitter committer = new GroupCommitter(client, 20000, 100);
+        final int threads = 32;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        for (int t = 0; t < threads; t++)
+        {
+            final String id = "row" + t;
+            new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        committer.write(null, entity(id), null);
+                    }
+                    catch (Throwable e)
+                    {
+                        failure.compareAndSet(null, e);
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        done.await();
+        committer.close();
+
+        assertNull(failure.get());
+        assertEquals(threads, client.getWritten().size());
+        assertEquals(threads, committer.getWrites());
+        assertTrue("Writes were not grouped: " + client.getBatches(), client.getBatches().size() < threads);
+        assertEquals(client.getBatches().size(), committer.getBatches());
+    }
+
+    /**
+     * Test batches never exceed the max batch.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testMaxBatch() throws Exception
+    {
+        GroupCommitter committer = new GroupCommitter(client, 50000, 4);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < 10; i++)
+        {
+            futures.add(committer.submit(null, entity("row" + i), null));
+        }
+        for (Future<Void> future : futures)
+        {
+            future.get();
+        }
+        committer.close();
+
+        assertEquals(10, client.getWritten().size());
+        for (Integer size : client.getBatches())
+        {
+            assertTrue("Batch too large: " + size, size <= 4);
+        }
+    }
+
+    /**
+     * Test a failed entity fails only its own caller.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testFailureIsAttributedPerEntity() throws Exception
+    {
+        client.failWrites("bad", Integer.MAX_VALUE);
+        GroupCommitter committer = new GroupCommitter(client, 50000, 3);
+        Future<Void> good1 = committer.submit(null, entity("good1"), null);
+        Future<Void> bad = committer.submit(null, entity("bad"), null);
+        Future<Void> good2 = committer.submit(null, entity("good2"), null);
+
+        good1.get();
+        good2.get();
+        try
+        {
+            bad.get();
+            fail("Write of bad entity succeeded");
+        }
+        catch (ExecutionException e)
+        {
+            assertTrue(e.getCause() instanceof PersistenceException);
+            assertEquals("bad", e.getCause().getMessage());
+        }
+        committer.close();
+
+        assertEquals(1, committer.getFailedBatches());
+        assertTrue(client.getWritten().contains("good1"));
+        assertTrue(client.getWritten().contains("good2"));
+        assertFalse(client.getWritten().contains("bad"));
+    }
+
+    /**
+     * Test close writes out what is pending.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testCloseFlushesPending() throws Exception
+    {
+        GroupCommitter committer = new GroupCommitter(client, 10000000, 100);
+        Future<Void> future = committer.submit(null, entity("row"), null);
+        committer.close();
+
+        assertTrue(future.isDone());
+        future.get();
+        assertEquals(Collections.singletonList("row"), client.getWritten());
+        assertFalse(committer.isEnabled());
+    }
+
+    /**
+     * Test a committer without client is disabled.
+     */
+    public void testDisabledWithoutBatchClient()
+    {
+        Map<String, String> props = new HashMap<String, String>();
+        props.put(GroupCommitter.ENABLED, "true");
+        assertTrue(GroupCommitter.fromProperties(props, client).isEnabled());
+        assertFalse(GroupCommitter.fromProperties(props, null).isEnabled());
+        assertFalse(GroupCommitter.fromProperties(null, client).isEnabled());
+    }
+
+    /**
+     * Entity with just an id.
+     *
+     * @param id
+     *            the id
+     * @return the enhanced entity
+     */
+    private static EnhancedEntity entity(final String id)
+    {
+        return new EnhancedEntity()
+        {
+            @Override
+            public Map<String, Set<String>> getForeignKeysMap()
+            {
+                return new HashMap<String, Set<String>>();
+            }
+
+            @Override
+            public Object getEntity()
+            {
+                return id;
+            }
+
+            @Override
+            public String getId()
+            {
+                return id;
+            }
+        };
+    }
+}
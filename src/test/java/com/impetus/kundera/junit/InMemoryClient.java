@@ -0,0 +1,571 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.junit;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+
+import org.apache.cassandra.thrift.SuperColumn;
+import org.scale7.cassandra.pelops.Bytes;
+
+import com.impetus.kundera.BatchClient;
+import com.impetus.kundera.ejb.EntityManagerFactoryImpl;
+import com.impetus.kundera.ejb.EntityManagerImpl;
+import com.impetus.kundera.loader.DBType;
+import com.impetus.kundera.metadata.EntityMetadata;
+import com.impetus.kundera.metadata.MetadataManager;
+import com.impetus.kundera.property.PropertyAccessException;
+import com.impetus.kundera.property.PropertyAccessorHelper;
+import com.impetus.kundera.proxy.EnhancedEntity;
+
+/**
+ * Datastore held in memory, for tests. A row keeps the id and columns of an
+ * entity along with the ids of the entities it relates to; every read builds
+ * a new entity from it and hands the relations to the resolver, the way the
+ * real clients do.
+ *
+ * Reads and writes are counted, a hook may hold or slow reads down, and
+ * writes of chosen ids can be made to fail.
+ */
+public class InMemoryClient implements BatchClient
+{
+
+    /** The datastore type reported. */
+    private final DBType type;
+
+    /** Rows, by column family and id. */
+    private final ConcurrentMap<String, Row> rows = new ConcurrentHashMap<String, Row>();
+
+    /** The metadata manager of the factory using this client. */
+    private volatile MetadataManager metadataManager;
+
+    /** Single reads so far. */
+    private final AtomicInteger reads = new AtomicInteger();
+
+    /** Multigets so far. */
+    private final AtomicInteger multigets = new AtomicInteger();
+
+    /** Queries so far. */
+    private final AtomicInteger queries = new AtomicInteger();
+
+    /** Ids written, in order. */
+    private final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+
+    /** Sizes of the batches written. */
+    private final List<Integer> batches = Collections.synchronizedList(new ArrayList<Integer>());
+
+    /** Writes left to fail, by id. */
+    private final Map<String, Integer> failures = new HashMap<String, Integer>();
+
+    /** Run before every read, null for none. */
+    private volatile Runnable beforeRead;
+
+    /**
+     * Instantiates a new client of a Cassandra datastore.
+     */
+    public InMemoryClient()
+    {
+        this(DBType.CASSANDRA);
+    }
+
+    /**
+     * Instantiates a new client.
+     *
+     * @param type
+     *            the datastore type to report
+     */
+    public InMemoryClient(DBType type)
+    {
+        this.type = type;
+    }
+
+    /**
+     * Creates a factory using this client.
+     *
+     * @param persistenceUnit
+     *            the persistence unit
+     * @return the factory
+     */
+    public EntityManagerFactoryImpl newFactory(String persistenceUnit)
+    {
+        return newFactory(persistenceUnit, new HashMap<String, String>());
+    }
+
+    /**
+     * Creates a factory using this client.
+     *
+     * @param persistenceUnit
+     *            the persistence unit
+     * @param props
+     *            the persistence unit properties
+     * @return the factory
+     */
+    public EntityManagerFactoryImpl newFactory(String persistenceUnit, Map<String, String> props)
+    {
+        EntityManagerFactoryImpl factory = new EntityManagerFactoryImpl(persistenceUnit, props);
+        factory.setClient(this);
+        metadataManager = factory.getMetadataManager();
+        return factory;
+    }
+
+    /**
+     * Puts entities in the datastore, relations by the ids of their targets,
+     * without counting any write.
+     *
+     * @param entities
+     *            the entities
+     * @throws PropertyAccessException
+     *             the property access exception
+     */
+    public void put(Object... entities) throws PropertyAccessException
+    {
+        for (Object entity : entities)
+        {
+            EntityMetadata m = metadataManager.getEntityMetadata(entity.getClass());
+            Map<String, Set<String>> foreignKeys = new HashMap<String, Set<String>>();
+            for (EntityMetadata.Relation relation : m.getRelations())
+            {
+                Object value = PropertyAccessorHelper.getObject(entity, relation.getProperty());
+                EntityMetadata target = metadataManager.getEntityMetadata(relation.getTargetEntity());
+                Set<String> keys = new LinkedHashSet<String>();
+                if (value instanceof Collection)
+                {
+                    for (Object o : (Collection<?>) value)
+                    {
+                        keys.add(PropertyAccessorHelper.getId(o, target));
+                    }
+                }
+                else if (value != null)
+                {
+                    keys.add(PropertyAccessorHelper.getId(value, target));
+                }
+                foreignKeys.put(relation.getProperty().getName(), keys);
+            }
+            store(m, entity, foreignKeys);
+        }
+    }
+
+    /**
+     * Checks whether the datastore has an entity.
+     *
+     * @param entityClass
+     *            the entity class
+     * @param id
+     *            the id
+     * @return true, if it does
+     */
+    public boolean contains(Class<?> entityClass, String id)
+    {
+        return rows.containsKey(key(metadataManager.getEntityMetadata(entityClass).getTableName(), id));
+    }
+
+    /**
+     * Makes writes of an id fail.
+     *
+     * @param id
+     *            the id
+     * @param times
+     *            how many writes fail
+     */
+    public void failWrites(String id, int times)
+    {
+        synchronized (failures)
+        {
+            failures.put(id, times);
+        }
+    }
+
+    /**
+     * Sets what runs before every read, to hold or slow reads down.
+     *
+     * @param beforeRead
+     *            the hook, null for none
+     */
+    public void setBeforeRead(Runnable beforeRead)
+    {
+        this.beforeRead = beforeRead;
+    }
+
+    /**
+     * Gets the single reads so far.
+     *
+     * @return the reads
+     */
+    public int getReads()
+    {
+        return reads.get();
+    }
+
+    /**
+     * Gets the multigets so far.
+     *
+     * @return the multigets
+     */
+    public int getMultigets()
+    {
+        return multigets.get();
+    }
+
+    /**
+     * Gets the queries so far.
+     *
+     * @return the queries
+     */
+    public int getQueries()
+    {
+        return queries.get();
+    }
+
+    /**
+     * Gets the ids written, in order.
+     *
+     * @return the written ids
+     */
+    public List<String> getWritten()
+    {
+        return written;
+    }
+
+    /**
+     * Gets the sizes of the batches written.
+     *
+     * @return the batch sizes
+     */
+    public List<Integer> getBatches()
+    {
+        return batches;
+    }
+
+    @Override
+    public <E> E loadData(EntityManagerImpl em, Class<E> clazz, String keyspace, String columnFamily,
+            String key, EntityMetadata m) throws Exception
+    {
+        reads.incrementAndGet();
+        beforeRead();
+        return build(em, clazz, m, columnFamily, key);
+    }
+
+    @Override
+    public <E> List<E> loadData(EntityManagerImpl em, Class<E> clazz, String keyspace, String columnFamily,
+            EntityMetadata m, String... keys) throws Exception
+    {
+        multigets.incrementAndGet();
+        beforeRead();
+        List<E> entities = new ArrayList<E>();
+        for (String key : keys)
+        {
+            E e = build(em, clazz, m, columnFamily, key);
+            if (e != null)
+            {
+                entities.add(e);
+            }
+        }
+        return entities;
+    }
+
+    @Override
+    public <E> List<E> loadData(EntityManager em, Class<E> clazz, EntityMetadata m, Map<String, String> col,
+            String keyspace, String family) throws Exception
+    {
+        return new ArrayList<E>();
+    }
+
+    /**
+     * Reads every entity of the queried class, as queries are not
+     * interpreted.
+     *
+     * @param <E>
+     *            the element type
+     * @param em
+     *            the em
+     * @param m
+     *            the m
+     * @param query
+     *            the query
+     * @return the entities
+     * @throws Exception
+     *             the exception
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public <E> List<E> loadData(EntityManagerImpl em, EntityMetadata m, Query query) throws Exception
+    {
+        queries.incrementAndGet();
+        beforeRead();
+        String prefix = key(m.getTableName(), "");
+        List<String> ids = new ArrayList<String>();
+        for (String key : rows.keySet())
+        {
+            if (key.startsWith(prefix))
+            {
+                ids.add(key.substring(prefix.length()));
+            }
+        }
+        Collections.sort(ids);
+        List<E> entities = new ArrayList<E>();
+        for (String id : ids)
+        {
+            E e = (E) build(em, m.getEntityClazz(), m, m.getTableName(), id);
+            if (e != null)
+            {
+                entities.add(e);
+            }
+        }
+        return entities;
+    }
+
+    @Override
+    public Map<Bytes, List<SuperColumn>> loadEmbeddedObjects(String keyspace, String columnFamily,
+            String... keys) throws Exception
+    {
+        return new HashMap<Bytes, List<SuperColumn>>();
+    }
+
+    @Override
+    public void writeData(EntityManagerImpl em, EnhancedEntity e, EntityMetadata m) throws Exception
+    {
+        failIfAsked(Collections.singletonList(e));
+        if (m != null)
+        {
+            store(m, e.getEntity(), e.getForeignKeysMap());
+        }
+        written.add(e.getId());
+    }
+
+    @Override
+    public void writeData(List<EnhancedEntity> entities, List<EntityMetadata> metadata) throws Exception
+    {
+        failIfAsked(entities);
+        for (int i = 0; i < entities.size(); i++)
+        {
+            EnhancedEntity e = entities.get(i);
+            if (metadata != null && metadata.get(i) != null)
+            {
+                store(metadata.get(i), e.getEntity(), e.getForeignKeysMap());
+            }
+            written.add(e.getId());
+        }
+        batches.add(entities.size());
+    }
+
+    @Override
+    public void delete(String keyspace, String columnFamily, String rowId) throws Exception
+    {
+        rows.remove(key(columnFamily, rowId));
+    }
+
+    @Override
+    public void setContactNodes(String... contactNodes)
+    {
+    }
+
+    @Override
+    public void setDefaultPort(int defaultPort)
+    {
+    }
+
+    @Override
+    public void setKeySpace(String keySpace)
+    {
+    }
+
+    @Override
+    public void connect()
+    {
+    }
+
+    @Override
+    public void shutdown()
+    {
+    }
+
+    @Override
+    public DBType getType()
+    {
+        return type;
+    }
+
+    /**
+     * Runs the read hook, if any.
+     */
+    private void beforeRead()
+    {
+        Runnable hook = beforeRead;
+        if (hook != null)
+        {
+            hook.run();
+        }
+    }
+
+    /**
+     * Throws if a write of any of the entities is to fail.
+     *
+     * @param entities
+     *            the entities
+     */
+    private void failIfAsked(List<EnhancedEntity> entities)
+    {
+        synchronized (failures)
+        {
+            for (EnhancedEntity e : entities)
+            {
+                Integer left = failures.get(e.getId());
+                if (left != null && left > 0)
+                {
+                    failures.put(e.getId(), left - 1);
+                    throw new PersistenceException(e.getId());
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores a copy of the state of an entity.
+     *
+     * @param m
+     *            the m
+     * @param entity
+     *            the entity
+     * @param foreignKeys
+     *            ids of related entities, by relation property
+     * @throws PropertyAccessException
+     *             the property access exception
+     */
+    private void store(EntityMetadata m, Object entity, Map<String, Set<String>> foreignKeys)
+            throws PropertyAccessException
+    {
+        Map<Field, Object> values = new LinkedHashMap<Field, Object>();
+        values.put(m.getIdProperty(), PropertyAccessorHelper.getObject(entity, m.getIdProperty()));
+        for (EntityMetadata.Column column : m.getColumnsAsList())
+        {
+            values.put(column.getField(), PropertyAccessorHelper.getObject(entity, column.getField()));
+        }
+        for (EntityMetadata.SuperColumn superColumn : m.getSuperColumnsAsList())
+        {
+            // shallow: embedded objects are shared between reads
+            values.put(superColumn.getField(), PropertyAccessorHelper.getObject(entity, superColumn.getField()));
+        }
+
+        Map<String, Set<String>> keys = new HashMap<String, Set<String>>();
+        if (foreignKeys != null)
+        {
+            for (Map.Entry<String, Set<String>> entry : foreignKeys.entrySet())
+            {
+                keys.put(entry.getKey(), new LinkedHashSet<String>(entry.getValue()));
+            }
+        }
+        rows.put(key(m.getTableName(), PropertyAccessorHelper.getId(entity, m)), new Row(values, keys));
+    }
+
+    /**
+     * Builds a new entity from a row, if there is one.
+     *
+     * @param <E>
+     *            the element type
+     * @param em
+     *            the em
+     * @param clazz
+     *            the clazz
+     * @param m
+     *            the m
+     * @param columnFamily
+     *            the column family
+     * @param id
+     *            the id
+     * @return the entity, null if there is no row
+     * @throws Exception
+     *             the exception
+     */
+    private <E> E build(EntityManagerImpl em, Class<E> clazz, EntityMetadata m, String columnFamily, String id)
+            throws Exception
+    {
+        Row row = rows.get(key(columnFamily, id));
+        if (row == null)
+        {
+            return null;
+        }
+        E e = clazz.newInstance();
+        for (Map.Entry<Field, Object> value : row.values.entrySet())
+        {
+            PropertyAccessorHelper.set(e, value.getKey(), value.getValue());
+        }
+        for (EntityMetadata.Relation relation : m.getRelations())
+        {
+            Set<String> keys = row.foreignKeys.get(relation.getProperty().getName());
+            if (keys != null && !keys.isEmpty())
+            {
+                em.getEntityResolver().populateForeignEntities(e, id, relation, keys.toArray(new String[0]));
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Key of a row.
+     *
+     * @param columnFamily
+     *            the column family
+     * @param id
+     *            the id
+     * @return the key
+     */
+    private static String key(String columnFamily, String id)
+    {
+        return columnFamily + "/" + id;
+    }
+
+    /**
+     * State of an entity as stored.
+     */
+    private static final class Row
+    {
+
+        /** Values of the id and columns, by field. */
+        private final Map<Field, Object> values;
+
+        /** Ids of related entities, by relation property. */
+        private final Map<String, Set<String>> foreignKeys;
+
+        /**
+         * Instantiates a new row.
+         *
+         * @param values
+         *            the values
+         * @param foreignKeys
+         *            the foreign keys
+         */
+        private Row(Map<Field, Object> values, Map<String, Set<String>> foreignKeys)
+        {
+            this.values = values;
+            this.foreignKeys = foreignKeys;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.junit;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.util.Version;
+
+import com.impetus.kundera.Client;
+import com.impetus.kundera.ejb.EntityManagerFactoryImpl;
+import com.impetus.kundera.entity.Employee;
+import com.impetus.kundera.index.KunderaIndexer;
+import com.impetus.kundera.loader.DBType;
+import com.impetus.kundera.metadata.EntityMetadata;
+
+/**
+ * Entities of an index name get partitions of their own, split by id hash if
+ * configured, and searches merge the hits of all of them.
+ */
+public class IndexPartitioningTest extends TestCase
+{
+
+    /** The query matching every employee. */
+    private static final String ALL_EMPLOYEES = KunderaIndexer.ENTITY_INDEXNAME_FIELD + ":Employee";
+
+    /** The home directory holding the local index. */
+    private File home;
+
+    /** The home directory before the test. */
+    private String userHome;
+
+    /** The factory. */
+    private EntityManagerFactoryImpl factory;
+
+    /** The metadata. */
+    private EntityMetadata metadata;
+
+    /** The indexer. */
+    private KunderaIndexer indexer;
+
+    /* @see junit.framework.TestCase#setUp() */
+    @Override
+    protected void setUp() throws Exception
+    {
+        home = File.createTempFile("kundera-home", "");
+        home.delete();
+        home.mkdirs();
+        userHome = System.getProperty("user.home");
+        System.setProperty("user.home", home.getPath());
+
+        factory = new EntityManagerFactoryImpl("partitioning", new HashMap<String, String>());
+        metadata = factory.getMetadataManager().getEntityMetadata(Employee.class);
+    }
+
+    /* @see junit.framework.TestCase#tearDown() */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        if (indexer != null)
+        {
+            indexer.close();
+        }
+        factory.close();
+        System.setProperty("user.home", userHome);
+        delete(home);
+    }
+
+    /**
+     * Test all entities share one index by default.
+     */
+    public void testSingleIndexByDefault()
+    {
+        indexer = open(new HashMap<String, String>());
+        index(10);
+
+        assertEquals(10, indexer.search(metadata, ALL_EMPLOYEES, -1, 100).size());
+        assertFalse(new File(home, "lucene/kundera-alpha.Employee").exists());
+    }
+
+    /**
+     * Test hash partitions are written and searched together, top hits
+     * merged.
+     */
+    public void testHashPartitions()
+    {
+        Map<String, String> props = new HashMap<String, String>();
+        props.put(KunderaIndexer.PARTITIONING, KunderaIndexer.ENTITY_PARTITIONING);
+        props.put(KunderaIndexer.HASH_PARTITIONS + "Employee", "4");
+        indexer = open(props);
+        index(40);
+
+        for (int i = 0; i < 4; i++)
+        {
+            assertTrue(new File(home, "lucene/kundera-alpha.Employee." + i).isDirectory());
+        }
+        assertEquals(40, indexer.search(metadata, ALL_EMPLOYEES, -1, 100).size());
+        assertEquals(10, indexer.search(metadata, ALL_EMPLOYEES, -1, 10).size());
+
+        indexer.unindex(metadata, "e1");
+        assertEquals(39, indexer.search(metadata, ALL_EMPLOYEES, -1, 100).size());
+    }
+
+    /**
+     * Test a search not naming the entity covers partitions written before
+     * the indexer started, not only those it opened since.
+     */
+    public void testSearchWithoutEntityAfterRestart()
+    {
+        Map<String, String> props = new HashMap<String, String>();
+        props.put(KunderaIndexer.PARTITIONING, KunderaIndexer.ENTITY_PARTITIONING);
+        props.put(KunderaIndexer.HASH_PARTITIONS + "Employee", "3");
+        indexer = open(props);
+        index(20);
+        indexer.close();
+
+        indexer = open(props);
+        assertEquals(20, indexer.search(ALL_EMPLOYEES, -1, 100).size());
+    }
+
+    /**
+     * Test pages over partitions cover every hit once, and the total counts
+     * them all.
+     */
+    public void testPagesAcrossPartitions()
+    {
+        Map<String, String> props = new HashMap<String, String>();
+        props.put(KunderaIndexer.PARTITIONING, KunderaIndexer.ENTITY_PARTITIONING);
+        props.put(KunderaIndexer.HASH_PARTITIONS + "Employee", "3");
+        indexer = open(props);
+        index(40);
+
+        Set<String> ids = new HashSet<String>();
+        for (int start = 0; start < 40; start += 7)
+        {
+            Map<String, String> page = indexer.search(metadata, ALL_EMPLOYEES, start, 7);
+            assertEquals(Math.min(7, 40 - start), page.size());
+            ids.addAll(page.values());
+        }
+        assertEquals(40, ids.size());
+        assertEquals(0, indexer.search(metadata, ALL_EMPLOYEES, 40, 7).size());
+
+        // out of order, without a cursor to continue from
+        assertEquals(5, indexer.search(metadata, ALL_EMPLOYEES, 35, 10).size());
+        assertEquals(40, indexer.count(metadata, ALL_EMPLOYEES));
+    }
+
+    /**
+     * Test searches without a count return every hit, not the first
+     * hundred.
+     */
+    public void testEveryHitWithoutCount()
+    {
+        indexer = open(new HashMap<String, String>());
+        index(250);
+
+        assertEquals(250, indexer.search(metadata, ALL_EMPLOYEES, -1, -1).size());
+        assertEquals(50, indexer.search(metadata, ALL_EMPLOYEES, 200, -1).size());
+    }
+
+    /**
+     * Opens an indexer on the local index.
+     *
+     * @param props
+     *            the props
+     * @return the indexer
+     */
+    @SuppressWarnings("deprecation")
+    private KunderaIndexer open(Map<String, String> props)
+    {
+        Client client = (Client) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Client.class },
+                new InvocationHandler()
+                {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                    {
+                        return "getType".equals(method.getName()) ? DBType.HBASE : null;
+                    }
+                });
+        return new KunderaIndexer(client, new StandardAnalyzer(Version.LUCENE_CURRENT), props);
+    }
+
+    /**
+     * Indexes employees e0 to e(count - 1).
+     *
+     * @param count
+     *            the count
+     */
+    private void index(int count)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            indexer.index(metadata, new Employee("e" + i, "developer"));
+        }
+    }
+
+    /**
+     * Deletes a file or directory tree.
+     *
+     * @param file
+     *            the file
+     */
+    private void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+            {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
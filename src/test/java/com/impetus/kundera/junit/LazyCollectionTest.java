@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.junit;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import com.impetus.kundera.LazyInitializationException;
+import com.impetus.kundera.ejb.BatchFetchQueue;
+import com.impetus.kundera.ejb.EntityManagerFactoryImpl;
+import com.impetus.kundera.ejb.EntityManagerImpl;
+import com.impetus.kundera.entity.Author;
+import com.impetus.kundera.proxy.PersistentList;
+import com.impetus.kundera.proxy.PersistentSet;
+
+/**
+ * Lazy collections read nothing until used, then read their members a batch
+ * per multiget.
+ */
+public class LazyCollectionTest extends TestCase
+{
+
+    /** The factory. */
+    private EntityManagerFactoryImpl factory;
+
+    /** The client. */
+    private InMemoryClient client;
+
+    /** The em. */
+    private EntityManagerImpl em;
+
+    /* @see junit.framework.TestCase#setUp() */
+    @Override
+    protected void setUp() throws Exception
+    {
+        client = new InMemoryClient();
+        factory = client.newFactory("lazy");
+        for (String id : ids(10))
+        {
+            Author author = new Author();
+            author.setUsername(id);
+            client.put(author);
+        }
+        em = (EntityManagerImpl) factory.createEntityManager();
+    }
+
+    /* @see junit.framework.TestCase#tearDown() */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        factory.close();
+    }
+
+    /**
+     * Test members are read in batches, in id order, on first use only.
+     */
+    public void testListLoadsInBatches()
+    {
+        PersistentList<Author> authors = new PersistentList<Author>(em, "Post#authors", Author.class, ids(10), 4);
+        assertFalse(authors.isInitialized());
+        assertEquals(0, client.getMultigets());
+
+        assertEquals(10, authors.size());
+        assertTrue(authors.isInitialized());
+        assertEquals(3, client.getMultigets());
+        assertEquals("a0", authors.get(0).getUsername());
+        assertEquals("a9", authors.get(9).getUsername());
+
+        authors.get(5);
+        assertEquals(3, client.getMultigets());
+    }
+
+    /**
+     * Test a set keeps its ids without reading them.
+     */
+    public void testSetKeepsForeignKeys()
+    {
+        PersistentSet<Author> authors = new PersistentSet<Author>(em, "Post#authors", Author.class, ids(3), 50);
+        assertEquals(Arrays.asList(ids(3)), authors.getForeignKeys());
+        assertTrue(authors.toString().startsWith("[uninitialized"));
+        assertEquals(0, client.getMultigets());
+
+        assertTrue(authors.contains(em.find(Author.class, "a1")));
+        assertEquals(1, client.getMultigets());
+    }
+
+    /**
+     * Test a collection can not be read once its EntityManager is closed.
+     */
+    public void testClosedEntityManager()
+    {
+        PersistentList<Author> authors = new PersistentList<Author>(em, "Post#authors", Author.class, ids(3), 50);
+        em.close();
+        try
+        {
+            authors.size();
+            fail("Read through a closed EntityManager");
+        }
+        catch (LazyInitializationException expected)
+        {
+        }
+    }
+
+    /**
+     * Test sibling proxies are handed out up to the batch size.
+     */
+    public void testBatchFetchQueue()
+    {
+        BatchFetchQueue queue = new BatchFetchQueue();
+        for (String id : ids(5))
+        {
+            queue.add(Author.class, id, 3);
+        }
+
+        assertEquals(Arrays.asList("a2", "a0", "a1"), Arrays.asList(queue.nextBatch(Author.class, "a2")));
+        assertEquals(Arrays.asList("a4", "a3"), Arrays.asList(queue.nextBatch(Author.class, "a4")));
+        assertEquals(Arrays.asList("a3"), Arrays.asList(queue.nextBatch(Author.class, "a3")));
+    }
+
+    /**
+     * Ids a0 to a(count - 1).
+     *
+     * @param count
+     *            the count
+     * @return the ids
+     */
+    private String[] ids(int count)
+    {
+        String[] ids = new String[count];
+        for (int i = 0; i < count; i++)
+        {
+            ids[i] = "a" + i;
+        }
+        return ids;
+    }
+}
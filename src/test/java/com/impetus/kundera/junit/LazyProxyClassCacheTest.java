@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.junit;
+
+import java.lang.reflect.Method;
+
+import junit.framework.TestCase;
+
+import com.impetus.kundera.entity.Author;
+import com.impetus.kundera.proxy.KunderaProxy;
+import com.impetus.kundera.proxy.cglib.CglibLazyInitializerFactory;
+
+/**
+ * Lazy proxies share one generated class per persistent class.
+ */
+public class LazyProxyClassCacheTest extends TestCase
+{
+
+    /** The factory. */
+    private CglibLazyInitializerFactory factory;
+
+    /** The get identifier method. */
+    private Method getId;
+
+    /** The set identifier method. */
+    private Method setId;
+
+    /* @see junit.framework.TestCase#setUp() */
+    @Override
+    protected void setUp() throws Exception
+    {
+        factory = new CglibLazyInitializerFactory();
+        getId = Author.class.getMethod("getUsername");
+        setId = Author.class.getMethod("setUsername", String.class);
+    }
+
+    /**
+     * Test proxies of one class share their proxy class, but not their state.
+     */
+    public void testProxyClassIsReused()
+    {
+        KunderaProxy first = proxy("a1");
+        KunderaProxy second = proxy("a2");
+
+        assertSame(first.getClass(), second.getClass());
+        assertEquals(1, factory.getProxyClassCount());
+        assertTrue(first instanceof Author);
+
+        assertEquals("a1", first.getKunderaLazyInitializer().getIdentifier());
+        assertEquals("a2", second.getKunderaLazyInitializer().getIdentifier());
+        assertTrue(first.getKunderaLazyInitializer().isUninitialized());
+    }
+
+    /**
+     * Test a pre-generated proxy class is the one later proxies use.
+     */
+    public void testGenerateProxyClass()
+    {
+        factory.generateProxyClass(Author.class);
+        factory.generateProxyClass(Author.class);
+        assertEquals(1, factory.getProxyClassCount());
+
+        proxy("a1");
+        assertEquals(1, factory.getProxyClassCount());
+    }
+
+    /**
+     * Creates an unattached proxy of an Author.
+     *
+     * @param id
+     *            the id
+     * @return the kundera proxy
+     */
+    private KunderaProxy proxy(String id)
+    {
+        return factory.getProxy(Author.class.getName(), Author.class, getId, setId, id, null);
+    }
+}
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.junit;
+
+import junit.framework.TestCase;
+
+import com.impetus.kundera.cache.NegativeLookupCache;
+import com.impetus.kundera.entity.Author;
+import com.impetus.kundera.entity.Post;
+
+/**
+ * The Class NegativeLookupCacheTest.
+ */
+public class NegativeLookupCacheTest extends TestCase
+{
+
+    /**
+     * Test absent keys are remembered until written.
+     */
+    public void testMarkAndInvalidate()
+    {
+        NegativeLookupCache cache = new NegativeLookupCache(60000, 100);
+        assertFalse(cache.isKnownAbsent(Author.class, "a1"));
+
+        cache.markAbsent(Author.class, "a1", cache.getGeneration(Author.class, "a1"));
+        assertTrue(cache.isKnownAbsent(Author.class, "a1"));
+        assertFalse(cache.isKnownAbsent(Post.class, "a1"));
+        assertEquals(1, cache.getSavedReads());
+
+        cache.invalidate(Author.class, "a1");
+        assertFalse(cache.isKnownAbsent(Author.class, "a1"));
+        assertEquals(1, cache.getInvalidations());
+    }
+
+    /**
+     * Test keys expire and are bounded.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testExpiryAndBound() throws Exception
+    {
+        NegativeLookupCache cache = new NegativeLookupCache(50, 10);
+        for (int i = 0; i < 20; i++)
+        {
+            cache.markAbsent(Author.class, "a" + i, cache.getGeneration(Author.class, "a" + i));
+        }
+        assertEquals(10, cache.size());
+        assertFalse(cache.isKnownAbsent(Author.class, "a0"));
+        assertTrue(cache.isKnownAbsent(Author.class, "a19"));
+
+        Thread.sleep(100);
+        assertFalse(cache.isKnownAbsent(Author.class, "a19"));
+    }
+
+    /**
+     * Test the cache is off by default.
+     */
+    public void testDisabled()
+    {
+        NegativeLookupCache cache = NegativeLookupCache.fromProperties(null);
+        assertFalse(cache.isEnabled());
+        cache.markAbsent(Author.class, "a1", cache.getGeneration(Author.class, "a1"));
+        assertFalse(cache.isKnownAbsent(Author.class, "a1"));
+    }
+
+    /**
+     * Test a key written between the read and marking it absent is not
+     * marked.
+     */
+    public void testWriteDuringRead()
+    {
+        NegativeLookupCache cache = new NegativeLookupCache(60000, 100);
+
+        // the read starts and finds nothing
+        long generation = cache.getGeneration(Author.class, "a1");
+        // the entity is persisted before the read records its result
+        cache.invalidate(Author.class, "a1");
+        cache.markAbsent(Author.class, "a1", generation);
+        assertFalse(cache.isKnownAbsent(Author.class, "a1"));
+        assertEquals(0, cache.size());
+
+        // other keys are unaffected, as are reads begun after the write
+        cache.markAbsent(Author.class, "a2", cache.getGeneration(Author.class, "a2"));
+        cache.markAbsent(Author.class, "a1", cache.getGeneration(Author.class, "a1"));
+        assertTrue(cache.isKnownAbsent(Author.class, "a1"));
+        assertTrue(cache.isKnownAbsent(Author.class, "a2"));
+
+        // so is a read racing clear
+        generation = cache.getGeneration(Author.class, "a3");
+        cache.clear();
+        cache.markAbsent(Author.class, "a3", generation);
+        assertFalse(cache.isKnownAbsent(Author.class, "a3"));
+    }
+}
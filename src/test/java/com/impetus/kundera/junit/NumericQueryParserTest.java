@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.junit;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+
+import com.impetus.kundera.index.NumericQueryParser;
+
+/**
+ * Ranges, terms and lists of numeric properties match the numbers indexed,
+ * and keyword properties match their terms as they are.
+ */
+public class NumericQueryParserTest extends TestCase
+{
+
+    /** The epoch of the joining dates indexed. */
+    private static final long EPOCH = 1300000000000L;
+
+    /** The searcher. */
+    private IndexSearcher searcher;
+
+    /** The parser. */
+    private NumericQueryParser parser;
+
+    /* @see junit.framework.TestCase#setUp() */
+    @SuppressWarnings("deprecation")
+    @Override
+    protected void setUp() throws Exception
+    {
+        RAMDirectory directory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(Version.LUCENE_CURRENT,
+                new StandardAnalyzer(Version.LUCENE_CURRENT)));
+        for (int i = 0; i < 50; i++)
+        {
+            Document document = new Document();
+            document.add(NumericQueryParser.newField("employees.age", 20 + i));
+            document.add(NumericQueryParser.newField("employees.salary", 1000.5d * i));
+            document.add(NumericQueryParser.newField("employees.joined", new Date(EPOCH + i * 1000L)));
+            document.add(new Field("employees.name", "name" + (char) ('a' + i % 26), Field.Store.NO,
+                    Field.Index.ANALYZED));
+            document.add(new Field("employees.code", "EMP-" + i, Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+            writer.addDocument(document);
+        }
+        writer.close();
+        searcher = new IndexSearcher(directory, true);
+
+        Map<String, Class<?>> numericFields = new HashMap<String, Class<?>>();
+        numericFields.put("employees.age", int.class);
+        numericFields.put("employees.salary", Double.class);
+        numericFields.put("employees.joined", Date.class);
+        parser = new NumericQueryParser(Version.LUCENE_CURRENT, "employees.name", new StandardAnalyzer(
+                Version.LUCENE_CURRENT), numericFields, Collections.singleton("employees.code"));
+    }
+
+    /* @see junit.framework.TestCase#tearDown() */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        searcher.close();
+    }
+
+    /**
+     * Counts the hits of a query.
+     *
+     * @param query
+     *            the query
+     * @return the hits
+     * @throws Exception
+     *             the exception
+     */
+    private int count(String query) throws Exception
+    {
+        return searcher.search(parser.parse(query), 100).totalHits;
+    }
+
+    /**
+     * Ranges of numbers, closed, open and exclusive.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testRanges() throws Exception
+    {
+        assertTrue(parser.parse("employees.age:[30 TO 39]") instanceof NumericRangeQuery<?>);
+        assertEquals(10, count("employees.age:[30 TO 39]"));
+        assertEquals(8, count("employees.age:{30 TO 39}"));
+        assertEquals(39, count("employees.age:{30 TO *}"));
+        assertEquals(11, count("employees.age:[* TO 30]"));
+        assertEquals(5, count("employees.salary:[* TO 4002]"));
+        assertEquals(10, count("employees.joined:[" + (EPOCH + 40000) + " TO *]"));
+    }
+
+    /**
+     * A number matches itself only, alone or in a list.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testTermsAndLists() throws Exception
+    {
+        assertEquals(1, count("employees.age:42"));
+        assertEquals(3, count("+employees.age:(21 42 69 70)"));
+        assertEquals(0, count("employees.age:19"));
+    }
+
+    /**
+     * Open ranges of text, and numbers of the wrong type.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testTextAndBadNumbers() throws Exception
+    {
+        assertEquals(48, count("employees.name:[* TO namex]"));
+        try
+        {
+            parser.parse("employees.age:[thirty TO 40]");
+            fail("Bad number parsed.");
+        }
+        catch (ParseException e)
+        {
+            assertTrue(e.getMessage().contains("employees.age"));
+        }
+    }
+
+    /**
+     * Keywords match whole and in case, by term, prefix and range.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testKeywords() throws Exception
+    {
+        assertEquals(1, count("employees.code:EMP-42"));
+        assertEquals(0, count("employees.code:emp-42"));
+        assertEquals(11, count("employees.code:EMP-1*"));
+        assertEquals(3, count("employees.code:[EMP-40 TO EMP-42]"));
+    }
+
+    /**
+     * Values quoted or escaped as queries compile them are taken whole:
+     * a negative number in a list is a number, not a prohibited clause.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testQuotedValues() throws Exception
+    {
+        String negative = NumericQueryParser.quote("-5");
+        assertEquals(1, count("+employees.age:(" + negative + " " + NumericQueryParser.quote("42") + ")"));
+        NumericRangeQuery<?> query = (NumericRangeQuery<?>) parser.parse("employees.age:" + negative);
+        assertEquals(-5, query.getMin());
+        assertEquals(6, count("employees.age:[" + negative + " TO " + NumericQueryParser.quote("25") + "]"));
+
+        assertEquals(1, count("employees.code:" + NumericQueryParser.quote("EMP-42")));
+        assertEquals(11, count("employees.code:" + NumericQueryParser.escapePrefix("EMP-4") + "*"));
+        assertEquals(0, count("employees.code:" + NumericQueryParser.quote("EMP-4*")));
+        assertEquals(0, count("employees.name:" + NumericQueryParser.quote("namea) OR (employees.age:42")));
+    }
+}
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.junit;
+
+import java.io.File;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import com.impetus.kundera.cache.offheap.OffHeapStore;
+
+/**
+ * The Class OffHeapStoreTest.
+ */
+public class OffHeapStoreTest extends TestCase
+{
+
+    /**
+     * Test put, get and remove.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testPutGetRemove() throws Exception
+    {
+        OffHeapStore store = new OffHeapStore(64 * 1024, 4096, null);
+        byte[] value = "Vivek Mishra".getBytes("utf-8");
+
+        assertTrue(store.put("a", value));
+        assertTrue(Arrays.equals(value, store.get("a")));
+        assertNull(store.get("b"));
+
+        // replace with a bigger value, moves to another size class
+        byte[] bigger = new byte[1000];
+        assertTrue(store.put("a", bigger));
+        assertTrue(Arrays.equals(bigger, store.get("a")));
+        assertEquals(1, store.size());
+
+        assertTrue(store.remove("a"));
+        assertNull(store.get("a"));
+        assertEquals(0, store.getUsedBytes());
+        store.close();
+    }
+
+    /**
+     * Test eviction stays within the byte budget.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testEviction() throws Exception
+    {
+        OffHeapStore store = new OffHeapStore(8 * 1024, 1024, null);
+        for (int i = 0; i < 1000; i++)
+        {
+            assertTrue(store.put("key" + i, new byte[100]));
+            assertTrue(store.getUsedBytes() <= store.getCapacity());
+        }
+        assertTrue(store.getEvictions() > 0);
+        assertNotNull(store.get("key999"));
+        assertNull(store.get("key0"));
+
+        // too large for any chunk
+        assertFalse(store.put("huge", new byte[2048]));
+        store.close();
+    }
+
+    /**
+     * Test a size class still stores once others have taken every slab, and
+     * slabs emptied are reassigned without evicting.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testSlabsReassigned() throws Exception
+    {
+        OffHeapStore store = new OffHeapStore(4 * 1024, 1024, null);
+        for (int i = 0; i < 40; i++)
+        {
+            assertTrue(store.put("small" + i, new byte[100]));
+        }
+        long evictions = store.getEvictions();
+
+        // every slab holds small records; a large one takes a slab of them
+        assertTrue(store.put("large", new byte[500]));
+        assertEquals(500, store.get("large").length);
+        assertTrue(store.getEvictions() > evictions);
+        assertTrue(store.getUsedBytes() <= store.getCapacity());
+
+        // emptied slabs go to the next class that needs them
+        store.removeAll("small");
+        evictions = store.getEvictions();
+        for (int i = 0; i < 9; i++)
+        {
+            assertTrue(store.put("medium" + i, new byte[200]));
+        }
+        assertEquals(evictions, store.getEvictions());
+        assertEquals(9, store.size("medium"));
+        assertNotNull(store.get("large"));
+        store.close();
+    }
+
+    /**
+     * Test a mapped store is recovered on reopen.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testRecovery() throws Exception
+    {
+        File file = File.createTempFile("kundera-offheap", ".dat");
+        file.deleteOnExit();
+
+        OffHeapStore store = new OffHeapStore(16 * 1024, 4096, file);
+        store.put("com.impetus.Author\u0000a1", "Amresh".getBytes("utf-8"));
+        store.put("com.impetus.Author\u0000a2", "Kuldeep".getBytes("utf-8"));
+        store.remove("com.impetus.Author\u0000a2");
+        store.close();
+
+        store = new OffHeapStore(16 * 1024, 4096, file);
+        assertEquals(1, store.size("com.impetus.Author\u0000"));
+        assertEquals("Amresh", new String(store.get("com.impetus.Author\u0000a1"), "utf-8"));
+        assertNull(store.get("com.impetus.Author\u0000a2"));
+        store.close();
+    }
+}
@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.junit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+
+import com.impetus.kundera.index.PagingCollector;
+import com.impetus.kundera.index.PagingCollector.Hit;
+
+/**
+ * Pages collected after a cursor line up with the top hits collected at
+ * once.
+ */
+public class PagingCollectorTest extends TestCase
+{
+
+    /** The searcher. */
+    private IndexSearcher searcher;
+
+    /** The query. */
+    private Query query = new TermQuery(new Term("role", "developer"));
+
+    /* @see junit.framework.TestCase#setUp() */
+    @SuppressWarnings("deprecation")
+    @Override
+    protected void setUp() throws Exception
+    {
+        RAMDirectory directory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(Version.LUCENE_CURRENT,
+                new StandardAnalyzer(Version.LUCENE_CURRENT)));
+        for (int i = 0; i < 60; i++)
+        {
+            Document document = new Document();
+            // a few distinct scores, many ties
+            StringBuilder role = new StringBuilder("developer");
+            for (int j = 0; j < i % 4; j++)
+            {
+                role.append(" developer");
+            }
+            document.add(new Field("role", role.toString(), Field.Store.NO, Field.Index.ANALYZED));
+            document.add(new Field("id", "e" + i, Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+            // a permutation of the docs
+            document.add(new NumericField("rank", Field.Store.NO, true).setIntValue(i * 7 % 60));
+            writer.addDocument(document);
+            if (i % 20 == 19)
+            {
+                // a few segments
+                writer.commit();
+            }
+        }
+        writer.close();
+        searcher = new IndexSearcher(directory, true);
+    }
+
+    /* @see junit.framework.TestCase#tearDown() */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        searcher.close();
+    }
+
+    /**
+     * Test pages after cursors concatenate to the top hits.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testPagesFollowCursor() throws Exception
+    {
+        ScoreDoc[] top = searcher.search(query, 60).scoreDocs;
+
+        List<Hit> paged = new ArrayList<Hit>();
+        Hit after = null;
+        List<Hit> page;
+        do
+        {
+            PagingCollector collector = new PagingCollector(0, after, 9);
+            searcher.search(query, collector);
+            assertEquals(60, collector.getTotalHits());
+            page = collector.getHits();
+            paged.addAll(page);
+            after = page.isEmpty() ? null : page.get(page.size() - 1);
+        }
+        while (page.size() == 9);
+
+        assertEquals(60, paged.size());
+        for (int i = 0; i < top.length; i++)
+        {
+            assertEquals(top[i].doc, paged.get(i).getDoc());
+        }
+    }
+
+    /**
+     * Test field values of hits come from the field cache, though not
+     * stored.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testReadsFieldCache() throws Exception
+    {
+        PagingCollector collector = new PagingCollector(0, null, 60, "id");
+        searcher.search(query, collector);
+        for (Hit hit : collector.getHits())
+        {
+            assertEquals("e" + hit.getDoc(), hit.getValue(0));
+        }
+        assertNull(new Hit(1f, 0, 0).getValue(0));
+    }
+
+    /**
+     * Test pages of sorted hits, numeric and text, line up with Lucene's
+     * sorted search.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testSortedPagesFollowCursor() throws Exception
+    {
+        Sort[] sorts = { new Sort(new SortField("rank", SortField.INT, true)),
+                new Sort(new SortField("id", SortField.STRING)) };
+        for (Sort sort : sorts)
+        {
+            ScoreDoc[] top = searcher.search(query, null, 60, sort).scoreDocs;
+
+            List<Hit> paged = new ArrayList<Hit>();
+            Hit after = null;
+            List<Hit> page;
+            do
+            {
+                PagingCollector collector = new PagingCollector(0, after, 7, sort);
+                searcher.search(query, collector);
+                page = collector.getHits();
+                paged.addAll(page);
+                after = page.isEmpty() ? null : page.get(page.size() - 1).detach();
+            }
+            while (page.size() == 7);
+
+            assertEquals(60, paged.size());
+            for (int i = 0; i < top.length; i++)
+            {
+                assertEquals(sort.toString(), top[i].doc, paged.get(i).getDoc());
+            }
+        }
+    }
+
+    /**
+     * Test a collector keeping no hits still counts them.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testCountOnly() throws Exception
+    {
+        PagingCollector collector = new PagingCollector(0, null, 0);
+        searcher.search(query, collector);
+        assertEquals(60, collector.getTotalHits());
+        assertTrue(collector.getHits().isEmpty());
+    }
+}
@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.junit;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.persistence.Query;
+
+import junit.framework.TestCase;
+
+import com.impetus.kundera.ejb.EntityManagerFactoryImpl;
+import com.impetus.kundera.ejb.EntityManagerImpl;
+import com.impetus.kundera.entity.Author;
+import com.impetus.kundera.entity.Employee;
+import com.impetus.kundera.loader.DBType;
+import com.impetus.kundera.query.QueryHints;
+import com.impetus.kundera.query.QueryResultCache;
+
+/**
+ * Cacheable queries are answered from the query result cache until an entity
+ * of the queried class is written, and results computed across a write are
+ * not cached. Queries run on a local index under a temporary home directory.
+ */
+public class QueryResultCacheTest extends TestCase
+{
+
+    /** The query of employees by role, newest name first. */
+    private static final String BY_ROLE = "select e from Employee e where e.role = :role ORDER BY e.name DESC";
+
+    /** The home directory holding the local index. */
+    private File home;
+
+    /** The home directory before the test. */
+    private String userHome;
+
+    /** The client. */
+    private InMemoryClient client;
+
+    /** The factory. */
+    private EntityManagerFactoryImpl factory;
+
+    /** The em. */
+    private EntityManagerImpl em;
+
+    /** The cache. */
+    private QueryResultCache cache;
+
+    /* @see junit.framework.TestCase#setUp() */
+    @Override
+    protected void setUp() throws Exception
+    {
+        home = File.createTempFile("kundera-home", "");
+        home.delete();
+        home.mkdirs();
+        userHome = System.getProperty("user.home");
+        System.setProperty("user.home", home.getPath());
+
+        client = new InMemoryClient(DBType.HBASE);
+        factory = client.newFactory("querycache");
+        em = (EntityManagerImpl) factory.createEntityManager();
+        cache = factory.getQueryResultCache();
+        for (int i = 0; i < 3; i++)
+        {
+            em.persist(new Employee("e" + i, "developer"));
+        }
+        em.persist(new Employee("m0", "manager"));
+        em.clear();
+    }
+
+    /* @see junit.framework.TestCase#tearDown() */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        factory.close();
+        System.setProperty("user.home", userHome);
+        delete(home);
+    }
+
+    /**
+     * Test results computed while the class was invalidated are not cached.
+     */
+    public void testPutAfterInvalidateDropped()
+    {
+        QueryResultCache results = new QueryResultCache(10);
+        long generation = results.getGeneration(Employee.class);
+        // a write lands between running the query and caching its result
+        results.invalidate(Employee.class);
+        results.put(Employee.class, "q", Arrays.asList("e0"), generation);
+        assertNull(results.get(Employee.class, "q"));
+
+        generation = results.getGeneration(Employee.class);
+        results.put(Employee.class, "q", Arrays.asList("e0"), generation);
+        assertEquals(Arrays.asList("e0"), results.get(Employee.class, "q"));
+
+        // other classes keep their results
+        results.put(Author.class, "q", Arrays.asList("a0"), results.getGeneration(Author.class));
+        results.invalidate(Employee.class);
+        assertNull(results.get(Employee.class, "q"));
+        assertEquals(Arrays.asList("a0"), results.get(Author.class, "q"));
+    }
+
+    /**
+     * Test persist, merge and remove each drop cached results of the class.
+     */
+    public void testInvalidatedOnWrites()
+    {
+        assertEquals(Arrays.asList("e2", "e1", "e0"), run("developer"));
+        assertEquals(Arrays.asList("e2", "e1", "e0"), run("developer"));
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+
+        em.persist(new Employee("e3", "developer"));
+        assertEquals(Arrays.asList("e3", "e2", "e1", "e0"), run("developer"));
+        assertEquals(2, cache.getMisses());
+
+        em.merge(new Employee("e0", "manager"));
+        assertEquals(Arrays.asList("e3", "e2", "e1"), run("developer"));
+        assertEquals(3, cache.getMisses());
+
+        em.remove(em.find(Employee.class, "e1"));
+        assertEquals(Arrays.asList("e3", "e2"), run("developer"));
+        assertEquals(4, cache.getMisses());
+        assertEquals(1, cache.getHits());
+    }
+
+    /**
+     * Test queries differing only in a bound parameter are cached apart.
+     */
+    public void testBoundParameterInKey()
+    {
+        assertEquals(Arrays.asList("e2", "e1", "e0"), run("developer"));
+        assertEquals(Arrays.asList("m0"), run("manager"));
+        assertEquals(2, cache.getMisses());
+
+        assertEquals(Arrays.asList("m0"), run("manager"));
+        assertEquals(Arrays.asList("e2", "e1", "e0"), run("developer"));
+        assertEquals(2, cache.getHits());
+    }
+
+    /**
+     * Test cached ids come back as entities in the order of the hits, also
+     * when some are already in the session.
+     */
+    public void testOrderPreserved()
+    {
+        assertEquals(Arrays.asList("e2", "e1", "e0"), run("developer"));
+        em.clear();
+        em.find(Employee.class, "e1");
+        int multigets = client.getMultigets();
+
+        assertEquals(Arrays.asList("e2", "e1", "e0"), run("developer"));
+        assertEquals(1, cache.getHits());
+        assertEquals(multigets + 1, client.getMultigets());
+
+        assertEquals(Arrays.asList("e0", "m0", "e2"), names(em.find(Employee.class, "e0", "m0", "e2")));
+    }
+
+    /**
+     * Runs the cacheable query of employees by role.
+     *
+     * @param role
+     *            the role
+     * @return names of the employees found, in order
+     */
+    private List<String> run(String role)
+    {
+        Query query = em.createQuery(BY_ROLE);
+        query.setParameter("role", role);
+        query.setHint(QueryHints.CACHEABLE, true);
+        return names(query.getResultList());
+    }
+
+    /**
+     * Names of employees.
+     *
+     * @param employees
+     *            the employees
+     * @return the names
+     */
+    private List<String> names(List<?> employees)
+    {
+        List<String> names = new ArrayList<String>();
+        for (Object employee : employees)
+        {
+            names.add(((Employee) employee).getName());
+        }
+        return names;
+    }
+
+    /**
+     * Deletes a file or directory tree.
+     *
+     * @param file
+     *            the file
+     */
+    private void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+            {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,384 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.junit;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.persistence.EntityManager;
+
+import junit.framework.TestCase;
+
+import com.impetus.kundera.ejb.EntityManagerFactoryImpl;
+import com.impetus.kundera.ejb.ReadCoalescer;
+import com.impetus.kundera.entity.Employee;
+
+/**
+ * Concurrent identical reads share one read; waiting callers fall back to a
+ * read of their own after the bounded wait, see the error of the shared read,
+ * and never share entity instances across entity managers.
+ */
+public class ReadCoalescerTest extends TestCase
+{
+
+    /** Callers joining the read in flight. */
+    private static final int FOLLOWERS = 4;
+
+    /** Reads run. */
+    private final AtomicInteger reads = new AtomicInteger();
+
+    /** Counted down when the first read is running. */
+    private final CountDownLatch entered = new CountDownLatch(1);
+
+    /** Counted down to let the first read finish. */
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    /**
+     * Test callers arriving while a read is in flight share its result.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testConcurrentIdenticalReads() throws Exception
+    {
+        ReadCoalescer coalescer = new ReadCoalescer(true, 60000);
+        Caller leader = new Caller(coalescer, "k", blockingRead("shared"));
+        leader.start();
+        entered.await();
+
+        Caller[] followers = new Caller[FOLLOWERS];
+        for (int i = 0; i < FOLLOWERS; i++)
+        {
+            followers[i] = new Caller(coalescer, "k", blockingRead("own"));
+            followers[i].start();
+            awaitWaiting(followers[i]);
+        }
+        release.countDown();
+
+        leader.join();
+        assertEquals("shared", leader.result.get());
+        for (Caller follower : followers)
+        {
+            follower.join();
+            assertEquals("shared", follower.result.get());
+        }
+        assertEquals(1, reads.get());
+        assertEquals(FOLLOWERS, coalescer.getCoalescedReads());
+
+        // the read is no longer in flight
+        assertEquals("again", coalescer.execute("k", blockingRead("again")));
+        assertEquals(2, reads.get());
+    }
+
+    /**
+     * Test a caller that waited too long reads on its own.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testTimeout() throws Exception
+    {
+        ReadCoalescer coalescer = new ReadCoalescer(true, 50);
+        Caller leader = new Caller(coalescer, "k", blockingRead("slow"));
+        leader.start();
+        entered.await();
+
+        assertEquals("own", coalescer.execute("k", new Callable<String>()
+        {
+            @Override
+            public String call()
+            {
+                reads.incrementAndGet();
+                return "own";
+            }
+        }));
+        assertEquals(0, coalescer.getCoalescedReads());
+
+        release.countDown();
+        leader.join();
+        assertEquals("slow", leader.result.get());
+        assertEquals(2, reads.get());
+    }
+
+    /**
+     * Test waiting callers get the error of the shared read.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testErrorPropagated() throws Exception
+    {
+        ReadCoalescer coalescer = new ReadCoalescer(true, 60000);
+        Callable<String> failing = new Callable<String>()
+        {
+            @Override
+            public String call() throws Exception
+            {
+                reads.incrementAndGet();
+                entered.countDown();
+                release.await();
+                throw new IllegalStateException("datastore down");
+            }
+        };
+        Caller leader = new Caller(coalescer, "k", failing);
+        leader.start();
+        entered.await();
+
+        Caller follower = new Caller(coalescer, "k", blockingRead("own"));
+        follower.start();
+        awaitWaiting(follower);
+        release.countDown();
+
+        leader.join();
+        follower.join();
+        assertTrue(leader.failure.get() instanceof IllegalStateException);
+        assertTrue(follower.failure.get() instanceof IllegalStateException);
+        assertEquals("datastore down", follower.failure.get().getMessage());
+        assertEquals(1, reads.get());
+
+        // a failed read is not remembered
+        assertEquals("again", coalescer.execute("k", blockingRead("again")));
+    }
+
+    /**
+     * Test every read runs when disabled.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testDisabled() throws Exception
+    {
+        ReadCoalescer coalescer = ReadCoalescer.fromProperties(null);
+        assertFalse(coalescer.isEnabled());
+        release.countDown();
+        coalescer.execute("k", blockingRead("a"));
+        coalescer.execute("k", blockingRead("b"));
+        assertEquals(2, reads.get());
+    }
+
+    /**
+     * Test concurrent finds of one entity through two entity managers read it
+     * once, yet each gets instances of its own, relations included.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testEntityManagersGetOwnEntities() throws Exception
+    {
+        InMemoryClient client = new InMemoryClient();
+        Map<String, String> props = new HashMap<String, String>();
+        props.put(ReadCoalescer.ENABLED, "true");
+        props.put(ReadCoalescer.MAX_WAIT, "60000");
+        EntityManagerFactoryImpl factory = client.newFactory("coalesce", props);
+        try
+        {
+            Employee boss = new Employee("b0", "manager");
+            Employee employee = new Employee("e0", "developer");
+            employee.setBoss(boss);
+            client.put(boss, employee);
+            client.setBeforeRead(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    entered.countDown();
+                    try
+                    {
+                        release.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+
+            Finder first = new Finder(factory.createEntityManager(), "e0");
+            first.start();
+            entered.await();
+            Finder second = new Finder(factory.createEntityManager(), "e0");
+            second.start();
+            awaitWaiting(second);
+            release.countDown();
+            first.join();
+            second.join();
+
+            assertNull(first.failure.get());
+            assertNull(second.failure.get());
+            assertEquals(1, client.getReads());
+            assertEquals(1, factory.getReadCoalescer().getCoalescedReads());
+
+            Employee e1 = first.result.get();
+            Employee e2 = second.result.get();
+            assertNotSame(e1, e2);
+            assertEquals("developer", e2.getRole());
+            assertNotSame(e1.getBoss(), e2.getBoss());
+            assertEquals("b0", e2.getBoss().getName());
+
+            // each is the managed instance of its own entity manager
+            assertSame(e1, first.em.find(Employee.class, "e0"));
+            assertSame(e2, second.em.find(Employee.class, "e0"));
+            e1.setRole("changed");
+            assertEquals("developer", e2.getRole());
+        }
+        finally
+        {
+            factory.close();
+        }
+    }
+
+    /**
+     * A read that counts itself and returns value once released.
+     *
+     * @param value
+     *            the value
+     * @return the read
+     */
+    private Callable<String> blockingRead(final String value)
+    {
+        return new Callable<String>()
+        {
+            @Override
+            public String call() throws Exception
+            {
+                reads.incrementAndGet();
+                entered.countDown();
+                release.await();
+                return value;
+            }
+        };
+    }
+
+    /**
+     * Waits until a thread is blocked waiting on the read in flight.
+     *
+     * @param thread
+     *            the thread
+     * @throws InterruptedException
+     *             the interrupted exception
+     */
+    private void awaitWaiting(Thread thread) throws InterruptedException
+    {
+        while (thread.getState() != Thread.State.TIMED_WAITING && thread.isAlive())
+        {
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Runs a read through a coalescer.
+     */
+    private static final class Caller extends Thread
+    {
+
+        /** The coalescer. */
+        private final ReadCoalescer coalescer;
+
+        /** The key. */
+        private final String key;
+
+        /** The read. */
+        private final Callable<String> read;
+
+        /** The result. */
+        private final AtomicReference<String> result = new AtomicReference<String>();
+
+        /** The failure. */
+        private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+        /**
+         * Instantiates a new caller.
+         *
+         * @param coalescer
+         *            the coalescer
+         * @param key
+         *            the key
+         * @param read
+         *            the read
+         */
+        Caller(ReadCoalescer coalescer, String key, Callable<String> read)
+        {
+            this.coalescer = coalescer;
+            this.key = key;
+            this.read = read;
+        }
+
+        /* @see java.lang.Thread#run() */
+        @Override
+        public void run()
+        {
+            try
+            {
+                result.set(coalescer.execute(key, read));
+            }
+            catch (Exception e)
+            {
+                failure.set(e);
+            }
+        }
+    }
+
+    /**
+     * Finds an employee through an entity manager.
+     */
+    private static final class Finder extends Thread
+    {
+
+        /** The em. */
+        private final EntityManager em;
+
+        /** The id. */
+        private final String id;
+
+        /** The result. */
+        private final AtomicReference<Employee> result = new AtomicReference<Employee>();
+
+        /** The failure. */
+        private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        /**
+         * Instantiates a new finder.
+         *
+         * @param em
+         *            the em
+         * @param id
+         *            the id
+         */
+        Finder(EntityManager em, String id)
+        {
+            this.em = em;
+            this.id = id;
+        }
+
+        /* @see java.lang.Thread#run() */
+        @Override
+        public void run()
+        {
+            try
+            {
+                result.set(em.find(Employee.class, id));
+            }
+            catch (Throwable e)
+            {
+                failure.set(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,384 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.junit;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.PersistenceException;
+
+import junit.framework.TestCase;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.db.ColumnFamilyType;
+import org.apache.cassandra.db.IColumn;
+import org.apache.cassandra.db.columniterator.IColumnIterator;
+import org.apache.cassandra.db.marshal.BytesType;
+import org.apache.cassandra.io.sstable.Component;
+import org.apache.cassandra.io.sstable.Descriptor;
+import org.apache.cassandra.io.sstable.SSTableReader;
+import org.apache.cassandra.io.sstable.SSTableScanner;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.Pair;
+
+import com.impetus.kundera.cassandra.client.pelops.SSTableExporter;
+import com.impetus.kundera.Constants;
+import com.impetus.kundera.ejb.EntityManagerFactoryImpl;
+import com.impetus.kundera.entity.Attachment;
+import com.impetus.kundera.entity.Author;
+import com.impetus.kundera.entity.AuthorDetail;
+import com.impetus.kundera.entity.Contact;
+import com.impetus.kundera.entity.Email;
+import com.impetus.kundera.entity.Employee;
+import com.impetus.kundera.entity.Post;
+import com.impetus.kundera.entity.PostData;
+import com.impetus.kundera.metadata.EntityMetadata;
+import com.impetus.kundera.metadata.MetadataUtils;
+
+/**
+ * Entities exported to SSTables read back as the rows the client would have
+ * written. Uses the cassandra.yaml on the test classpath for the partitioner.
+ */
+public class SSTableExporterTest extends TestCase
+{
+
+    /** The directory SSTables are written to. */
+    private File directory;
+
+    /** The factory. */
+    private EntityManagerFactoryImpl factory;
+
+    /* @see junit.framework.TestCase#setUp() */
+    @Override
+    protected void setUp() throws Exception
+    {
+        directory = File.createTempFile("kundera-sstables", "");
+        directory.delete();
+        directory.mkdirs();
+        factory = new EntityManagerFactoryImpl("export", new HashMap<String, String>());
+    }
+
+    /* @see junit.framework.TestCase#tearDown() */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        factory.close();
+        delete(directory);
+    }
+
+    /**
+     * Test exported authors read back with their columns.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testRoundTrip() throws Exception
+    {
+        List<Author> authors = new ArrayList<Author>();
+        for (int i = 0; i < 5; i++)
+        {
+            Author author = new Author();
+            author.setUsername("author" + i);
+            author.setEmailAddress("author" + i + "@example.com");
+            author.setCountry(i % 2 == 0 ? "India" : "Brazil");
+            authors.add(author);
+        }
+
+        SSTableExporter exporter = new SSTableExporter(factory, directory, 1);
+        try
+        {
+            assertEquals(5, exporter.export(authors));
+        }
+        finally
+        {
+            exporter.close();
+        }
+
+        EntityMetadata m = factory.getMetadataManager().getEntityMetadata(Author.class);
+        Map<String, Map<String, String>> rows = read(m.getSchema(), m.getTableName(), false);
+        assertEquals(5, rows.size());
+        for (int i = 0; i < 5; i++)
+        {
+            Map<String, String> columns = rows.get("author" + i);
+            assertNotNull("Missing row author" + i, columns);
+            assertEquals("author" + i + "@example.com", columns.get("email"));
+            assertEquals(i % 2 == 0 ? "India" : "Brazil", columns.get("country"));
+        }
+    }
+
+    /**
+     * Test embedded objects are written as super columns, and each element of
+     * an embedded collection as a super column of its own.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testEmbeddedRoundTrip() throws Exception
+    {
+        Post post = new Post();
+        post.setPermalink("post1");
+        PostData data = new PostData();
+        data.setTitle("Exporting");
+        data.setBody("Rows go straight to SSTables");
+        data.setCreated(new Date());
+        post.setData(data);
+        AuthorDetail author = new AuthorDetail();
+        author.setAuthor("animesh");
+        author.setEmail("animesh@example.com");
+        post.setAuthor(author);
+
+        Email email = new Email();
+        email.setMessageId("m1");
+        email.setSubject("Export");
+        email.setBody("Attached");
+        email.setFrom(new Contact("c1", "Ada", "Lovelace", "ada@example.com"));
+        email.setTo(new Contact("c2", "Alan", "Turing", "alan@example.com"));
+        for (int i = 0; i < 2; i++)
+        {
+            Attachment attachment = new Attachment();
+            attachment.setAttachmentId("a" + i);
+            attachment.setFileName("file" + i + ".txt");
+            attachment.setFileType("text");
+            attachment.setFileLocation("/tmp/file" + i + ".txt");
+            email.addAttachment(attachment);
+        }
+
+        SSTableExporter exporter = new SSTableExporter(factory, directory, 1);
+        try
+        {
+            exporter.export(post);
+            exporter.export(email);
+        }
+        finally
+        {
+            exporter.close();
+        }
+
+        EntityMetadata m = factory.getMetadataManager().getEntityMetadata(Post.class);
+        Map<String, String> columns = read(m.getSchema(), m.getTableName(), true).get("post1");
+        assertNotNull("Missing row post1", columns);
+        assertEquals("Exporting", columns.get("data:title"));
+        assertEquals("Rows go straight to SSTables", columns.get("data:body"));
+        assertNotNull(columns.get("data:created"));
+        assertEquals("animesh", columns.get("author:authorname"));
+        assertEquals("animesh@example.com", columns.get("author:email"));
+
+        m = factory.getMetadataManager().getEntityMetadata(Email.class);
+        columns = read(m.getSchema(), m.getTableName(), true).get("m1");
+        assertNotNull("Missing row m1", columns);
+        assertEquals("Ada", columns.get("from:first_name"));
+        assertEquals("Turing", columns.get("to:last_name"));
+        for (int i = 0; i < 2; i++)
+        {
+            String superColumn = "attachments" + Constants.SUPER_COLUMN_NAME_DELIMITER + i;
+            assertEquals("file" + i + ".txt", columns.get(superColumn + ":file_name"));
+            assertEquals("/tmp/file" + i + ".txt", columns.get(superColumn + ":file_location"));
+        }
+    }
+
+    /**
+     * Test relations are written as foreign key columns holding the ids of
+     * the related entities.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testRelationRoundTrip() throws Exception
+    {
+        Employee boss = new Employee("boss", "manager");
+        Employee employee = new Employee("dev", "developer");
+        employee.setBoss(boss);
+        employee.addtoTeam(new Employee("t1", "tester"), new Employee("t2", "tester"));
+
+        SSTableExporter exporter = new SSTableExporter(factory, directory, 1);
+        try
+        {
+            exporter.export(employee);
+        }
+        finally
+        {
+            exporter.close();
+        }
+
+        EntityMetadata m = factory.getMetadataManager().getEntityMetadata(Employee.class);
+        Map<String, Map<String, String>> rows = read(m.getSchema(), m.getTableName(), false);
+        // related entities are not followed
+        assertEquals(1, rows.size());
+        Map<String, String> columns = rows.get("dev");
+        assertEquals("developer", columns.get("role"));
+        assertEquals("boss", columns.get("boss"));
+        Set<String> team = new HashSet<String>();
+        team.add("t1");
+        team.add("t2");
+        assertEquals(team, MetadataUtils.deserializeKeys(columns.get("team")));
+    }
+
+    /**
+     * Test an entity of a super column family with plain columns is refused
+     * rather than written in a layout the client could not read.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testSuperColumnFamilyWithPlainColumnsRefused() throws Exception
+    {
+        EntityMetadata m = factory.getMetadataManager().getEntityMetadata(Email.class);
+        m.addColumn("stray", m.new Column("stray", Email.class.getDeclaredField("subject")));
+
+        Email email = new Email();
+        email.setMessageId("m1");
+        email.setSubject("Export");
+        email.setBody("Plain");
+        email.setFrom(new Contact("c1", "Ada", "Lovelace", "ada@example.com"));
+        email.setTo(new Contact("c2", "Alan", "Turing", "alan@example.com"));
+
+        SSTableExporter exporter = new SSTableExporter(factory, directory, 1);
+        try
+        {
+            exporter.export(email);
+            fail("Super column family with plain columns exported");
+        }
+        catch (PersistenceException e)
+        {
+            assertTrue(e.getMessage(), e.getMessage().contains("has plain columns"));
+        }
+        finally
+        {
+            exporter.close();
+        }
+        assertEquals(0, exporter.getRows());
+    }
+
+    /**
+     * Reads all rows of a column family from the SSTables written for it,
+     * string values by column name by row key. Columns of a super column
+     * family are named <code>superColumn:column</code>.
+     *
+     * @param keyspace
+     *            the keyspace
+     * @param columnFamily
+     *            the column family
+     * @param isSuper
+     *            whether it is a super column family
+     * @return the rows
+     * @throws Exception
+     *             the exception
+     */
+    private Map<String, Map<String, String>> read(String keyspace, String columnFamily, boolean isSuper)
+            throws Exception
+    {
+        File keyspaceDirectory = new File(directory, keyspace);
+        CFMetaData cfm = isSuper ? new CFMetaData(keyspace, columnFamily, ColumnFamilyType.Super,
+                BytesType.instance, BytesType.instance) : new CFMetaData(keyspace, columnFamily,
+                ColumnFamilyType.Standard, BytesType.instance, null);
+
+        // one descriptor per SSTable, found by its data file
+        Set<Descriptor> descriptors = new HashSet<Descriptor>();
+        for (String name : keyspaceDirectory.list())
+        {
+            Pair<Descriptor, Component> component = Component.fromFilename(keyspaceDirectory, name);
+            if (component.right.equals(Component.DATA) && columnFamily.equals(component.left.cfname))
+            {
+                descriptors.add(component.left);
+            }
+        }
+        assertFalse("No SSTable written for " + columnFamily, descriptors.isEmpty());
+
+        Set<Component> components = new HashSet<Component>();
+        components.add(Component.DATA);
+        components.add(Component.PRIMARY_INDEX);
+        components.add(Component.FILTER);
+
+        Map<String, Map<String, String>> rows = new HashMap<String, Map<String, String>>();
+        for (Descriptor descriptor : descriptors)
+        {
+            SSTableReader reader = SSTableReader.open(descriptor, components, cfm, DatabaseDescriptor
+                    .getPartitioner());
+            SSTableScanner scanner = reader.getDirectScanner(64 * 1024);
+            try
+            {
+                while (scanner.hasNext())
+                {
+                    IColumnIterator row = scanner.next();
+                    Map<String, String> columns = new HashMap<String, String>();
+                    while (row.hasNext())
+                    {
+                        IColumn column = row.next();
+                        if (isSuper)
+                        {
+                            for (IColumn subColumn : column.getSubColumns())
+                            {
+                                columns.put(string(column.name()) + ":" + string(subColumn.name()),
+                                        string(subColumn.value()));
+                            }
+                        }
+                        else
+                        {
+                            columns.put(string(column.name()), string(column.value()));
+                        }
+                    }
+                    rows.put(string(row.getKey().key), columns);
+                }
+            }
+            finally
+            {
+                scanner.close();
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Decodes UTF-8 bytes.
+     *
+     * @param bytes
+     *            the bytes
+     * @return the string
+     * @throws Exception
+     *             the exception
+     */
+    private String string(ByteBuffer bytes) throws Exception
+    {
+        return ByteBufferUtil.string(bytes);
+    }
+
+    /**
+     * Deletes a file or directory tree.
+     *
+     * @param file
+     *            the file
+     */
+    private void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+            {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
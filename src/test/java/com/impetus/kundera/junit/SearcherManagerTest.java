@@ -0,0 +1,229 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.junit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.FilterIndexReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.ReaderUtil;
+import org.apache.lucene.util.Version;
+
+import com.impetus.kundera.index.KunderaIndexer;
+import com.impetus.kundera.index.SearcherManager;
+import com.impetus.kundera.index.SharedIndexWriter;
+
+/**
+ * Searchers are shared, see uncommitted writes once reopened, are warmed
+ * before use, and close when replaced and no longer used.
+ */
+public class SearcherManagerTest extends TestCase
+{
+
+    /** The writer. */
+    private SharedIndexWriter writer;
+
+    /* @see junit.framework.TestCase#setUp() */
+    @SuppressWarnings("deprecation")
+    @Override
+    protected void setUp() throws Exception
+    {
+        // no commits but on close
+        writer = new SharedIndexWriter(new RAMDirectory(), new StandardAnalyzer(Version.LUCENE_CURRENT), 0, 0,
+                SharedIndexWriter.DEFAULT_SEGMENTS_PER_TIER, SharedIndexWriter.DEFAULT_RAM_BUFFER_MB);
+    }
+
+    /* @see junit.framework.TestCase#tearDown() */
+    @Override
+    protected void tearDown() throws Exception
+    {
+        writer.close();
+    }
+
+    /**
+     * Test a searcher is shared until there are writes, which the next one
+     * sees before they are committed.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testNearRealTime() throws Exception
+    {
+        SearcherManager manager = open(0);
+
+        IndexSearcher first = manager.acquire();
+        assertEquals(0, first.getIndexReader().numDocs());
+        IndexSearcher again = manager.acquire();
+        assertSame(first, again);
+        manager.release(again);
+
+        writer.addDocument(document("e1"));
+        IndexSearcher second = manager.acquire();
+        assertNotSame(first, second);
+        assertEquals(1, second.getIndexReader().numDocs());
+
+        // the replaced reader stays open while in use
+        assertTrue(first.getIndexReader().getRefCount() > 0);
+        manager.release(first);
+        assertEquals(0, first.getIndexReader().getRefCount());
+
+        manager.release(second);
+        manager.close();
+        assertEquals(0, second.getIndexReader().getRefCount());
+    }
+
+    /**
+     * Test a searcher is kept within the staleness bound.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testStalenessBound() throws Exception
+    {
+        SearcherManager manager = open(60000);
+        IndexSearcher first = manager.acquire();
+        manager.release(first);
+
+        writer.addDocument(document("e1"));
+        IndexSearcher second = manager.acquire();
+        assertSame(first, second);
+        manager.release(second);
+        manager.close();
+    }
+
+    /**
+     * Test a new searcher is warmed with the field cache entries recent
+     * queries read.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testWarmLoadsFieldCache() throws Exception
+    {
+        SearcherManager manager = open(0);
+        manager.recordQuery(new MatchAllDocsQuery(), null, KunderaIndexer.KUNDERA_ID_FIELD);
+
+        writer.addDocument(document("e1"));
+        IndexSearcher searcher = manager.acquire();
+        List<IndexReader> segments = new ArrayList<IndexReader>();
+        ReaderUtil.gatherSubReaders(segments, searcher.getIndexReader());
+        assertFalse(segments.isEmpty());
+        for (IndexReader segment : segments)
+        {
+            assertTrue(isCached(segment, KunderaIndexer.KUNDERA_ID_FIELD));
+        }
+        manager.release(searcher);
+        manager.close();
+    }
+
+    /**
+     * Test a reader that reopens as itself, as Lucandra's does, stays the
+     * searcher and keeps its reference.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testReopenedInPlace() throws Exception
+    {
+        writer.addDocument(document("e1"));
+        IndexReader reader = new FilterIndexReader(IndexReader.open(writer.getIndexWriter(), true))
+        {
+            @Override
+            public IndexReader reopen()
+            {
+                return this;
+            }
+
+            @Override
+            public boolean isCurrent()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+        SearcherManager manager = new SearcherManager(reader, 0, SearcherManager.DEFAULT_WARM_QUERIES);
+        manager.recordQuery(new MatchAllDocsQuery(), null, KunderaIndexer.KUNDERA_ID_FIELD);
+
+        IndexSearcher first = manager.acquire();
+        manager.release(first);
+        IndexSearcher second = manager.acquire();
+        assertSame(first, second);
+        assertTrue(reader.getRefCount() > 0);
+        manager.release(second);
+        manager.close();
+        assertEquals(0, reader.getRefCount());
+    }
+
+    /**
+     * Checks whether the field cache holds a field of a reader.
+     *
+     * @param reader
+     *            the reader
+     * @param field
+     *            the field
+     * @return true, if cached
+     */
+    private boolean isCached(IndexReader reader, String field)
+    {
+        for (FieldCache.CacheEntry entry : FieldCache.DEFAULT.getCacheEntries())
+        {
+            if (entry.getReaderKey() == reader.getFieldCacheKey() && field.equals(entry.getFieldName()))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Opens a searcher manager on the writer.
+     *
+     * @param maxStaleness
+     *            the max staleness
+     * @return the searcher manager
+     * @throws Exception
+     *             the exception
+     */
+    private SearcherManager open(long maxStaleness) throws Exception
+    {
+        return new SearcherManager(IndexReader.open(writer.getIndexWriter(), true), maxStaleness,
+                SearcherManager.DEFAULT_WARM_QUERIES);
+    }
+
+    /**
+     * A document for an employee.
+     *
+     * @param id
+     *            the id
+     * @return the document
+     */
+    private Document document(String id)
+    {
+        Document document = new Document();
+        document.add(new Field(KunderaIndexer.KUNDERA_ID_FIELD, "Employee~" + id, Field.Store.YES,
+                Field.Index.NOT_ANALYZED_NO_NORMS));
+        return document;
+    }
+}
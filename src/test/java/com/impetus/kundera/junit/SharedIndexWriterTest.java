@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * * Copyright 2011 Impetus Infotech.
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ ******************************************************************************/
+package com.impetus.kundera.junit;
+
+import junit.framework.TestCase;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+
+import com.impetus.kundera.index.KunderaIndexer;
+import com.impetus.kundera.index.SharedIndexWriter;
+
+/**
+ * The shared writer commits on a document count, on an interval and on
+ * close, and replaces documents by their kundera id.
+ */
+public class SharedIndexWriterTest extends TestCase
+{
+
+    /** The directory. */
+    private RAMDirectory directory;
+
+    /* @see junit.framework.TestCase#setUp() */
+    @Override
+    protected void setUp() throws Exception
+    {
+        directory = new RAMDirectory();
+    }
+
+    /**
+     * Test changes are committed once enough are waiting.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testCommitOnDocumentCount() throws Exception
+    {
+        SharedIndexWriter writer = open(0, 3);
+        writer.addDocument(document("e1"));
+        writer.addDocument(document("e2"));
+        assertEquals(0, committedDocs());
+
+        writer.addDocument(document("e3"));
+        assertEquals(3, committedDocs());
+        writer.close();
+    }
+
+    /**
+     * Test changes are committed on the interval.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testCommitOnInterval() throws Exception
+    {
+        SharedIndexWriter writer = open(20, 0);
+        writer.addDocument(document("e1"));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (committedDocs() == 0 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals(1, committedDocs());
+        writer.close();
+    }
+
+    /**
+     * Test a document replaces the one with the same kundera id.
+     *
+     * @throws Exception
+     *             the exception
+     */
+    public void testUpdateReplaces() throws Exception
+    {
+        SharedIndexWriter writer = open(0, 0);
+        writer.updateDocument(new Term(KunderaIndexer.KUNDERA_ID_FIELD, "Employee~e1"), document("e1"));
+        writer.updateDocument(new Term(KunderaIndexer.KUNDERA_ID_FIELD, "Employee~e1"), document("e1"));
+        writer.updateDocument(new Term(KunderaIndexer.KUNDERA_ID_FIELD, "Employee~e2"), document("e2"));
+        writer.commit();
+        assertEquals(2, committedDocs());
+
+        writer.deleteDocuments(new Term(KunderaIndexer.KUNDERA_ID_FIELD, "Employee~e1"));
+        writer.close();
+        assertEquals(1, committedDocs());
+    }
+
+    /**
+     * Opens a writer on the test directory.
+     *
+     * @param commitInterval
+     *            the commit interval
+     * @param commitDocuments
+     *            the commit documents
+     * @return the shared index writer
+     * @throws Exception
+     *             the exception
+     */
+    @SuppressWarnings("deprecation")
+    private SharedIndexWriter open(long commitInterval, int commitDocuments) throws Exception
+    {
+        return new SharedIndexWriter(directory, new StandardAnalyzer(Version.LUCENE_CURRENT), commitInterval,
+                commitDocuments, SharedIndexWriter.DEFAULT_SEGMENTS_PER_TIER, SharedIndexWriter.DEFAULT_RAM_BUFFER_MB);
+    }
+
+    /**
+     * Documents a fresh reader sees.
+     *
+     * @return the number of committed documents
+     * @throws Exception
+     *             the exception
+     */
+    private int committedDocs() throws Exception
+    {
+        IndexReader reader = IndexReader.open(directory);
+        try
+        {
+            return reader.numDocs();
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * A document for an employee.
+     *
+     * @param id
+     *            the id
+     * @return the document
+     */
+    private Document document(String id)
+    {
+        Document document = new Document();
+        document.add(new Field(KunderaIndexer.KUNDERA_ID_FIELD, "Employee~" + id, Field.Store.YES,
+                Field.Index.NOT_ANALYZED_NO_NORMS));
+        return document;
+    }
+}